@@ -0,0 +1,114 @@
+package com.overstock.sample.processor;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares hydrating (setting every property of) and reading an entity through its generated {@link PropertyAccessor}
+ * with doing so through reflection, on fields and on getters and setters, as a persistence provider would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessorBenchmark {
+  private PropertyAccessor<HydrationEntity> accessor;
+  private Field[] fields;
+  private Method[] getters;
+  private Method[] setters;
+  /** a row of values, one per property, in accessor order */
+  private Object[] row;
+  private HydrationEntity entity;
+
+  @Setup
+  public void setUp() throws Exception {
+    accessor = PropertyAccessors.forClass(HydrationEntity.class);
+    if (accessor == null) {
+      throw new IllegalStateException("HydrationEntity_Accessor was not generated");
+    }
+    int count = accessor.getPropertyCount();
+    fields = new Field[count];
+    getters = new Method[count];
+    setters = new Method[count];
+    for (int i = 0; i < count; i++) {
+      String name = accessor.getPropertyName(i);
+      fields[i] = HydrationEntity.class.getDeclaredField(name);
+      fields[i].setAccessible(true);
+      String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+      getters[i] = HydrationEntity.class.getMethod(
+        (fields[i].getType() == boolean.class ? "is" : "get") + capitalized);
+      setters[i] = HydrationEntity.class.getMethod("set" + capitalized, fields[i].getType());
+    }
+    row = new Object[] { 42L, "widget", "a widget", 3, 7L, true, 9.99, new Date(0) };
+    entity = hydrateGenerated();
+  }
+
+  @Benchmark
+  public HydrationEntity hydrateGenerated() {
+    HydrationEntity hydrated = new HydrationEntity();
+    for (int i = 0; i < row.length; i++) {
+      accessor.set(hydrated, i, row[i]);
+    }
+    return hydrated;
+  }
+
+  @Benchmark
+  public HydrationEntity hydrateReflectiveField() throws Exception {
+    HydrationEntity hydrated = new HydrationEntity();
+    for (int i = 0; i < row.length; i++) {
+      fields[i].set(hydrated, row[i]);
+    }
+    return hydrated;
+  }
+
+  @Benchmark
+  public HydrationEntity hydrateReflectiveSetter() throws Exception {
+    HydrationEntity hydrated = new HydrationEntity();
+    for (int i = 0; i < row.length; i++) {
+      setters[i].invoke(hydrated, row[i]);
+    }
+    return hydrated;
+  }
+
+  @Benchmark
+  public void readGenerated(Blackhole blackhole) {
+    for (int i = 0; i < row.length; i++) {
+      blackhole.consume(accessor.get(entity, i));
+    }
+  }
+
+  @Benchmark
+  public void readReflectiveField(Blackhole blackhole) throws Exception {
+    for (int i = 0; i < row.length; i++) {
+      blackhole.consume(fields[i].get(entity));
+    }
+  }
+
+  @Benchmark
+  public void readReflectiveGetter(Blackhole blackhole) throws Exception {
+    for (int i = 0; i < row.length; i++) {
+      blackhole.consume(getters[i].invoke(entity));
+    }
+  }
+
+  @Benchmark
+  public int indexOf() {
+    return accessor.indexOf("created");
+  }
+}
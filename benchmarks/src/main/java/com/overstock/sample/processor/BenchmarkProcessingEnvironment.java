@@ -0,0 +1,93 @@
+package com.overstock.sample.processor;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic.Kind;
+
+/**
+ * A {@link ProcessingEnvironment} over the {@link Elements} and {@link Types} of a {@link SyntheticModel}, so that
+ * processor methods can be called outside of a javac round. Diagnostics are counted rather than printed, and there is
+ * no {@link Filer}.
+ */
+class BenchmarkProcessingEnvironment implements ProcessingEnvironment {
+  private final SyntheticModel model;
+  private final CountingMessager messager = new CountingMessager();
+
+  BenchmarkProcessingEnvironment(SyntheticModel model) {
+    this.model = model;
+  }
+
+  int getMessageCount() {
+    return messager.count;
+  }
+
+  @Override
+  public Map<String, String> getOptions() {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public Messager getMessager() {
+    return messager;
+  }
+
+  @Override
+  public Filer getFiler() {
+    throw new UnsupportedOperationException("no Filer outside of javac");
+  }
+
+  @Override
+  public Elements getElementUtils() {
+    return model.getElementUtils();
+  }
+
+  @Override
+  public Types getTypeUtils() {
+    return model.getTypeUtils();
+  }
+
+  @Override
+  public SourceVersion getSourceVersion() {
+    return SourceVersion.latest();
+  }
+
+  @Override
+  public Locale getLocale() {
+    return Locale.getDefault();
+  }
+
+  private static class CountingMessager implements Messager {
+    int count;
+
+    @Override
+    public void printMessage(Kind kind, CharSequence msg) {
+      count++;
+    }
+
+    @Override
+    public void printMessage(Kind kind, CharSequence msg, Element e) {
+      count++;
+    }
+
+    @Override
+    public void printMessage(Kind kind, CharSequence msg, Element e, AnnotationMirror a) {
+      count++;
+    }
+
+    @Override
+    public void printMessage(Kind kind, CharSequence msg, Element e, AnnotationMirror a, AnnotationValue v) {
+      count++;
+    }
+  }
+}
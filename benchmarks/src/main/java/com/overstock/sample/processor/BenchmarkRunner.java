@@ -0,0 +1,21 @@
+package com.overstock.sample.processor;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so that allocation rates are reported alongside times. Any
+ * arguments are passed on to JMH, for example {@code -p entityCount=5000} or {@code -rf json}.
+ */
+public class BenchmarkRunner {
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    new Runner(new OptionsBuilder()
+      .parent(new CommandLineOptions(args))
+      .addProfiler(GCProfiler.class)
+      .build()).run();
+  }
+}
@@ -0,0 +1,40 @@
+package com.overstock.sample.processor;
+
+import java.util.Date;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * A typical entity, with private fields behind getters and setters, for {@link AccessorBenchmark}. Its
+ * {@link PropertyAccessor} is generated when the benchmarks are compiled.
+ */
+@Entity
+public class HydrationEntity {
+  @Id
+  private Long id;
+  private String name;
+  private String description;
+  private int quantity;
+  private long version;
+  private boolean active;
+  private double price;
+  private Date created;
+
+  public Long getId() { return id; }
+  public void setId(Long id) { this.id = id; }
+  public String getName() { return name; }
+  public void setName(String name) { this.name = name; }
+  public String getDescription() { return description; }
+  public void setDescription(String description) { this.description = description; }
+  public int getQuantity() { return quantity; }
+  public void setQuantity(int quantity) { this.quantity = quantity; }
+  public long getVersion() { return version; }
+  public void setVersion(long version) { this.version = version; }
+  public boolean isActive() { return active; }
+  public void setActive(boolean active) { this.active = active; }
+  public double getPrice() { return price; }
+  public void setPrice(double price) { this.price = price; }
+  public Date getCreated() { return created; }
+  public void setCreated(Date created) { this.created = created; }
+}
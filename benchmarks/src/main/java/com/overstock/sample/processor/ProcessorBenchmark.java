@@ -0,0 +1,190 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.persistence.OneToMany;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the {@link JpaProcessor} rules and methods which are called once per entity or property. Each benchmark
+ * operation covers the whole {@link SyntheticModel}, so scores grow with the model; compare scores for the same
+ * parameters only.
+ *
+ * Methods whose results the processor caches for the rest of a round are measured both ways: the plain benchmark
+ * starts a new round on every operation, so caches are built from scratch, while the {@code Warm} variant keeps them.
+ * Rules are evaluated over a {@link MappingModel} snapshot both on one thread and on as many as there are processors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+  @Param({"100", "1000"})
+  int entityCount;
+
+  @Param({"20"})
+  int membersPerEntity;
+
+  @Param({"2"})
+  int relationshipsPerEntity;
+
+  @Param({"0", "12"})
+  int annotationsPerMember;
+
+  private SyntheticModel model;
+  private Name oneToManyName;
+  private List<TypeElement> parentTypes;
+  private List<TypeElement> childTypes;
+  private List<String> mappedBys;
+  private AnnotationTable annotationTable;
+  private CollectionTypes elementTypes;
+  private RelationshipIndex relationshipIndex;
+  private MappingModel.Builder mappingModel;
+  private List<MappingModel.Relationship> relationships;
+  private RuleEvaluator serialEvaluator;
+  private RuleEvaluator parallelEvaluator;
+  private BidirectionalMappingRule mappingRule;
+  private List<TypeMirror> collectionTypes;
+
+  @Setup
+  public void setUp() throws Exception {
+    model = new SyntheticModel(entityCount, membersPerEntity, relationshipsPerEntity, annotationsPerMember);
+    BenchmarkProcessingEnvironment processingEnv = new BenchmarkProcessingEnvironment(model);
+    oneToManyName = model.getElementUtils().getName("javax.persistence.OneToMany");
+    parentTypes = new ArrayList<TypeElement>();
+    childTypes = new ArrayList<TypeElement>();
+    mappedBys = new ArrayList<String>();
+    collectionTypes = new ArrayList<TypeMirror>();
+    for (Element property : model.getOneToManyProperties()) {
+      parentTypes.add((TypeElement) property.getEnclosingElement());
+      childTypes.add(model.getChild(property));
+      String mappedBy = property.getAnnotation(OneToMany.class).mappedBy();
+      mappedBys.add(mappedBy.length() == 0 ? null : mappedBy);
+      collectionTypes.add(JpaProcessor.getPropertyType(property));
+    }
+    annotationTable = new AnnotationTable(Metrics.DISABLED);
+    elementTypes = new CollectionTypes(model.getElementUtils(), model.getTypeUtils(), Metrics.DISABLED);
+    relationshipIndex = new RelationshipIndex(model.getElementUtils(), annotationTable, Metrics.DISABLED);
+    mappingModel = new MappingModel.Builder(relationshipIndex);
+    relationships = snapshotRelationships();
+    serialEvaluator = new RuleEvaluator(1);
+    parallelEvaluator = new RuleEvaluator(Runtime.getRuntime().availableProcessors());
+    mappingRule = new BidirectionalMappingRule(
+      annotationTable, elementTypes, relationshipIndex, mappingModel, serialEvaluator, null, new WorkQueue(),
+      Metrics.DISABLED);
+    mappingRule.init(processingEnv);
+
+    checkForBiDirectionalMapping();
+    if (processingEnv.getMessageCount() != 0) {
+      throw new IllegalStateException("the synthetic model should be valid");
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    parallelEvaluator.shutdown();
+  }
+
+  @Benchmark
+  public void checkForBiDirectionalMapping() {
+    clearCaches();
+    mappingRule.checkProperties(model.getOneToManyProperties());
+  }
+
+  @Benchmark
+  public List<MappingModel.Relationship> snapshot() {
+    return snapshotRelationships();
+  }
+
+  @Benchmark
+  public Verdict[] evaluateRules() {
+    return serialEvaluator.evaluate(relationships, Metrics.DISABLED);
+  }
+
+  @Benchmark
+  public Verdict[] evaluateRulesParallel() {
+    return parallelEvaluator.evaluate(relationships, Metrics.DISABLED);
+  }
+
+  @Benchmark
+  public void getAnnotation(Blackhole blackhole) {
+    clearCaches();
+    findOneToManyAnnotations(blackhole);
+  }
+
+  @Benchmark
+  public void getAnnotationWarm(Blackhole blackhole) {
+    findOneToManyAnnotations(blackhole);
+  }
+
+  @Benchmark
+  public void getCollectionType(Blackhole blackhole) {
+    elementTypes.clear();
+    for (TypeMirror collectionType : collectionTypes) {
+      blackhole.consume(mappingRule.getCollectionType(collectionType));
+    }
+  }
+
+  @Benchmark
+  public void getCollectionTypeWarm(Blackhole blackhole) {
+    for (TypeMirror collectionType : collectionTypes) {
+      blackhole.consume(mappingRule.getCollectionType(collectionType));
+    }
+  }
+
+  @Benchmark
+  public void getPropertyName(Blackhole blackhole) {
+    for (Element property : model.getProperties()) {
+      blackhole.consume(JpaProcessor.getPropertyName(property));
+    }
+  }
+
+  /**
+   * Snapshot every relationship in the model, starting from empty caches.
+   */
+  private List<MappingModel.Relationship> snapshotRelationships() {
+    clearCaches();
+    List<MappingModel.Relationship> snapshot = new ArrayList<MappingModel.Relationship>(parentTypes.size());
+    for (int i = 0; i < parentTypes.size(); i++) {
+      snapshot.add(mappingModel.relationship(parentTypes.get(i), childTypes.get(i), mappedBys.get(i)));
+    }
+    return snapshot;
+  }
+
+  private void findOneToManyAnnotations(Blackhole blackhole) {
+    for (Element property : model.getProperties()) {
+      blackhole.consume(annotationTable.get(property, oneToManyName));
+    }
+  }
+
+  /**
+   * Forget everything cached about the model, as the processor does at the start of each round.
+   */
+  private void clearCaches() {
+    annotationTable.clear();
+    elementTypes.clear();
+    relationshipIndex.clear();
+    mappingModel.clear();
+  }
+}
@@ -0,0 +1,141 @@
+package com.overstock.sample.processor;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import com.sun.source.util.JavacTask;
+
+/**
+ * A generated entity model, compiled in memory, whose {@link Elements} and {@link Types} remain usable after
+ * compilation.
+ *
+ * Entity {@code E<i>} has {@code relationshipsPerEntity} &#64;OneToMany properties, the k<sup>th</sup> of which holds
+ * {@code E<(i + k + 1) % entityCount>}; each of those children has a &#64;ManyToOne field named {@code parentE<i>}
+ * pointing back. The remaining members, up to {@code membersPerEntity}, are plain properties. Every member carries
+ * {@code annotationsPerMember} extra annotations, standing in for the Hibernate, Jackson and validation annotations
+ * real entities are covered in. Collections alternate between {@code Set} and {@code List}, and properties between
+ * fields and getters.
+ */
+class SyntheticModel {
+  private final int entityCount;
+  private final Elements elementUtils;
+  private final Types typeUtils;
+  private final List<TypeElement> entities = new ArrayList<TypeElement>();
+  private final List<Element> oneToManyProperties = new ArrayList<Element>();
+  private final List<Element> properties = new ArrayList<Element>();
+
+  SyntheticModel(int entityCount, int membersPerEntity, int relationshipsPerEntity, int annotationsPerMember)
+  throws IOException {
+    if (relationshipsPerEntity * 2 > membersPerEntity) {
+      throw new IllegalArgumentException("each relationship needs two members");
+    }
+    this.entityCount = entityCount;
+    List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+    StringBuilder annotations = new StringBuilder();
+    for (int a = 0; a < annotationsPerMember; a++) {
+      sources.add(source("bench.A" + a,
+        "package bench; @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)"
+        + " public @interface A" + a + " {}"));
+      annotations.append("@A").append(a).append(' ');
+    }
+    for (int i = 0; i < entityCount; i++) {
+      sources.add(source("bench.E" + i, entitySource(
+        i, membersPerEntity, relationshipsPerEntity, annotations.toString())));
+    }
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    JavacTask task = (JavacTask) compiler.getTask(null, null, null, Arrays.asList(
+      "-proc:none", "-classpath", System.getProperty("java.class.path")), null, sources);
+    for (Element element : task.analyze()) {
+      if (!element.getSimpleName().toString().startsWith("E")) {
+        continue;
+      }
+      TypeElement entity = (TypeElement) element;
+      entities.add(entity);
+      for (Element member : entity.getEnclosedElements()) {
+        if (member.getSimpleName().toString().startsWith("getChildren")) {
+          oneToManyProperties.add(member);
+        }
+      }
+      properties.addAll(ElementFilter.fieldsIn(entity.getEnclosedElements()));
+      properties.addAll(ElementFilter.methodsIn(entity.getEnclosedElements()));
+    }
+    elementUtils = task.getElements();
+    typeUtils = task.getTypes();
+  }
+
+  Elements getElementUtils() { return elementUtils; }
+  Types getTypeUtils() { return typeUtils; }
+  /** @return every generated entity */
+  List<TypeElement> getEntities() { return entities; }
+  /** @return every &#64;OneToMany property */
+  List<Element> getOneToManyProperties() { return oneToManyProperties; }
+  /** @return every field and getter, of every entity */
+  List<Element> getProperties() { return properties; }
+
+  /**
+   * @param oneToManyProperty one of {@link #getOneToManyProperties()}
+   * @return the type of elements in the property's collection
+   */
+  TypeElement getChild(Element oneToManyProperty) {
+    String name = oneToManyProperty.getSimpleName().toString(); // getChildren<k>
+    int parent = entities.indexOf(oneToManyProperty.getEnclosingElement());
+    int k = Integer.parseInt(name.substring("getChildren".length()));
+    return entities.get((parent + k + 1) % entityCount);
+  }
+
+  private String entitySource(int i, int membersPerEntity, int relationshipsPerEntity, String annotations) {
+    StringBuilder source = new StringBuilder();
+    source.append("package bench;\n");
+    source.append("@javax.persistence.Entity ").append(annotations).append("\n");
+    source.append("public class E").append(i).append(" {\n");
+    int members = 0;
+    for (int k = 0; k < relationshipsPerEntity; k++, members++) {
+      int child = (i + k + 1) % entityCount;
+      String collection = k % 2 == 0 ? "java.util.Set" : "java.util.List";
+      source.append("  ").append(annotations)
+        .append("@javax.persistence.OneToMany(mappedBy=\"parentE").append(i).append("\")\n")
+        .append("  public ").append(collection).append("<E").append(child).append("> getChildren").append(k)
+        .append("() { return null; }\n");
+    }
+    for (int k = 0; k < relationshipsPerEntity; k++, members++) {
+      int parent = ((i - k - 1) % entityCount + entityCount) % entityCount;
+      source.append("  ").append(annotations).append("@javax.persistence.ManyToOne\n")
+        .append("  E").append(parent).append(" parentE").append(parent).append(";\n");
+    }
+    for (; members < membersPerEntity; members++) {
+      source.append("  ").append(annotations).append('\n');
+      if (members % 2 == 0) {
+        source.append("  String value").append(members).append(";\n");
+      }
+      else {
+        source.append("  public boolean isValue").append(members).append("() { return false; }\n");
+      }
+    }
+    source.append("}\n");
+    return source.toString();
+  }
+
+  private static JavaFileObject source(String className, final String content) {
+    return new SimpleJavaFileObject(
+      URI.create("string:///" + className.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return content;
+      }
+    };
+  }
+}
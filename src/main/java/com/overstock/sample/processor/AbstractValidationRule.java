@@ -0,0 +1,60 @@
+package com.overstock.sample.processor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.ElementKind;
+
+/**
+ * A convenient superclass for {@link ValidationRule}s, in the manner of
+ * {@link javax.annotation.processing.AbstractProcessor}: the name, annotations and element kinds are given to the
+ * constructor, the processing environment is kept in {@link #processingEnv}, and {@link #endRound(RoundEnvironment)}
+ * does nothing.
+ */
+public abstract class AbstractValidationRule implements ValidationRule {
+  private final String name;
+  private final Set<ElementKind> elementKinds;
+  private final Set<String> annotationTypes;
+
+  /** the processing environment, once {@link #init(ProcessingEnvironment)} has been called */
+  protected ProcessingEnvironment processingEnv;
+
+  /**
+   * @param name the name of the rule
+   * @param elementKinds the kinds of element the rule checks
+   * @param annotationTypes the qualified names of the annotation types whose elements the rule checks
+   */
+  protected AbstractValidationRule(String name, Set<ElementKind> elementKinds, String... annotationTypes) {
+    this.name = name;
+    this.elementKinds = Collections.unmodifiableSet(EnumSet.copyOf(elementKinds));
+    this.annotationTypes = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(annotationTypes)));
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public Set<String> getSupportedAnnotationTypes() {
+    return annotationTypes;
+  }
+
+  @Override
+  public Set<ElementKind> getSupportedElementKinds() {
+    return elementKinds;
+  }
+
+  @Override
+  public void init(ProcessingEnvironment processingEnv) {
+    this.processingEnv = processingEnv;
+  }
+
+  @Override
+  public void endRound(RoundEnvironment roundEnv) {}
+}
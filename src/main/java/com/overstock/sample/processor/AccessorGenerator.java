@@ -0,0 +1,352 @@
+package com.overstock.sample.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.persistence.Entity;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.Transient;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a {@link PropertyAccessor} for each &#64;{@link Entity}, so that entities can be hydrated without
+ * reflection. The properties of an entity are its persistent members, and those of its &#64;{@link Entity} and
+ * &#64;{@link MappedSuperclass} superclasses, as {@link PersistentMembers} finds them by access type: the fields of a
+ * class with field access, and the getters of one with property access. Static, {@code transient} and
+ * &#64;{@link Transient} members are left out.
+ *
+ * The accessor is in the same package as the entity, so it can use any member which is not private (and, for members
+ * inherited from another package, which is public). A property with field access is read and written through its
+ * field where the accessor can use it, and through its getter or setter where it cannot; one with property access is
+ * always read and written through its getter and setter, so that any logic in them runs. A property with no usable
+ * getter is left out, and one with no usable setter is read only.
+ *
+ * An entity whose supertypes do not all exist yet (because they are still to be generated) is put off until a later
+ * round; one still put off once processing is over is reported with a warning. Entities with type parameters, and
+ * private or inner classes, which JPA does not support, are skipped.
+ */
+class AccessorGenerator {
+  static final String ACCESSORS_OPTION = "jpa.accessors";
+
+  private final Elements elementUtils;
+  private final Types typeUtils;
+  private final Filer filer;
+  private final PersistentMembers persistentMembers;
+  private final Set<String> generated = new HashSet<String>();
+  private final Set<String> deferred = new LinkedHashSet<String>();
+
+  AccessorGenerator(Elements elementUtils, Types typeUtils, Filer filer, PersistentMembers persistentMembers) {
+    this.elementUtils = elementUtils;
+    this.typeUtils = typeUtils;
+    this.filer = filer;
+    this.persistentMembers = persistentMembers;
+  }
+
+  /**
+   * Generate accessors for the entities of a round, and for those put off from earlier rounds.
+   * @param entities the entities found this round
+   * @throws IOException if an accessor cannot be written
+   */
+  void generate(Set<TypeElement> entities) throws IOException {
+    List<TypeElement> pending = new ArrayList<TypeElement>();
+    for (String name : deferred) {
+      TypeElement entity = elementUtils.getTypeElement(name);
+      if (entity != null) {
+        pending.add(entity);
+      }
+    }
+    deferred.clear();
+    pending.addAll(entities);
+
+    for (TypeElement entity : pending) {
+      String name = entity.getQualifiedName().toString();
+      if (generated.contains(name) || !isSupported(entity)) {
+        continue;
+      }
+      if (!isResolved(entity)) {
+        deferred.add(name);
+      }
+      else {
+        generated.add(name);
+        write(entity, properties(entity));
+      }
+    }
+  }
+
+  /**
+   * Warn about each entity still put off once processing is over, whose accessor will never be generated.
+   * @param messager where to report the entities
+   */
+  void reportDeferred(Messager messager) {
+    for (String name : deferred) {
+      String message = "No property accessor generated for " + name + ", since types it uses do not exist";
+      TypeElement entity = elementUtils.getTypeElement(name);
+      if (entity != null) {
+        messager.printMessage(Kind.WARNING, message, entity);
+      }
+      else {
+        messager.printMessage(Kind.WARNING, message);
+      }
+    }
+    deferred.clear();
+  }
+
+  static boolean isSupported(TypeElement entity) {
+    return entity.getKind() == ElementKind.CLASS
+      && entity.getTypeParameters().isEmpty()
+      && !entity.getModifiers().contains(Modifier.PRIVATE)
+      && (entity.getNestingKind() == NestingKind.TOP_LEVEL
+        || entity.getNestingKind() == NestingKind.MEMBER && entity.getModifiers().contains(Modifier.STATIC));
+  }
+
+  private boolean isResolved(TypeElement entity) {
+    for (TypeElement type = entity; type != null; type = superclassOf(type)) {
+      if (type.getSuperclass().getKind() == TypeKind.ERROR) {
+        return false;
+      }
+      for (Element member : persistentMembers.declaredMembers(type)) {
+        if (JpaProcessor.getPropertyType(member).getKind() == TypeKind.ERROR) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the properties of {@code entity}, superclass properties first, by name
+   */
+  private Map<String, Property> properties(TypeElement entity) {
+    List<TypeElement> hierarchy = new ArrayList<TypeElement>();
+    for (TypeElement type = entity; type != null; type = persistentMembers.mappedSuperclassOf(type)) {
+      hierarchy.add(0, type);
+    }
+    DeclaredType entityType = typeUtils.getDeclaredType(entity);
+    Map<String, Property> properties = new LinkedHashMap<String, Property>();
+    for (TypeElement type : hierarchy) {
+      List<ExecutableElement> methods = ElementFilter.methodsIn(type.getEnclosedElements());
+      for (Element member : persistentMembers.declaredMembers(type)) {
+        String name = JpaProcessor.getPropertyName(member);
+        if (properties.containsKey(name)) {
+          continue;
+        }
+        Property property;
+        if (member.getKind() == ElementKind.FIELD) {
+          property = new Property(name, typeUtils.asMemberOf(entityType, member));
+          if (isAccessible(member, entity)) {
+            property.reader = "entity." + name;
+            if (!member.getModifiers().contains(Modifier.FINAL)) {
+              property.writer = "entity." + name + " = %s";
+            }
+          }
+          else {
+            ExecutableElement getter = findGetter(methods, name, entity);
+            property.reader = getter == null ? null : "entity." + getter.getSimpleName() + "()";
+          }
+        }
+        else {
+          property = new Property(name, ((ExecutableType) typeUtils.asMemberOf(entityType, member)).getReturnType());
+          property.reader = isAccessible(member, entity) ? "entity." + member.getSimpleName() + "()" : null;
+        }
+        if (property.writer == null) {
+          ExecutableElement setter = findSetter(methods, name, entity);
+          property.writer = setter == null ? null : "entity." + setter.getSimpleName() + "(%s)";
+        }
+        if (property.reader != null) {
+          properties.put(name, property);
+        }
+      }
+    }
+    return properties;
+  }
+
+  private ExecutableElement findGetter(List<ExecutableElement> methods, String propertyName, TypeElement entity) {
+    String capitalized = Character.toUpperCase(propertyName.charAt(0)) + propertyName.substring(1);
+    for (ExecutableElement method : methods) {
+      String name = method.getSimpleName().toString();
+      if ((name.equals("get" + capitalized) || name.equals("is" + capitalized)) && method.getParameters().isEmpty()
+          && isAccessible(method, entity) && !method.getModifiers().contains(Modifier.STATIC)) {
+        return method;
+      }
+    }
+    return null;
+  }
+
+  private ExecutableElement findSetter(List<ExecutableElement> methods, String propertyName, TypeElement entity) {
+    String capitalized = Character.toUpperCase(propertyName.charAt(0)) + propertyName.substring(1);
+    for (ExecutableElement method : methods) {
+      if (method.getSimpleName().contentEquals("set" + capitalized) && method.getParameters().size() == 1
+          && isAccessible(method, entity) && !method.getModifiers().contains(Modifier.STATIC)) {
+        return method;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return whether the accessor of {@code entity}, in the same package, may use {@code member}
+   */
+  private boolean isAccessible(Element member, TypeElement entity) {
+    if (member.getModifiers().contains(Modifier.PUBLIC)) {
+      return true;
+    }
+    return !member.getModifiers().contains(Modifier.PRIVATE)
+      && elementUtils.getPackageOf(member).equals(elementUtils.getPackageOf(entity));
+  }
+
+  private static TypeElement superclassOf(TypeElement type) {
+    TypeMirror superclass = type.getSuperclass();
+    return superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+  }
+
+  private void write(TypeElement entity, Map<String, Property> properties) throws IOException {
+    String entityName = entity.getQualifiedName().toString();
+    String accessorName = PropertyAccessors.accessorClassName(elementUtils.getBinaryName(entity).toString());
+    String packageName = elementUtils.getPackageOf(entity).getQualifiedName().toString();
+    List<Property> byIndex = new ArrayList<Property>(properties.values());
+
+    JavaFileObject source = filer.createSourceFile(accessorName, entity);
+    PrintWriter out = new PrintWriter(source.openWriter());
+    try {
+      if (packageName.length() > 0) {
+        out.println("package " + packageName + ";");
+        out.println();
+      }
+      out.println("/**");
+      out.println(" * Accesses the properties of {@link " + entityName + "}; generated by "
+        + JpaProcessor.class.getName() + ".");
+      out.println(" */");
+      out.println("public final class " + accessorName.substring(accessorName.lastIndexOf('.') + 1)
+        + " implements " + PropertyAccessor.class.getName() + "<" + entityName + "> {");
+      out.print("  private static final String[] NAMES = {");
+      for (int i = 0; i < byIndex.size(); i++) {
+        out.print((i == 0 ? " " : ", ") + "\"" + byIndex.get(i).name + "\"");
+      }
+      out.println(byIndex.isEmpty() ? "};" : " };");
+      out.println();
+      out.println("  public Class<" + entityName + "> getEntityClass() {");
+      out.println("    return " + entityName + ".class;");
+      out.println("  }");
+      out.println();
+      out.println("  public int getPropertyCount() {");
+      out.println("    return NAMES.length;");
+      out.println("  }");
+      out.println();
+      out.println("  public String getPropertyName(int index) {");
+      out.println("    return NAMES[index];");
+      out.println("  }");
+      out.println();
+      writeIndexOf(out, byIndex);
+      out.println();
+      out.println("  public Object get(" + entityName + " entity, int index) {");
+      out.println("    switch (index) {");
+      for (int i = 0; i < byIndex.size(); i++) {
+        out.println("      case " + i + ": return " + byIndex.get(i).reader + ";");
+      }
+      out.println("      default: throw new IndexOutOfBoundsException(\"No property \" + index + \" in " + entityName
+        + "\");");
+      out.println("    }");
+      out.println("  }");
+      out.println();
+      out.println("  @SuppressWarnings(\"unchecked\")");
+      out.println("  public void set(" + entityName + " entity, int index, Object value) {");
+      out.println("    switch (index) {");
+      for (int i = 0; i < byIndex.size(); i++) {
+        Property property = byIndex.get(i);
+        if (property.writer == null) {
+          out.println("      case " + i + ": throw new UnsupportedOperationException(\"" + property.name
+            + " is read only\");");
+        }
+        else {
+          String value = "(" + castType(property.type) + ") value";
+          out.println("      case " + i + ": " + String.format(property.writer, value) + "; return;");
+        }
+      }
+      out.println("      default: throw new IndexOutOfBoundsException(\"No property \" + index + \" in " + entityName
+        + "\");");
+      out.println("    }");
+      out.println("  }");
+      out.println("}");
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Write {@code indexOf}, as a switch on the hash code of the name, which is what a switch on a string compiles to.
+   */
+  private static void writeIndexOf(PrintWriter out, List<Property> byIndex) {
+    Map<Integer, List<Integer>> indexesByHash = new LinkedHashMap<Integer, List<Integer>>();
+    for (int i = 0; i < byIndex.size(); i++) {
+      int hash = byIndex.get(i).name.hashCode();
+      List<Integer> indexes = indexesByHash.get(hash);
+      if (indexes == null) {
+        indexes = new ArrayList<Integer>(1);
+        indexesByHash.put(hash, indexes);
+      }
+      indexes.add(i);
+    }
+    out.println("  public int indexOf(String propertyName) {");
+    if (!indexesByHash.isEmpty()) {
+      out.println("    switch (propertyName.hashCode()) {");
+      for (Map.Entry<Integer, List<Integer>> hash : indexesByHash.entrySet()) {
+        out.println("      case " + hash.getKey() + ":");
+        for (int index : hash.getValue()) {
+          out.println("        if (propertyName.equals(\"" + byIndex.get(index).name + "\")) return " + index + ";");
+        }
+        out.println("        break;");
+      }
+      out.println("    }");
+    }
+    out.println("    return -1;");
+    out.println("  }");
+  }
+
+  /**
+   * @return the type to cast a value to, before assigning it to a property of type {@code type}
+   */
+  private String castType(TypeMirror type) {
+    if (type.getKind().isPrimitive()) {
+      return typeUtils.boxedClass(typeUtils.getPrimitiveType(type.getKind())).getQualifiedName().toString();
+    }
+    return typeUtils.erasure(type).toString();
+  }
+
+  private static class Property {
+    Property(String name, TypeMirror type) {
+      this.name = name;
+      this.type = type;
+    }
+
+    final String name;
+    final TypeMirror type;
+    /** an expression reading the property from {@code entity} */
+    String reader;
+    /** a statement writing the property of {@code entity}, with {@code %s} for the value; null if read only */
+    String writer;
+  }
+}
@@ -0,0 +1,22 @@
+package com.overstock.sample.processor;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Exempts an association, or every association of an entity, from the fetch policy; see {@link FetchPolicyRule}.
+ * Another annotation may be used instead, so that entities need not depend on the processor, by naming it with the
+ * {@code jpa.fetchPolicy.allow} option.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target({ ElementType.TYPE, ElementType.FIELD, ElementType.METHOD })
+public @interface AllowEagerFetch {
+  /**
+   * @return why the association should be loaded eagerly
+   */
+  String value() default "";
+}
@@ -0,0 +1,103 @@
+package com.overstock.sample.processor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * A cache of the annotations present on elements, keyed by the qualified name of each annotation's type. The table
+ * for an element is built the first time it is asked about, after which every lookup is a map access rather than a
+ * walk over all of its annotation mirrors. Names are kept as {@link Name}s rather than strings, since they are
+ * compared far more often than they are printed.
+ *
+ * Going through the annotation mirrors also avoids {@link Element#getAnnotation(Class)}, which has to build a
+ * reflective proxy for the annotation on each call.
+ *
+ * The table holds on to elements, so it should only be used for a single round of processing.
+ */
+class AnnotationTable {
+  private final Map<Element, Map<Name, AnnotationMirror>> tables =
+    new HashMap<Element, Map<Name, AnnotationMirror>>();
+  private final Metrics metrics;
+
+  AnnotationTable(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Find an annotation of a given type on an element
+   * @param element a possibly annotated element
+   * @param annotationName the qualified name of the expected annotation type
+   * @return the annotation, or {@code null} if no annotation named {@code annotationName} exists on {@code element}.
+   */
+  AnnotationMirror get(Element element, Name annotationName) {
+    return tableFor(element).get(annotationName);
+  }
+
+  /**
+   * @param element a possibly annotated element
+   * @param annotationName the qualified name of an annotation type
+   * @return {@code true} if {@code element} is annotated with the annotation named {@code annotationName}
+   */
+  boolean isAnnotated(Element element, Name annotationName) {
+    return tableFor(element).containsKey(annotationName);
+  }
+
+  /**
+   * Find an annotation on an element which will only be asked about once, such as a member being indexed. This walks
+   * the element's annotation mirrors directly, comparing names, rather than building a table for an element which
+   * will never be looked at again.
+   * @param element a possibly annotated element
+   * @param annotationName the qualified name of the expected annotation type
+   * @return the annotation, or {@code null} if no annotation named {@code annotationName} exists on {@code element}.
+   */
+  AnnotationMirror scan(Element element, Name annotationName) {
+    Map<Name, AnnotationMirror> table = tables.get(element);
+    if (table != null) {
+      return table.get(annotationName);
+    }
+    for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+      metrics.count(Metrics.Counter.ANNOTATION_MIRRORS_INSPECTED);
+      if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().equals(annotationName)) {
+        return mirror;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Forget all cached elements; called at the start of each round.
+   */
+  void clear() {
+    tables.clear();
+  }
+
+  private Map<Name, AnnotationMirror> tableFor(Element element) {
+    Map<Name, AnnotationMirror> table = tables.get(element);
+    if (table != null) {
+      metrics.count(Metrics.Counter.ANNOTATION_TABLE_HITS);
+    }
+    else {
+      List<? extends AnnotationMirror> mirrors = element.getAnnotationMirrors();
+      metrics.count(Metrics.Counter.ANNOTATION_MIRRORS_INSPECTED, mirrors.size());
+      if (mirrors.isEmpty()) {
+        table = Collections.emptyMap();
+      }
+      else {
+        table = new HashMap<Name, AnnotationMirror>(mirrors.size() * 2);
+        for (AnnotationMirror mirror : mirrors) {
+          TypeElement annotationType = (TypeElement) mirror.getAnnotationType().asElement();
+          table.put(annotationType.getQualifiedName(), mirror);
+        }
+      }
+      tables.put(element, table);
+    }
+    return table;
+  }
+}
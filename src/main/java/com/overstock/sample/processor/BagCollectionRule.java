@@ -0,0 +1,315 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.persistence.CascadeType;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToMany;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.OneToMany;
+import javax.persistence.OrderColumn;
+import javax.tools.Diagnostic.Kind;
+
+/**
+ * Warns about &#64;{@link OneToMany} collections which Hibernate writes, or fetches, far more expensively than they
+ * look. Each collection is classified by its declared type: a {@code Set} is a set, a {@code Map} is keyed, a
+ * {@code List} with &#64;{@link OrderColumn} (or Hibernate's &#64;IndexColumn or &#64;CollectionId) is indexed, and
+ * any other {@code List} or {@code Collection} is a bag, whose rows cannot be told apart.
+ * <ul>
+ *   <li>
+ *     A bag on the owning side, without {@code mappedBy}, is recreated whenever it changes: every row is deleted,
+ *     and every element inserted again.
+ *   </li>
+ *   <li>
+ *     Any other collection on the owning side, mapped by a &#64;{@link JoinColumn}, which cascades persists to its
+ *     elements, inserts each element and then updates it, to set the join column.
+ *   </li>
+ *   <li>
+ *     An entity may eagerly fetch at most one bag: Hibernate cannot join two bags in one query, since it could not
+ *     tell which rows of the product are duplicates, and fails with a {@code MultipleBagFetchException}. This counts
+ *     &#64;{@link OneToMany}, &#64;{@link ManyToMany} and &#64;{@link ElementCollection} bags, those an entity inherits
+ *     from its &#64;{@link Entity} and &#64;{@link MappedSuperclass} superclasses included. Each bag after the first is
+ *     reported with the entity nearest to it: against the bag, if the entity declares it, or else against the entity.
+ *   </li>
+ * </ul>
+ * As with {@code mappedBy} in {@link BidirectionalMappingRule}, the attributes are read from the annotation mirror,
+ * against which each warning is reported. Properties whose types do not exist yet are not checked.
+ */
+class BagCollectionRule extends AbstractValidationRule {
+  static final String NAME = "bagCollection";
+  static final String DIAGNOSTIC_OPTION = "jpa.bags.diagnostic";
+
+  private static final String[] INDEXING_ANNOTATIONS = {
+    "javax.persistence.OrderColumn", "org.hibernate.annotations.IndexColumn", "org.hibernate.annotations.CollectionId"
+  };
+
+  /**
+   * How a collection's rows are told apart, which determines how Hibernate updates it.
+   */
+  enum Semantics {
+    /** a {@code Set}, whose rows are told apart by their elements */
+    SET,
+    /** a {@code Map}, whose rows are told apart by their keys */
+    MAP,
+    /** a {@code List} with an index column, or an id bag, whose rows are told apart by their index or id */
+    INDEXED_LIST,
+    /** any other {@code List} or {@code Collection}, whose rows cannot be told apart */
+    BAG
+  }
+
+  private final AnnotationTable annotationTable;
+  private final PersistentMembers persistentMembers;
+  private final Kind diagnostic;
+  private final Metrics metrics;
+  /** the entities of this round, whose eagerly fetched bags are counted at the end of it */
+  private final List<TypeElement> entities = new ArrayList<TypeElement>();
+  private Types typeUtils;
+  private TypeMirror collectionType, setType, mapType;
+  private Name oneToManyName, joinColumnName, joinColumnsName, entityName;
+  private final List<Name> collectionNames = new ArrayList<Name>();
+  private final List<Name> indexingNames = new ArrayList<Name>();
+  private ExecutableElement mappedByAttribute, cascadeAttribute;
+
+  /**
+   * @param annotationTable the annotation table of the round
+   * @param persistentMembers to find the mapped superclasses of an entity with
+   * @param diagnostic the kind of diagnostic to report costly collections with
+   * @param metrics where to count the properties checked
+   */
+  BagCollectionRule(
+      AnnotationTable annotationTable, PersistentMembers persistentMembers, Kind diagnostic, Metrics metrics) {
+    super(
+      NAME, EnumSet.of(ElementKind.CLASS, ElementKind.FIELD, ElementKind.METHOD), "javax.persistence.OneToMany",
+      "javax.persistence.Entity");
+    this.annotationTable = annotationTable;
+    this.persistentMembers = persistentMembers;
+    this.diagnostic = diagnostic;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    Elements elementUtils = processingEnv.getElementUtils();
+    typeUtils = processingEnv.getTypeUtils();
+    collectionType = typeUtils.erasure(elementUtils.getTypeElement("java.util.Collection").asType());
+    setType = typeUtils.erasure(elementUtils.getTypeElement("java.util.Set").asType());
+    mapType = typeUtils.erasure(elementUtils.getTypeElement("java.util.Map").asType());
+    TypeElement oneToMany = elementUtils.getTypeElement("javax.persistence.OneToMany");
+    oneToManyName = oneToMany.getQualifiedName();
+    for (ExecutableElement attribute : ElementFilter.methodsIn(oneToMany.getEnclosedElements())) {
+      if (attribute.getSimpleName().contentEquals("mappedBy")) {
+        mappedByAttribute = attribute;
+      }
+      else if (attribute.getSimpleName().contentEquals("cascade")) {
+        cascadeAttribute = attribute;
+      }
+    }
+    collectionNames.add(oneToManyName);
+    collectionNames.add(elementUtils.getName("javax.persistence.ManyToMany"));
+    collectionNames.add(elementUtils.getName("javax.persistence.ElementCollection"));
+    entityName = elementUtils.getName("javax.persistence.Entity");
+    joinColumnName = elementUtils.getName("javax.persistence.JoinColumn");
+    joinColumnsName = elementUtils.getName("javax.persistence.JoinColumns");
+    for (String indexing : INDEXING_ANNOTATIONS) {
+      indexingNames.add(elementUtils.getName(indexing));
+    }
+  }
+
+  @Override
+  public void check(Element element) {
+    metrics.count(Metrics.Counter.ELEMENTS_VISITED);
+    if (element.getKind() == ElementKind.CLASS) {
+      entities.add((TypeElement) element);
+      return;
+    }
+    Semantics semantics = semanticsOf(element);
+    if (semantics == null) {
+      return;
+    }
+    AnnotationMirror annotation = annotationTable.get(element, oneToManyName);
+    Map<? extends ExecutableElement, ? extends AnnotationValue> values = annotation.getElementValues();
+    AnnotationValue mappedBy = values.get(mappedByAttribute);
+    boolean owningSide = mappedBy == null || ((String) mappedBy.getValue()).length() == 0;
+    String propertyName = JpaProcessor.getPropertyName(element);
+
+    if (owningSide && semantics == Semantics.BAG) {
+      processingEnv.getMessager().printMessage(
+        diagnostic,
+        propertyName + " is a bag on the owning side, so changing one element deletes every row of the collection, "
+          + "and inserts them all again; map it with mappedBy, as a Set, or with @OrderColumn",
+        element,
+        annotation);
+    }
+    else if (owningSide && hasJoinColumn(element) && cascadesPersist(values.get(cascadeAttribute))) {
+      processingEnv.getMessager().printMessage(
+        diagnostic,
+        propertyName + " is owned through a join column, so each element it cascades to is inserted, then updated "
+          + "to set the join column; map it with mappedBy, from a @ManyToOne on the element",
+        element,
+        annotation,
+        values.get(cascadeAttribute));
+    }
+  }
+
+  /**
+   * Report each entity of the round which eagerly fetches more than one bag, against every bag after the first which
+   * it declares, or which it is the nearest entity to.
+   */
+  @Override
+  public void endRound(RoundEnvironment roundEnv) {
+    for (TypeElement entity : entities) {
+      List<Element> bags = new ArrayList<Element>();
+      boolean inherited = false;
+      int inheritedBags = 0; // those declared by an entity superclass, or above it, which that entity reports
+      for (TypeElement type = entity; type != null; type = persistentMembers.mappedSuperclassOf(type)) {
+        inherited |= type != entity && annotationTable.isAnnotated(type, entityName);
+        List<Element> declared = eagerBags(type);
+        bags.addAll(0, declared);
+        if (inherited) {
+          inheritedBags += declared.size();
+        }
+      }
+      for (int i = Math.max(1, inheritedBags); i < bags.size(); i++) {
+        Element bag = bags.get(i);
+        String message = nameOf(bag, entity) + " and " + nameOf(bags.get(0), entity) + " are both bags fetched "
+          + "eagerly, which Hibernate cannot fetch together; make one of them lazy, a Set, or indexed with "
+          + "@OrderColumn";
+        if (bag.getEnclosingElement().equals(entity)) {
+          AnnotationMirror annotation = collectionAnnotation(bag);
+          processingEnv.getMessager().printMessage(diagnostic, message, bag, annotation, fetchValue(annotation));
+        }
+        else {
+          processingEnv.getMessager().printMessage(
+            diagnostic, message, entity, annotationTable.get(entity, entityName));
+        }
+      }
+    }
+    entities.clear();
+  }
+
+  /**
+   * @return the property name of {@code bag}, qualified by the simple name of its class if that is not {@code entity}
+   */
+  private static String nameOf(Element bag, TypeElement entity) {
+    String propertyName = JpaProcessor.getPropertyName(bag);
+    return bag.getEnclosingElement().equals(entity) ? propertyName
+      : bag.getEnclosingElement().getSimpleName() + "." + propertyName;
+  }
+
+  /**
+   * @return the eagerly fetched bags declared directly on {@code type}, in declaration order
+   */
+  private List<Element> eagerBags(TypeElement type) {
+    List<Element> bags = new ArrayList<Element>();
+    for (Element member : type.getEnclosedElements()) {
+      if (member.getKind() != ElementKind.FIELD && member.getKind() != ElementKind.METHOD) {
+        continue;
+      }
+      AnnotationValue fetch = fetchValue(collectionAnnotation(member));
+      if (fetch != null && ((VariableElement) fetch.getValue()).getSimpleName().contentEquals(FetchType.EAGER.name())
+          && semanticsOf(member) == Semantics.BAG) {
+        bags.add(member);
+      }
+    }
+    return bags;
+  }
+
+  /**
+   * @return the &#64;{@link OneToMany}, &#64;{@link ManyToMany} or &#64;{@link ElementCollection} annotation of
+   *   {@code member}, or {@code null} if it has none
+   */
+  private AnnotationMirror collectionAnnotation(Element member) {
+    for (Name collectionName : collectionNames) {
+      AnnotationMirror annotation = annotationTable.get(member, collectionName);
+      if (annotation != null) {
+        return annotation;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the {@code fetch} attribute given explicitly to a collection annotation, or {@code null} if there is none
+   */
+  private static AnnotationValue fetchValue(AnnotationMirror annotation) {
+    if (annotation != null) {
+      for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value
+          : annotation.getElementValues().entrySet()) {
+        if (value.getKey().getSimpleName().contentEquals("fetch")) {
+          return value.getValue();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param property a &#64;{@link OneToMany} property
+   * @return how the rows of the property's collection are told apart, or {@code null} if it is not a collection, or
+   *   its type does not exist yet
+   */
+  Semantics semanticsOf(Element property) {
+    TypeMirror type = JpaProcessor.getPropertyType(property);
+    if (type == null || type.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    TypeMirror erasure = typeUtils.erasure(type);
+    if (typeUtils.isAssignable(erasure, setType)) {
+      return Semantics.SET;
+    }
+    if (typeUtils.isAssignable(erasure, mapType)) {
+      return Semantics.MAP;
+    }
+    for (Name indexingName : indexingNames) {
+      if (annotationTable.isAnnotated(property, indexingName)) {
+        return Semantics.INDEXED_LIST;
+      }
+    }
+    if (typeUtils.isAssignable(erasure, collectionType)) {
+      return Semantics.BAG;
+    }
+    return null;
+  }
+
+  private boolean hasJoinColumn(Element property) {
+    return annotationTable.isAnnotated(property, joinColumnName)
+      || annotationTable.isAnnotated(property, joinColumnsName);
+  }
+
+  private static boolean cascadesPersist(AnnotationValue cascade) {
+    if (cascade == null) {
+      return false;
+    }
+    @SuppressWarnings("unchecked")
+    List<? extends AnnotationValue> cascadeTypes = (List<? extends AnnotationValue>) cascade.getValue();
+    for (AnnotationValue cascadeType : cascadeTypes) {
+      Name name = ((VariableElement) cascadeType.getValue()).getSimpleName();
+      if (name.contentEquals(CascadeType.ALL.name()) || name.contentEquals(CascadeType.PERSIST.name())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,289 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.MirroredTypeException;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.tools.Diagnostic.Kind;
+
+/**
+ * For properties annotated with &#64;{@link OneToMany}, verifies that:
+ * <ul>
+ *   <li>The child entity must have a corresponding property annotated with &#64;{@link ManyToOne}</li>
+ *   <li>
+ *     The {code}&#64;OneToMany{code} annotation must have {@code mappedBy} pointing to the property on the child
+ *   </li>
+ * </ul>
+ *
+ * Properties are collected as the round is scanned, and checked together at the end of it, so that the
+ * {@link RuleEvaluator} can spread them over several threads. Properties whose types do not exist yet are put off
+ * until they do; see {@link WorkQueue}.
+ */
+class BidirectionalMappingRule extends AbstractValidationRule {
+  static final String NAME = "bidirectionalMapping";
+
+  private final AnnotationTable annotationTable;
+  private final CollectionTypes collectionTypes;
+  private final RelationshipIndex relationshipIndex;
+  private final MappingModel.Builder mappingModel;
+  private final RuleEvaluator ruleEvaluator;
+  private final VerdictCache verdictCache; // null unless the jpa.cache option is given
+  private final WorkQueue workQueue;
+  private final Metrics metrics;
+  private final List<Element> roundProperties = new ArrayList<Element>();
+
+  private Name oneToManyName;
+  private ExecutableElement mappedByAttribute;
+
+  BidirectionalMappingRule(
+    AnnotationTable annotationTable, CollectionTypes collectionTypes, RelationshipIndex relationshipIndex,
+    MappingModel.Builder mappingModel, RuleEvaluator ruleEvaluator, VerdictCache verdictCache, WorkQueue workQueue,
+    Metrics metrics) {
+    super(NAME, EnumSet.of(ElementKind.FIELD, ElementKind.METHOD), "javax.persistence.OneToMany");
+    this.annotationTable = annotationTable;
+    this.collectionTypes = collectionTypes;
+    this.relationshipIndex = relationshipIndex;
+    this.mappingModel = mappingModel;
+    this.ruleEvaluator = ruleEvaluator;
+    this.verdictCache = verdictCache;
+    this.workQueue = workQueue;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    TypeElement oneToMany = processingEnv.getElementUtils().getTypeElement("javax.persistence.OneToMany");
+    oneToManyName = oneToMany.getQualifiedName();
+    for (ExecutableElement attribute : ElementFilter.methodsIn(oneToMany.getEnclosedElements())) {
+      if (attribute.getSimpleName().contentEquals("mappedBy")) {
+        mappedByAttribute = attribute;
+      }
+    }
+  }
+
+  @Override
+  public void check(Element element) {
+    roundProperties.add(element);
+  }
+
+  /**
+   * Check the properties found this round, along with those put off from earlier rounds whose types now exist. In
+   * the last round, properties are checked whether or not their types exist, since there will be no later round.
+   */
+  @Override
+  public void endRound(RoundEnvironment roundEnv) {
+    List<Element> resolved = new ArrayList<Element>();
+    for (Element property : workQueue.properties(roundProperties, processingEnv.getElementUtils())) {
+      if (isResolved(property)) {
+        workQueue.done(property);
+        resolved.add(property);
+      }
+      else if (!roundEnv.processingOver()) {
+        workQueue.defer(property);
+        metrics.count(Metrics.Counter.PROPERTIES_DEFERRED);
+      }
+    }
+    roundProperties.clear();
+    checkProperties(resolved);
+  }
+
+  /**
+   * Check whether the types a &#64;{@link OneToMany} property depends on exist yet: the property's own type and its
+   * supertypes, the type of elements in it, and that type's superclasses.
+   * @param childProperty the field or method in the parent class, annotated with &#64;{@link OneToMany}.
+   * @return {@code false} if any of them is still to be generated
+   */
+  private boolean isResolved(Element childProperty) {
+    TypeMirror propertyType = JpaProcessor.getPropertyType(childProperty);
+    if (propertyType.getKind() == TypeKind.ERROR) {
+      return false;
+    }
+    TypeMirror type = collectionTypes.elementType(propertyType);
+    if (type == null) {
+      return !hasMissingSupertype(propertyType);
+    }
+    while (type.getKind() == TypeKind.DECLARED) {
+      type = ((TypeElement) ((DeclaredType) type).asElement()).getSuperclass();
+    }
+    return type.getKind() != TypeKind.ERROR;
+  }
+
+  /**
+   * @return whether any supertype of {@code type}, such as the {@code List<Child>} a {@code ChildList} implements, is
+   *   still to be generated
+   */
+  private boolean hasMissingSupertype(TypeMirror type) {
+    for (TypeMirror supertype : processingEnv.getTypeUtils().directSupertypes(type)) {
+      if (supertype.getKind() == TypeKind.ERROR || hasMissingSupertype(supertype)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Verify a number of &#64;{@link OneToMany} properties, in three stages. First, on the compiler thread, each property
+   * and its child type are captured in a {@link MappingModel} snapshot; if a {@link VerdictCache} is in use, and
+   * neither the property nor the child has changed since the verdict was cached, the cached verdict is used instead.
+   * Next, the {@link RuleEvaluator} works out the remaining verdicts from the snapshots, in parallel if there are
+   * enough of them. Finally, back on the compiler thread, the verdicts are reported in the order the properties were
+   * given in.
+   * @param childProperties fields or methods annotated with &#64;{@link OneToMany}
+   */
+  void checkProperties(Collection<? extends Element> childProperties) {
+    List<MappingCheck> checks = new ArrayList<MappingCheck>(childProperties.size());
+    List<MappingModel.Relationship> relationships = new ArrayList<MappingModel.Relationship>();
+    for (Element childProperty : childProperties) {
+      metrics.count(Metrics.Counter.ELEMENTS_VISITED);
+      if (getCollectionType(JpaProcessor.getPropertyType(childProperty)) == null) {
+        continue; // a raw collection, or not a collection at all, so there is no child type to check
+      }
+      MappingCheck check = snapshot(childProperty);
+      checks.add(check);
+      if (check.verdict == null) {
+        relationships.add(check.relationship);
+      }
+    }
+
+    Verdict[] verdicts = ruleEvaluator.evaluate(relationships, metrics);
+
+    int next = 0;
+    for (MappingCheck check : checks) {
+      if (check.verdict == null) {
+        check.verdict = verdicts[next++];
+        if (verdictCache != null) {
+          verdictCache.put(check.signature, check.verdict);
+        }
+      }
+      report(check);
+    }
+  }
+
+  /**
+   * Capture what is needed to check a &#64;{@link OneToMany} property, and to report the result.
+   * @param childProperty the field or method in the parent class, annotated with &#64;{@link OneToMany}.
+   * @return the check, with either a cached verdict or a relationship to evaluate
+   */
+  private MappingCheck snapshot(Element childProperty) {
+    TypeMirror propertyType = JpaProcessor.getPropertyType(childProperty);
+    DeclaredType childType = getCollectionType(propertyType);
+    TypeElement childElement = (TypeElement) childType.asElement();
+    TypeElement enclosingElement = (TypeElement) childProperty.getEnclosingElement();
+    AnnotationMirror oneToManyAnnotation = annotationTable.get(childProperty, oneToManyName);
+    AnnotationValue mappedBy = getMappedByValue(oneToManyAnnotation);
+    String mappedByContent = mappedBy == null ? null : (String) mappedBy.getValue(); //or:
+                                                           //childProperty.getAnnotation(OneToMany.class).mappedBy()
+    List<TypeElement> childHierarchy = relationshipIndex.hierarchyOf(childElement);
+
+    MappingCheck check = new MappingCheck(childProperty, oneToManyAnnotation, mappedBy, childElement);
+    if (verdictCache != null) {
+      check.signature = verdictCache.signature(childProperty, mappedByContent, childHierarchy, relationshipIndex);
+      check.verdict = verdictCache.get(check.signature);
+      metrics.count(check.verdict == null ? Metrics.Counter.VERDICT_CACHE_MISSES : Metrics.Counter.VERDICT_CACHE_HITS);
+    }
+    if (check.verdict == null) {
+      check.relationship = mappingModel.relationship(enclosingElement, childElement, mappedByContent);
+    }
+    return check;
+  }
+
+  private void report(MappingCheck check) {
+    switch (check.verdict.status) {
+      case NO_MANY_TO_ONE:
+        processingEnv.getMessager().printMessage(
+          Kind.ERROR,
+          "No matching @ManyToOne annotation on " + check.childElement.getSimpleName(),
+          check.childProperty,
+          check.oneToManyAnnotation);
+        break;
+      case MISSING_MAPPED_BY:
+        processingEnv.getMessager().printMessage(
+          Kind.ERROR,
+          "Missing mappedBy attribute",
+          check.childProperty,
+          check.oneToManyAnnotation);
+        break;
+      case WRONG_MAPPED_BY:
+        processingEnv.getMessager().printMessage(
+          Kind.ERROR,
+          "mappedBy attribute should be " + check.verdict.expectedMappedBy,
+          check.childProperty,
+          check.oneToManyAnnotation,
+          check.mappedBy);
+        break;
+      case VALID:
+        break;
+    }
+  }
+
+  /**
+   * Get the value of the {@link OneToMany#mappedBy() mappedBy} element of a &#64;{@link OneToMany} annotation.
+   * Note that an alternative approach here would be to go back to the annotated element and call
+   * {@code getAnnotation(OneToMany.class).mappedBy()}. However, in some cases, it is necessary to reflect on the
+   * annotation mirror. For example, annotation values of type Class may refer to classes currently under compilation,
+   * and hence not in the class path. Attempting to invoke those annotation methods could result in a
+   * {@link MirroredTypeException} being thrown. In more extreme cases, you may be reflecting over an annotation
+   * which is not available at the time your annotation processor is being built.
+   *
+   * @param oneToManyAnnotation an annotation of type &#64;{@link OneToMany}.
+   * @return the value of {@code oneToManyAnnotation}'s {@code mappedBy} attribute
+   */
+  private AnnotationValue getMappedByValue(AnnotationMirror oneToManyAnnotation) {
+    Map<? extends ExecutableElement, ? extends AnnotationValue> elementValues =
+        oneToManyAnnotation.getElementValues();
+    return elementValues.get(mappedByAttribute);
+  }
+
+  /**
+   * Get the class or interface type of the elements in a {@link Collection}, or of the values in a {@link Map}; see
+   * {@link CollectionTypes}.
+   * @param type a collection or map type
+   * @return the type of elements in the collection, or {@code null} if it is not known, or is not a declared type
+   */
+  DeclaredType getCollectionType(TypeMirror type) {
+    TypeMirror elementType = collectionTypes.elementType(type);
+    return elementType != null && elementType.getKind() == TypeKind.DECLARED ? (DeclaredType) elementType : null;
+  }
+
+  /**
+   * The compiler's side of checking one &#64;{@link OneToMany} property: the elements to report against, which must
+   * stay on the compiler thread, and the verdict once there is one.
+   */
+  private static class MappingCheck {
+    MappingCheck(
+      Element childProperty, AnnotationMirror oneToManyAnnotation, AnnotationValue mappedBy, TypeElement childElement) {
+      this.childProperty = childProperty;
+      this.oneToManyAnnotation = oneToManyAnnotation;
+      this.mappedBy = mappedBy;
+      this.childElement = childElement;
+    }
+
+    final Element childProperty;
+    final AnnotationMirror oneToManyAnnotation;
+    final AnnotationValue mappedBy;
+    final TypeElement childElement;
+    VerdictCache.Signature signature;
+    /** the snapshot to evaluate; only set if there is no cached verdict */
+    MappingModel.Relationship relationship;
+    Verdict verdict;
+  }
+}
@@ -0,0 +1,355 @@
+package com.overstock.sample.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Inflater;
+
+import javax.persistence.Entity;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+
+/**
+ * Applies the processor's built-in checks of &#64;{@link Entity} constructors and of &#64;{@link OneToMany} and
+ * &#64;{@link ManyToOne} mappings to compiled classes, for jars which were not built with the processor:
+ *
+ * <pre>
+ * java -cp jpa-annotation-processor.jar com.overstock.sample.processor.BytecodeValidator [-threads n] jar-or-dir...
+ * </pre>
+ *
+ * Jars and directories of classes are read through memory-mapped files (see {@link MappedJar}), and class files are
+ * read by a {@link ClassFileReader}, on as many threads as there are processors. The relationships found are checked
+ * by a {@link RuleEvaluator}, from the same {@link MappingModel} as at compile time, and the diagnostics are printed
+ * as the tests print those of the processor, with the element qualified by its class, such as
+ * {@code ERROR model.Order.getLines() @javax.persistence.OneToMany: Missing mappedBy attribute}. They are sorted by
+ * class, so that the output does not depend on the order in which classes were read. The exit status is 1 if there
+ * were any errors.
+ *
+ * Unlike the compiler, the validator only knows the classes it is given: a relationship whose child type is not among
+ * them is not checked. Nor is one whose element type cannot be read from its signature, as it can for the collection
+ * interfaces and classes of {@code java.util}; a {@code LineList} which extends {@code ArrayList<Line>} is skipped.
+ */
+public class BytecodeValidator {
+  /** the most class files read in one task */
+  private static final int BATCH_SIZE = 256;
+
+  private final int threads;
+  private int classFiles;
+  private int skippedRelationships;
+  private final List<String> problems = new ArrayList<String>();
+
+  /**
+   * @param threads the most threads to read class files on
+   */
+  public BytecodeValidator(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  public static void main(String[] args) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    List<File> paths = new ArrayList<File>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-threads") && i + 1 < args.length) {
+        threads = Integer.parseInt(args[++i]);
+      }
+      else {
+        paths.add(new File(args[i]));
+      }
+    }
+    if (paths.isEmpty()) {
+      System.err.println("Usage: " + BytecodeValidator.class.getName() + " [-threads n] jar-or-directory...");
+      System.exit(2);
+    }
+
+    long start = System.nanoTime();
+    BytecodeValidator validator = new BytecodeValidator(threads);
+    List<String> messages;
+    try {
+      messages = validator.validate(paths);
+    }
+    catch (IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(2);
+      return;
+    }
+    boolean errors = false;
+    for (String message : messages) {
+      System.out.println(message);
+      errors |= message.startsWith("ERROR");
+    }
+    for (String problem : validator.getProblems()) {
+      System.err.println(problem);
+    }
+    PrintStream summary = System.err;
+    summary.println("Checked " + validator.classFiles + " class files in " + (System.nanoTime() - start) / 1000000
+      + " ms" + (validator.skippedRelationships == 0
+        ? "" : "; " + validator.skippedRelationships + " relationships to classes not given were not checked"));
+    System.exit(errors ? 1 : 0);
+  }
+
+  /**
+   * Check the classes in some jars and directories.
+   * @param paths jars, and directories of class files
+   * @return the diagnostics, sorted by class
+   * @throws IOException if a jar or directory cannot be read
+   */
+  public List<String> validate(List<File> paths) throws IOException {
+    List<Callable<List<ClassFileReader.ClassInfo>>> tasks = new ArrayList<Callable<List<ClassFileReader.ClassInfo>>>();
+    for (File path : paths) {
+      if (path.isDirectory()) {
+        List<File> files = new ArrayList<File>();
+        listClassFiles(path, files);
+        classFiles += files.size();
+        for (int start = 0; start < files.size(); start += BATCH_SIZE) {
+          tasks.add(new FileBatch(files.subList(start, Math.min(start + BATCH_SIZE, files.size()))));
+        }
+      }
+      else {
+        List<MappedJar.Entry> entries = new MappedJar(path).getClassEntries();
+        classFiles += entries.size();
+        for (int start = 0; start < entries.size(); start += BATCH_SIZE) {
+          tasks.add(new JarBatch(entries.subList(start, Math.min(start + BATCH_SIZE, entries.size()))));
+        }
+      }
+    }
+
+    Map<String, ClassFileReader.ClassInfo> classes = new HashMap<String, ClassFileReader.ClassInfo>();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (Future<List<ClassFileReader.ClassInfo>> future : executor.invokeAll(tasks)) {
+        for (ClassFileReader.ClassInfo info : future.get()) {
+          if (!classes.containsKey(info.name)) { // the first on the path wins, as it would on a class path
+            classes.put(info.name, info);
+          }
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading classes");
+    }
+    catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    return check(classes);
+  }
+
+  /**
+   * @return class files which could not be read, and why; these are skipped
+   */
+  public List<String> getProblems() {
+    synchronized (problems) {
+      return new ArrayList<String>(problems);
+    }
+  }
+
+  private List<String> check(Map<String, ClassFileReader.ClassInfo> classes) {
+    Map<String, List<String>> messagesByClass = new TreeMap<String, List<String>>();
+    Map<String, MappingModel.ChildType> childTypes = new HashMap<String, MappingModel.ChildType>();
+    List<MappingModel.Relationship> relationships = new ArrayList<MappingModel.Relationship>();
+    List<String[]> relationshipSites = new ArrayList<String[]>(); // class, member, child simple name, mappedBy
+
+    for (ClassFileReader.ClassInfo info : classes.values()) {
+      String className = sourceName(info.name);
+      if (info.entity && !info.noArgumentConstructor) {
+        add(messagesByClass, className,
+          "ERROR " + className + " @javax.persistence.Entity: missing no argument constructor");
+      }
+      for (ClassFileReader.Property property : info.oneToManys) {
+        if (property.elementType == null) {
+          continue; // a raw collection, or one whose element type is not known
+        }
+        MappingModel.ChildType childType = childType(property.elementType, classes, childTypes);
+        if (childType == null) {
+          skippedRelationships++;
+          continue;
+        }
+        relationships.add(new MappingModel.Relationship(info.name, childType, property.mappedBy));
+        String childName = property.elementType.substring(property.elementType.lastIndexOf('/') + 1);
+        relationshipSites.add(new String[] {
+          className, property.member, childName.substring(childName.lastIndexOf('$') + 1), property.mappedBy });
+      }
+    }
+
+    RuleEvaluator ruleEvaluator = new RuleEvaluator(threads);
+    Verdict[] verdicts;
+    try {
+      verdicts = ruleEvaluator.evaluate(relationships, Metrics.DISABLED);
+    }
+    finally {
+      ruleEvaluator.shutdown();
+    }
+    for (int i = 0; i < verdicts.length; i++) {
+      String[] site = relationshipSites.get(i);
+      String element = "ERROR " + site[0] + "." + site[1] + " @javax.persistence.OneToMany";
+      switch (verdicts[i].status) {
+        case NO_MANY_TO_ONE:
+          add(messagesByClass, site[0], element + ": No matching @ManyToOne annotation on " + site[2]);
+          break;
+        case MISSING_MAPPED_BY:
+          add(messagesByClass, site[0], element + ": Missing mappedBy attribute");
+          break;
+        case WRONG_MAPPED_BY:
+          add(messagesByClass, site[0],
+            element + " \"" + site[3] + "\": mappedBy attribute should be " + verdicts[i].expectedMappedBy);
+          break;
+        case VALID:
+          break;
+      }
+    }
+
+    List<String> messages = new ArrayList<String>();
+    for (List<String> classMessages : messagesByClass.values()) {
+      messages.addAll(classMessages);
+    }
+    return messages;
+  }
+
+  /**
+   * @return a snapshot of the child type with internal name {@code name}, or {@code null} if it was not given
+   */
+  private static MappingModel.ChildType childType(
+    String name, Map<String, ClassFileReader.ClassInfo> classes, Map<String, MappingModel.ChildType> childTypes) {
+    MappingModel.ChildType childType = childTypes.get(name);
+    if (childType == null) {
+      ClassFileReader.ClassInfo info = classes.get(name);
+      if (info == null) {
+        return null;
+      }
+      ClassFileReader.ClassInfo superclass = info.superName == null ? null : classes.get(info.superName);
+      MappingModel.ChildType inherited = superclass != null && (superclass.entity || superclass.mappedSuperclass)
+        ? childType(superclass.name, classes, childTypes) : null;
+      Map<String, List<MappingModel.ManyToOne>> manyToOnesByTarget =
+        new HashMap<String, List<MappingModel.ManyToOne>>();
+      for (ClassFileReader.Property property : info.manyToOnes) {
+        List<MappingModel.ManyToOne> manyToOnes = manyToOnesByTarget.get(property.type);
+        if (manyToOnes == null) {
+          manyToOnes = new ArrayList<MappingModel.ManyToOne>(1);
+          manyToOnesByTarget.put(property.type, manyToOnes);
+        }
+        manyToOnes.add(new MappingModel.ManyToOne(property.name, property.parameterized));
+      }
+      childType = new MappingModel.ChildType(name, inherited, Collections.unmodifiableMap(manyToOnesByTarget));
+      childTypes.put(name, childType);
+    }
+    return childType;
+  }
+
+  private static void add(Map<String, List<String>> messagesByClass, String className, String message) {
+    List<String> messages = messagesByClass.get(className);
+    if (messages == null) {
+      messages = new ArrayList<String>();
+      messagesByClass.put(className, messages);
+    }
+    messages.add(message);
+  }
+
+  /**
+   * @return the name of the class with internal name {@code internalName}, as it is written in source
+   */
+  private static String sourceName(String internalName) {
+    return internalName.replace('/', '.').replace('$', '.');
+  }
+
+  private static void listClassFiles(File directory, List<File> files) throws IOException {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      throw new IOException("Unable to list " + directory);
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        listClassFiles(child, files);
+      }
+      else if (child.getName().endsWith(".class") && !child.getName().equals("module-info.class")
+          && !child.getName().equals("package-info.class")) {
+        files.add(child);
+      }
+    }
+  }
+
+  private void problem(String source, IOException e) {
+    synchronized (problems) {
+      problems.add("WARNING " + source + ": unable to read class file: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Reads class files from a directory, each of them mapped in turn.
+   */
+  private class FileBatch implements Callable<List<ClassFileReader.ClassInfo>> {
+    private final List<File> files;
+
+    FileBatch(List<File> files) {
+      this.files = files;
+    }
+
+    @Override
+    public List<ClassFileReader.ClassInfo> call() {
+      ClassFileReader reader = new ClassFileReader();
+      List<ClassFileReader.ClassInfo> infos = new ArrayList<ClassFileReader.ClassInfo>();
+      for (File file : files) {
+        try {
+          ClassFileReader.ClassInfo info = reader.read(MappedJar.map(file));
+          if (info != null) {
+            infos.add(info);
+          }
+        }
+        catch (IOException e) {
+          problem(file.getPath(), e);
+        }
+      }
+      return infos;
+    }
+  }
+
+  /**
+   * Reads class files from a jar, which has been mapped already.
+   */
+  private class JarBatch implements Callable<List<ClassFileReader.ClassInfo>> {
+    private final List<MappedJar.Entry> entries;
+
+    JarBatch(List<MappedJar.Entry> entries) {
+      this.entries = entries;
+    }
+
+    @Override
+    public List<ClassFileReader.ClassInfo> call() {
+      ClassFileReader reader = new ClassFileReader();
+      List<ClassFileReader.ClassInfo> infos = new ArrayList<ClassFileReader.ClassInfo>();
+      Inflater inflater = new Inflater(true);
+      try {
+        for (MappedJar.Entry entry : entries) {
+          try {
+            ByteBuffer classFile = entry.read(inflater);
+            ClassFileReader.ClassInfo info = reader.read(classFile);
+            if (info != null) {
+              infos.add(info);
+            }
+          }
+          catch (IOException e) {
+            problem(entry.jar.getFile().getPath() + "!" + entry.name, e);
+          }
+        }
+      }
+      finally {
+        inflater.end();
+      }
+      return infos;
+    }
+  }
+}
@@ -0,0 +1,487 @@
+package com.overstock.sample.processor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads just enough of a class file for {@link BytecodeValidator} to check its JPA mappings: the class's name and
+ * superclass, whether it is an &#64;Entity or &#64;MappedSuperclass, whether it has a no argument constructor, and
+ * its &#64;ManyToOne and &#64;OneToMany fields and methods. Only runtime visible annotations are read, which JPA's
+ * are. Everything else in the class file, such as code, is skipped over without being looked at.
+ *
+ * A class file whose constant pool does not mention {@code javax/persistence} at all is abandoned as soon as the
+ * constant pool has been read, which is most of them in a typical dependency set.
+ *
+ * Reads are absolute, so the buffer read from is not changed; a reader is only used on one thread.
+ */
+final class ClassFileReader {
+  private static final int MAGIC = 0xcafebabe;
+  private static final String ENTITY = "Ljavax/persistence/Entity;";
+  private static final String MAPPED_SUPERCLASS = "Ljavax/persistence/MappedSuperclass;";
+  private static final String MANY_TO_ONE = "Ljavax/persistence/ManyToOne;";
+  private static final String ONE_TO_MANY = "Ljavax/persistence/OneToMany;";
+  private static final byte[] PERSISTENCE_PREFIX = { 'L', 'j', 'a', 'v', 'a', 'x', '/', 'p', 'e', 'r', 's', 'i', 's',
+    't', 'e', 'n', 'c', 'e', '/' };
+  /** the types of a to-many association, as {@link CollectionTypes} would find them, without a class path */
+  private static final Set<String> COLLECTION_TYPES = new HashSet<String>(Arrays.asList(
+    "java/util/Collection", "java/util/List", "java/util/Set", "java/util/SortedSet", "java/util/NavigableSet",
+    "java/util/Queue", "java/util/Deque", "java/util/Map", "java/util/SortedMap", "java/util/NavigableMap",
+    "java/util/ArrayList", "java/util/LinkedList", "java/util/HashSet", "java/util/LinkedHashSet",
+    "java/util/TreeSet", "java/util/HashMap", "java/util/LinkedHashMap", "java/util/TreeMap"));
+
+  private ByteBuffer buffer;
+  /** the offset of each constant pool entry's tag */
+  private int[] offsets = new int[256];
+  private String[] strings = new String[256];
+
+  /**
+   * @param classFile the class file to read
+   * @return what the class file says about JPA, or {@code null} if it does not refer to any JPA type
+   * @throws IOException if the class file is malformed
+   */
+  ClassInfo read(ByteBuffer classFile) throws IOException {
+    buffer = classFile;
+    try {
+      return read();
+    }
+    catch (IndexOutOfBoundsException e) {
+      throw new IOException("truncated class file");
+    }
+    catch (IllegalArgumentException e) {
+      throw new IOException("malformed descriptor: " + e.getMessage());
+    }
+    finally {
+      buffer = null;
+    }
+  }
+
+  private ClassInfo read() throws IOException {
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IOException("not a class file");
+    }
+    int count = u2(8);
+    if (offsets.length < count) {
+      offsets = new int[count];
+      strings = new String[count];
+    }
+    else {
+      Arrays.fill(strings, 0, count, null);
+    }
+    boolean persistent = false;
+    int position = 10;
+    for (int i = 1; i < count; i++) {
+      offsets[i] = position;
+      int tag = buffer.get(position) & 0xff;
+      switch (tag) {
+        case 1: // Utf8
+          int length = u2(position + 1);
+          persistent |= startsWith(position + 3, length, PERSISTENCE_PREFIX);
+          position += 3 + length;
+          break;
+        case 3: case 4: // Integer, Float
+        case 9: case 10: case 11: case 12: // Fieldref, Methodref, InterfaceMethodref, NameAndType
+        case 17: case 18: // Dynamic, InvokeDynamic
+          position += 5;
+          break;
+        case 5: case 6: // Long, Double, which take two entries
+          position += 9;
+          i++;
+          break;
+        case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+          position += 3;
+          break;
+        case 15: // MethodHandle
+          position += 4;
+          break;
+        default:
+          throw new IOException("unknown constant pool tag " + tag);
+      }
+    }
+    if (!persistent) {
+      return null;
+    }
+
+    ClassInfo info = new ClassInfo(className(u2(position + 2)));
+    int superIndex = u2(position + 4);
+    info.superName = superIndex == 0 ? null : className(superIndex);
+    position += 8 + 2 * u2(position + 6);
+
+    int fields = u2(position);
+    position += 2;
+    for (int i = 0; i < fields; i++) {
+      position = readMember(position, info, false);
+    }
+    int methods = u2(position);
+    position += 2;
+    for (int i = 0; i < methods; i++) {
+      position = readMember(position, info, true);
+    }
+    int attributes = u2(position);
+    position += 2;
+    for (int i = 0; i < attributes; i++) {
+      int length = buffer.getInt(position + 2);
+      if (utf8(u2(position)).equals("RuntimeVisibleAnnotations")) {
+        int annotations = u2(position + 6);
+        int annotation = position + 8;
+        for (int j = 0; j < annotations; j++) {
+          String type = utf8(u2(annotation));
+          info.entity |= type.equals(ENTITY);
+          info.mappedSuperclass |= type.equals(MAPPED_SUPERCLASS);
+          annotation = skipAnnotation(annotation);
+        }
+      }
+      position += 6 + length;
+    }
+    return info;
+  }
+
+  /**
+   * Read a field or method.
+   * @return the offset just past it
+   */
+  private int readMember(int position, ClassInfo info, boolean method) throws IOException {
+    String name = utf8(u2(position + 2));
+    String descriptor = utf8(u2(position + 4));
+    if (method && name.equals("<init>") && descriptor.equals("()V")) {
+      info.noArgumentConstructor = true;
+    }
+    String signature = null;
+    boolean manyToOne = false, oneToMany = false;
+    String mappedBy = null;
+    int attributes = u2(position + 6);
+    position += 8;
+    for (int i = 0; i < attributes; i++) {
+      String attribute = utf8(u2(position));
+      int length = buffer.getInt(position + 2);
+      if (attribute.equals("Signature")) {
+        signature = utf8(u2(position + 6));
+      }
+      else if (attribute.equals("RuntimeVisibleAnnotations")) {
+        int annotations = u2(position + 6);
+        int annotation = position + 8;
+        for (int j = 0; j < annotations; j++) {
+          String type = utf8(u2(annotation));
+          if (type.equals(MANY_TO_ONE)) {
+            manyToOne = true;
+          }
+          else if (type.equals(ONE_TO_MANY)) {
+            oneToMany = true;
+            mappedBy = stringValue(annotation, "mappedBy");
+          }
+          annotation = skipAnnotation(annotation);
+        }
+      }
+      position += 6 + length;
+    }
+    if (manyToOne || oneToMany) {
+      String type = method ? descriptor.substring(descriptor.indexOf(')') + 1) : descriptor;
+      if (signature != null) {
+        type = method ? signature.substring(signature.indexOf(')') + 1) : signature;
+      }
+      Property property = new Property(
+        method ? JpaProcessor.getPropertyName(name) : name,
+        method ? name + "(" + parameterTypes(descriptor) + ")" : name,
+        mappedBy);
+      if (type.startsWith("L")) {
+        TypeSignature parsed = new TypeSignature(type);
+        property.type = parsed.rawName;
+        property.parameterized = !parsed.arguments.isEmpty();
+        if (oneToMany && COLLECTION_TYPES.contains(parsed.rawName) && !parsed.arguments.isEmpty()) {
+          property.elementType = parsed.arguments.get(parsed.arguments.size() - 1);
+        }
+      }
+      if (manyToOne && property.type != null) {
+        info.manyToOnes.add(property);
+      }
+      if (oneToMany) {
+        info.oneToManys.add(property);
+      }
+    }
+    return position;
+  }
+
+  /**
+   * @param annotation the offset of an annotation
+   * @param elementName the name of one of its elements, of type {@code String}
+   * @return the element's value, or {@code null} if it is not given
+   */
+  private String stringValue(int annotation, String elementName) throws IOException {
+    int pairs = u2(annotation + 2);
+    int position = annotation + 4;
+    for (int i = 0; i < pairs; i++) {
+      if (utf8(u2(position)).equals(elementName) && buffer.get(position + 2) == 's') {
+        return utf8(u2(position + 3));
+      }
+      position = skipElementValue(position + 2);
+    }
+    return null;
+  }
+
+  /**
+   * @return the offset just past the annotation at {@code position}
+   */
+  private int skipAnnotation(int position) throws IOException {
+    int pairs = u2(position + 2);
+    position += 4;
+    for (int i = 0; i < pairs; i++) {
+      position = skipElementValue(position + 2);
+    }
+    return position;
+  }
+
+  /**
+   * @return the offset just past the element value at {@code position}
+   */
+  private int skipElementValue(int position) throws IOException {
+    int tag = buffer.get(position);
+    switch (tag) {
+      case 'B': case 'C': case 'D': case 'F': case 'I': case 'J': case 'S': case 'Z': case 's': case 'c':
+        return position + 3;
+      case 'e':
+        return position + 5;
+      case '@':
+        return skipAnnotation(position + 1);
+      case '[':
+        int values = u2(position + 1);
+        position += 3;
+        for (int i = 0; i < values; i++) {
+          position = skipElementValue(position);
+        }
+        return position;
+      default:
+        throw new IOException("unknown element value tag " + (char) tag);
+    }
+  }
+
+  private int u2(int position) {
+    return buffer.getShort(position) & 0xffff;
+  }
+
+  private boolean startsWith(int position, int length, byte[] prefix) {
+    if (length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (buffer.get(position + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String className(int classIndex) throws IOException {
+    return utf8(u2(offsets[classIndex] + 1));
+  }
+
+  /**
+   * @return the constant pool string at {@code index}, decoded from the class file's modified UTF-8 once
+   */
+  private String utf8(int index) throws IOException {
+    String string = strings[index];
+    if (string == null) {
+      int position = offsets[index];
+      if (buffer.get(position) != 1) {
+        throw new IOException("constant " + index + " is not a string");
+      }
+      int length = u2(position + 1);
+      char[] chars = new char[length];
+      int count = 0;
+      for (int i = position + 3, end = position + 3 + length; i < end; ) {
+        int b = buffer.get(i++) & 0xff;
+        if (b < 0x80) {
+          chars[count++] = (char) b;
+        }
+        else if ((b & 0xe0) == 0xc0) {
+          chars[count++] = (char) ((b & 0x1f) << 6 | buffer.get(i++) & 0x3f);
+        }
+        else {
+          chars[count++] = (char) ((b & 0x0f) << 12 | (buffer.get(i++) & 0x3f) << 6 | buffer.get(i++) & 0x3f);
+        }
+      }
+      string = new String(chars, 0, count);
+      strings[index] = string;
+    }
+    return string;
+  }
+
+  /**
+   * @return the parameter types of a method descriptor, as javac prints them, such as {@code int,java.lang.String[]}
+   */
+  private static String parameterTypes(String descriptor) {
+    StringBuilder types = new StringBuilder();
+    int position = 1;
+    while (descriptor.charAt(position) != ')') {
+      int dimensions = 0;
+      while (descriptor.charAt(position) == '[') {
+        dimensions++;
+        position++;
+      }
+      types.append(types.length() == 0 ? "" : ",");
+      char kind = descriptor.charAt(position);
+      if (kind == 'L') {
+        int end = descriptor.indexOf(';', position);
+        types.append(descriptor.substring(position + 1, end).replace('/', '.').replace('$', '.'));
+        position = end + 1;
+      }
+      else {
+        types.append(primitive(kind));
+        position++;
+      }
+      for (int i = 0; i < dimensions; i++) {
+        types.append("[]");
+      }
+    }
+    return types.toString();
+  }
+
+  private static String primitive(char kind) {
+    switch (kind) {
+      case 'Z': return "boolean";
+      case 'B': return "byte";
+      case 'C': return "char";
+      case 'S': return "short";
+      case 'I': return "int";
+      case 'J': return "long";
+      case 'F': return "float";
+      case 'D': return "double";
+      default: throw new IllegalArgumentException("descriptor " + kind);
+    }
+  }
+
+  /**
+   * A class type signature, such as {@code Ljava/util/Map<Ljava/lang/String;+Lmodel/Line;>;}, read as far as its
+   * erasure and the classes of its type arguments.
+   */
+  private static final class TypeSignature {
+    /** the internal name of the erasure */
+    final String rawName;
+    /**
+     * the internal name of the class of each type argument of the innermost class, or, for a wildcard, of its upper
+     * bound; {@code null} for any other argument, such as a type variable, an array, or {@code ?}
+     */
+    final List<String> arguments;
+
+    TypeSignature(String signature) {
+      StringBuilder raw = new StringBuilder();
+      List<String> lastArguments = Collections.emptyList();
+      int position = 1;
+      while (true) {
+        char c = signature.charAt(position);
+        if (c == ';') {
+          break;
+        }
+        if (c == '<') {
+          lastArguments = new ArrayList<String>();
+          position = readArguments(signature, position + 1, lastArguments);
+        }
+        else if (c == '.') {
+          raw.append('$');
+          lastArguments = Collections.emptyList();
+          position++;
+        }
+        else {
+          raw.append(c);
+          position++;
+        }
+      }
+      rawName = raw.toString();
+      arguments = lastArguments;
+    }
+
+    /**
+     * @return the offset just past the {@code >} closing the arguments
+     */
+    private static int readArguments(String signature, int position, List<String> arguments) {
+      while (signature.charAt(position) != '>') {
+        char c = signature.charAt(position);
+        if (c == '*') {
+          arguments.add(null);
+          position++;
+          continue;
+        }
+        boolean upperBound = c != '-';
+        if (c == '+' || c == '-') {
+          position++;
+        }
+        int end = skipType(signature, position);
+        arguments.add(upperBound && signature.charAt(position) == 'L'
+          ? new TypeSignature(signature.substring(position, end)).rawName : null);
+        position = end;
+      }
+      return position + 1;
+    }
+
+    /**
+     * @return the offset just past the type signature at {@code position}
+     */
+    private static int skipType(String signature, int position) {
+      switch (signature.charAt(position)) {
+        case '[':
+          return skipType(signature, position + 1);
+        case 'T':
+          return signature.indexOf(';', position) + 1;
+        case 'L':
+          int depth = 0;
+          while (true) {
+            char c = signature.charAt(position++);
+            if (c == '<') {
+              depth++;
+            }
+            else if (c == '>') {
+              depth--;
+            }
+            else if (c == ';' && depth == 0) {
+              return position;
+            }
+          }
+        default:
+          return position + 1;
+      }
+    }
+  }
+
+  /**
+   * What a class file says about JPA. Names are internal names, such as {@code model/Order$Line}.
+   */
+  static final class ClassInfo {
+    ClassInfo(String name) {
+      this.name = name;
+    }
+
+    final String name;
+    String superName;
+    boolean entity, mappedSuperclass, noArgumentConstructor;
+    final List<Property> manyToOnes = new ArrayList<Property>(2);
+    final List<Property> oneToManys = new ArrayList<Property>(2);
+  }
+
+  /**
+   * A &#64;ManyToOne or &#64;OneToMany field or method.
+   */
+  static final class Property {
+    Property(String name, String member, String mappedBy) {
+      this.name = name;
+      this.member = member;
+      this.mappedBy = mappedBy;
+    }
+
+    /** the property name, as {@link JpaProcessor#getPropertyName(javax.lang.model.element.Element)} gives it */
+    final String name;
+    /** the field or method, as javac prints it, such as {@code lines} or {@code getLines()} */
+    final String member;
+    /** the {@code mappedBy} value of a &#64;OneToMany, or {@code null} if it has none */
+    final String mappedBy;
+    /** the internal name of the property's erased type, or {@code null} if it is not a class or interface */
+    String type;
+    /** whether the property's type has type arguments */
+    boolean parameterized;
+    /** the internal name of the class of elements in a &#64;OneToMany collection, or {@code null} if not known */
+    String elementType;
+  }
+}
@@ -0,0 +1,178 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * Finds the type of the elements of a {@link java.util.Collection}, or of the values of a {@link java.util.Map}, which
+ * is what a to-many association maps. The type is found by walking up the supertypes of the property's type until
+ * {@code Collection} or {@code Map} is reached, so that, for example, a {@code StringList} which implements
+ * {@code List<String>} is known to hold strings.
+ *
+ * The walk is done once per class or interface, on its generic declaration, and remembered: {@code ArrayList<E>} is a
+ * {@code Collection<E>}, so {@code ArrayList<Child>} holds {@code Child}, as does {@code ArrayList<Parent>} hold
+ * {@code Parent}, without walking again. Only when the element type is built from type variables in a more complex
+ * way, such as a {@code class Children<T> implements List<Set<T>>}, are the supertypes of the property's own type
+ * walked instead.
+ *
+ * Types are only valid for the round they come from, so this should only be used for a single round of processing.
+ */
+class CollectionTypes {
+  private final Types typeUtils;
+  private final Metrics metrics;
+  private final TypeElement collectionElement, mapElement;
+  private final Map<TypeElement, Shape> shapes = new HashMap<TypeElement, Shape>();
+  /** whether the last {@link #walk(TypeMirror)} came across a type which does not exist yet */
+  private boolean sawError;
+
+  CollectionTypes(Elements elementUtils, Types typeUtils, Metrics metrics) {
+    this.typeUtils = typeUtils;
+    this.metrics = metrics;
+    collectionElement = elementUtils.getTypeElement("java.util.Collection");
+    mapElement = elementUtils.getTypeElement("java.util.Map");
+  }
+
+  /**
+   * @param type the type of a property
+   * @return the type of the elements of {@code type}, if it is a collection, or of its values, if it is a map; for a
+   *   wildcard, its upper bound. Returns {@code null} if {@code type} is neither, or is raw, or the type is unknown
+   *   because a supertype does not exist yet.
+   */
+  TypeMirror elementType(TypeMirror type) {
+    if (type == null || type.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    DeclaredType declaredType = (DeclaredType) type;
+    TypeElement element = (TypeElement) declaredType.asElement();
+    Shape shape = shapes.get(element);
+    if (shape == null) {
+      metrics.count(Metrics.Counter.COLLECTION_TYPE_WALKS);
+      TypeMirror elementType = walk(element.asType());
+      shape = new Shape(element, elementType);
+      if (!sawError) { // else try again once the missing type has been generated
+        shapes.put(element, shape);
+      }
+    }
+    if (shape.elementType == null) {
+      return null;
+    }
+    if (shape.typeParameterIndex >= 0) {
+      List<? extends TypeMirror> arguments = declaredType.getTypeArguments();
+      return arguments.isEmpty() ? null : upperBound(arguments.get(shape.typeParameterIndex)); // raw if empty
+    }
+    if (!shape.usesTypeVariables) {
+      return upperBound(shape.elementType);
+    }
+    return declaredType.getTypeArguments().isEmpty() ? null : upperBound(walk(declaredType));
+  }
+
+  /**
+   * Forget all types; called at the start of each round.
+   */
+  void clear() {
+    shapes.clear();
+  }
+
+  /**
+   * @return the element type of a {@code Collection} or value type of a {@code Map} which {@code type} is a subtype
+   *   of, in terms of {@code type}'s own type arguments, or {@code null} if it is neither
+   */
+  private TypeMirror walk(TypeMirror type) {
+    sawError = false;
+    Deque<TypeMirror> pending = new ArrayDeque<TypeMirror>();
+    Set<TypeElement> seen = new HashSet<TypeElement>();
+    pending.add(type);
+    while (!pending.isEmpty()) {
+      TypeMirror next = pending.removeFirst();
+      if (next.getKind() == TypeKind.ERROR) {
+        sawError = true;
+        continue;
+      }
+      if (next.getKind() != TypeKind.DECLARED) {
+        continue;
+      }
+      DeclaredType declared = (DeclaredType) next;
+      TypeElement element = (TypeElement) declared.asElement();
+      if (!seen.add(element)) {
+        continue;
+      }
+      if (element.equals(collectionElement) || element.equals(mapElement)) {
+        // the only type argument of Collection, or the second (the value type) of Map
+        List<? extends TypeMirror> arguments = declared.getTypeArguments();
+        return arguments.isEmpty() ? null : arguments.get(arguments.size() - 1); // raw if empty
+      }
+      pending.addAll(typeUtils.directSupertypes(declared));
+    }
+    return null;
+  }
+
+  private static TypeMirror upperBound(TypeMirror type) {
+    if (type != null && type.getKind() == TypeKind.WILDCARD) {
+      return ((WildcardType) type).getExtendsBound();
+    }
+    return type;
+  }
+
+  /**
+   * The element type of a class or interface, in terms of its own type parameters.
+   */
+  private static class Shape {
+    Shape(TypeElement type, TypeMirror elementType) {
+      this.elementType = elementType;
+      int index = -1;
+      if (elementType != null && elementType.getKind() == TypeKind.TYPEVAR) {
+        TypeParameterElement parameter = (TypeParameterElement) ((TypeVariable) elementType).asElement();
+        if (parameter.getGenericElement().equals(type)) { // rather than, say, an enclosing class
+          index = type.getTypeParameters().indexOf(parameter);
+        }
+      }
+      typeParameterIndex = index;
+      usesTypeVariables = elementType != null && index < 0 && mentionsTypeVariable(elementType);
+    }
+
+    /** the element type, or {@code null} if the type is not a collection or map */
+    final TypeMirror elementType;
+    /** the index of the type parameter which is the element type, or -1 if it is not simply a type parameter */
+    final int typeParameterIndex;
+    /** whether the element type is built from type variables, so must be worked out afresh for each type */
+    final boolean usesTypeVariables;
+
+    private static boolean mentionsTypeVariable(TypeMirror type) {
+      switch (type.getKind()) {
+        case TYPEVAR:
+          return true;
+        case WILDCARD:
+          WildcardType wildcard = (WildcardType) type;
+          return wildcard.getExtendsBound() != null && mentionsTypeVariable(wildcard.getExtendsBound())
+            || wildcard.getSuperBound() != null && mentionsTypeVariable(wildcard.getSuperBound());
+        case ARRAY:
+          return mentionsTypeVariable(((ArrayType) type).getComponentType());
+        case DECLARED:
+          for (TypeMirror argument : ((DeclaredType) type).getTypeArguments()) {
+            if (mentionsTypeVariable(argument)) {
+              return true;
+            }
+          }
+          return false;
+        default:
+          return false;
+      }
+    }
+  }
+}
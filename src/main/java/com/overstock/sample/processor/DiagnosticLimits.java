@@ -0,0 +1,257 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic.Kind;
+
+/**
+ * Bounds how much the validation rules may print, so that one broken type cannot flood the build log. Each rule is
+ * given a {@code Messager} which counts what it prints, and holds back:
+ * <ul>
+ *   <li>
+ *     repeats of a message the rule has already printed {@code jpa.maxRepeats} times, such as the same
+ *     "No matching &#64;ManyToOne" error for every parent of a broken child; these are summed up, once processing
+ *     is over, in a single message giving how many more elements it applied to
+ *   </li>
+ *   <li>
+ *     anything beyond {@code jpa.rule.<name>.maxDiagnostics} from one rule, or {@code jpa.maxDiagnostics} from all
+ *     rules together; these are counted, and the count reported once processing is over
+ *   </li>
+ * </ul>
+ * A summary is reported as the most severe kind of diagnostic it stands for, so holding back errors never lets a
+ * build pass. Messages may be printed from any thread.
+ */
+class DiagnosticLimits {
+  static final String MAX_DIAGNOSTICS_OPTION = "jpa.maxDiagnostics";
+  /** appended to {@code jpa.rule.<name>} to give the option limiting the diagnostics of that rule */
+  static final String RULE_MAX_DIAGNOSTICS_SUFFIX = ".maxDiagnostics";
+  static final String MAX_REPEATS_OPTION = "jpa.maxRepeats";
+  static final int UNLIMITED = Integer.MAX_VALUE;
+
+  private final int maxDiagnostics;
+  private final int maxRepeats;
+  private final List<RuleMessager> messagers = new ArrayList<RuleMessager>();
+  private int printed;
+
+  /**
+   * @param maxDiagnostics the most diagnostics to print from all rules together
+   * @param maxRepeats the most times one rule may print the same message
+   */
+  DiagnosticLimits(int maxDiagnostics, int maxRepeats) {
+    this.maxDiagnostics = maxDiagnostics;
+    this.maxRepeats = maxRepeats;
+  }
+
+  /**
+   * @param rule the name of a rule
+   * @param maxRuleDiagnostics the most diagnostics to print from that rule
+   * @param processingEnv the processor's environment
+   * @return an environment for the rule, whose {@code Messager} keeps to the limits
+   */
+  ProcessingEnvironment environmentFor(String rule, int maxRuleDiagnostics, ProcessingEnvironment processingEnv) {
+    RuleMessager messager = new RuleMessager(rule, maxRuleDiagnostics, processingEnv.getMessager());
+    synchronized (this) {
+      messagers.add(messager);
+    }
+    return new RuleEnvironment(processingEnv, messager);
+  }
+
+  /**
+   * Report what was held back, if anything; called once processing is over.
+   * @param messager where to report it
+   */
+  synchronized void reportHeldBack(Messager messager) {
+    for (RuleMessager ruleMessager : messagers) {
+      for (Map.Entry<String, Repeats> repeated : ruleMessager.repeats.entrySet()) {
+        Repeats repeats = repeated.getValue();
+        if (repeats.heldBack > 0) {
+          messager.printMessage(
+            repeats.kind,
+            repeated.getKey() + " (and for " + repeats.heldBack + " more elements, not shown; see "
+              + MAX_REPEATS_OPTION + ")");
+        }
+      }
+      if (ruleMessager.heldBack > 0) {
+        messager.printMessage(
+          ruleMessager.heldBackKind,
+          ruleMessager.heldBack + " more diagnostics from rule " + ruleMessager.rule + " not shown; see "
+            + MAX_DIAGNOSTICS_OPTION + " and " + JpaProcessor.RULE_OPTION_PREFIX + ruleMessager.rule
+            + RULE_MAX_DIAGNOSTICS_SUFFIX);
+      }
+    }
+  }
+
+  /**
+   * @return the more severe of two kinds of diagnostic
+   */
+  private static Kind worse(Kind a, Kind b) {
+    return a == null || severity(b) > severity(a) ? b : a;
+  }
+
+  private static int severity(Kind kind) {
+    switch (kind) {
+      case ERROR:
+        return 4;
+      case MANDATORY_WARNING:
+        return 3;
+      case WARNING:
+        return 2;
+      case NOTE:
+        return 1;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * How often one message has been printed, and held back.
+   */
+  private static class Repeats {
+    Kind kind;
+    int printed;
+    int heldBack;
+  }
+
+  /**
+   * The {@code Messager} of one rule, which passes on what is within the limits.
+   */
+  private class RuleMessager implements Messager {
+    private final String rule;
+    private final int maxRuleDiagnostics;
+    private final Messager delegate;
+    /** by message text; only kept if repeats are limited */
+    private final Map<String, Repeats> repeats = new LinkedHashMap<String, Repeats>();
+    private int printed;
+    private int heldBack;
+    private Kind heldBackKind;
+
+    RuleMessager(String rule, int maxRuleDiagnostics, Messager delegate) {
+      this.rule = rule;
+      this.maxRuleDiagnostics = maxRuleDiagnostics;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void printMessage(Kind kind, CharSequence msg) {
+      if (admit(kind, msg)) {
+        delegate.printMessage(kind, msg);
+      }
+    }
+
+    @Override
+    public void printMessage(Kind kind, CharSequence msg, Element e) {
+      if (admit(kind, msg)) {
+        delegate.printMessage(kind, msg, e);
+      }
+    }
+
+    @Override
+    public void printMessage(Kind kind, CharSequence msg, Element e, AnnotationMirror a) {
+      if (admit(kind, msg)) {
+        delegate.printMessage(kind, msg, e, a);
+      }
+    }
+
+    @Override
+    public void printMessage(Kind kind, CharSequence msg, Element e, AnnotationMirror a, AnnotationValue v) {
+      if (admit(kind, msg)) {
+        delegate.printMessage(kind, msg, e, a, v);
+      }
+    }
+
+    /**
+     * @return whether a message is within the limits, counting it if it is
+     */
+    private boolean admit(Kind kind, CharSequence msg) {
+      synchronized (DiagnosticLimits.this) {
+        Repeats repeated = null;
+        if (maxRepeats != UNLIMITED) {
+          String text = msg.toString();
+          repeated = repeats.get(text);
+          if (repeated == null) {
+            repeated = new Repeats();
+            repeats.put(text, repeated);
+          }
+          if (repeated.printed >= maxRepeats) {
+            repeated.heldBack++;
+            repeated.kind = worse(repeated.kind, kind);
+            return false;
+          }
+        }
+        if (printed >= maxRuleDiagnostics || DiagnosticLimits.this.printed >= maxDiagnostics) {
+          heldBack++;
+          heldBackKind = worse(heldBackKind, kind);
+          return false;
+        }
+        if (repeated != null) {
+          repeated.printed++;
+          repeated.kind = worse(repeated.kind, kind);
+        }
+        printed++;
+        DiagnosticLimits.this.printed++;
+        return true;
+      }
+    }
+  }
+
+  /**
+   * The processor's environment, with a rule's own messager.
+   */
+  private static class RuleEnvironment implements ProcessingEnvironment {
+    private final ProcessingEnvironment delegate;
+    private final Messager messager;
+
+    RuleEnvironment(ProcessingEnvironment delegate, Messager messager) {
+      this.delegate = delegate;
+      this.messager = messager;
+    }
+
+    @Override
+    public Messager getMessager() {
+      return messager;
+    }
+
+    @Override
+    public Map<String, String> getOptions() {
+      return delegate.getOptions();
+    }
+
+    @Override
+    public Filer getFiler() {
+      return delegate.getFiler();
+    }
+
+    @Override
+    public Elements getElementUtils() {
+      return delegate.getElementUtils();
+    }
+
+    @Override
+    public Types getTypeUtils() {
+      return delegate.getTypeUtils();
+    }
+
+    @Override
+    public SourceVersion getSourceVersion() {
+      return delegate.getSourceVersion();
+    }
+
+    @Override
+    public Locale getLocale() {
+      return delegate.getLocale();
+    }
+  }
+}
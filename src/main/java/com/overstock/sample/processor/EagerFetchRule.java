@@ -0,0 +1,89 @@
+package com.overstock.sample.processor;
+
+import java.util.EnumSet;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.persistence.Entity;
+import javax.tools.Diagnostic.Kind;
+
+/**
+ * Verifies that loading an &#64;{@link Entity} does not eagerly fetch more collections, or more deeply nested ones,
+ * than the {@code jpa.fetch} options allow; see {@link FetchGraph}. Associations with types which do not exist yet
+ * are not followed. If the model is so densely connected that the walk stops after {@link FetchGraph#MAX_STEPS}
+ * associations, the rule notes that the entity was only partly checked.
+ */
+class EagerFetchRule extends AbstractValidationRule {
+  static final String NAME = "eagerFetch";
+
+  private final FetchGraph fetchGraph;
+  private final AnnotationTable annotationTable;
+  private final Kind diagnostic;
+  private final int maxCollections;
+  private final int maxDepth;
+  private Name entityName;
+
+  /**
+   * @param fetchGraph the fetch graph of the round
+   * @param annotationTable the annotation table of the round
+   * @param diagnostic the kind of diagnostic to report entities which exceed the limits with
+   * @param maxCollections the most collections loading one entity may fetch eagerly
+   * @param maxDepth the most eager collections which may be nested inside one another
+   */
+  EagerFetchRule(
+    FetchGraph fetchGraph, AnnotationTable annotationTable, Kind diagnostic, int maxCollections, int maxDepth) {
+    super(NAME, EnumSet.of(ElementKind.CLASS), "javax.persistence.Entity");
+    this.fetchGraph = fetchGraph;
+    this.annotationTable = annotationTable;
+    this.diagnostic = diagnostic;
+    this.maxCollections = maxCollections;
+    this.maxDepth = maxDepth;
+  }
+
+  @Override
+  public void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    entityName = processingEnv.getElementUtils().getName("javax.persistence.Entity");
+  }
+
+  @Override
+  public void check(Element element) {
+    TypeElement entity = (TypeElement) element;
+    FetchGraph.Analysis analysis = fetchGraph.analyze(entity);
+    if (analysis.truncated) {
+      processingEnv.getMessager().printMessage(
+        Kind.NOTE,
+        "stopped following the eager associations of " + entity.getSimpleName() + " after " + FetchGraph.MAX_STEPS
+          + " steps, so collections beyond them are not counted",
+        entity,
+        annotationTable.get(entity, entityName));
+    }
+    if (analysis.collections.size() > maxCollections) {
+      StringBuilder paths = new StringBuilder();
+      for (String path : analysis.collections) {
+        paths.append(paths.length() == 0 ? "" : ", ").append(path);
+      }
+      report(
+        entity,
+        "loading " + entity.getSimpleName() + " eagerly fetches " + analysis.collections.size()
+          + " collections (limit " + maxCollections + "), whose rows multiply: " + paths);
+    }
+    if (analysis.depth > maxDepth) {
+      report(
+        entity,
+        "eager fetch of " + analysis.deepestPath + " nests " + analysis.depth + " collections (limit " + maxDepth
+          + ")");
+    }
+  }
+
+  private void report(TypeElement entity, String message) {
+    processingEnv.getMessager().printMessage(
+      diagnostic,
+      message,
+      entity,
+      annotationTable.get(entity, entityName));
+  }
+}
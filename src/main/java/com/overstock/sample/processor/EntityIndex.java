@@ -0,0 +1,165 @@
+package com.overstock.sample.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.persistence.Embeddable;
+import javax.persistence.Entity;
+import javax.persistence.MappedSuperclass;
+
+/**
+ * The managed classes of each persistence unit, as listed at compile time by {@link JpaProcessor} in
+ * {@value #RESOURCE_NAME} resources. Reading the index at startup replaces scanning the class path for annotated
+ * classes; see {@link IndexedPersistenceUnitInfo}.
+ *
+ * The index is a text file, with one class per line, as three tab separated fields: the persistence unit name, the
+ * {@link Kind} of class, and its binary name (as passed to {@link Class#forName(String)}). Blank lines and lines
+ * starting with {@code #} are ignored.
+ */
+public final class EntityIndex {
+  public static final String RESOURCE_NAME = "META-INF/jpa-entities.idx";
+
+  /**
+   * The kinds of managed class.
+   */
+  public enum Kind {
+    /** an &#64;{@link Entity} */
+    ENTITY,
+    /** a &#64;{@link MappedSuperclass} */
+    MAPPED_SUPERCLASS,
+    /** an &#64;{@link Embeddable} */
+    EMBEDDABLE
+  }
+
+  private final Map<String, Map<Kind, SortedSet<String>>> units = new TreeMap<String, Map<Kind, SortedSet<String>>>();
+
+  /**
+   * Read and merge every index visible to a class loader; each jar or directory on the class path may have one.
+   * @param classLoader the class loader to find {@value #RESOURCE_NAME} resources with
+   * @return the merged index, which is empty if there are none
+   * @throws IOException if an index cannot be read
+   */
+  public static EntityIndex load(ClassLoader classLoader) throws IOException {
+    EntityIndex index = new EntityIndex();
+    Enumeration<URL> resources = classLoader.getResources(RESOURCE_NAME);
+    while (resources.hasMoreElements()) {
+      URL resource = resources.nextElement();
+      InputStream in = resource.openStream();
+      try {
+        index.read(new InputStreamReader(in, "UTF-8"), resource.toString());
+      }
+      finally {
+        in.close();
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return the names of the persistence units with at least one class, in alphabetical order
+   */
+  public Set<String> getPersistenceUnitNames() {
+    return Collections.unmodifiableSet(units.keySet());
+  }
+
+  /**
+   * @param persistenceUnitName a persistence unit name
+   * @return the binary names of all the managed classes of the persistence unit: entities, then mapped superclasses,
+   *   then embeddables, each in alphabetical order
+   */
+  public List<String> getClassNames(String persistenceUnitName) {
+    List<String> classNames = new ArrayList<String>();
+    for (Kind kind : Kind.values()) {
+      classNames.addAll(getClassNames(persistenceUnitName, kind));
+    }
+    return classNames;
+  }
+
+  /**
+   * @param persistenceUnitName a persistence unit name
+   * @param kind the kind of class wanted
+   * @return the binary names of the persistence unit's managed classes of that kind, in alphabetical order
+   */
+  public List<String> getClassNames(String persistenceUnitName, Kind kind) {
+    Map<Kind, SortedSet<String>> unit = units.get(persistenceUnitName);
+    SortedSet<String> classNames = unit == null ? null : unit.get(kind);
+    return classNames == null
+      ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<String>(classNames));
+  }
+
+  void add(String persistenceUnitName, Kind kind, String className) {
+    Map<Kind, SortedSet<String>> unit = units.get(persistenceUnitName);
+    if (unit == null) {
+      unit = new EnumMap<Kind, SortedSet<String>>(Kind.class);
+      units.put(persistenceUnitName, unit);
+    }
+    SortedSet<String> classNames = unit.get(kind);
+    if (classNames == null) {
+      classNames = new TreeSet<String>();
+      unit.put(kind, classNames);
+    }
+    classNames.add(className);
+  }
+
+  /**
+   * Add the classes listed in an index.
+   * @param reader the index
+   * @param location where the index came from, for error messages
+   * @throws IOException if the index cannot be read, or is not in the expected format
+   */
+  void read(Reader reader, String location) throws IOException {
+    BufferedReader lines = new BufferedReader(reader);
+    int lineNumber = 0;
+    for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+      lineNumber++;
+      if (line.trim().length() == 0 || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\t");
+      Kind kind = null;
+      if (fields.length == 3) {
+        try {
+          kind = Kind.valueOf(fields[1]);
+        }
+        catch (IllegalArgumentException e) {
+          // reported below
+        }
+      }
+      if (kind == null) {
+        throw new IOException("Malformed line " + lineNumber + " in " + location + ": " + line);
+      }
+      add(fields[0], kind, fields[2]);
+    }
+  }
+
+  /**
+   * Write the index, sorted, so that the same classes always produce the same file.
+   * @param writer where to write the index
+   * @throws IOException if it cannot be written
+   */
+  void write(Writer writer) throws IOException {
+    writer.write("# Generated by " + JpaProcessor.class.getName() + "\n");
+    for (Map.Entry<String, Map<Kind, SortedSet<String>>> unit : units.entrySet()) {
+      for (Map.Entry<Kind, SortedSet<String>> kind : unit.getValue().entrySet()) {
+        for (String className : kind.getValue()) {
+          writer.write(unit.getKey() + "\t" + kind.getKey().name() + "\t" + className + "\n");
+        }
+      }
+    }
+  }
+}
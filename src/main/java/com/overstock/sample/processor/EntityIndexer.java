@@ -0,0 +1,137 @@
+package com.overstock.sample.processor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Collects the managed classes of each round, and writes them to an {@link EntityIndex} once processing is over.
+ * Between rounds only class names are kept.
+ *
+ * An incremental build only compiles some of the managed classes, so the index left by the previous build is merged
+ * in: its classes are kept, unless they have been compiled again (in which case this build's entry wins), no longer
+ * exist, or are no longer annotated as the kind of class they were listed as.
+ */
+class EntityIndexer {
+  static final String INDEX_OPTION = "jpa.index";
+
+  private final String persistenceUnitName;
+  private final Elements elementUtils;
+  private final AnnotationTable annotationTable;
+  /** the qualified name of the annotation which marks each kind of managed class */
+  private final Map<EntityIndex.Kind, Name> annotationNames =
+    new EnumMap<EntityIndex.Kind, Name>(EntityIndex.Kind.class);
+  private final Map<String, EntityIndex.Kind> classes = new TreeMap<String, EntityIndex.Kind>();
+
+  /**
+   * @param persistenceUnitName the persistence unit to list this build's classes under
+   * @param elementUtils used to look up classes by name
+   * @param annotationTable the annotation table of the round
+   */
+  EntityIndexer(String persistenceUnitName, Elements elementUtils, AnnotationTable annotationTable) {
+    this.persistenceUnitName = persistenceUnitName;
+    this.elementUtils = elementUtils;
+    this.annotationTable = annotationTable;
+    annotationNames.put(EntityIndex.Kind.ENTITY, elementUtils.getName("javax.persistence.Entity"));
+    annotationNames.put(EntityIndex.Kind.MAPPED_SUPERCLASS, elementUtils.getName("javax.persistence.MappedSuperclass"));
+    annotationNames.put(EntityIndex.Kind.EMBEDDABLE, elementUtils.getName("javax.persistence.Embeddable"));
+  }
+
+  /**
+   * @param type a managed class
+   * @param kind what kind of managed class it is
+   */
+  void add(TypeElement type, EntityIndex.Kind kind) {
+    classes.put(elementUtils.getBinaryName(type).toString(), kind);
+  }
+
+  /**
+   * Write the index to {@value EntityIndex#RESOURCE_NAME} in the class output directory, merged with whatever is
+   * there already.
+   * @param filer the filer to read and write the index with
+   * @throws IOException if the index cannot be written
+   */
+  void write(Filer filer) throws IOException {
+    EntityIndex index = new EntityIndex();
+    List<Element> originatingElements = new ArrayList<Element>();
+    EntityIndex previous = readPrevious(filer);
+    for (String unit : previous.getPersistenceUnitNames()) {
+      for (EntityIndex.Kind kind : EntityIndex.Kind.values()) {
+        for (String className : previous.getClassNames(unit, kind)) {
+          if (!classes.containsKey(className)) {
+            TypeElement type = lookUp(className);
+            if (type != null && isAnnotated(type, kind)) {
+              index.add(unit, kind, className);
+              originatingElements.add(type);
+            }
+          }
+        }
+      }
+    }
+    for (Map.Entry<String, EntityIndex.Kind> entry : classes.entrySet()) {
+      index.add(persistenceUnitName, entry.getValue(), entry.getKey());
+      TypeElement type = lookUp(entry.getKey());
+      if (type != null) {
+        originatingElements.add(type);
+      }
+    }
+
+    FileObject resource = filer.createResource(StandardLocation.CLASS_OUTPUT, "", EntityIndex.RESOURCE_NAME,
+      originatingElements.toArray(new Element[originatingElements.size()]));
+    Writer writer = resource.openWriter();
+    try {
+      index.write(writer);
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  private EntityIndex readPrevious(Filer filer) {
+    EntityIndex previous = new EntityIndex();
+    try {
+      FileObject resource = filer.getResource(StandardLocation.CLASS_OUTPUT, "", EntityIndex.RESOURCE_NAME);
+      Reader reader = resource.openReader(true);
+      try {
+        previous.read(reader, resource.toUri().toString());
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (IOException e) {
+      // there is no previous index (this is a clean build), or it is unreadable; either way, start afresh
+      return new EntityIndex();
+    }
+    return previous;
+  }
+
+  /**
+   * @param className the binary name of a class
+   * @return the class, or {@code null} if it does not exist
+   */
+  private TypeElement lookUp(String className) {
+    return elementUtils.getTypeElement(className.replace('$', '.'));
+  }
+
+  /**
+   * @return whether {@code type} is still annotated as the kind of managed class it was listed as; each class of the
+   *   previous index is only asked about once, so its annotations are scanned rather than tabled
+   */
+  private boolean isAnnotated(TypeElement type, EntityIndex.Kind kind) {
+    return annotationTable.scan(type, annotationNames.get(kind)) != null;
+  }
+}
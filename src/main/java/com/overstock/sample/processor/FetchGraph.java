@@ -0,0 +1,254 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.persistence.ElementCollection;
+import javax.persistence.Embedded;
+import javax.persistence.FetchType;
+import javax.persistence.ManyToMany;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+
+/**
+ * The eager fetch graph of the entity model: for each entity or embeddable, the associations which are loaded along
+ * with it. Loading an entity joins in every collection reachable from it through eager associations, and the rows
+ * of each collection multiply those of the others, so a root entity which eagerly reaches several collections loads
+ * the Cartesian product of their sizes. Nesting one eager collection inside another multiplies the rows again at
+ * each level.
+ *
+ * Associations are eager if their {@code fetch} attribute says so, or, without one, by the JPA defaults:
+ * &#64;{@link ManyToOne} and &#64;{@link OneToOne} are eager, while &#64;{@link OneToMany}, &#64;{@link ManyToMany}
+ * and &#64;{@link ElementCollection} are lazy. &#64;{@link Embedded} properties are always loaded with their owner.
+ * The {@code fetch} attribute is read from the annotation mirror, so that nothing needs to be loaded reflectively.
+ *
+ * Each type's associations are found once per round, however many roots reach it. The graph holds on to elements,
+ * so it should only be used for a single round of processing.
+ */
+class FetchGraph {
+  static final String MAX_COLLECTIONS_OPTION = "jpa.fetch.maxCollections";
+  static final String MAX_DEPTH_OPTION = "jpa.fetch.maxDepth";
+  static final String DIAGNOSTIC_OPTION = "jpa.fetch.diagnostic";
+  static final int DEFAULT_MAX_COLLECTIONS = 1;
+  static final int DEFAULT_MAX_DEPTH = 1;
+
+  /** the most associations to follow from one root, so that a densely connected model cannot stall the build */
+  static final int MAX_STEPS = 10000;
+
+  private final AnnotationTable annotations;
+  private final CollectionTypes collectionTypes;
+  private final RelationshipIndex relationshipIndex;
+  private final Metrics metrics;
+  private final Name entityName, embeddableName, embeddedName, elementCollectionName;
+  private final Map<Name, FetchType> defaultFetchTypes = new HashMap<Name, FetchType>();
+  private final Map<TypeElement, List<Association>> associations = new HashMap<TypeElement, List<Association>>();
+
+  FetchGraph(
+    Elements elementUtils, AnnotationTable annotations, CollectionTypes collectionTypes,
+    RelationshipIndex relationshipIndex, Metrics metrics) {
+    this.annotations = annotations;
+    this.collectionTypes = collectionTypes;
+    this.relationshipIndex = relationshipIndex;
+    this.metrics = metrics;
+    entityName = elementUtils.getName("javax.persistence.Entity");
+    embeddableName = elementUtils.getName("javax.persistence.Embeddable");
+    embeddedName = elementUtils.getName("javax.persistence.Embedded");
+    elementCollectionName = elementUtils.getName("javax.persistence.ElementCollection");
+    defaultFetchTypes.put(elementUtils.getName("javax.persistence.ManyToOne"), FetchType.EAGER);
+    defaultFetchTypes.put(elementUtils.getName("javax.persistence.OneToOne"), FetchType.EAGER);
+    defaultFetchTypes.put(elementUtils.getName("javax.persistence.OneToMany"), FetchType.LAZY);
+    defaultFetchTypes.put(elementUtils.getName("javax.persistence.ManyToMany"), FetchType.LAZY);
+    defaultFetchTypes.put(elementCollectionName, FetchType.LAZY);
+  }
+
+  /**
+   * Find the collections which are loaded along with a root entity. Cycles are not followed round a second time.
+   * @param root an entity
+   * @return the eagerly fetched collections reachable from {@code root}
+   */
+  Analysis analyze(TypeElement root) {
+    Analysis analysis = new Analysis();
+    Set<TypeElement> onPath = new HashSet<TypeElement>();
+    onPath.add(root);
+    walk(root, null, 0, onPath, analysis);
+    return analysis;
+  }
+
+  /**
+   * Forget all types; called at the start of each round.
+   */
+  void clear() {
+    associations.clear();
+  }
+
+  private void walk(TypeElement type, Step path, int depth, Set<TypeElement> onPath, Analysis analysis) {
+    for (Association association : associationsOf(type)) {
+      if (analysis.steps++ >= MAX_STEPS) {
+        analysis.truncated = true;
+        return;
+      }
+      Step step = new Step(path, type, association.propertyName);
+      int stepDepth = association.collection ? depth + 1 : depth;
+      if (association.collection) {
+        analysis.collections.add(step.toString());
+        if (stepDepth > analysis.depth) {
+          analysis.depth = stepDepth;
+          analysis.deepestPath = step.toString();
+        }
+      }
+      if (association.target != null && onPath.add(association.target)) {
+        walk(association.target, step, stepDepth, onPath, analysis);
+        onPath.remove(association.target);
+      }
+    }
+  }
+
+  /**
+   * @return the eager associations of {@code type} and of the superclasses whose mappings it inherits
+   */
+  private List<Association> associationsOf(TypeElement type) {
+    List<Association> found = associations.get(type);
+    if (found == null) {
+      found = new ArrayList<Association>();
+      for (TypeElement declaring : relationshipIndex.hierarchyOf(type)) {
+        for (Element member : declaring.getEnclosedElements()) {
+          if (member.getKind() == ElementKind.FIELD || member.getKind() == ElementKind.METHOD) {
+            metrics.count(Metrics.Counter.ELEMENTS_VISITED);
+            Association association = eagerAssociation(member);
+            if (association != null) {
+              found.add(association);
+            }
+          }
+        }
+      }
+      if (found.isEmpty()) {
+        found = Collections.emptyList();
+      }
+      associations.put(type, found);
+    }
+    return found;
+  }
+
+  /**
+   * @return the association mapped by {@code member}, or {@code null} if it is not an eager association
+   */
+  private Association eagerAssociation(Element member) {
+    TypeMirror propertyType = JpaProcessor.getPropertyType(member);
+    if (propertyType == null || propertyType.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    if (annotations.isAnnotated(member, embeddedName)) {
+      return new Association(JpaProcessor.getPropertyName(member), false, mappedType(propertyType));
+    }
+    for (Map.Entry<Name, FetchType> defaultFetchType : defaultFetchTypes.entrySet()) {
+      AnnotationMirror annotation = annotations.get(member, defaultFetchType.getKey());
+      if (annotation != null) {
+        TypeMirror target = null;
+        FetchType fetchType = defaultFetchType.getValue();
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value :
+            annotation.getElementValues().entrySet()) {
+          String attribute = value.getKey().getSimpleName().toString();
+          if (attribute.equals("fetch")) {
+            fetchType = FetchType.valueOf(((VariableElement) value.getValue().getValue()).getSimpleName().toString());
+          }
+          else if (attribute.equals("targetEntity") || attribute.equals("targetClass")) {
+            target = (TypeMirror) value.getValue().getValue();
+          }
+        }
+        if (fetchType != FetchType.EAGER) {
+          return null;
+        }
+        boolean collection = defaultFetchType.getValue() == FetchType.LAZY;
+        if (target == null) {
+          target = collection ? collectionTypes.elementType(propertyType) : propertyType;
+        }
+        return new Association(JpaProcessor.getPropertyName(member), collection, mappedType(target));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the entity or embeddable {@code type} refers to, or {@code null} if it is neither, or does not exist yet
+   */
+  private TypeElement mappedType(TypeMirror type) {
+    if (type == null || type.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    Element element = ((DeclaredType) type).asElement();
+    if (annotations.isAnnotated(element, entityName) || annotations.isAnnotated(element, embeddableName)) {
+      return (TypeElement) element;
+    }
+    return null;
+  }
+
+  /**
+   * What loading one root entity fetches eagerly.
+   */
+  static class Analysis {
+    /** the path to each eagerly fetched collection, such as {@code Order.lines -> Line.taxes} */
+    final List<String> collections = new ArrayList<String>();
+    /** the most collections nested inside one another on a single path */
+    int depth;
+    /** the path on which they are nested, or {@code null} if there are no eager collections */
+    String deepestPath;
+    int steps;
+    /** whether the walk stopped after {@link #MAX_STEPS}, so that there may be collections it did not reach */
+    boolean truncated;
+  }
+
+  /**
+   * An eager association of a type, which is a collection if its rows multiply those of its owner.
+   */
+  private static class Association {
+    Association(String propertyName, boolean collection, TypeElement target) {
+      this.propertyName = propertyName;
+      this.collection = collection;
+      this.target = target;
+    }
+
+    final String propertyName;
+    final boolean collection;
+    /** the entity or embeddable associated with, if its associations should be followed */
+    final TypeElement target;
+  }
+
+  /**
+   * One association on a path from a root entity, linked to the steps before it.
+   */
+  private static class Step {
+    Step(Step previous, TypeElement owner, String propertyName) {
+      this.previous = previous;
+      this.owner = owner;
+      this.propertyName = propertyName;
+    }
+
+    final Step previous;
+    final TypeElement owner;
+    final String propertyName;
+
+    @Override
+    public String toString() {
+      String step = owner.getSimpleName() + "." + propertyName;
+      return previous == null ? step : previous + " -> " + step;
+    }
+  }
+}
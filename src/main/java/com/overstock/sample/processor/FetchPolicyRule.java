@@ -0,0 +1,141 @@
+package com.overstock.sample.processor;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.persistence.FetchType;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToOne;
+import javax.tools.Diagnostic.Kind;
+
+/**
+ * Enforces a policy on how associations are fetched. JPA makes &#64;{@link ManyToOne} and &#64;{@link OneToOne}
+ * eager unless told otherwise, so loading an entity quietly loads each of them too, often with a query of its own.
+ * This rule requires to-one associations to say {@code fetch=FetchType.LAZY}, and collections not to say
+ * {@code fetch=FetchType.EAGER}; either check can be turned off with its option.
+ *
+ * An association is exempt if it, or the class declaring it, is annotated with &#64;{@link AllowEagerFetch}, or
+ * with the annotation named by the {@code jpa.fetchPolicy.allow} option. As with {@code mappedBy} in
+ * {@link BidirectionalMappingRule}, the {@code fetch} attribute is read from the annotation mirror.
+ */
+class FetchPolicyRule extends AbstractValidationRule {
+  static final String NAME = "fetchPolicy";
+  static final String DIAGNOSTIC_OPTION = "jpa.fetchPolicy.diagnostic";
+  static final String TO_ONE_OPTION = "jpa.fetchPolicy.toOne";
+  static final String COLLECTIONS_OPTION = "jpa.fetchPolicy.collections";
+  static final String ALLOW_OPTION = "jpa.fetchPolicy.allow";
+
+  private static final String[] TO_ONE_ANNOTATIONS = {
+    "javax.persistence.ManyToOne", "javax.persistence.OneToOne" };
+  private static final String[] COLLECTION_ANNOTATIONS = {
+    "javax.persistence.OneToMany", "javax.persistence.ManyToMany", "javax.persistence.ElementCollection" };
+
+  private final AnnotationTable annotationTable;
+  private final Kind diagnostic;
+  private final Metrics metrics;
+  /** the {@code fetch} attribute of each association annotation checked, by the annotation's name */
+  private final Map<Name, ExecutableElement> fetchAttributes = new HashMap<Name, ExecutableElement>();
+  private final Map<Name, Boolean> toOne = new HashMap<Name, Boolean>();
+  private Name allowName;
+  private String allowSimpleName;
+
+  /**
+   * @param annotationTable the annotation table of the round
+   * @param diagnostic the kind of diagnostic to report associations against the policy with
+   * @param metrics where to count the properties checked
+   */
+  FetchPolicyRule(AnnotationTable annotationTable, Kind diagnostic, Metrics metrics) {
+    super(
+      NAME, EnumSet.of(ElementKind.FIELD, ElementKind.METHOD), "javax.persistence.ManyToOne",
+      "javax.persistence.OneToOne", "javax.persistence.OneToMany", "javax.persistence.ManyToMany",
+      "javax.persistence.ElementCollection");
+    this.annotationTable = annotationTable;
+    this.diagnostic = diagnostic;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    Map<String, String> options = processingEnv.getOptions();
+    if (!"false".equals(options.get(TO_ONE_OPTION))) {
+      addFetchAttributes(TO_ONE_ANNOTATIONS, true);
+    }
+    if (!"false".equals(options.get(COLLECTIONS_OPTION))) {
+      addFetchAttributes(COLLECTION_ANNOTATIONS, false);
+    }
+    String allow = options.get(ALLOW_OPTION);
+    if (allow == null) {
+      allow = AllowEagerFetch.class.getName();
+    }
+    allowName = processingEnv.getElementUtils().getName(allow.trim());
+    allowSimpleName = allow.substring(allow.lastIndexOf('.') + 1).trim();
+  }
+
+  private void addFetchAttributes(String[] annotationTypes, boolean isToOne) {
+    Elements elementUtils = processingEnv.getElementUtils();
+    for (String annotationType : annotationTypes) {
+      TypeElement annotation = elementUtils.getTypeElement(annotationType);
+      for (ExecutableElement attribute : ElementFilter.methodsIn(annotation.getEnclosedElements())) {
+        if (attribute.getSimpleName().contentEquals("fetch")) {
+          fetchAttributes.put(annotation.getQualifiedName(), attribute);
+          toOne.put(annotation.getQualifiedName(), isToOne);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void check(Element element) {
+    metrics.count(Metrics.Counter.ELEMENTS_VISITED);
+    if (annotationTable.isAnnotated(element, allowName)
+        || annotationTable.isAnnotated(element.getEnclosingElement(), allowName)) {
+      return;
+    }
+    for (Map.Entry<Name, ExecutableElement> fetchAttribute : fetchAttributes.entrySet()) {
+      AnnotationMirror annotation = annotationTable.get(element, fetchAttribute.getKey());
+      if (annotation == null) {
+        continue;
+      }
+      String annotationName = annotation.getAnnotationType().asElement().getSimpleName().toString();
+      AnnotationValue fetch = annotation.getElementValues().get(fetchAttribute.getValue());
+      FetchType fetchType =
+        fetch == null ? null : FetchType.valueOf(((VariableElement) fetch.getValue()).getSimpleName().toString());
+      if (toOne.get(fetchAttribute.getKey())) {
+        if (fetchType == null) {
+          report(
+            element, annotation, fetch,
+            "@" + annotationName + " is fetched eagerly unless it says fetch=FetchType.LAZY");
+        }
+        else if (fetchType == FetchType.EAGER) {
+          report(element, annotation, fetch, "@" + annotationName + " should be fetched lazily");
+        }
+      }
+      else if (fetchType == FetchType.EAGER) {
+        report(element, annotation, fetch, "@" + annotationName + " should not be fetched eagerly");
+      }
+    }
+  }
+
+  private void report(Element element, AnnotationMirror annotation, AnnotationValue fetch, String message) {
+    String fullMessage = message + "; to allow it, annotate it, or its class, with @" + allowSimpleName;
+    if (fetch == null) {
+      processingEnv.getMessager().printMessage(diagnostic, fullMessage, element, annotation);
+    }
+    else {
+      processingEnv.getMessager().printMessage(diagnostic, fullMessage, element, annotation, fetch);
+    }
+  }
+}
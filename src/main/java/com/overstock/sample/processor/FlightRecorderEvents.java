@@ -0,0 +1,125 @@
+package com.overstock.sample.processor;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Emits JDK Flight Recorder events for processing rounds and rules, so that a recording of a javac process shows how
+ * much of the compile time was spent in this processor. The events are named
+ * {@code com.overstock.sample.processor.Round} (with a {@code round} number) and
+ * {@code com.overstock.sample.processor.Rule} (with the {@code rule} name and {@code round} number).
+ *
+ * The processor is built for, and may run on, JVMs without Flight Recorder, so the {@code jdk.jfr} API is only ever
+ * used reflectively, through {@code jdk.jfr.EventFactory}. On a JVM without it, {@link #create()} returns an instance
+ * which does nothing.
+ */
+class FlightRecorderEvents {
+  static final int ROUND = 0;
+  static final int RULE = 1;
+
+  private static final String[] CATEGORY = { "Java Compiler", "JPA Processor" };
+
+  /**
+   * @return events backed by Flight Recorder if it is available, or which do nothing otherwise
+   */
+  static FlightRecorderEvents create() {
+    try {
+      return new Available();
+    }
+    catch (Exception e) {
+      return new FlightRecorderEvents();
+    }
+    catch (LinkageError e) {
+      return new FlightRecorderEvents();
+    }
+  }
+
+  /**
+   * Begin an event.
+   * @param type {@link #ROUND} or {@link #RULE}
+   * @param rule the rule name, for {@link #RULE} events
+   * @param round the round number
+   * @return the event, to be passed to {@link #commit(Object)}
+   */
+  Object begin(int type, String rule, int round) {
+    return null;
+  }
+
+  /**
+   * End and commit an event.
+   * @param event the event returned by {@link #begin(int, String, int)}
+   */
+  void commit(Object event) {}
+
+  private static class Available extends FlightRecorderEvents {
+    private final Object[] factories = new Object[2];
+    private final Method newEvent;
+    private final Method begin;
+    private final Method set;
+    private final Method commit;
+
+    Available() throws Exception {
+      Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+      Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+      Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+      Class<?> event = Class.forName("jdk.jfr.Event");
+      Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+      Constructor<?> newField = valueDescriptor.getConstructor(Class.class, String.class);
+      Method createFactory = eventFactory.getMethod("create", List.class, List.class);
+      Class<?> name = Class.forName("jdk.jfr.Name");
+      Class<?> label = Class.forName("jdk.jfr.Label");
+      Class<?> category = Class.forName("jdk.jfr.Category");
+
+      factories[ROUND] = createFactory.invoke(null,
+        Arrays.asList(
+          newAnnotation.newInstance(name, "com.overstock.sample.processor.Round"),
+          newAnnotation.newInstance(label, "JPA Processor Round"),
+          newAnnotation.newInstance(category, CATEGORY)),
+        Arrays.asList(newField.newInstance(int.class, "round")));
+      factories[RULE] = createFactory.invoke(null,
+        Arrays.asList(
+          newAnnotation.newInstance(name, "com.overstock.sample.processor.Rule"),
+          newAnnotation.newInstance(label, "JPA Processor Rule"),
+          newAnnotation.newInstance(category, CATEGORY)),
+        Arrays.asList(newField.newInstance(String.class, "rule"), newField.newInstance(int.class, "round")));
+
+      newEvent = eventFactory.getMethod("newEvent");
+      begin = event.getMethod("begin");
+      set = event.getMethod("set", int.class, Object.class);
+      commit = event.getMethod("commit");
+    }
+
+    @Override
+    Object begin(int type, String rule, int round) {
+      try {
+        Object event = newEvent.invoke(factories[type]);
+        if (type == RULE) {
+          set.invoke(event, 0, rule);
+          set.invoke(event, 1, round);
+        }
+        else {
+          set.invoke(event, 0, round);
+        }
+        begin.invoke(event);
+        return event;
+      }
+      catch (Exception e) {
+        return null; // metrics are best effort; never fail the build over them
+      }
+    }
+
+    @Override
+    void commit(Object event) {
+      if (event != null) {
+        try {
+          commit.invoke(event);
+        }
+        catch (Exception e) {
+          // as above
+        }
+      }
+    }
+  }
+}
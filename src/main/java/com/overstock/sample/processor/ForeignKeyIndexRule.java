@@ -0,0 +1,430 @@
+package com.overstock.sample.processor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.persistence.Entity;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Verifies that the join columns of each &#64;{@link ManyToOne} property of an &#64;{@link Entity}, including those it
+ * inherits from mapped superclasses, are covered by an index. Queries join and filter on these foreign keys, and
+ * without an index each such query scans the whole table.
+ *
+ * The join columns are those named by &#64;{@link JoinColumn} or &#64;JoinColumns, or else the default: the property
+ * name, an underscore, and the primary key column of the target entity. The table is that named by &#64;{@link Table},
+ * or the entity name, or, for a subclass in a single table hierarchy, that of the root entity. Associations mapped
+ * with a join table, or which are part of the primary key, are not checked.
+ *
+ * An index may be declared with:
+ * <ul>
+ *   <li>the {@code indexes} or {@code uniqueConstraints} of &#64;{@link Table}; the former is only in JPA 2.1, so is
+ *   read from the annotation mirror, by name</li>
+ *   <li>Hibernate's &#64;{@code org.hibernate.annotations.Table(indexes=...)}, or &#64;{@code
+ *   org.hibernate.annotations.Index} on the property itself</li>
+ *   <li>an {@link IndexCatalog} manifest, given by the {@code jpa.foreignKeys.indexes} option, for indexes created by
+ *   schema migrations rather than declared on the entities</li>
+ * </ul>
+ *
+ * Once processing is over, a {@code CREATE INDEX} statement for each join column without an index is written to the
+ * {@value #RESOURCE_NAME} resource in the class output, each followed by a comment naming the entity it is for. The
+ * resource is written through the {@link Filer}, with those entities as its originating elements, so that build tools
+ * track it. With the {@code jpa.foreignKeys.ddl} option, the statements are copied to that file as well; build tools
+ * know nothing of the copy, so an incremental build may leave it out of date.
+ */
+class ForeignKeyIndexRule extends AbstractValidationRule {
+  static final String NAME = "foreignKeyIndex";
+  static final String DIAGNOSTIC_OPTION = "jpa.foreignKeys.diagnostic";
+  static final String INDEXES_OPTION = "jpa.foreignKeys.indexes";
+  static final String DDL_OPTION = "jpa.foreignKeys.ddl";
+
+  /** the resource the suggested statements are written to, in the class output */
+  static final String RESOURCE_NAME = "META-INF/jpa-missing-indexes.sql";
+
+  private final AnnotationTable annotationTable;
+  private final RelationshipIndex relationshipIndex;
+  private final Kind diagnostic;
+  private final Metrics metrics;
+  private final IndexCatalog manifestIndexes = new IndexCatalog();
+  /**
+   * the suggested statements, to the binary name of the entity each is for, sorted so that the same entities always
+   * produce the same file
+   */
+  private final Map<String, String> suggestions = new TreeMap<String, String>();
+  private File ddlFile; // null unless the jpa.foreignKeys.ddl option is given
+  private Name entityName, tableName, hibernateTableName, hibernateIndexName, inheritanceName, manyToOneName;
+  private Name joinColumnName, joinColumnsName, joinTableName, idName, embeddedIdName, mapsIdName, columnName;
+
+  /**
+   * @param annotationTable the annotation table of the round
+   * @param relationshipIndex the relationship index of the round
+   * @param diagnostic the kind of diagnostic to report join columns without an index with
+   * @param metrics where to count the properties checked
+   */
+  ForeignKeyIndexRule(
+    AnnotationTable annotationTable, RelationshipIndex relationshipIndex, Kind diagnostic, Metrics metrics) {
+    super(NAME, EnumSet.of(ElementKind.CLASS), "javax.persistence.Entity");
+    this.annotationTable = annotationTable;
+    this.relationshipIndex = relationshipIndex;
+    this.diagnostic = diagnostic;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    Elements elementUtils = processingEnv.getElementUtils();
+    entityName = elementUtils.getName("javax.persistence.Entity");
+    tableName = elementUtils.getName("javax.persistence.Table");
+    hibernateTableName = elementUtils.getName("org.hibernate.annotations.Table");
+    hibernateIndexName = elementUtils.getName("org.hibernate.annotations.Index");
+    inheritanceName = elementUtils.getName("javax.persistence.Inheritance");
+    manyToOneName = elementUtils.getName("javax.persistence.ManyToOne");
+    joinColumnName = elementUtils.getName("javax.persistence.JoinColumn");
+    joinColumnsName = elementUtils.getName("javax.persistence.JoinColumns");
+    joinTableName = elementUtils.getName("javax.persistence.JoinTable");
+    idName = elementUtils.getName("javax.persistence.Id");
+    embeddedIdName = elementUtils.getName("javax.persistence.EmbeddedId");
+    mapsIdName = elementUtils.getName("javax.persistence.MapsId");
+    columnName = elementUtils.getName("javax.persistence.Column");
+
+    String indexes = processingEnv.getOptions().get(INDEXES_OPTION);
+    if (indexes != null) {
+      try {
+        Reader reader = new InputStreamReader(new FileInputStream(indexes), "UTF-8");
+        try {
+          manifestIndexes.read(reader, indexes);
+        }
+        finally {
+          reader.close();
+        }
+      }
+      catch (IOException e) {
+        processingEnv.getMessager().printMessage(Kind.WARNING, "Unable to read index manifest: " + e.getMessage());
+      }
+    }
+    String ddl = processingEnv.getOptions().get(DDL_OPTION);
+    if (ddl != null) {
+      ddlFile = new File(ddl);
+    }
+  }
+
+  @Override
+  public void check(Element element) {
+    TypeElement entity = (TypeElement) element;
+    TypeElement tableOwner = tableOwner(entity);
+    String table = tableName(tableOwner);
+    IndexCatalog declaredIndexes = declaredIndexes(tableOwner, table);
+
+    List<TypeElement> hierarchy = relationshipIndex.hierarchyOf(entity);
+    for (int i = 0; i < hierarchy.size(); i++) {
+      TypeElement declaring = hierarchy.get(i);
+      if (i > 0 && annotationTable.isAnnotated(declaring, entityName)) {
+        break; // the rest are mapped to the superclass entity's table, and are checked with it
+      }
+      for (Element property : relationshipIndex.declaredManyToOnes(declaring)) {
+        metrics.count(Metrics.Counter.ELEMENTS_VISITED);
+        checkProperty(entity, property, table, declaredIndexes);
+      }
+    }
+  }
+
+  private void checkProperty(TypeElement entity, Element property, String table, IndexCatalog declaredIndexes) {
+    if (annotationTable.isAnnotated(property, joinTableName) || annotationTable.isAnnotated(property, idName)
+        || annotationTable.isAnnotated(property, mapsIdName)
+        || annotationTable.isAnnotated(property, hibernateIndexName)) {
+      return;
+    }
+    List<AnnotationMirror> joinColumns = new ArrayList<AnnotationMirror>();
+    AnnotationMirror joinColumnsAnnotation = annotationTable.get(property, joinColumnsName);
+    if (joinColumnsAnnotation != null) {
+      for (AnnotationValue joinColumn : values(joinColumnsAnnotation, "value")) {
+        joinColumns.add((AnnotationMirror) joinColumn.getValue());
+      }
+    }
+    else {
+      joinColumns.add(annotationTable.get(property, joinColumnName)); // null if there is none
+    }
+
+    List<String> columns = new ArrayList<String>();
+    String columnTable = table;
+    for (AnnotationMirror joinColumn : joinColumns) {
+      String column = stringValue(joinColumn, "name");
+      if (column == null) {
+        String referenced = stringValue(joinColumn, "referencedColumnName");
+        if (referenced == null) {
+          referenced = primaryKeyColumn(property);
+        }
+        if (referenced == null) {
+          return; // a composite or unknown primary key, whose columns cannot be worked out
+        }
+        column = JpaProcessor.getPropertyName(property) + "_" + referenced;
+      }
+      columns.add(column);
+      String secondaryTable = stringValue(joinColumn, "table");
+      if (secondaryTable != null) {
+        columnTable = secondaryTable;
+      }
+    }
+
+    if (manifestIndexes.covers(columnTable, columns) || columnTable.equals(table)
+        && declaredIndexes.covers(columnTable, columns)) {
+      return;
+    }
+    String columnList = join(columns);
+    String message = "no index covers join column" + (columns.size() == 1 ? " " : "s ") + columnList + " of table "
+      + columnTable + ", for " + property.getEnclosingElement().getSimpleName() + "."
+      + JpaProcessor.getPropertyName(property);
+    if (property.getEnclosingElement().equals(entity)) {
+      processingEnv.getMessager().printMessage(
+        diagnostic, message, property, annotationTable.get(property, manyToOneName));
+    }
+    else {
+      processingEnv.getMessager().printMessage(
+        diagnostic, message, entity, annotationTable.get(entity, entityName));
+    }
+    suggestions.put(
+      "CREATE INDEX " + ("idx_" + columnTable + "_" + columnList.replace(", ", "_")).replaceAll("\\W", "_") + " ON "
+        + columnTable + " (" + columnList + ");",
+      processingEnv.getElementUtils().getBinaryName(entity).toString());
+  }
+
+  @Override
+  public void endRound(RoundEnvironment roundEnv) {
+    if (roundEnv.processingOver()) {
+      try {
+        writeSuggestions();
+      }
+      catch (IOException e) {
+        processingEnv.getMessager().printMessage(Kind.WARNING, "Unable to write index suggestions: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Write the suggestions through the {@link Filer}, with the entities they are for as originating elements, and copy
+   * them to the {@code jpa.foreignKeys.ddl} file, if one is given.
+   */
+  private void writeSuggestions() throws IOException {
+    StringBuilder content = new StringBuilder();
+    content.append("-- Generated by ").append(JpaProcessor.class.getName())
+      .append(": indexes for join columns which have none\n");
+    Set<Element> originatingElements = new LinkedHashSet<Element>();
+    for (Map.Entry<String, String> suggestion : suggestions.entrySet()) {
+      content.append(suggestion.getKey()).append(" -- ").append(suggestion.getValue()).append('\n');
+      TypeElement entity = processingEnv.getElementUtils().getTypeElement(suggestion.getValue().replace('$', '.'));
+      if (entity != null) {
+        originatingElements.add(entity);
+      }
+    }
+
+    FileObject resource = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", RESOURCE_NAME,
+      originatingElements.toArray(new Element[originatingElements.size()]));
+    write(content, resource.openOutputStream());
+    if (ddlFile != null) {
+      File directory = ddlFile.getAbsoluteFile().getParentFile();
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Unable to create directory " + directory);
+      }
+      write(content, new FileOutputStream(ddlFile));
+    }
+  }
+
+  private static void write(CharSequence content, OutputStream out) throws IOException {
+    Writer writer = new OutputStreamWriter(out, "UTF-8");
+    try {
+      writer.append(content);
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * @return the entity whose table {@code entity} is mapped to: its root entity, if the hierarchy is mapped to a
+   *   single table, as it is by default, or else {@code entity} itself
+   */
+  private TypeElement tableOwner(TypeElement entity) {
+    TypeElement root = entity;
+    for (TypeElement superclass = superEntity(entity); superclass != null; superclass = superEntity(superclass)) {
+      root = superclass;
+    }
+    if (root == entity) {
+      return entity;
+    }
+    AnnotationMirror inheritance = annotationTable.get(root, inheritanceName);
+    Object strategy = inheritance == null ? null : value(inheritance, "strategy");
+    return strategy == null || strategy.toString().equals("SINGLE_TABLE") ? root : entity;
+  }
+
+  private TypeElement superEntity(TypeElement type) {
+    TypeMirror superclass = type.getSuperclass();
+    if (superclass.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    TypeElement superElement = (TypeElement) ((DeclaredType) superclass).asElement();
+    return annotationTable.isAnnotated(superElement, entityName) ? superElement : null;
+  }
+
+  private String tableName(TypeElement entity) {
+    String name = stringValue(annotationTable.get(entity, tableName), "name");
+    if (name == null) {
+      name = stringValue(annotationTable.get(entity, entityName), "name");
+    }
+    return name != null ? name : entity.getSimpleName().toString();
+  }
+
+  /**
+   * @return the indexes declared on the annotations of the entity owning a table
+   */
+  private IndexCatalog declaredIndexes(TypeElement tableOwner, String table) {
+    IndexCatalog declared = new IndexCatalog();
+    AnnotationMirror tableAnnotation = annotationTable.get(tableOwner, tableName);
+    if (tableAnnotation != null) {
+      for (AnnotationValue index : values(tableAnnotation, "indexes")) {
+        List<String> columns = new ArrayList<String>();
+        String columnList = stringValue((AnnotationMirror) index.getValue(), "columnList");
+        for (String column : columnList == null ? new String[0] : columnList.split(",")) {
+          columns.add(column.trim().split("\\s+")[0]); // drop ASC or DESC
+        }
+        declared.add(table, columns);
+      }
+      for (AnnotationValue constraint : values(tableAnnotation, "uniqueConstraints")) {
+        declared.add(table, strings(values((AnnotationMirror) constraint.getValue(), "columnNames")));
+      }
+    }
+    AnnotationMirror hibernateTable = annotationTable.get(tableOwner, hibernateTableName);
+    if (hibernateTable != null) {
+      for (AnnotationValue index : values(hibernateTable, "indexes")) {
+        declared.add(table, strings(values((AnnotationMirror) index.getValue(), "columnNames")));
+      }
+    }
+    return declared;
+  }
+
+  /**
+   * @return the column of the single &#64;Id property of the entity a &#64;{@link ManyToOne} property refers to, which
+   *   may be inherited from an entity or mapped superclass, or {@code null} if it has a composite key, or none can be
+   *   found
+   */
+  private String primaryKeyColumn(Element property) {
+    TypeMirror target = (TypeMirror) value(annotationTable.get(property, manyToOneName), "targetEntity");
+    if (target == null) {
+      target = JpaProcessor.getPropertyType(property);
+    }
+    if (target.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    String column = null;
+    for (TypeElement type : relationshipIndex.hierarchyOf((TypeElement) ((DeclaredType) target).asElement())) {
+      for (Element member : type.getEnclosedElements()) {
+        if (annotationTable.isAnnotated(member, embeddedIdName)
+            || annotationTable.isAnnotated(member, idName) && column != null) {
+          return null;
+        }
+        if (annotationTable.isAnnotated(member, idName)) {
+          column = stringValue(annotationTable.get(member, columnName), "name");
+          if (column == null) {
+            column = JpaProcessor.getPropertyName(member);
+          }
+        }
+      }
+    }
+    return column;
+  }
+
+  /**
+   * @return the value given explicitly for an attribute of an annotation, or {@code null} if there is none
+   */
+  private static Object value(AnnotationMirror annotation, String attribute) {
+    if (annotation != null) {
+      for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value :
+          annotation.getElementValues().entrySet()) {
+        if (value.getKey().getSimpleName().contentEquals(attribute)) {
+          return value.getValue().getValue();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the value of a string attribute, or {@code null} if it is not given, or is empty
+   */
+  private static String stringValue(AnnotationMirror annotation, String attribute) {
+    Object value = value(annotation, attribute);
+    return value == null || value.toString().length() == 0 ? null : value.toString();
+  }
+
+  /**
+   * @return the elements of an array attribute, or of a single value given for one
+   */
+  private static List<? extends AnnotationValue> values(AnnotationMirror annotation, String attribute) {
+    if (annotation != null) {
+      for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value :
+          annotation.getElementValues().entrySet()) {
+        if (value.getKey().getSimpleName().contentEquals(attribute)) {
+          Object values = value.getValue().getValue();
+          if (values instanceof List) {
+            @SuppressWarnings("unchecked")
+            List<? extends AnnotationValue> list = (List<? extends AnnotationValue>) values;
+            return list;
+          }
+          return Arrays.asList(value.getValue());
+        }
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  private static List<String> strings(List<? extends AnnotationValue> values) {
+    List<String> strings = new ArrayList<String>(values.size());
+    for (AnnotationValue value : values) {
+      strings.add(value.getValue().toString());
+    }
+    return strings;
+  }
+
+  private static String join(List<String> columns) {
+    StringBuilder joined = new StringBuilder();
+    for (String column : columns) {
+      joined.append(joined.length() == 0 ? "" : ", ").append(column);
+    }
+    return joined.toString();
+  }
+}
@@ -0,0 +1,109 @@
+package com.overstock.sample.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The indexes known to exist, as the columns of each, by table. Table and column names are compared case
+ * insensitively, as databases compare unquoted identifiers, and without any schema. An index covers some columns if
+ * they are its leading columns, in any order, since only then can the database seek on them.
+ *
+ * Indexes may be read from a manifest, a text file with one index per line, either as {@code table(column, ...)}, or
+ * as a {@code CREATE [UNIQUE] INDEX name ON table (column, ...)} statement, so that the statements suggested by
+ * {@link ForeignKeyIndexRule} can be listed once they are applied. Blank lines and lines starting with {@code #} or
+ * {@code --} are ignored.
+ */
+class IndexCatalog {
+  private static final Pattern INDEX_LINE = Pattern.compile(
+    "(?i)\\s*(?:create\\s+(?:unique\\s+)?index\\s+\\S+\\s+on\\s+)?([\\w.$\"`]+)\\s*\\(([^)]*)\\)\\s*;?\\s*");
+
+  private final Map<String, List<List<String>>> indexes = new HashMap<String, List<List<String>>>();
+
+  /**
+   * @param table a table name
+   * @param columns the columns of an index on that table, in order
+   */
+  void add(String table, List<String> columns) {
+    String key = normalize(table);
+    List<List<String>> tableIndexes = indexes.get(key);
+    if (tableIndexes == null) {
+      tableIndexes = new ArrayList<List<String>>();
+      indexes.put(key, tableIndexes);
+    }
+    List<String> normalized = new ArrayList<String>(columns.size());
+    for (String column : columns) {
+      normalized.add(normalize(column));
+    }
+    tableIndexes.add(normalized);
+  }
+
+  /**
+   * @param table a table name
+   * @param columns some columns of that table
+   * @return whether an index on the table starts with those columns
+   */
+  boolean covers(String table, Collection<String> columns) {
+    List<List<String>> tableIndexes = indexes.get(normalize(table));
+    if (tableIndexes == null) {
+      return false;
+    }
+    Set<String> wanted = new HashSet<String>();
+    for (String column : columns) {
+      wanted.add(normalize(column));
+    }
+    for (List<String> index : tableIndexes) {
+      if (index.size() >= wanted.size() && new HashSet<String>(index.subList(0, wanted.size())).equals(wanted)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Add the indexes listed in a manifest.
+   * @param reader the manifest
+   * @param location where the manifest came from, for error messages
+   * @throws IOException if the manifest cannot be read, or is not in the expected format
+   */
+  void read(Reader reader, String location) throws IOException {
+    BufferedReader lines = new BufferedReader(reader);
+    int lineNumber = 0;
+    for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+      lineNumber++;
+      if (line.trim().length() == 0 || line.startsWith("#") || line.startsWith("--")) {
+        continue;
+      }
+      Matcher matcher = INDEX_LINE.matcher(line);
+      if (!matcher.matches()) {
+        throw new IOException("Malformed line " + lineNumber + " in " + location + ": " + line);
+      }
+      List<String> columns = new ArrayList<String>();
+      for (String column : matcher.group(2).split(",")) {
+        String[] words = column.trim().split("\\s+"); // drop ASC or DESC
+        if (words[0].length() > 0) {
+          columns.add(words[0]);
+        }
+      }
+      add(matcher.group(1), columns);
+    }
+  }
+
+  /**
+   * @return an identifier without its schema or quotes, in upper case
+   */
+  private static String normalize(String identifier) {
+    String name = identifier.substring(identifier.lastIndexOf('.') + 1);
+    return name.replace("\"", "").replace("`", "").toUpperCase(Locale.ENGLISH);
+  }
+}
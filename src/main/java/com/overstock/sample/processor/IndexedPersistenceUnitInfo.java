@@ -0,0 +1,207 @@
+package com.overstock.sample.processor;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.SharedCacheMode;
+import javax.persistence.ValidationMode;
+import javax.persistence.spi.ClassTransformer;
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceUnitInfo;
+import javax.persistence.spi.PersistenceUnitTransactionType;
+import javax.sql.DataSource;
+
+/**
+ * A {@link PersistenceUnitInfo} whose managed classes come from the {@link EntityIndex} written at compile time, so
+ * that the persistence provider has no need to scan the class path for them. Unlisted classes are excluded.
+ *
+ * For example:
+ * <pre>
+ * IndexedPersistenceUnitInfo info = IndexedPersistenceUnitInfo.load("orders", getClass().getClassLoader());
+ * info.setNonJtaDataSource(dataSource);
+ * info.getProperties().setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+ * EntityManagerFactory factory = info.createEntityManagerFactory(new HibernatePersistence(), null);
+ * </pre>
+ *
+ * Class transformers are not supported; any added by the provider are ignored.
+ */
+public class IndexedPersistenceUnitInfo implements PersistenceUnitInfo {
+  private final String persistenceUnitName;
+  private final List<String> managedClassNames;
+  private final ClassLoader classLoader;
+  private final Properties properties = new Properties();
+  private final List<String> mappingFileNames = new ArrayList<String>();
+  private String persistenceProviderClassName;
+  private PersistenceUnitTransactionType transactionType = PersistenceUnitTransactionType.RESOURCE_LOCAL;
+  private DataSource jtaDataSource;
+  private DataSource nonJtaDataSource;
+  private URL persistenceUnitRootUrl;
+  private SharedCacheMode sharedCacheMode = SharedCacheMode.UNSPECIFIED;
+  private ValidationMode validationMode = ValidationMode.AUTO;
+
+  /**
+   * @param persistenceUnitName the persistence unit name
+   * @param managedClassNames the binary names of the persistence unit's managed classes
+   * @param classLoader the class loader to load the managed classes with
+   */
+  public IndexedPersistenceUnitInfo(
+    String persistenceUnitName, List<String> managedClassNames, ClassLoader classLoader) {
+    this.persistenceUnitName = persistenceUnitName;
+    this.managedClassNames = Collections.unmodifiableList(new ArrayList<String>(managedClassNames));
+    this.classLoader = classLoader;
+  }
+
+  /**
+   * Describe a persistence unit using the indexes visible to a class loader.
+   * @param persistenceUnitName the persistence unit name
+   * @param classLoader the class loader to read the indexes and load the managed classes with
+   * @return the persistence unit
+   * @throws IOException if an index cannot be read
+   * @throws IllegalArgumentException if no index lists any classes for the persistence unit
+   */
+  public static IndexedPersistenceUnitInfo load(String persistenceUnitName, ClassLoader classLoader)
+  throws IOException {
+    List<String> classNames = EntityIndex.load(classLoader).getClassNames(persistenceUnitName);
+    if (classNames.isEmpty()) {
+      throw new IllegalArgumentException(
+        "No classes are indexed for persistence unit " + persistenceUnitName + " in " + EntityIndex.RESOURCE_NAME);
+    }
+    return new IndexedPersistenceUnitInfo(persistenceUnitName, classNames, classLoader);
+  }
+
+  /**
+   * Create an entity manager factory for this persistence unit, as a container would.
+   * @param provider the persistence provider
+   * @param map properties for the provider, which override {@link #getProperties()}; may be {@code null}
+   * @return the factory
+   */
+  public EntityManagerFactory createEntityManagerFactory(PersistenceProvider provider, Map<?, ?> map) {
+    return provider.createContainerEntityManagerFactory(this, map == null ? Collections.emptyMap() : map);
+  }
+
+  @Override
+  public String getPersistenceUnitName() {
+    return persistenceUnitName;
+  }
+
+  @Override
+  public String getPersistenceProviderClassName() {
+    return persistenceProviderClassName;
+  }
+
+  public void setPersistenceProviderClassName(String persistenceProviderClassName) {
+    this.persistenceProviderClassName = persistenceProviderClassName;
+  }
+
+  @Override
+  public PersistenceUnitTransactionType getTransactionType() {
+    return transactionType;
+  }
+
+  public void setTransactionType(PersistenceUnitTransactionType transactionType) {
+    this.transactionType = transactionType;
+  }
+
+  @Override
+  public DataSource getJtaDataSource() {
+    return jtaDataSource;
+  }
+
+  public void setJtaDataSource(DataSource jtaDataSource) {
+    this.jtaDataSource = jtaDataSource;
+  }
+
+  @Override
+  public DataSource getNonJtaDataSource() {
+    return nonJtaDataSource;
+  }
+
+  public void setNonJtaDataSource(DataSource nonJtaDataSource) {
+    this.nonJtaDataSource = nonJtaDataSource;
+  }
+
+  /**
+   * @return the mapping files of the persistence unit, which may be added to
+   */
+  @Override
+  public List<String> getMappingFileNames() {
+    return mappingFileNames;
+  }
+
+  @Override
+  public List<URL> getJarFileUrls() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public URL getPersistenceUnitRootUrl() {
+    return persistenceUnitRootUrl;
+  }
+
+  public void setPersistenceUnitRootUrl(URL persistenceUnitRootUrl) {
+    this.persistenceUnitRootUrl = persistenceUnitRootUrl;
+  }
+
+  @Override
+  public List<String> getManagedClassNames() {
+    return managedClassNames;
+  }
+
+  @Override
+  public boolean excludeUnlistedClasses() {
+    return true;
+  }
+
+  @Override
+  public SharedCacheMode getSharedCacheMode() {
+    return sharedCacheMode;
+  }
+
+  public void setSharedCacheMode(SharedCacheMode sharedCacheMode) {
+    this.sharedCacheMode = sharedCacheMode;
+  }
+
+  @Override
+  public ValidationMode getValidationMode() {
+    return validationMode;
+  }
+
+  public void setValidationMode(ValidationMode validationMode) {
+    this.validationMode = validationMode;
+  }
+
+  /**
+   * @return the properties of the persistence unit, which may be added to
+   */
+  @Override
+  public Properties getProperties() {
+    return properties;
+  }
+
+  @Override
+  public String getPersistenceXMLSchemaVersion() {
+    return "2.0";
+  }
+
+  @Override
+  public ClassLoader getClassLoader() {
+    return classLoader;
+  }
+
+  @Override
+  public void addTransformer(ClassTransformer transformer) {
+    // not supported; see the class comment
+  }
+
+  @Override
+  public ClassLoader getNewTempClassLoader() {
+    return new URLClassLoader(new URL[0], classLoader);
+  }
+}
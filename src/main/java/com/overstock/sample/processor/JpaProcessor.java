@@ -1,38 +1,44 @@
 package com.overstock.sample.processor;
 
 import java.beans.Introspector;
-import java.util.Collection;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.Set;
 
 import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Completion;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
 import javax.annotation.processing.SupportedSourceVersion;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.AnnotationMirror;
-import javax.lang.model.element.AnnotationValue;
 import javax.lang.model.element.Element;
-import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
-import javax.lang.model.type.DeclaredType;
-import javax.lang.model.type.MirroredTypeException;
 import javax.lang.model.type.TypeMirror;
-import javax.lang.model.util.ElementFilter;
 import javax.lang.model.util.Types;
+import javax.persistence.Embeddable;
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.MappedSuperclass;
 import javax.persistence.OneToMany;
 import javax.tools.Diagnostic.Kind;
 
 /**
  * An example annotation processor, used in the talk "Writing Annotation Processors to Aid Your Development Process".
  *
- * This processor does two things:
+ * This processor does the following:
  * <ul>
  *   <li>Verifies that &#64;{@link Entity}-annotated classes have a no-argument constructor.</li>
  *   <li>
@@ -44,20 +50,204 @@ import javax.tools.Diagnostic.Kind;
  *       </li>
  *     </ul>
  *   </li>
+ *   <li>
+ *     Verifies the JPQL of each &#64;{@link javax.persistence.NamedQuery} against the entity model; see
+ *     {@link NamedQueryRule}.
+ *   </li>
+ *   <li>
+ *     If asked to, warns when loading an entity eagerly fetches more collections at once, or nests them more deeply,
+ *     than the {@code jpa.fetch} options allow, since each such collection multiplies the rows loaded; see
+ *     {@link FetchGraph}.
+ *   </li>
+ *   <li>
+ *     If asked to, enforces a policy on how associations are fetched, so that to-one associations are not eager by
+ *     default; see {@link FetchPolicyRule}.
+ *   </li>
+ *   <li>
+ *     If asked to, warns about the join columns of &#64;{@link ManyToOne} properties which no index covers; see
+ *     {@link ForeignKeyIndexRule}.
+ *   </li>
+ *   <li>
+ *     If asked to, warns about &#64;{@link OneToMany} bags which are rewritten whole when they change, or fetched
+ *     eagerly alongside another bag; see {@link BagCollectionRule}.
+ *   </li>
+ *   <li>
+ *     If asked to, warns about the {@code equals}, {@code hashCode}, {@code toString} and {@code compareTo} methods
+ *     of entities which read lazily fetched properties; see {@link LazyAccessRule}.
+ *   </li>
  * </ul>
+ *
+ * Each of these checks is a {@link ValidationRule}, and further rules can be added to the processor path, to be
+ * found with {@link ServiceLoader}. The elements of each round are walked once, by a {@link RuleDispatcher}, which
+ * hands each annotated element to the rules interested in it.
+ *
+ * It can also list the &#64;{@link Entity}, &#64;{@link MappedSuperclass} and &#64;{@link Embeddable} classes it sees
+ * in an {@link EntityIndex}, so that they need not be found by scanning the class path at runtime, and generate a
+ * {@link PropertyAccessor} for each entity, so that its properties can be accessed without reflection, and the JPA
+ * static metamodel of each managed class, in place of a separate metamodel processor; see {@link MetamodelGenerator}.
+ * For each &#64;{@link ProjectionOf} interface, it generates an implementation, and the query which selects it; see
+ * {@link ProjectionGenerator}. In an IDE, it completes the {@code mappedBy} attribute of a &#64;{@link OneToMany}; see
+ * {@link MappedByCompletions}.
+ *
+ * Everything it generates is written through the {@link javax.annotation.processing.Filer}, with the elements it came
+ * from, so that Gradle, with which it is registered as an aggregating processor, can clean it up and regenerate it in
+ * an incremental build. The files given by the {@code jpa.cache}, {@code jpa.metrics}, {@code jpa.foreignKeys.indexes}
+ * and {@code jpa.foreignKeys.ddl} options are the exceptions: they are read and written directly, so Gradle neither
+ * cleans them up nor reprocesses anything when they change, and they fall outside its incremental build guarantees.
+ *
+ * The following options may be passed to javac as {@code -Aname=value}:
+ * <dl>
+ *   <dt>{@code jpa.cache}</dt>
+ *   <dd>a directory in which to keep verdicts between builds; see {@link VerdictCache}</dd>
+ *   <dt>{@code jpa.cache.maxEntries}</dt>
+ *   <dd>the most verdicts to keep in that directory (default 100000)</dd>
+ *   <dt>{@code jpa.metrics}</dt>
+ *   <dd>a file to write timings and counters to, as JSON; see {@link RecordingMetrics}</dd>
+ *   <dt>{@code jpa.rule.<name>}</dt>
+ *   <dd>
+ *     if {@code false}, do not run the rule with that name: {@code noArgumentConstructor},
+ *     {@code bidirectionalMapping}, {@code eagerFetch}, {@code namedQuery},
+ *     {@code foreignKeyIndex}, {@code fetchPolicy}, {@code bagCollection}, {@code lazyAccess}, or that of a rule
+ *     added to the processor path
+ *   </dd>
+ *   <dt>{@code jpa.rule.<name>.maxDiagnostics}</dt>
+ *   <dd>the most diagnostics to report from the rule with that name (default unlimited); see {@link DiagnosticLimits}</dd>
+ *   <dt>{@code jpa.maxDiagnostics}</dt>
+ *   <dd>the most diagnostics to report from all rules together (default unlimited)</dd>
+ *   <dt>{@code jpa.maxRepeats}</dt>
+ *   <dd>
+ *     the most times a rule may report the same message, after which the elements it applies to are only counted
+ *     (default unlimited)
+ *   </dd>
+ *   <dt>{@code jpa.include}</dt>
+ *   <dd>
+ *     comma separated globs of the types to validate, such as {@code com.acme.**}; without it, all types are; see
+ *     {@link ProcessingScope}
+ *   </dd>
+ *   <dt>{@code jpa.exclude}</dt>
+ *   <dd>comma separated globs of types not to validate, such as {@code com.acme.generated.**}</dd>
+ *   <dt>{@code jpa.fetch.maxCollections}</dt>
+ *   <dd>the most collections loading one entity may fetch eagerly (default 1)</dd>
+ *   <dt>{@code jpa.fetch.maxDepth}</dt>
+ *   <dd>the most eager collections which may be nested inside one another (default 1)</dd>
+ *   <dt>{@code jpa.fetch.diagnostic}</dt>
+ *   <dd>
+ *     how to report an entity which exceeds those limits: {@code warning}, {@code error}, or {@code none} (the
+ *     default) to not check at all
+ *   </dd>
+ *   <dt>{@code jpa.fetchPolicy.diagnostic}</dt>
+ *   <dd>
+ *     how to report an association against the fetch policy: {@code warning}, {@code error}, or {@code none} (the
+ *     default) to not check at all
+ *   </dd>
+ *   <dt>{@code jpa.fetchPolicy.toOne}</dt>
+ *   <dd>if {@code false}, do not require to-one associations to be lazy</dd>
+ *   <dt>{@code jpa.fetchPolicy.collections}</dt>
+ *   <dd>if {@code false}, allow eager collections</dd>
+ *   <dt>{@code jpa.fetchPolicy.allow}</dt>
+ *   <dd>
+ *     the qualified name of the annotation which exempts an association or class from the fetch policy (default
+ *     {@link AllowEagerFetch})
+ *   </dd>
+ *   <dt>{@code jpa.foreignKeys.diagnostic}</dt>
+ *   <dd>
+ *     how to report a &#64;{@link ManyToOne} join column which no index covers: {@code warning}, {@code error}, or
+ *     {@code none} (the default) to not check at all
+ *   </dd>
+ *   <dt>{@code jpa.foreignKeys.indexes}</dt>
+ *   <dd>a file listing indexes which exist, but are not declared on the entities; see {@link IndexCatalog}</dd>
+ *   <dt>{@code jpa.foreignKeys.ddl}</dt>
+ *   <dd>
+ *     a file to copy the {@code CREATE INDEX} statements for join columns which no index covers to; they are always
+ *     written to {@value ForeignKeyIndexRule#RESOURCE_NAME} in the class output
+ *   </dd>
+ *   <dt>{@code jpa.bags.diagnostic}</dt>
+ *   <dd>
+ *     how to report a costly &#64;{@link OneToMany} bag: {@code warning}, {@code error}, or {@code none} (the default)
+ *     to not check at all
+ *   </dd>
+ *   <dt>{@code jpa.lazyAccess.diagnostic}</dt>
+ *   <dd>
+ *     how to report an entity method which reads a lazy property: {@code warning}, {@code error}, or {@code none}
+ *     (the default) to not check at all
+ *   </dd>
+ *   <dt>{@code jpa.queryManifest}</dt>
+ *   <dd>if {@code true}, list the named queries which pass validation in a {@link QueryManifest}</dd>
+ *   <dt>{@code jpa.accessors}</dt>
+ *   <dd>
+ *     if {@code true}, generate a {@link PropertyAccessor} for each entity; see {@link AccessorGenerator}
+ *   </dd>
+ *   <dt>{@code jpa.metamodel}</dt>
+ *   <dd>
+ *     if {@code true}, generate the static metamodel of each managed class; see {@link MetamodelGenerator}
+ *   </dd>
+ *   <dt>{@code jpa.index}</dt>
+ *   <dd>
+ *     the name of the persistence unit to list this compilation's managed classes under in
+ *     {@value EntityIndex#RESOURCE_NAME}; without it, no index is written
+ *   </dd>
+ *   <dt>{@code jpa.threads}</dt>
+ *   <dd>
+ *     the most threads to check mappings on, including the compiler's own (default: the number of processors); see
+ *     {@link RuleEvaluator}
+ *   </dd>
+ * </dl>
  * @author ian
  *
  */
-@SupportedAnnotationTypes({"javax.persistence.Entity", "javax.persistence.OneToMany"})
+@SupportedAnnotationTypes({
+  "javax.persistence.Entity", "javax.persistence.OneToMany", "javax.persistence.MappedSuperclass",
+  "javax.persistence.Embeddable", "com.overstock.sample.processor.ProjectionOf"})
+@SupportedOptions({
+  VerdictCache.CACHE_DIR_OPTION, VerdictCache.MAX_ENTRIES_OPTION, Metrics.METRICS_OPTION, EntityIndexer.INDEX_OPTION,
+  AccessorGenerator.ACCESSORS_OPTION, MetamodelGenerator.METAMODEL_OPTION, RuleEvaluator.THREADS_OPTION,
+  FetchGraph.MAX_COLLECTIONS_OPTION, FetchGraph.MAX_DEPTH_OPTION, FetchGraph.DIAGNOSTIC_OPTION,
+  DiagnosticLimits.MAX_DIAGNOSTICS_OPTION,
+  DiagnosticLimits.MAX_REPEATS_OPTION, ProcessingScope.INCLUDE_OPTION, ProcessingScope.EXCLUDE_OPTION,
+  NamedQueryRule.MANIFEST_OPTION, ForeignKeyIndexRule.DIAGNOSTIC_OPTION, ForeignKeyIndexRule.INDEXES_OPTION,
+  ForeignKeyIndexRule.DDL_OPTION, FetchPolicyRule.DIAGNOSTIC_OPTION, FetchPolicyRule.TO_ONE_OPTION,
+  FetchPolicyRule.COLLECTIONS_OPTION, FetchPolicyRule.ALLOW_OPTION, BagCollectionRule.DIAGNOSTIC_OPTION,
+  LazyAccessRule.DIAGNOSTIC_OPTION})
 @SupportedSourceVersion(SourceVersion.RELEASE_6)
 public class JpaProcessor extends AbstractProcessor {
+  static final String RULE_OPTION_PREFIX = "jpa.rule.";
+  private static final String ENTITY = "javax.persistence.Entity";
+  private static final String MAPPED_SUPERCLASS = "javax.persistence.MappedSuperclass";
+  private static final String EMBEDDABLE = "javax.persistence.Embeddable";
+  private static final String PROJECTION_OF = "com.overstock.sample.processor.ProjectionOf";
 
-  // various types we'll want to refer to, initialized in init method
-  private ElementTypePair entityType;
-  private ElementTypePair oneToManyType;
-  private ElementTypePair collectionType;
+  private final ClassLoader ruleLoader;
+  private AnnotationTable annotationTable;
+  private CollectionTypes collectionTypes;
+  private RelationshipIndex relationshipIndex;
+  private PersistentMembers persistentMembers;
+  private WorkQueue workQueue;
+  private MappingModel.Builder mappingModel;
+  private RuleEvaluator ruleEvaluator;
+  private FetchGraph fetchGraph;
+  private List<ValidationRule> allRules; // including those turned off
+  private List<ValidationRule> rules;
+  private NamedQueryRule namedQueryRule; // fed the entities the dispatcher collects, unless it is turned off
+  private RuleDispatcher ruleDispatcher;
+  private DiagnosticLimits diagnosticLimits;
+  private VerdictCache verdictCache; // null unless the jpa.cache option is given
+  private EntityIndexer entityIndexer; // null unless the jpa.index option is given
+  private AccessorGenerator accessorGenerator; // null unless the jpa.accessors option is true
+  private MetamodelGenerator metamodelGenerator; // null unless the jpa.metamodel option is true
+  private ProjectionGenerator projectionGenerator;
+  private MappedByCompletions mappedByCompletions;
+  private Metrics metrics = Metrics.DISABLED;
 
-  private ExecutableElement mappedByAttribute;
+  public JpaProcessor() {
+    this(JpaProcessor.class.getClassLoader());
+  }
+
+  /**
+   * @param ruleLoader the class loader to find additional {@link ValidationRule}s with
+   */
+  JpaProcessor(ClassLoader ruleLoader) {
+    this.ruleLoader = ruleLoader;
+  }
 
   // convenience delegations
   private Types typeUtils() {
@@ -68,108 +258,288 @@ public class JpaProcessor extends AbstractProcessor {
   @Override
   public synchronized void init(ProcessingEnvironment processingEnv) {
     super.init(processingEnv);
-    entityType = getType("javax.persistence.Entity");
-    oneToManyType = getType("javax.persistence.OneToMany");
-    collectionType = getType("java.util.Collection");
+    String metricsFile = processingEnv.getOptions().get(Metrics.METRICS_OPTION);
+    if (metricsFile != null) {
+      metrics = new RecordingMetrics(new File(metricsFile));
+    }
+    annotationTable = new AnnotationTable(metrics);
+    collectionTypes = new CollectionTypes(processingEnv.getElementUtils(), typeUtils(), metrics);
+    relationshipIndex = new RelationshipIndex(processingEnv.getElementUtils(), annotationTable, metrics);
+    workQueue = new WorkQueue();
+    mappingModel = new MappingModel.Builder(relationshipIndex);
+    ruleEvaluator = new RuleEvaluator(
+      getIntOption(RuleEvaluator.THREADS_OPTION, Runtime.getRuntime().availableProcessors()));
+    fetchGraph = new FetchGraph(
+      processingEnv.getElementUtils(), annotationTable, collectionTypes, relationshipIndex, metrics);
+
+    String cacheDirectory = processingEnv.getOptions().get(VerdictCache.CACHE_DIR_OPTION);
+    if (cacheDirectory != null) {
+      verdictCache = new VerdictCache(new File(cacheDirectory), getIntOption(
+        VerdictCache.MAX_ENTRIES_OPTION, VerdictCache.DEFAULT_MAX_ENTRIES));
+    }
+
+    String persistenceUnitName = processingEnv.getOptions().get(EntityIndexer.INDEX_OPTION);
+    if (persistenceUnitName != null) {
+      entityIndexer = new EntityIndexer(persistenceUnitName, processingEnv.getElementUtils(), annotationTable);
+    }
+
+    persistentMembers = new PersistentMembers(processingEnv.getElementUtils(), annotationTable);
+    if ("true".equals(processingEnv.getOptions().get(AccessorGenerator.ACCESSORS_OPTION))) {
+      accessorGenerator = new AccessorGenerator(
+        processingEnv.getElementUtils(), typeUtils(), processingEnv.getFiler(), persistentMembers);
+    }
+
+    if ("true".equals(processingEnv.getOptions().get(MetamodelGenerator.METAMODEL_OPTION))) {
+      metamodelGenerator = new MetamodelGenerator(
+        processingEnv.getElementUtils(), typeUtils(), processingEnv.getFiler(), annotationTable, persistentMembers,
+        collectionTypes, metrics);
+    }
+
+    projectionGenerator = new ProjectionGenerator(
+      processingEnv.getElementUtils(), typeUtils(), processingEnv.getFiler(), processingEnv.getMessager(),
+      annotationTable, collectionTypes, relationshipIndex);
+    mappedByCompletions = new MappedByCompletions(processingEnv.getElementUtils(), typeUtils(), metrics);
 
-    mappedByAttribute = getMethod(oneToManyType.element, "mappedBy");
+    diagnosticLimits = new DiagnosticLimits(
+      getIntOption(DiagnosticLimits.MAX_DIAGNOSTICS_OPTION, DiagnosticLimits.UNLIMITED),
+      getIntOption(DiagnosticLimits.MAX_REPEATS_OPTION, DiagnosticLimits.UNLIMITED));
+    allRules = loadRules();
+    rules = new ArrayList<ValidationRule>();
+    for (ValidationRule rule : allRules) {
+      String ruleOption = RULE_OPTION_PREFIX + rule.getName();
+      if (!"false".equals(processingEnv.getOptions().get(ruleOption))) {
+        rule.init(diagnosticLimits.environmentFor(
+          rule.getName(),
+          getIntOption(ruleOption + DiagnosticLimits.RULE_MAX_DIAGNOSTICS_SUFFIX, DiagnosticLimits.UNLIMITED),
+          processingEnv));
+        rules.add(rule);
+      }
+    }
+    ruleDispatcher = new RuleDispatcher(
+      rules,
+      ProcessingScope.parse(
+        processingEnv.getOptions().get(ProcessingScope.INCLUDE_OPTION),
+        processingEnv.getOptions().get(ProcessingScope.EXCLUDE_OPTION)),
+      workQueue,
+      metrics);
+    ruleDispatcher.collect(PROJECTION_OF);
+    if (entityIndexer != null || accessorGenerator != null || metamodelGenerator != null) {
+      ruleDispatcher.collect(ENTITY);
+      ruleDispatcher.collect(MAPPED_SUPERCLASS);
+      ruleDispatcher.collect(EMBEDDABLE);
+    }
+    if (rules.contains(namedQueryRule)) {
+      ruleDispatcher.collect(ENTITY);
+      namedQueryRule.setRoundEntities(ruleDispatcher.collected(ENTITY));
+    }
   }
 
+  /**
+   * The supported annotation types are those of the built-in rules, plus those of any rules added to the processor
+   * path.
+   */
   @Override
-  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
-    checkEntityAnnotatedElements(roundEnv);
-    checkOneToManyAnnotatedProperties(roundEnv);
-    return false; // let other processors work on these as well
+  public Set<String> getSupportedAnnotationTypes() {
+    Set<String> annotationTypes = new LinkedHashSet<String>(super.getSupportedAnnotationTypes());
+    if (rules != null) {
+      for (ValidationRule rule : rules) {
+        annotationTypes.addAll(rule.getSupportedAnnotationTypes());
+      }
+    }
+    return Collections.unmodifiableSet(annotationTypes);
+  }
+
+  /**
+   * The supported options include {@code jpa.rule.<name>} and {@code jpa.rule.<name>.maxDiagnostics} for each rule,
+   * whether or not it is turned off.
+   */
+  @Override
+  public Set<String> getSupportedOptions() {
+    Set<String> options = new LinkedHashSet<String>(super.getSupportedOptions());
+    if (allRules != null) {
+      for (ValidationRule rule : allRules) {
+        options.add(RULE_OPTION_PREFIX + rule.getName());
+        options.add(RULE_OPTION_PREFIX + rule.getName() + DiagnosticLimits.RULE_MAX_DIAGNOSTICS_SUFFIX);
+      }
+    }
+    return Collections.unmodifiableSet(options);
   }
 
   /**
-   * Verify that each class annotated with {@link Entity} has a no-argument constructor.
-   * @param roundEnv
+   * Offers the {@code mappedBy} value of a &#64;{@link OneToMany} being edited, from the &#64;{@link ManyToOne}
+   * properties of its child type; see {@link MappedByCompletions}.
    */
-  private void checkEntityAnnotatedElements(RoundEnvironment roundEnv) {
-    Set<? extends Element> entityAnnotated =
-        roundEnv.getElementsAnnotatedWith(entityType.element);
-    // technically, we don't need to filter here, but it gives us a free cast
-    for (TypeElement typeElement : ElementFilter.typesIn(entityAnnotated)) {
-      checkForNoArgumentConstructor(typeElement);
+  @Override
+  public Iterable<? extends Completion> getCompletions(
+      Element element, AnnotationMirror annotation, ExecutableElement member, String userText) {
+    if (mappedByCompletions == null) { // not initialized
+      return super.getCompletions(element, annotation, member, userText);
     }
+    return mappedByCompletions.complete(element, annotation, member, userText);
   }
 
   /**
-   * Verify that the given type element has a no-argument constructor.
-   * @param typeElement
+   * Validate the elements of one round. Every diagnostic is reported against an element of the type being validated.
+   * Elements are only validated once, however many rounds they turn up in, and properties whose types do not exist
+   * yet are put off until they do; see {@link WorkQueue}.
    */
-  private void checkForNoArgumentConstructor(TypeElement typeElement) {
-    for (ExecutableElement constructor : ElementFilter.constructorsIn(typeElement.getEnclosedElements())) {
-      List<? extends VariableElement> parameters = constructor.getParameters();
-      if (parameters.isEmpty()) {
-        return;
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    Metrics.Timer roundTimer = metrics.startRound();
+    startRound();
+    ruleDispatcher.run(roundEnv);
+    if (entityIndexer != null) {
+      indexManagedClasses();
+    }
+    if (accessorGenerator != null && !roundEnv.processingOver()) { // sources from the last round are not compiled
+      try {
+        accessorGenerator.generate(ruleDispatcher.collected(ENTITY));
+      }
+      catch (IOException e) {
+        processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to write property accessor: " + e.getMessage());
       }
     }
-    AnnotationMirror entityAnnotation = getAnnotation(typeElement, entityType.type);
-    processingEnv.getMessager().printMessage(
-      Kind.ERROR,
-      "missing no argument constructor",
-      typeElement,
-      entityAnnotation);
+    else if (accessorGenerator != null) {
+      accessorGenerator.reportDeferred(processingEnv.getMessager());
+    }
+    if (metamodelGenerator != null && !roundEnv.processingOver()) {
+      try {
+        metamodelGenerator.generate(managedClasses());
+      }
+      catch (IOException e) {
+        processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to write metamodel: " + e.getMessage());
+      }
+    }
+    try {
+      projectionGenerator.generate(ruleDispatcher.collected(PROJECTION_OF), roundEnv.processingOver());
+    }
+    catch (IOException e) {
+      processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to write projection: " + e.getMessage());
+    }
+    roundTimer.stop();
+    if (roundEnv.processingOver()) {
+      ruleEvaluator.shutdown();
+      diagnosticLimits.reportHeldBack(processingEnv.getMessager());
+      if (entityIndexer != null) {
+        try {
+          entityIndexer.write(processingEnv.getFiler());
+        }
+        catch (IOException e) {
+          processingEnv.getMessager().printMessage(Kind.WARNING, "Unable to write entity index: " + e.getMessage());
+        }
+      }
+      if (verdictCache != null) {
+        try {
+          verdictCache.save();
+        }
+        catch (IOException e) {
+          processingEnv.getMessager().printMessage(Kind.WARNING, "Unable to save verdict cache: " + e.getMessage());
+        }
+      }
+      try {
+        metrics.report();
+      }
+      catch (IOException e) {
+        processingEnv.getMessager().printMessage(Kind.WARNING, "Unable to write metrics: " + e.getMessage());
+      }
+    }
+    return false; // let other processors work on these as well
   }
 
   /**
-   * Verify that every property (field or method) annotated with &#64;{@link OneToMany}
-   * has a &#64;{@link ManyToOne}-annotated property mapping back to it, referenced via the {@link OneToMany#mappedBy} value.
-   * @param roundEnv
+   * Discard everything cached about the elements of the previous round.
    */
-  private void checkOneToManyAnnotatedProperties(RoundEnvironment roundEnv) {
-    Set<? extends Element> oneToManyAnnotated =
-      roundEnv.getElementsAnnotatedWith(oneToManyType.element);
-    for (Element element : oneToManyAnnotated) {
-      checkForBiDirectionalMapping(element);
+  void startRound() {
+    annotationTable.clear();
+    collectionTypes.clear();
+    relationshipIndex.clear();
+    mappingModel.clear();
+    fetchGraph.clear();
+    mappedByCompletions.clear();
+    if (verdictCache != null) {
+      verdictCache.clear();
     }
   }
 
   /**
-   * Verify that a given property (in a "parent" class) which refers to child elements
-   * has a @ManyToOne-annotated property mapping back to it, referenced via the {@link OneToMany#mappedBy} value.
-   * @param childProperty the field or method in the parent class, annotated with &#64;{@link OneToMany}.
+   * Create the built-in rules, followed by those found on the processor path. A rule which cannot be loaded is
+   * reported as an error, and the others are still run.
+   * @return every rule, whether or not it is turned off
    */
-  private void checkForBiDirectionalMapping(Element childProperty) {
-    TypeMirror propertyType = getPropertyType(childProperty);
-    DeclaredType childType = getCollectionType(propertyType);
-    Element childElement = childType.asElement();
-    TypeElement enclosingElement = (TypeElement) childProperty.getEnclosingElement();
-    DeclaredType parentType = typeUtils().getDeclaredType(enclosingElement);
-    AnnotationMirror oneToManyAnnotation = getAnnotation(childProperty, oneToManyType.type);
-    Element parentPropertyInChild = findParentReferenceInChildType(parentType, childElement);
-    if (parentPropertyInChild == null) {
-      processingEnv.getMessager().printMessage(
-        Kind.ERROR,
-        "No matching @ManyToOne annotation on " + childElement.getSimpleName(),
-        childProperty,
-        oneToManyAnnotation);
+  private List<ValidationRule> loadRules() {
+    List<ValidationRule> loaded = new ArrayList<ValidationRule>();
+    loaded.add(new NoArgumentConstructorRule(annotationTable, metrics));
+    loaded.add(new BidirectionalMappingRule(
+      annotationTable, collectionTypes, relationshipIndex, mappingModel, ruleEvaluator, verdictCache, workQueue,
+      metrics));
+    Kind fetchDiagnostic = getKindOption(FetchGraph.DIAGNOSTIC_OPTION, null);
+    if (fetchDiagnostic != null) {
+      loaded.add(new EagerFetchRule(
+        fetchGraph,
+        annotationTable,
+        fetchDiagnostic,
+        getIntOption(FetchGraph.MAX_COLLECTIONS_OPTION, FetchGraph.DEFAULT_MAX_COLLECTIONS),
+        getIntOption(FetchGraph.MAX_DEPTH_OPTION, FetchGraph.DEFAULT_MAX_DEPTH)));
     }
-    else {
-      AnnotationValue mappedBy = getMappedByValue(oneToManyAnnotation);
-      if (mappedBy == null) {
-        processingEnv.getMessager().printMessage(
-          Kind.ERROR,
-          "Missing mappedBy attribute",
-          childProperty,
-          oneToManyAnnotation);
-      }
-      else {
-        String mappedByContent = (String) mappedBy.getValue(); //or:
-                                                               //childProperty.getAnnotation(OneToMany.class).mappedBy()
-        String expected = getPropertyName(parentPropertyInChild);
-        if (! mappedByContent.equals(expected)) {
-          processingEnv.getMessager().printMessage(
-            Kind.ERROR,
-            "mappedBy attribute should be " + expected,
-            childProperty,
-            oneToManyAnnotation,
-            mappedBy);
+    namedQueryRule = new NamedQueryRule(annotationTable, collectionTypes, relationshipIndex, metrics);
+    loaded.add(namedQueryRule);
+    Kind fetchPolicyDiagnostic = getKindOption(FetchPolicyRule.DIAGNOSTIC_OPTION, null);
+    if (fetchPolicyDiagnostic != null) {
+      loaded.add(new FetchPolicyRule(annotationTable, fetchPolicyDiagnostic, metrics));
+    }
+    Kind foreignKeyDiagnostic = getKindOption(ForeignKeyIndexRule.DIAGNOSTIC_OPTION, null);
+    if (foreignKeyDiagnostic != null) {
+      loaded.add(new ForeignKeyIndexRule(annotationTable, relationshipIndex, foreignKeyDiagnostic, metrics));
+    }
+    Kind bagDiagnostic = getKindOption(BagCollectionRule.DIAGNOSTIC_OPTION, null);
+    if (bagDiagnostic != null) {
+      loaded.add(new BagCollectionRule(annotationTable, persistentMembers, bagDiagnostic, metrics));
+    }
+    Kind lazyAccessDiagnostic = getKindOption(LazyAccessRule.DIAGNOSTIC_OPTION, null);
+    if (lazyAccessDiagnostic != null) {
+      loaded.add(new LazyAccessRule(annotationTable, processingEnv, lazyAccessDiagnostic, metrics));
+    }
+
+    Iterator<ValidationRule> added = ServiceLoader.load(ValidationRule.class, ruleLoader).iterator();
+    while (true) {
+      try {
+        if (!added.hasNext()) {
+          break;
         }
+        loaded.add(added.next());
+      }
+      catch (ServiceConfigurationError e) {
+        processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to load validation rule: " + e.getMessage());
       }
     }
+    return loaded;
+  }
+
+  /**
+   * Add the managed classes of this round, as collected by the {@link #ruleDispatcher}, to the {@link #entityIndexer}.
+   */
+  private void indexManagedClasses() {
+    for (TypeElement type : ruleDispatcher.collected(ENTITY)) {
+      entityIndexer.add(type, EntityIndex.Kind.ENTITY);
+    }
+    for (TypeElement type : ruleDispatcher.collected(MAPPED_SUPERCLASS)) {
+      entityIndexer.add(type, EntityIndex.Kind.MAPPED_SUPERCLASS);
+    }
+    for (TypeElement type : ruleDispatcher.collected(EMBEDDABLE)) {
+      entityIndexer.add(type, EntityIndex.Kind.EMBEDDABLE);
+    }
+  }
+
+  /**
+   * @return the &#64;{@link Entity}, &#64;{@link MappedSuperclass} and &#64;{@link Embeddable} classes of this round,
+   *   as collected by the {@link #ruleDispatcher}
+   */
+  private Set<TypeElement> managedClasses() {
+    Set<TypeElement> managedClasses = new LinkedHashSet<TypeElement>();
+    managedClasses.addAll(ruleDispatcher.collected(MAPPED_SUPERCLASS));
+    managedClasses.addAll(ruleDispatcher.collected(ENTITY));
+    managedClasses.addAll(ruleDispatcher.collected(EMBEDDABLE));
+    return managedClasses;
   }
 
   /**
@@ -179,77 +549,31 @@ public class JpaProcessor extends AbstractProcessor {
    * @param propertyElement an element for a field or method
    * @return the name of the property referenced
    */
-  private String getPropertyName(Element propertyElement) {
+  static String getPropertyName(Element propertyElement) {
     switch (propertyElement.getKind()) {
       case FIELD: return propertyElement.getSimpleName().toString();
-      case METHOD:
-        String methodName = propertyElement.getSimpleName().toString();
-        if (methodName.startsWith("get")) {
-          return Introspector.decapitalize(methodName.substring(3));
-        }
-        if (methodName.startsWith("is")) {
-          return Introspector.decapitalize(methodName.substring(2));
-        }
-        else {
-          // not actually a javaBean method; just return the method name
-          return methodName;
-        }
+      case METHOD: return getPropertyName(propertyElement.getSimpleName().toString());
       default: // should never happen
         throw new IllegalArgumentException("property element of type " + propertyElement.getKind());
     }
   }
 
   /**
-   * Get the value of the {@link OneToMany#mappedBy() mappedBy} element of a &#64;{@link OneToMany} annotation.
-   * Note that an alternative approach here would be to go back to the annotated element and call
-   * {@code getAnnotation(OneToMany.class).mappedBy()}. However, in some cases, it is necessary to reflect on the
-   * annotation mirror. For example, annotation values of type Class may refer to classes currently under compilation,
-   * and hence not in the class path. Attempting to invoke those annotation methods could result in a
-   * {@link MirroredTypeException} being thrown. In more extreme cases, you may be reflecting over an annotation
-   * which is not available at the time your annotation processor is being built.
-   *
-   * @param oneToManyAnnotation an annotation of type &#64;{@link OneToMany}.
-   * @return the value of {@code oneToManyAnnotation}'s {@code mappedBy} attribute
-   */
-  private AnnotationValue getMappedByValue(AnnotationMirror oneToManyAnnotation) {
-    Map<? extends ExecutableElement, ? extends AnnotationValue> elementValues =
-        oneToManyAnnotation.getElementValues();
-    return elementValues.get(mappedByAttribute);
-  }
-
-  /**
-   * Find a property (field or method) in a child type which is annotated with &#64;{@link ManyToOne} and has
-   * a type of {@code parentType}
-   * @param parentType the expected property type
-   * @param childType the class expected to contain the annotated property
-   * @return The property element and it's annotation
+   * Get the property name for a method, as {@link #getPropertyName(Element)} does, from the method's name alone.
+   * @param methodName the name of a method
+   * @return the name of the property referenced
    */
-  private Element findParentReferenceInChildType(TypeMirror parentType, Element childType) {
-    for (Element element: childType.getEnclosedElements()) {
-      if (element.getKind() == ElementKind.FIELD || element.getKind() == ElementKind.METHOD) {
-        if (element.getAnnotation(ManyToOne.class) != null
-            && typeUtils().isSameType(parentType, getPropertyType(element))) {
-          return element;
-        }
-      }
+  static String getPropertyName(String methodName) {
+    if (methodName.startsWith("get")) {
+      return Introspector.decapitalize(methodName.substring(3));
+    }
+    if (methodName.startsWith("is")) {
+      return Introspector.decapitalize(methodName.substring(2));
+    }
+    else {
+      // not actually a javaBean method; just return the method name
+      return methodName;
     }
-    return null;
-  }
-
-  /**
-   * Get the type parameter for a {@link Collection}.
-   * @param type a parameterized collection type
-   * @return the type of elements in the collection
-   */
-  private DeclaredType getCollectionType(TypeMirror type) {
-    if (type != null && typeUtils().isAssignable(type, collectionType.type)) {
-      // This is a bit of a hack; to work properly, we should walk up the inheritance hierarchy, tracking type
-      // parameters as we go. For example, if the type in question is StringList, which implements List<String>,
-      // then this code would not work.
-      List<? extends TypeMirror> typeArguments = ((DeclaredType) type).getTypeArguments();
-      return (DeclaredType) typeArguments.get(0);
-    }
-    return null;
   }
 
   /**
@@ -257,7 +581,7 @@ public class JpaProcessor extends AbstractProcessor {
    * @param element a field or method element
    * @return the type for the property
    */
-  private TypeMirror getPropertyType(Element element) {
+  static TypeMirror getPropertyType(Element element) {
     switch (element.getKind()) {
       case FIELD:
         return ((VariableElement) element).asType();
@@ -270,44 +594,47 @@ public class JpaProcessor extends AbstractProcessor {
   }
 
   /**
-   * Find an annotation of a given type on an element
-   * @param element a possibly annotated element
-   * @param annotationType the expected annotation type
-   * @return the annotation, or {@code null} if no annotation of type {@code annotationType} exists on {@code element}.
+   * Get the value of an integer processor option
+   * @param name the option name, as passed to javac with {@code -Aname=value}
+   * @param defaultValue the value to use if the option is not given
+   * @return the value of the option
    */
-  private AnnotationMirror getAnnotation(Element element, DeclaredType annotationType) {
-    for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
-      if (typeUtils().isSameType(mirror.getAnnotationType(), annotationType)) {
-        return mirror;
-      }
+  private int getIntOption(String name, int defaultValue) {
+    String value = processingEnv.getOptions().get(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    }
+    catch (NumberFormatException e) {
+      processingEnv.getMessager().printMessage(
+        Kind.WARNING, "Ignoring option " + name + ", which should be a number: " + value);
+      return defaultValue;
     }
-    return null;
-  }
-
-  /**
-   * Get the {@link TypeElement} and {@link DeclaredType} for a class
-   * @param className the name of the class
-   * @return the {@link TypeElement} and {@link DeclaredType} representing the class with name {@code className}
-   */
-  private ElementTypePair getType(String className) {
-    TypeElement typeElement = processingEnv.getElementUtils().getTypeElement(className);
-    DeclaredType declaredType = typeUtils().getDeclaredType(typeElement);
-    return new ElementTypePair(typeElement, declaredType);
   }
 
   /**
-   * Get the method in {@code element} named {@code methodName}
-   * @param element an element representing an entity with a method name of {@code methodName}
-   * @param methodName the method name
-   * @return the method
+   * Get the value of a processor option naming a kind of diagnostic
+   * @param name the option name, as passed to javac with {@code -Aname=value}
+   * @param defaultValue the kind to use if the option is not given
+   * @return the kind named by the option, {@link Kind#WARNING} or {@link Kind#ERROR}, or {@code null} if it is
+   *   {@code none}
    */
-  private ExecutableElement getMethod(Element element, String methodName) {
-    for (ExecutableElement executable: ElementFilter.methodsIn(element.getEnclosedElements())) {
-      if (executable.getSimpleName().toString().equals(methodName)) {
-        return executable;
-      }
+  private Kind getKindOption(String name, Kind defaultValue) {
+    String value = processingEnv.getOptions().get(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    String kind = value.trim().toUpperCase(Locale.ENGLISH);
+    if (kind.equals("NONE")) {
+      return null;
     }
-    throw new IllegalArgumentException("no element named " + methodName + " + in element");
+    if (kind.equals(Kind.WARNING.name()) || kind.equals(Kind.ERROR.name())) {
+      return Kind.valueOf(kind);
+    }
+    processingEnv.getMessager().printMessage(
+      Kind.WARNING, "Ignoring option " + name + ", which should be warning, error or none: " + value);
+    return defaultValue;
   }
-
 }
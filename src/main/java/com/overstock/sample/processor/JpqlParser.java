@@ -0,0 +1,390 @@
+package com.overstock.sample.processor;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Parses JPQL far enough to check it against the entity model: the identification variables declared by each
+ * {@code FROM} clause (including those of subqueries, and of {@code UPDATE} and {@code DELETE} statements), and the
+ * path expressions, such as {@code o.customer.name}, used anywhere in the query. Everything else is only tokenized,
+ * which is enough to find unterminated strings, unbalanced parentheses and stray characters.
+ *
+ * Keywords and identification variables are case insensitive, as in JPQL; entity and property names are not.
+ */
+class JpqlParser {
+  private static final Set<String> CLAUSE_KEYWORDS = new HashSet<String>(Arrays.asList(
+    "WHERE", "GROUP", "HAVING", "ORDER", "JOIN", "LEFT", "INNER", "OUTER", "FETCH", "SET", "UNION", "ON"));
+
+  private final String jpql;
+  private final List<Token> tokens = new ArrayList<Token>();
+  private int position;
+  private final Query query = new Query();
+
+  private JpqlParser(String jpql) {
+    this.jpql = jpql;
+  }
+
+  /**
+   * @param jpql a JPQL statement
+   * @return the variables and paths of the statement
+   * @throws ParseException if the statement cannot be parsed; its offset is that of the problem in {@code jpql}
+   */
+  static Query parse(String jpql) throws ParseException {
+    JpqlParser parser = new JpqlParser(jpql);
+    parser.tokenize();
+    parser.parseStatement();
+    return parser.query;
+  }
+
+  private void parseStatement() throws ParseException {
+    if (tokens.isEmpty()) {
+      throw new ParseException("empty query", 0);
+    }
+    Token first = tokens.get(0);
+    if (first.isKeyword("UPDATE")) {
+      position = 1;
+      parseRangeVariable();
+    }
+    else if (first.isKeyword("DELETE")) {
+      position = 1;
+      expectKeyword("FROM");
+      parseRangeVariable();
+    }
+    else if (!first.isKeyword("SELECT")) {
+      throw new ParseException("expected SELECT, UPDATE or DELETE, not " + first.text, first.offset);
+    }
+    while (position < tokens.size()) {
+      Token token = tokens.get(position);
+      if (token.isKeyword("FROM") && !insideTrim()) {
+        position++;
+        parseFromClause();
+      }
+      else if (token.isKeyword("NEW")) {
+        // a constructor expression: skip the class name, which is not a path
+        position++;
+        while (position < tokens.size() && !tokens.get(position).text.equals("(")) {
+          position++;
+        }
+      }
+      else if (token.kind == TokenKind.IDENTIFIER && isDot(position + 1)) {
+        query.paths.add(parsePath());
+      }
+      else {
+        position++;
+      }
+    }
+  }
+
+  /**
+   * Parse the declarations of a {@code FROM} clause: range variables, joins and collection member declarations.
+   */
+  private void parseFromClause() throws ParseException {
+    parseRangeVariable();
+    while (position < tokens.size()) {
+      Token token = tokens.get(position);
+      if (token.text.equals(",")) {
+        position++;
+        if (peekKeyword("IN")) {
+          position++;
+          expect("(");
+          Path path = parsePath();
+          expect(")");
+          declareJoin(path, true);
+        }
+        else {
+          parseRangeVariable();
+        }
+      }
+      else if (token.isKeyword("LEFT") || token.isKeyword("INNER") || token.isKeyword("JOIN")) {
+        if (token.isKeyword("LEFT")) {
+          position++;
+          if (peekKeyword("OUTER")) {
+            position++;
+          }
+        }
+        else if (token.isKeyword("INNER")) {
+          position++;
+        }
+        expectKeyword("JOIN");
+        if (peekKeyword("FETCH")) {
+          position++; // JPA gives a fetch join no variable, but Hibernate allows one, as in JOIN FETCH o.lines l
+        }
+        declareJoin(parsePath(), true);
+      }
+      else {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Parse {@code EntityName [AS] variable}, where the variable may be left out.
+   */
+  private void parseRangeVariable() throws ParseException {
+    Token entity = next("an entity name");
+    if (entity.kind != TokenKind.IDENTIFIER) {
+      throw new ParseException("expected an entity name, not " + entity.text, entity.offset);
+    }
+    StringBuilder entityName = new StringBuilder(entity.text);
+    while (isDot(position) && position + 1 < tokens.size()) { // a qualified class name
+      entityName.append('.').append(tokens.get(position + 1).text);
+      position += 2;
+    }
+    Variable variable = new Variable(parseVariableName(true), entityName.toString(), null, entity.offset);
+    query.variables.add(variable);
+  }
+
+  private void declareJoin(Path path, boolean aliasExpected) throws ParseException {
+    path.joined = true;
+    query.paths.add(path);
+    String name = parseVariableName(aliasExpected);
+    query.variables.add(new Variable(name, null, path, path.offset));
+  }
+
+  /**
+   * @param allowed whether a variable may be declared without {@code AS}
+   * @return the variable declared next, or {@code null} if there is none
+   */
+  private String parseVariableName(boolean allowed) throws ParseException {
+    if (peekKeyword("AS")) {
+      position++;
+      Token name = next("an identification variable");
+      if (name.kind != TokenKind.IDENTIFIER) {
+        throw new ParseException("expected an identification variable, not " + name.text, name.offset);
+      }
+      return name.text;
+    }
+    if (allowed && position < tokens.size()) {
+      Token token = tokens.get(position);
+      if (token.kind == TokenKind.IDENTIFIER && !CLAUSE_KEYWORDS.contains(token.upperCase())) {
+        position++;
+        return token.text;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Parse {@code identifier(.identifier)+}, starting at the current token.
+   */
+  private Path parsePath() throws ParseException {
+    Token start = next("a path expression");
+    if (start.kind != TokenKind.IDENTIFIER || !isDot(position)) {
+      throw new ParseException("expected a path expression, such as o.name, not " + start.text, start.offset);
+    }
+    Path path = new Path(start.text, start.offset);
+    while (isDot(position)) {
+      position++;
+      Token property = next("a property name");
+      if (property.kind != TokenKind.IDENTIFIER) {
+        throw new ParseException("expected a property name, not " + property.text, property.offset);
+      }
+      path.properties.add(property.text);
+    }
+    return path;
+  }
+
+  /**
+   * @return whether the current token is within the parentheses of {@code TRIM}, whose {@code FROM} is not a clause
+   */
+  private boolean insideTrim() {
+    int depth = 0;
+    for (int i = position - 1; i > 0; i--) {
+      String text = tokens.get(i).text;
+      if (text.equals(")")) {
+        depth++;
+      }
+      else if (text.equals("(") && depth-- == 0) {
+        return tokens.get(i - 1).isKeyword("TRIM");
+      }
+    }
+    return false;
+  }
+
+  private boolean isDot(int index) {
+    return index < tokens.size() && tokens.get(index).text.equals(".");
+  }
+
+  private boolean peekKeyword(String keyword) {
+    return position < tokens.size() && tokens.get(position).isKeyword(keyword);
+  }
+
+  private void expectKeyword(String keyword) throws ParseException {
+    Token token = next(keyword);
+    if (!token.isKeyword(keyword)) {
+      throw new ParseException("expected " + keyword + ", not " + token.text, token.offset);
+    }
+  }
+
+  private void expect(String text) throws ParseException {
+    Token token = next(text);
+    if (!token.text.equals(text)) {
+      throw new ParseException("expected " + text + ", not " + token.text, token.offset);
+    }
+  }
+
+  private Token next(String expected) throws ParseException {
+    if (position >= tokens.size()) {
+      throw new ParseException("expected " + expected + " at the end of the query", jpql.length());
+    }
+    return tokens.get(position++);
+  }
+
+  private void tokenize() throws ParseException {
+    int depth = 0;
+    int i = 0;
+    while (i < jpql.length()) {
+      char c = jpql.charAt(i);
+      int start = i;
+      if (Character.isWhitespace(c)) {
+        i++;
+        continue;
+      }
+      if (Character.isJavaIdentifierStart(c)) {
+        while (i < jpql.length() && Character.isJavaIdentifierPart(jpql.charAt(i))) {
+          i++;
+        }
+        tokens.add(new Token(TokenKind.IDENTIFIER, jpql.substring(start, i), start));
+      }
+      else if (Character.isDigit(c)) {
+        while (i < jpql.length() && (Character.isLetterOrDigit(jpql.charAt(i)) || jpql.charAt(i) == '.')) {
+          i++;
+        }
+        tokens.add(new Token(TokenKind.LITERAL, jpql.substring(start, i), start));
+      }
+      else if (c == '\'') {
+        i++;
+        while (true) {
+          if (i >= jpql.length()) {
+            throw new ParseException("unterminated string literal", start);
+          }
+          if (jpql.charAt(i) == '\'') {
+            if (i + 1 < jpql.length() && jpql.charAt(i + 1) == '\'') {
+              i += 2; // an escaped quote
+              continue;
+            }
+            i++;
+            break;
+          }
+          i++;
+        }
+        tokens.add(new Token(TokenKind.LITERAL, jpql.substring(start, i), start));
+      }
+      else if (c == ':' || c == '?') {
+        i++;
+        while (i < jpql.length() && Character.isJavaIdentifierPart(jpql.charAt(i))) {
+          i++;
+        }
+        if (i == start + 1) {
+          throw new ParseException("expected a parameter name or position after " + c, start);
+        }
+        tokens.add(new Token(TokenKind.PARAMETER, jpql.substring(start, i), start));
+      }
+      else if ("<>!".indexOf(c) >= 0) {
+        i++;
+        if (i < jpql.length() && (jpql.charAt(i) == '=' || c == '<' && jpql.charAt(i) == '>')) {
+          i++;
+        }
+        tokens.add(new Token(TokenKind.OPERATOR, jpql.substring(start, i), start));
+      }
+      else if ("().,=+-*/".indexOf(c) >= 0) {
+        if (c == '(') {
+          depth++;
+        }
+        else if (c == ')' && --depth < 0) {
+          throw new ParseException("unbalanced )", start);
+        }
+        i++;
+        tokens.add(new Token(TokenKind.OPERATOR, String.valueOf(c), start));
+      }
+      else {
+        throw new ParseException("unexpected character " + c, start);
+      }
+    }
+    if (depth > 0) {
+      throw new ParseException("unbalanced (", jpql.length());
+    }
+  }
+
+  /**
+   * The variables and paths of a statement.
+   */
+  static class Query {
+    /** the identification variables, in the order they are declared */
+    final List<Variable> variables = new ArrayList<Variable>();
+    /** the path expressions, in the order they appear, including those of joins */
+    final List<Path> paths = new ArrayList<Path>();
+  }
+
+  /**
+   * An identification variable, which ranges over either an entity, or the targets of a path.
+   */
+  static class Variable {
+    Variable(String name, String entityName, Path path, int offset) {
+      this.name = name;
+      this.entityName = entityName;
+      this.path = path;
+      this.offset = offset;
+    }
+
+    /** the variable's name, or {@code null} if the declaration does not give one */
+    final String name;
+    /** the entity name of a range variable, or {@code null} for a join */
+    final String entityName;
+    /** the path joined, or {@code null} for a range variable */
+    final Path path;
+    final int offset;
+  }
+
+  /**
+   * A path expression: an identification variable followed by one or more property names.
+   */
+  static class Path {
+    Path(String variable, int offset) {
+      this.variable = variable;
+      this.offset = offset;
+    }
+
+    final String variable;
+    final List<String> properties = new ArrayList<String>();
+    final int offset;
+    /** whether the path is joined, so that it may end in a collection which later paths then range over */
+    boolean joined;
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder(variable);
+      for (String property : properties) {
+        builder.append('.').append(property);
+      }
+      return builder.toString();
+    }
+  }
+
+  private enum TokenKind { IDENTIFIER, LITERAL, PARAMETER, OPERATOR }
+
+  private static class Token {
+    Token(TokenKind kind, String text, int offset) {
+      this.kind = kind;
+      this.text = text;
+      this.offset = offset;
+    }
+
+    final TokenKind kind;
+    final String text;
+    final int offset;
+
+    boolean isKeyword(String keyword) {
+      return kind == TokenKind.IDENTIFIER && text.equalsIgnoreCase(keyword);
+    }
+
+    String upperCase() {
+      return text.toUpperCase(Locale.ENGLISH);
+    }
+  }
+}
@@ -0,0 +1,239 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.tools.Diagnostic.Kind;
+
+/**
+ * Warns about the {@code equals}, {@code hashCode}, {@code toString} and {@code compareTo} methods of an
+ * &#64;{@link Entity} which read a lazily fetched property: an association or element collection which is lazy, by
+ * default or by its {@code fetch} attribute, or a &#64;{@link Basic}{@code (fetch=LAZY)} attribute. These methods are
+ * called far more often than they look, by every hash set the entity is put in, or every log message it appears in,
+ * and reading a lazy property from them may query the database each time, or fail once the session is closed.
+ *
+ * The methods' bodies are read with {@link LazyAccessScanner}, which needs the compiler's Trees API, and the processing
+ * environment the compiler gave {@link JpaProcessor}, rather than the rule's own. A property is read when its field is
+ * named, or its getter called; calls to other methods of the entity and its superclasses are followed. Since names are
+ * matched rather than resolved, reading {@code other.lines}, in {@code equals}, counts as reading {@code lines}. On a
+ * compiler without the Trees API, or one whose environment a build tool has wrapped, the rule notes that it cannot
+ * check anything, once.
+ */
+class LazyAccessRule extends AbstractValidationRule {
+  static final String NAME = "lazyAccess";
+  static final String DIAGNOSTIC_OPTION = "jpa.lazyAccess.diagnostic";
+
+  private static final String[] LAZY_BY_DEFAULT = {
+    "javax.persistence.OneToMany", "javax.persistence.ManyToMany", "javax.persistence.ElementCollection" };
+  private static final String[] EAGER_BY_DEFAULT = {
+    "javax.persistence.ManyToOne", "javax.persistence.OneToOne", "javax.persistence.Basic" };
+
+  private final AnnotationTable annotationTable;
+  private final ProcessingEnvironment compilerEnv;
+  private final Kind diagnostic;
+  private final Metrics metrics;
+  private final List<Name> lazyByDefaultNames = new ArrayList<Name>();
+  private final List<Name> eagerByDefaultNames = new ArrayList<Name>();
+  private LazyAccessScanner scanner;
+
+  /**
+   * @param annotationTable the annotation table of the round
+   * @param compilerEnv the processing environment the compiler gave the processor, which, unlike the one the rule is
+   *   initialized with, the Trees API accepts
+   * @param diagnostic the kind of diagnostic to report methods which read lazy properties with
+   * @param metrics where to count the entities checked
+   */
+  LazyAccessRule(AnnotationTable annotationTable, ProcessingEnvironment compilerEnv, Kind diagnostic, Metrics metrics) {
+    super(NAME, EnumSet.of(ElementKind.CLASS), "javax.persistence.Entity");
+    this.annotationTable = annotationTable;
+    this.compilerEnv = compilerEnv;
+    this.diagnostic = diagnostic;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    for (String lazyByDefault : LAZY_BY_DEFAULT) {
+      lazyByDefaultNames.add(processingEnv.getElementUtils().getName(lazyByDefault));
+    }
+    for (String eagerByDefault : EAGER_BY_DEFAULT) {
+      eagerByDefaultNames.add(processingEnv.getElementUtils().getName(eagerByDefault));
+    }
+    String unavailable;
+    try {
+      scanner = new LazyAccessScanner(compilerEnv);
+      return;
+    }
+    catch (IllegalArgumentException e) {
+      unavailable = "it does not accept the processing environment the processor was given";
+    }
+    catch (LinkageError e) {
+      unavailable = e.toString();
+    }
+    processingEnv.getMessager().printMessage(
+      Kind.NOTE, "Not checking for lazy properties read by equals, hashCode, toString or compareTo, since the "
+        + "compiler's Trees API is not available: " + unavailable);
+  }
+
+  @Override
+  public void check(Element element) {
+    metrics.count(Metrics.Counter.ELEMENTS_VISITED);
+    if (scanner == null) {
+      return;
+    }
+    TypeElement type = (TypeElement) element;
+    List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+    Map<String, String> lazyProperties = new LinkedHashMap<String, String>();
+    for (TypeElement declaring = type; declaring != null; declaring = superclassOf(declaring)) {
+      for (Element member : declaring.getEnclosedElements()) {
+        if (member.getKind() == ElementKind.METHOD) {
+          methods.add((ExecutableElement) member);
+        }
+        if (member.getKind() == ElementKind.FIELD || member.getKind() == ElementKind.METHOD) {
+          String fetchedBy = lazilyFetchedBy(member);
+          String property = JpaProcessor.getPropertyName(member);
+          if (fetchedBy != null && !lazyProperties.containsKey(property)) {
+            lazyProperties.put(property, fetchedBy);
+          }
+        }
+      }
+    }
+    if (lazyProperties.isEmpty()) {
+      return;
+    }
+
+    for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+      if (isChecked(method)) {
+        follow(method, method, "", lazyProperties, methods, new HashSet<ExecutableElement>(), new HashSet<String>());
+      }
+    }
+  }
+
+  /**
+   * Report each lazy property which a method reads, directly or through the methods it calls.
+   * @param checked the method being checked
+   * @param method the method whose body is being read: {@code checked}, or a method it calls
+   * @param through the methods called on the way to {@code method}, as part of a message
+   * @param lazyProperties the lazy properties of the entity, and the annotation which makes each lazy
+   * @param methods the methods of the entity and its superclasses, which may be followed
+   * @param followed the methods already read
+   * @param reported the properties already reported
+   */
+  private void follow(
+      ExecutableElement checked, ExecutableElement method, String through, Map<String, String> lazyProperties,
+      List<ExecutableElement> methods, Set<ExecutableElement> followed, Set<String> reported) {
+    if (!followed.add(method)) {
+      return;
+    }
+    List<LazyAccessScanner.Access> accesses = scanner.accesses(method);
+    if (accesses == null) {
+      return;
+    }
+    for (LazyAccessScanner.Access access : accesses) {
+      String property = access.arguments < 0 ? access.name
+        : access.arguments == 0 ? JpaProcessor.getPropertyName(access.name) : null;
+      String fetchedBy = property == null ? null : lazyProperties.get(property);
+      if (fetchedBy != null) {
+        if (reported.add(property)) {
+          processingEnv.getMessager().printMessage(
+            diagnostic,
+            checked.getSimpleName() + "() reads " + property + through + ", which is fetched lazily (@" + fetchedBy
+              + "), so calling it may query the database; use the id, or eagerly fetched attributes, instead",
+            checked);
+        }
+      }
+      else if (access.arguments >= 0) {
+        for (ExecutableElement callee : methods) {
+          if (callee.getSimpleName().contentEquals(access.name) && callee.getParameters().size() == access.arguments) {
+            follow(
+              checked, callee, through + " through " + callee.getSimpleName() + "()", lazyProperties, methods, followed,
+              reported);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @param method a method of an entity
+   * @return {@code true} if {@code method} overrides {@code equals}, {@code hashCode} or {@code toString}, or
+   *   implements {@code compareTo}
+   */
+  private static boolean isChecked(ExecutableElement method) {
+    if (method.getModifiers().contains(Modifier.STATIC) || method.getModifiers().contains(Modifier.ABSTRACT)) {
+      return false;
+    }
+    String name = method.getSimpleName().toString();
+    int parameters = method.getParameters().size();
+    return parameters == 0 && (name.equals("hashCode") || name.equals("toString"))
+      || parameters == 1 && (name.equals("equals") || name.equals("compareTo"));
+  }
+
+  /**
+   * @param member a field or method
+   * @return the simple name of the annotation which makes {@code member} a lazily fetched property, or {@code null} if
+   *   it is not one
+   */
+  private String lazilyFetchedBy(Element member) {
+    String fetchedBy = fetchedBy(member, lazyByDefaultNames, FetchType.LAZY);
+    return fetchedBy != null ? fetchedBy : fetchedBy(member, eagerByDefaultNames, FetchType.EAGER);
+  }
+
+  /**
+   * @param member a field or method
+   * @param annotationNames the qualified names of annotations which fetch {@code member} by {@code defaultFetchType},
+   *   unless their {@code fetch} attribute says otherwise
+   * @return the simple name of the first of the annotations which makes {@code member} lazily fetched, or {@code null}
+   */
+  private String fetchedBy(Element member, List<Name> annotationNames, FetchType defaultFetchType) {
+    for (Name annotationName : annotationNames) {
+      AnnotationMirror annotation = annotationTable.get(member, annotationName);
+      if (annotation == null) {
+        continue;
+      }
+      FetchType fetchType = defaultFetchType;
+      for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value
+          : annotation.getElementValues().entrySet()) {
+        if (value.getKey().getSimpleName().contentEquals("fetch")) {
+          fetchType = FetchType.valueOf(((VariableElement) value.getValue().getValue()).getSimpleName().toString());
+        }
+      }
+      if (fetchType == FetchType.LAZY) {
+        return annotation.getAnnotationType().asElement().getSimpleName().toString();
+      }
+    }
+    return null;
+  }
+
+  private static TypeElement superclassOf(TypeElement type) {
+    TypeMirror superclass = type.getSuperclass();
+    if (superclass.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    TypeElement superElement = (TypeElement) ((DeclaredType) superclass).asElement();
+    return superElement.getQualifiedName().contentEquals("java.lang.Object") ? null : superElement;
+  }
+}
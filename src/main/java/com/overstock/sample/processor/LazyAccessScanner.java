@@ -0,0 +1,104 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.ExecutableElement;
+
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.TreeScanner;
+import com.sun.source.util.Trees;
+
+/**
+ * Lists the members which a method's body reads or calls, from its source, for {@link LazyAccessRule}. This is the
+ * only class which uses the compiler's Trees API, so that the rule can do without it on compilers which lack it:
+ * constructing a scanner there fails with a {@link LinkageError}, or an {@link IllegalArgumentException}.
+ *
+ * Method bodies are not attributed while processors run, so names are not resolved to elements; an access is just the
+ * name read or called, and the number of arguments of a call. Names of the method's parameters and local variables
+ * are left out, since they shadow any member of the same name.
+ */
+class LazyAccessScanner {
+  /**
+   * A member named in a method body.
+   */
+  static class Access {
+    final String name;
+    /** the number of arguments passed, if the member is called, or -1 if it is read */
+    final int arguments;
+
+    Access(String name, int arguments) {
+      this.name = name;
+      this.arguments = arguments;
+    }
+  }
+
+  private final Trees trees;
+
+  /**
+   * @param processingEnv the processing environment the compiler gave the processor
+   * @throws IllegalArgumentException if the compiler does not provide trees for the processing environment
+   */
+  LazyAccessScanner(ProcessingEnvironment processingEnv) {
+    trees = Trees.instance(processingEnv);
+  }
+
+  /**
+   * @param method a method
+   * @return the members the method's body reads or calls, in order, or {@code null} if its source is not available
+   */
+  List<Access> accesses(ExecutableElement method) {
+    MethodTree tree = trees.getTree(method);
+    if (tree == null || tree.getBody() == null) {
+      return null;
+    }
+    final Set<String> locals = new HashSet<String>();
+    new TreeScanner<Void, Void>() {
+      @Override
+      public Void visitVariable(VariableTree node, Void p) {
+        locals.add(node.getName().toString());
+        return super.visitVariable(node, p);
+      }
+    }.scan(tree, null);
+
+    final List<Access> accesses = new ArrayList<Access>();
+    new TreeScanner<Void, Void>() {
+      @Override
+      public Void visitMethodInvocation(MethodInvocationTree node, Void p) {
+        ExpressionTree select = node.getMethodSelect();
+        if (select instanceof MemberSelectTree) {
+          accesses.add(new Access(((MemberSelectTree) select).getIdentifier().toString(), node.getArguments().size()));
+          scan(((MemberSelectTree) select).getExpression(), p);
+        }
+        else if (select instanceof IdentifierTree) {
+          accesses.add(new Access(((IdentifierTree) select).getName().toString(), node.getArguments().size()));
+        }
+        return scan(node.getArguments(), p);
+      }
+
+      @Override
+      public Void visitMemberSelect(MemberSelectTree node, Void p) {
+        accesses.add(new Access(node.getIdentifier().toString(), -1));
+        return super.visitMemberSelect(node, p);
+      }
+
+      @Override
+      public Void visitIdentifier(IdentifierTree node, Void p) {
+        String name = node.getName().toString();
+        if (!locals.contains(name)) {
+          accesses.add(new Access(name, -1));
+        }
+        return null;
+      }
+    }.scan(tree.getBody(), null);
+    return accesses;
+  }
+}
@@ -0,0 +1,110 @@
+package com.overstock.sample.processor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.Completions;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+
+/**
+ * Offers the {@code mappedBy} value which {@link BidirectionalMappingRule} would accept, as the completion of a
+ * &#64;{@link OneToMany} being edited in an IDE; see {@link JpaProcessor#getCompletions}. The value is the name, as
+ * {@link JpaProcessor#getPropertyName(Element)} gives it, of the &#64;{@link ManyToOne} property of the child which
+ * {@link RuleEvaluator} would find.
+ *
+ * An IDE asks on every keystroke, so the &#64;{@link ManyToOne} properties of each child type are snapshotted, as a
+ * {@link MappingModel.ChildType}, the first time it is asked about, and kept by qualified name; later answers are a
+ * map access and a walk over a few strings. The snapshots hold no elements, so they can be kept between requests, but
+ * they are dropped at the start of each round, when the sources may have changed.
+ */
+class MappedByCompletions {
+  private final AnnotationTable annotationTable;
+  private final CollectionTypes collectionTypes;
+  private final RelationshipIndex relationshipIndex;
+  private final MappingModel.Builder builder;
+  private final Map<String, MappingModel.ChildType> childTypes = new HashMap<String, MappingModel.ChildType>();
+
+  MappedByCompletions(Elements elementUtils, Types typeUtils, Metrics metrics) {
+    annotationTable = new AnnotationTable(metrics);
+    collectionTypes = new CollectionTypes(elementUtils, typeUtils, metrics);
+    relationshipIndex = new RelationshipIndex(elementUtils, annotationTable, metrics);
+    builder = new MappingModel.Builder(relationshipIndex);
+  }
+
+  /**
+   * @param element the element being annotated
+   * @param annotation the (perhaps partial) annotation being applied to the element
+   * @param member the annotation member to return possible completions for
+   * @param userText source code text to be completed
+   * @return the {@code mappedBy} value, as a string literal, if {@code member} is the {@code mappedBy} attribute of a
+   *   &#64;{@link OneToMany} whose child maps it, and the value begins with {@code userText}; otherwise nothing
+   */
+  synchronized List<Completion> complete(
+      Element element, AnnotationMirror annotation, ExecutableElement member, String userText) {
+    if (!isMappedBy(annotation, member)
+        || (element.getKind() != ElementKind.FIELD && element.getKind() != ElementKind.METHOD)) {
+      return Collections.emptyList();
+    }
+    TypeMirror elementType = collectionTypes.elementType(JpaProcessor.getPropertyType(element));
+    if (elementType == null || elementType.getKind() != TypeKind.DECLARED) {
+      return Collections.emptyList();
+    }
+    TypeElement childElement = (TypeElement) ((DeclaredType) elementType).asElement();
+    TypeElement parentElement = (TypeElement) element.getEnclosingElement();
+    MappingModel.ManyToOne manyToOne = RuleEvaluator.findManyToOne(
+      new MappingModel.Relationship(parentElement.getQualifiedName().toString(), childType(childElement), null),
+      new int[1]);
+    if (manyToOne == null) {
+      return Collections.emptyList();
+    }
+
+    String value = '"' + manyToOne.propertyName + '"';
+    if (userText != null && !value.startsWith(userText) && !manyToOne.propertyName.startsWith(userText)) {
+      return Collections.emptyList();
+    }
+    return Collections.singletonList(
+      Completions.of(value, "@ManyToOne " + childElement.getSimpleName() + "." + manyToOne.propertyName));
+  }
+
+  /**
+   * Forget all snapshotted types; called at the start of each round.
+   */
+  synchronized void clear() {
+    childTypes.clear();
+    collectionTypes.clear();
+  }
+
+  private MappingModel.ChildType childType(TypeElement childElement) {
+    String name = childElement.getQualifiedName().toString();
+    MappingModel.ChildType childType = childTypes.get(name);
+    if (childType == null) {
+      childType = builder.childType(childElement);
+      childTypes.put(name, childType);
+      // the snapshot is all that is kept; the elements it was taken from may be gone by the next request
+      builder.clear();
+      relationshipIndex.clear();
+      annotationTable.clear();
+    }
+    return childType;
+  }
+
+  private static boolean isMappedBy(AnnotationMirror annotation, ExecutableElement member) {
+    return member != null && member.getSimpleName().contentEquals("mappedBy") && annotation != null
+      && ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName()
+        .contentEquals("javax.persistence.OneToMany");
+  }
+}
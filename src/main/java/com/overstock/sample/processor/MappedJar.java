@@ -0,0 +1,200 @@
+package com.overstock.sample.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the class files in a jar through a memory-mapped {@link FileChannel}, rather than {@link java.util.zip.ZipFile}
+ * and its streams, for {@link BytecodeValidator}. Only as much of the zip format is understood as jars need: the
+ * central directory is read to find the entries, and each entry is either stored, in which case it is a slice of the
+ * mapped jar, or deflated. Zip64 jars, and jars bigger than 2GB, are not supported, nor are encrypted entries.
+ *
+ * The mapped jar is only ever read with absolute gets, so the entries of one jar can be read on many threads at once.
+ */
+final class MappedJar {
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int CENTRAL_SIGNATURE = 0x02014b50;
+  private static final int LOCAL_SIGNATURE = 0x04034b50;
+  private static final int END_SIZE = 22;
+  private static final int MAX_COMMENT = 0xffff;
+  private static final int STORED = 0, DEFLATED = 8;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final File file;
+  private final ByteBuffer jar;
+  private final List<Entry> classEntries = new ArrayList<Entry>();
+
+  /**
+   * Map a jar, and read its central directory.
+   * @param file the jar
+   * @throws IOException if the jar cannot be read, or is not a jar this class understands
+   */
+  MappedJar(File file) throws IOException {
+    this.file = file;
+    jar = map(file).order(ByteOrder.LITTLE_ENDIAN);
+    readCentralDirectory();
+  }
+
+  /**
+   * @return the class files in the jar, leaving out those of multi-release versions, and module and package infos
+   */
+  List<Entry> getClassEntries() {
+    return classEntries;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Map a whole file, read only. The mapping outlives the channel, which is closed straight away.
+   * @param file the file to map
+   * @return the mapped file
+   * @throws IOException if the file cannot be mapped
+   */
+  static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is bigger than 2GB");
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    finally {
+      randomAccessFile.close();
+    }
+  }
+
+  private void readCentralDirectory() throws IOException {
+    int end = findEnd();
+    int entries = jar.getShort(end + 10) & 0xffff;
+    long directoryOffset = jar.getInt(end + 16) & 0xffffffffL;
+    if (entries == 0xffff || directoryOffset == 0xffffffffL) {
+      throw new IOException(file + " is a zip64 file, which is not supported");
+    }
+    int position = (int) directoryOffset;
+    for (int i = 0; i < entries; i++) {
+      if (position + 46 > jar.limit() || jar.getInt(position) != CENTRAL_SIGNATURE) {
+        throw new IOException(file + " has a corrupt central directory");
+      }
+      int flags = jar.getShort(position + 8) & 0xffff;
+      int method = jar.getShort(position + 10) & 0xffff;
+      long compressedSize = jar.getInt(position + 20) & 0xffffffffL;
+      long size = jar.getInt(position + 24) & 0xffffffffL;
+      int nameLength = jar.getShort(position + 28) & 0xffff;
+      int extraLength = jar.getShort(position + 30) & 0xffff;
+      int commentLength = jar.getShort(position + 32) & 0xffff;
+      long localOffset = jar.getInt(position + 42) & 0xffffffffL;
+      String name = string(position + 46, nameLength);
+      position += 46 + nameLength + extraLength + commentLength;
+
+      if (!name.endsWith(".class") || name.startsWith("META-INF/versions/") || name.endsWith("module-info.class")
+          || name.endsWith("package-info.class") || (flags & 1) != 0) {
+        continue;
+      }
+      if (compressedSize == 0xffffffffL || size == 0xffffffffL || localOffset == 0xffffffffL) {
+        throw new IOException(file + " is a zip64 file, which is not supported");
+      }
+      if (method != STORED && method != DEFLATED) {
+        throw new IOException(name + " in " + file + " is compressed with unsupported method " + method);
+      }
+      classEntries.add(new Entry(this, name, method, (int) localOffset, (int) compressedSize, (int) size));
+    }
+  }
+
+  /**
+   * @return the offset of the end of central directory record, which is followed only by the jar's comment
+   */
+  private int findEnd() throws IOException {
+    int lowest = Math.max(0, jar.limit() - END_SIZE - MAX_COMMENT);
+    for (int position = jar.limit() - END_SIZE; position >= lowest; position--) {
+      if (jar.getInt(position) == END_SIGNATURE) {
+        return position;
+      }
+    }
+    throw new IOException(file + " is not a zip file");
+  }
+
+  private String string(int position, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = jar.get(position + i);
+    }
+    return new String(bytes, UTF_8);
+  }
+
+  /**
+   * A class file in a jar.
+   */
+  static final class Entry {
+    Entry(MappedJar jar, String name, int method, int localOffset, int compressedSize, int size) {
+      this.jar = jar;
+      this.name = name;
+      this.method = method;
+      this.localOffset = localOffset;
+      this.compressedSize = compressedSize;
+      this.size = size;
+    }
+
+    final MappedJar jar;
+    final String name;
+    private final int method, localOffset, compressedSize, size;
+
+    /**
+     * @param inflater the inflater to decompress the entry with, which belongs to the calling thread
+     * @return the content of the entry: a slice of the mapped jar, if it is stored, or else a buffer on the heap
+     * @throws IOException if the entry is corrupt
+     */
+    ByteBuffer read(Inflater inflater) throws IOException {
+      ByteBuffer buffer = jar.jar;
+      if (buffer.getInt(localOffset) != LOCAL_SIGNATURE) {
+        throw new IOException(name + " in " + jar.file + " has a corrupt header");
+      }
+      int dataOffset = localOffset + 30 + (buffer.getShort(localOffset + 26) & 0xffff)
+        + (buffer.getShort(localOffset + 28) & 0xffff);
+      if (dataOffset + compressedSize > buffer.limit()) {
+        throw new IOException(name + " in " + jar.file + " is truncated");
+      }
+      ByteBuffer data = buffer.duplicate();
+      data.position(dataOffset);
+      data.limit(dataOffset + compressedSize);
+      if (method == STORED) {
+        return data.slice();
+      }
+
+      // the inflater needs an extra byte after the data when there is no zlib wrapper
+      byte[] compressed = new byte[compressedSize + 1];
+      data.get(compressed, 0, compressedSize);
+      byte[] inflated = new byte[size];
+      inflater.reset();
+      inflater.setInput(compressed);
+      try {
+        int length = 0;
+        while (length < size) {
+          int read = inflater.inflate(inflated, length, size - length);
+          if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+            break;
+          }
+          length += read;
+        }
+        if (length != size) {
+          throw new IOException(name + " in " + jar.file + " is truncated");
+        }
+      }
+      catch (DataFormatException e) {
+        throw new IOException(name + " in " + jar.file + " is corrupt: " + e.getMessage());
+      }
+      return ByteBuffer.wrap(inflated);
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+
+/**
+ * An immutable snapshot of the &#64;{@link OneToMany} mappings of one round, and of the child types they refer to.
+ * The snapshot holds only strings and other snapshots, never {@code javax.lang.model} objects, so rules can be
+ * evaluated over it on any thread; see {@link RuleEvaluator}. javac's model is not thread safe, so a snapshot is only
+ * ever built on the compiler thread, by a {@link Builder}.
+ */
+final class MappingModel {
+  private MappingModel() {}
+
+  /**
+   * A &#64;{@link OneToMany} property to check.
+   */
+  static final class Relationship {
+    Relationship(String parentType, ChildType childType, String mappedBy) {
+      this.parentType = parentType;
+      this.childType = childType;
+      this.mappedBy = mappedBy;
+    }
+
+    /** the qualified name of the type declaring the property */
+    final String parentType;
+    /** the type of elements in the property's collection */
+    final ChildType childType;
+    /** the {@link OneToMany#mappedBy} value of the property, or {@code null} if it has none */
+    final String mappedBy;
+  }
+
+  /**
+   * A child type, and the &#64;{@link ManyToOne} properties it declares.
+   */
+  static final class ChildType {
+    ChildType(String name, ChildType inherited, Map<String, List<ManyToOne>> manyToOnesByTarget) {
+      this.name = name;
+      this.inherited = inherited;
+      this.manyToOnesByTarget = manyToOnesByTarget;
+    }
+
+    final String name;
+    /** the mapped superclass of this type, or {@code null} */
+    final ChildType inherited;
+    /** the properties declared directly on this type, keyed by the qualified name of the type they refer to */
+    final Map<String, List<ManyToOne>> manyToOnesByTarget;
+  }
+
+  /**
+   * A &#64;{@link ManyToOne} property of a child type.
+   */
+  static final class ManyToOne {
+    ManyToOne(String propertyName, boolean parameterized) {
+      this.propertyName = propertyName;
+      this.parameterized = parameterized;
+    }
+
+    final String propertyName;
+    /**
+     * whether the property's type has type arguments; parent types are always compared as declared, without any, so
+     * such a property never refers to one
+     */
+    final boolean parameterized;
+  }
+
+  /**
+   * Takes snapshots of relationships on the compiler thread. Child types are snapshotted once per round, however many
+   * parents refer to them.
+   */
+  static class Builder {
+    private final RelationshipIndex relationshipIndex;
+    private final Map<TypeElement, ChildType> childTypes = new HashMap<TypeElement, ChildType>();
+
+    Builder(RelationshipIndex relationshipIndex) {
+      this.relationshipIndex = relationshipIndex;
+    }
+
+    /**
+     * @param parentType the type declaring a &#64;{@link OneToMany} property
+     * @param childType the type of elements in the property's collection
+     * @param mappedBy the {@link OneToMany#mappedBy} value of the property, or {@code null} if it has none
+     * @return a snapshot of the property
+     */
+    Relationship relationship(TypeElement parentType, TypeElement childType, String mappedBy) {
+      return new Relationship(parentType.getQualifiedName().toString(), childType(childType), mappedBy);
+    }
+
+    /**
+     * Forget all snapshotted types; called at the start of each round.
+     */
+    void clear() {
+      childTypes.clear();
+    }
+
+    /**
+     * @param type a child type
+     * @return a snapshot of {@code type}, and of the mapped superclasses whose properties it inherits
+     */
+    ChildType childType(TypeElement type) {
+      ChildType childType = childTypes.get(type);
+      if (childType == null) {
+        List<TypeElement> hierarchy = relationshipIndex.hierarchyOf(type);
+        ChildType inherited = hierarchy.size() > 1 ? childType(hierarchy.get(1)) : null;
+        Map<String, List<ManyToOne>> manyToOnesByTarget = new HashMap<String, List<ManyToOne>>();
+        for (Element property : relationshipIndex.declaredManyToOnes(type)) {
+          DeclaredType propertyType = (DeclaredType) JpaProcessor.getPropertyType(property);
+          String target = ((TypeElement) propertyType.asElement()).getQualifiedName().toString();
+          List<ManyToOne> manyToOnes = manyToOnesByTarget.get(target);
+          if (manyToOnes == null) {
+            manyToOnes = new ArrayList<ManyToOne>(1);
+            manyToOnesByTarget.put(target, manyToOnes);
+          }
+          manyToOnes.add(
+            new ManyToOne(JpaProcessor.getPropertyName(property), !propertyType.getTypeArguments().isEmpty()));
+        }
+        childType = new ChildType(
+          type.getQualifiedName().toString(), inherited, Collections.unmodifiableMap(manyToOnesByTarget));
+        childTypes.put(type, childType);
+      }
+      return childType;
+    }
+  }
+}
@@ -0,0 +1,337 @@
+package com.overstock.sample.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.persistence.Embeddable;
+import javax.persistence.Entity;
+import javax.persistence.MappedSuperclass;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates the JPA static metamodel class of each &#64;{@link Entity}, &#64;{@link MappedSuperclass} and
+ * &#64;{@link Embeddable} ({@code Order_} for {@code Order}), so that criteria queries can refer to attributes
+ * without naming them in strings. This is what a separate metamodel processor would generate, from the classes of the
+ * round {@link JpaProcessor} already has, using the round's {@link AnnotationTable} and {@link CollectionTypes}.
+ *
+ * The attributes of a class are the persistent members it declares itself, as {@link PersistentMembers} finds them by
+ * its access type: its fields, or its getters. The metamodel of a class extends that of its mapped superclass, which
+ * holds the rest. A {@code Set} is a
+ * {@code SetAttribute}, a {@code List} a {@code ListAttribute}, a {@code Map} a {@code MapAttribute}, any other
+ * {@code Collection} a {@code CollectionAttribute}, and anything else a {@code SingularAttribute}.
+ *
+ * The source is written through the {@link Filer}, with the class and its mapped superclass as originating elements.
+ * If the source left by the previous build is exactly what would be written, and its class is there too, it is left
+ * alone, so that an incremental build does not recompile it, nor everything which uses it. A class whose superclass
+ * or property types do not all exist yet is put off until a later round.
+ */
+class MetamodelGenerator {
+  static final String METAMODEL_OPTION = "jpa.metamodel";
+  static final String SUFFIX = "_";
+
+  private final Elements elementUtils;
+  private final Types typeUtils;
+  private final Filer filer;
+  private final AnnotationTable annotationTable;
+  private final PersistentMembers persistentMembers;
+  private final CollectionTypes collectionTypes;
+  private final Metrics metrics;
+  private final Name entityName, mappedSuperclassName;
+  private final TypeElement collectionElement, mapElement, setElement, listElement;
+  private final Set<String> generated = new HashSet<String>();
+  private final Set<String> deferred = new LinkedHashSet<String>();
+
+  MetamodelGenerator(
+    Elements elementUtils, Types typeUtils, Filer filer, AnnotationTable annotationTable,
+    PersistentMembers persistentMembers, CollectionTypes collectionTypes, Metrics metrics) {
+    this.elementUtils = elementUtils;
+    this.typeUtils = typeUtils;
+    this.filer = filer;
+    this.annotationTable = annotationTable;
+    this.persistentMembers = persistentMembers;
+    this.collectionTypes = collectionTypes;
+    this.metrics = metrics;
+    entityName = elementUtils.getName("javax.persistence.Entity");
+    mappedSuperclassName = elementUtils.getName("javax.persistence.MappedSuperclass");
+    collectionElement = elementUtils.getTypeElement("java.util.Collection");
+    mapElement = elementUtils.getTypeElement("java.util.Map");
+    setElement = elementUtils.getTypeElement("java.util.Set");
+    listElement = elementUtils.getTypeElement("java.util.List");
+  }
+
+  /**
+   * Generate the metamodels of the managed classes of a round, and of those put off from earlier rounds.
+   * @param managedClasses the &#64;{@link Entity}, &#64;{@link MappedSuperclass} and &#64;{@link Embeddable} classes
+   *   found this round
+   * @throws IOException if a metamodel cannot be written
+   */
+  void generate(Set<TypeElement> managedClasses) throws IOException {
+    List<TypeElement> pending = new ArrayList<TypeElement>();
+    for (String name : deferred) {
+      TypeElement type = elementUtils.getTypeElement(name);
+      if (type != null) {
+        pending.add(type);
+      }
+    }
+    deferred.clear();
+    pending.addAll(managedClasses);
+    Set<TypeElement> generating = new HashSet<TypeElement>(pending);
+
+    for (TypeElement type : pending) {
+      String name = type.getQualifiedName().toString();
+      if (generated.contains(name) || !isSupported(type)) {
+        continue;
+      }
+      if (!isResolved(type)) {
+        deferred.add(name);
+      }
+      else {
+        generated.add(name);
+        write(type, metamodelSuperclassOf(type, generating));
+      }
+    }
+  }
+
+  /**
+   * Like {@link AccessorGenerator#isSupported(TypeElement)}, but allowing type parameters, which mapped superclasses
+   * often have.
+   */
+  private static boolean isSupported(TypeElement type) {
+    return type.getKind() == ElementKind.CLASS
+      && !type.getModifiers().contains(Modifier.PRIVATE)
+      && (type.getNestingKind() == NestingKind.TOP_LEVEL
+        || type.getNestingKind() == NestingKind.MEMBER && type.getModifiers().contains(Modifier.STATIC));
+  }
+
+  private boolean isResolved(TypeElement type) {
+    if (type.getSuperclass().getKind() == TypeKind.ERROR) {
+      return false;
+    }
+    for (Element property : properties(type).values()) {
+      if (JpaProcessor.getPropertyType(property).getKind() == TypeKind.ERROR) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param generating the classes whose metamodels are being generated this round
+   * @return the mapped superclass of {@code type}, if its metamodel exists or is being generated, or else
+   *   {@code null}
+   */
+  private TypeElement metamodelSuperclassOf(TypeElement type, Set<TypeElement> generating) {
+    TypeMirror superclass = type.getSuperclass();
+    if (superclass.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    TypeElement superElement = (TypeElement) ((DeclaredType) superclass).asElement();
+    if (!annotationTable.isAnnotated(superElement, entityName)
+        && !annotationTable.isAnnotated(superElement, mappedSuperclassName)) {
+      return null;
+    }
+    if (generating.contains(superElement) || generated.contains(superElement.getQualifiedName().toString())
+        || elementUtils.getTypeElement(metamodelName(superElement)) != null) {
+      return superElement;
+    }
+    return null;
+  }
+
+  /**
+   * @return the properties {@code type} declares itself, by name
+   */
+  private Map<String, Element> properties(TypeElement type) {
+    Map<String, Element> properties = new LinkedHashMap<String, Element>();
+    for (Element member : persistentMembers.declaredMembers(type)) {
+      String name = JpaProcessor.getPropertyName(member);
+      if (!properties.containsKey(name)) {
+        properties.put(name, member);
+      }
+    }
+    return properties;
+  }
+
+  /**
+   * @return the qualified name of the metamodel of {@code type}, which is always a top level class
+   */
+  private String metamodelName(TypeElement type) {
+    String binaryName = elementUtils.getBinaryName(type).toString();
+    int packageEnd = elementUtils.getPackageOf(type).isUnnamed() ? 0 : binaryName.lastIndexOf('.') + 1;
+    return binaryName.substring(0, packageEnd) + binaryName.substring(packageEnd).replace('$', '_') + SUFFIX;
+  }
+
+  private void write(TypeElement type, TypeElement superclass) throws IOException {
+    String typeName = type.getQualifiedName().toString();
+    String metamodelName = metamodelName(type);
+    String simpleName = metamodelName.substring(metamodelName.lastIndexOf('.') + 1);
+    String packageName = elementUtils.getPackageOf(type).getQualifiedName().toString();
+
+    StringWriter content = new StringWriter();
+    PrintWriter out = new PrintWriter(content);
+    if (packageName.length() > 0) {
+      out.println("package " + packageName + ";");
+      out.println();
+    }
+    out.println("/**");
+    out.println(" * The static metamodel of {@link " + typeName + "}; generated by " + JpaProcessor.class.getName()
+      + ".");
+    out.println(" */");
+    out.println("@javax.persistence.metamodel.StaticMetamodel(" + typeName + ".class)");
+    out.println("public abstract class " + simpleName
+      + (superclass == null ? "" : " extends " + metamodelName(superclass)) + " {");
+    for (Map.Entry<String, Element> property : properties(type).entrySet()) {
+      out.println("  public static volatile " + attributeType(typeName, JpaProcessor.getPropertyType(
+        property.getValue())) + " " + property.getKey() + ";");
+    }
+    out.println("}");
+    out.close();
+
+    if (isUnchanged(packageName, simpleName, content.toString())) {
+      metrics.count(Metrics.Counter.METAMODELS_UNCHANGED);
+      return;
+    }
+    Element[] originatingElements = superclass == null ? new Element[] { type } : new Element[] { type, superclass };
+    JavaFileObject source = filer.createSourceFile(metamodelName, originatingElements);
+    Writer writer = source.openWriter();
+    try {
+      writer.write(content.toString());
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * @return whether the previous build left exactly {@code content} as the metamodel's source, and compiled it
+   */
+  private boolean isUnchanged(String packageName, String simpleName, String content) {
+    try {
+      if (filer.getResource(StandardLocation.CLASS_OUTPUT, packageName, simpleName + ".class").getLastModified() == 0) {
+        return false;
+      }
+      FileObject previous = filer.getResource(StandardLocation.SOURCE_OUTPUT, packageName, simpleName + ".java");
+      Reader reader = previous.openReader(true);
+      try {
+        StringBuilder previousContent = new StringBuilder(content.length());
+        char[] buffer = new char[4096];
+        for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+          previousContent.append(buffer, 0, read);
+          if (previousContent.length() > content.length()) {
+            return false;
+          }
+        }
+        return previousContent.toString().equals(content);
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (IOException e) {
+      return false; // there is no previous metamodel (this is a clean build), or it is unreadable
+    }
+    catch (IllegalArgumentException e) {
+      return false; // the filer cannot read from that location
+    }
+  }
+
+  /**
+   * @param typeName the qualified name of the class declaring the property
+   * @param propertyType the type of the property
+   * @return the type of the property's attribute in the metamodel
+   */
+  private String attributeType(String typeName, TypeMirror propertyType) {
+    String metamodel = "javax.persistence.metamodel.";
+    if (propertyType.getKind() == TypeKind.DECLARED) {
+      TypeMirror erasure = typeUtils.erasure(propertyType);
+      TypeMirror elementType = collectionTypes.elementType(propertyType);
+      if (typeUtils.isAssignable(erasure, typeUtils.erasure(mapElement.asType()))) {
+        return metamodel + "MapAttribute<" + typeName + ", " + typeName(mapKeyType(propertyType)) + ", "
+          + typeName(elementType) + ">";
+      }
+      if (typeUtils.isAssignable(erasure, typeUtils.erasure(setElement.asType()))) {
+        return metamodel + "SetAttribute<" + typeName + ", " + typeName(elementType) + ">";
+      }
+      if (typeUtils.isAssignable(erasure, typeUtils.erasure(listElement.asType()))) {
+        return metamodel + "ListAttribute<" + typeName + ", " + typeName(elementType) + ">";
+      }
+      if (typeUtils.isAssignable(erasure, typeUtils.erasure(collectionElement.asType()))) {
+        return metamodel + "CollectionAttribute<" + typeName + ", " + typeName(elementType) + ">";
+      }
+    }
+    return metamodel + "SingularAttribute<" + typeName + ", " + typeName(propertyType) + ">";
+  }
+
+  /**
+   * @return the type of the keys of {@code type}, which is a {@code Map}, or {@code null} if it is raw
+   */
+  private TypeMirror mapKeyType(TypeMirror type) {
+    Deque<TypeMirror> pending = new ArrayDeque<TypeMirror>();
+    pending.add(type);
+    while (!pending.isEmpty()) {
+      TypeMirror next = pending.removeFirst();
+      if (next.getKind() != TypeKind.DECLARED) {
+        continue;
+      }
+      DeclaredType declared = (DeclaredType) next;
+      if (declared.asElement().equals(mapElement)) {
+        return declared.getTypeArguments().isEmpty() ? null : declared.getTypeArguments().get(0);
+      }
+      pending.addAll(typeUtils.directSupertypes(declared));
+    }
+    return null;
+  }
+
+  /**
+   * @return how to write {@code type} as a type argument: boxed, if it is primitive, erased, if it is or uses a type
+   *   variable, and {@code java.lang.Object} if it is not known
+   */
+  private String typeName(TypeMirror type) {
+    if (type == null) {
+      return Object.class.getName();
+    }
+    if (type.getKind() == TypeKind.WILDCARD) {
+      return typeName(((WildcardType) type).getExtendsBound());
+    }
+    if (type.getKind().isPrimitive()) {
+      return typeUtils.boxedClass(typeUtils.getPrimitiveType(type.getKind())).getQualifiedName().toString();
+    }
+    if (type.getKind() == TypeKind.TYPEVAR) {
+      return typeUtils.erasure(type).toString();
+    }
+    if (type.getKind() == TypeKind.DECLARED) {
+      for (TypeMirror argument : ((DeclaredType) type).getTypeArguments()) {
+        if (argument.getKind() == TypeKind.TYPEVAR || argument.getKind() == TypeKind.WILDCARD) {
+          return typeUtils.erasure(type).toString();
+        }
+      }
+    }
+    return type.toString();
+  }
+}
@@ -0,0 +1,92 @@
+package com.overstock.sample.processor;
+
+import java.io.IOException;
+
+/**
+ * Counters and timers for the work the processor does. This class records nothing; it is what the processor uses
+ * unless the {@value #METRICS_OPTION} option is given, in which case a {@link RecordingMetrics} is used instead. With
+ * only this class loaded, calls to it are empty and are inlined away, so leaving the instrumentation in place costs
+ * nothing.
+ */
+class Metrics {
+  static final String METRICS_OPTION = "jpa.metrics";
+
+  static final Metrics DISABLED = new Metrics();
+
+  enum Counter {
+    /** entities, properties and members looked at */
+    ELEMENTS_VISITED,
+    /** annotation mirrors read while looking for an annotation */
+    ANNOTATION_MIRRORS_INSPECTED,
+    /** &#64;ManyToOne properties compared with a parent type, by {@link RuleEvaluator} */
+    SAME_TYPE_CHECKS,
+    /** annotation lookups answered from an already built {@link AnnotationTable} */
+    ANNOTATION_TABLE_HITS,
+    /** child type lookups answered from an already built {@link RelationshipIndex} table */
+    RELATIONSHIP_INDEX_HITS,
+    /** verdicts replayed from the {@link VerdictCache} */
+    VERDICT_CACHE_HITS,
+    /** verdicts which had to be worked out, with the {@link VerdictCache} enabled */
+    VERDICT_CACHE_MISSES,
+    /** &#64;OneToMany properties put off to a later round, because a type they depend on does not exist yet */
+    PROPERTIES_DEFERRED,
+    /** supertype walks to find the element type of a collection, by {@link CollectionTypes}; the rest are remembered */
+    COLLECTION_TYPE_WALKS,
+    /** types skipped, with everything they enclose, because they are out of the {@link ProcessingScope} */
+    TYPES_OUT_OF_SCOPE,
+    /** metamodels left as the previous build wrote them, by {@link MetamodelGenerator}, rather than written again */
+    METAMODELS_UNCHANGED
+  }
+
+  /**
+   * Something being timed; call {@link #stop()} when it is done.
+   */
+  static class Timer {
+    static final Timer DISABLED = new Timer();
+
+    void stop() {}
+  }
+
+  /**
+   * @return whether anything is recorded; callers which measure time themselves, rather than through a
+   *   {@link Timer}, should only read the clock if it is
+   */
+  boolean isEnabled() {
+    return false;
+  }
+
+  void count(Counter counter) {}
+
+  void count(Counter counter, int amount) {}
+
+  /**
+   * Start timing a round of processing.
+   * @return the timer to stop when the round is done
+   */
+  Timer startRound() {
+    return Timer.DISABLED;
+  }
+
+  /**
+   * Start timing one rule within the current round.
+   * @param rule the name of the rule
+   * @return the timer to stop when the rule is done
+   */
+  Timer startRule(String rule) {
+    return Timer.DISABLED;
+  }
+
+  /**
+   * Add time spent in a rule, measured by the caller, to the current round.
+   * @param rule the name of the rule
+   * @param nanos the time spent in the rule
+   * @param elements the number of elements the rule checked in that time
+   */
+  void addRuleTime(String rule, long nanos, int elements) {}
+
+  /**
+   * Write out everything recorded; called once processing is over.
+   * @throws IOException if the report cannot be written
+   */
+  void report() throws IOException {}
+}
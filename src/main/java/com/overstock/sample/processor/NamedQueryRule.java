@@ -0,0 +1,301 @@
+package com.overstock.sample.processor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Verifies the JPQL of each &#64;{@link NamedQuery}, whether on its own or within &#64;{@link NamedQueries}, at
+ * compile time rather than when the persistence provider starts up: that it parses, that its entity names name
+ * entities, and that its path expressions navigate the entity model correctly; see {@link JpqlParser} and
+ * {@link QueryValidator}. Query names must also be unique.
+ *
+ * Queries are checked at the end of each round, once that round's entities are known. A query naming an entity or
+ * type which does not exist yet is put off until the next round, in case another processor generates it, and only
+ * reported once processing is over. Since an entity name which cannot be found may name an entity in a package the
+ * validator did not search, it is reported as a warning, not an error. Between rounds only class names are kept.
+ *
+ * With the {@code jpa.queryManifest} option, the queries which pass are listed in a {@link QueryManifest}, merged,
+ * as in an incremental build, with those of the previous manifest whose classes were not compiled again. A query
+ * with a warning has not been fully checked, so it is not listed.
+ */
+class NamedQueryRule extends AbstractValidationRule {
+  static final String NAME = "namedQuery";
+  static final String MANIFEST_OPTION = "jpa.queryManifest";
+
+  private final AnnotationTable annotationTable;
+  private final CollectionTypes collectionTypes;
+  private final RelationshipIndex relationshipIndex;
+  private final Metrics metrics;
+  private QueryValidator validator;
+  private Set<TypeElement> roundEntities = Collections.emptySet();
+  private Name namedQueryName, namedQueriesName;
+  private boolean writeManifest;
+  private final List<TypeElement> roundTypes = new ArrayList<TypeElement>();
+  private final Set<String> deferredTypes = new LinkedHashSet<String>();
+  /** the queries which passed, by name, to their class and query; kept from one round to the next */
+  private final Map<String, String[]> validated = new HashMap<String, String[]>();
+
+  NamedQueryRule(
+    AnnotationTable annotationTable, CollectionTypes collectionTypes, RelationshipIndex relationshipIndex,
+    Metrics metrics) {
+    super(NAME, EnumSet.of(ElementKind.CLASS), "javax.persistence.NamedQuery", "javax.persistence.NamedQueries");
+    this.annotationTable = annotationTable;
+    this.collectionTypes = collectionTypes;
+    this.relationshipIndex = relationshipIndex;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    validator = new QueryValidator(
+      processingEnv.getElementUtils(), annotationTable, collectionTypes, relationshipIndex);
+    namedQueryName = processingEnv.getElementUtils().getName("javax.persistence.NamedQuery");
+    namedQueriesName = processingEnv.getElementUtils().getName("javax.persistence.NamedQueries");
+    writeManifest = "true".equals(processingEnv.getOptions().get(MANIFEST_OPTION));
+  }
+
+  /**
+   * @param roundEntities the entities of each round, as the {@link RuleDispatcher} collects them; the set is refilled
+   *   before the round ends
+   */
+  void setRoundEntities(Set<TypeElement> roundEntities) {
+    this.roundEntities = roundEntities;
+  }
+
+  @Override
+  public void check(Element element) {
+    metrics.count(Metrics.Counter.ELEMENTS_VISITED);
+    roundTypes.add((TypeElement) element);
+  }
+
+  @Override
+  public void endRound(RoundEnvironment roundEnv) {
+    for (TypeElement entity : roundEntities) {
+      validator.addEntity(entity);
+    }
+    List<TypeElement> types = new ArrayList<TypeElement>();
+    for (String deferred : deferredTypes) {
+      TypeElement type = processingEnv.getElementUtils().getTypeElement(deferred);
+      if (type != null) {
+        types.add(type);
+      }
+    }
+    deferredTypes.clear();
+    types.addAll(roundTypes);
+    roundTypes.clear();
+
+    for (TypeElement type : types) {
+      checkQueries(type, roundEnv.processingOver());
+    }
+    validator.clear();
+
+    if (roundEnv.processingOver() && writeManifest) {
+      try {
+        writeManifest(processingEnv.getFiler());
+      }
+      catch (IOException e) {
+        processingEnv.getMessager().printMessage(Kind.WARNING, "Unable to write query manifest: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Check the named queries of one class, unless one of them refers to a type which may yet be generated, in which
+   * case the class is put off until the next round.
+   */
+  private void checkQueries(TypeElement type, boolean lastRound) {
+    List<Query> queries = namedQueries(type);
+    List<QueryValidator.Result> results = new ArrayList<QueryValidator.Result>();
+    for (Query query : queries) {
+      QueryValidator.Result result;
+      try {
+        result = validator.validate(JpqlParser.parse(query.query), type);
+      }
+      catch (ParseException e) {
+        result = new QueryValidator.Result();
+        result.problems.add("syntax error at offset " + e.getErrorOffset() + ": " + e.getMessage());
+      }
+      if (result.unresolved && !lastRound) {
+        deferredTypes.add(type.getQualifiedName().toString());
+        return;
+      }
+      results.add(result);
+    }
+
+    String className = processingEnv.getElementUtils().getBinaryName(type).toString();
+    for (int i = 0; i < queries.size(); i++) {
+      Query query = queries.get(i);
+      String[] existing = validated.get(query.name);
+      if (existing != null && !existing[0].equals(className)) {
+        report(query, type, Kind.ERROR, "is also declared by " + existing[0]);
+      }
+      else if (results.get(i).problems.isEmpty() && results.get(i).warnings.isEmpty()) {
+        validated.put(query.name, new String[] { className, query.query });
+      }
+      for (String problem : results.get(i).problems) {
+        report(query, type, Kind.ERROR, problem);
+      }
+      for (String warning : results.get(i).warnings) {
+        report(query, type, Kind.WARNING, warning);
+      }
+    }
+  }
+
+  private void report(Query query, TypeElement type, Kind kind, String problem) {
+    processingEnv.getMessager().printMessage(
+      kind, "named query \"" + query.name + "\": " + problem, type, query.annotation, query.queryValue);
+  }
+
+  /**
+   * @return the named queries declared on {@code type}, read from its annotation mirrors
+   */
+  private List<Query> namedQueries(TypeElement type) {
+    List<Query> queries = new ArrayList<Query>();
+    AnnotationMirror single = annotationTable.get(type, namedQueryName);
+    if (single != null) {
+      addQuery(single, queries);
+    }
+    AnnotationMirror container = annotationTable.get(type, namedQueriesName);
+    if (container != null) {
+      for (AnnotationValue value : container.getElementValues().values()) {
+        if (value.getValue() instanceof List) {
+          for (Object element : (List<?>) value.getValue()) {
+            addQuery((AnnotationMirror) ((AnnotationValue) element).getValue(), queries);
+          }
+        }
+      }
+    }
+    return queries;
+  }
+
+  private static void addQuery(AnnotationMirror annotation, List<Query> queries) {
+    Query query = new Query(annotation);
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value :
+        annotation.getElementValues().entrySet()) {
+      String attribute = value.getKey().getSimpleName().toString();
+      if (attribute.equals("name")) {
+        query.name = value.getValue().getValue().toString();
+      }
+      else if (attribute.equals("query")) {
+        query.query = value.getValue().getValue().toString();
+        query.queryValue = value.getValue();
+      }
+    }
+    if (query.name != null && query.query != null) { // else javac reports the missing attribute
+      queries.add(query);
+    }
+  }
+
+  private void writeManifest(Filer filer) throws IOException {
+    QueryManifest manifest = new QueryManifest();
+    List<Element> originatingElements = new ArrayList<Element>();
+    Set<String> classNames = new LinkedHashSet<String>();
+    for (Map.Entry<String, String[]> query : validated.entrySet()) {
+      manifest.add(query.getKey(), query.getValue()[0], query.getValue()[1]);
+      classNames.add(query.getValue()[0]);
+    }
+    QueryManifest previous = readPreviousManifest(filer);
+    for (String name : previous.getQueryNames()) {
+      String className = previous.getDeclaringClassName(name);
+      if (!classNames.contains(className) && !validated.containsKey(name) && stillDeclares(className, name,
+          previous.getQuery(name))) {
+        manifest.add(name, className, previous.getQuery(name));
+      }
+    }
+    for (String name : manifest.getQueryNames()) {
+      TypeElement type = lookUp(manifest.getDeclaringClassName(name));
+      if (type != null) {
+        originatingElements.add(type);
+      }
+    }
+
+    FileObject resource = filer.createResource(StandardLocation.CLASS_OUTPUT, "", QueryManifest.RESOURCE_NAME,
+      originatingElements.toArray(new Element[originatingElements.size()]));
+    Writer writer = resource.openWriter();
+    try {
+      manifest.write(writer);
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  private QueryManifest readPreviousManifest(Filer filer) {
+    QueryManifest previous = new QueryManifest();
+    try {
+      FileObject resource = filer.getResource(StandardLocation.CLASS_OUTPUT, "", QueryManifest.RESOURCE_NAME);
+      Reader reader = resource.openReader(true);
+      try {
+        previous.read(reader, resource.toUri().toString());
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (IOException e) {
+      // there is no previous manifest (this is a clean build), or it is unreadable; either way, start afresh
+      return new QueryManifest();
+    }
+    return previous;
+  }
+
+  /**
+   * @return whether the class named {@code className} still declares the query which was validated under that name
+   */
+  private boolean stillDeclares(String className, String name, String jpql) {
+    TypeElement type = lookUp(className);
+    if (type != null) {
+      for (Query query : namedQueries(type)) {
+        if (query.name.equals(name) && query.query.equals(jpql)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private TypeElement lookUp(String className) {
+    return processingEnv.getElementUtils().getTypeElement(className.replace('$', '.'));
+  }
+
+  /**
+   * One &#64;NamedQuery, as read from its annotation mirror.
+   */
+  private static class Query {
+    Query(AnnotationMirror annotation) {
+      this.annotation = annotation;
+    }
+
+    final AnnotationMirror annotation;
+    String name;
+    String query;
+    AnnotationValue queryValue;
+  }
+}
@@ -0,0 +1,58 @@
+package com.overstock.sample.processor;
+
+import java.util.EnumSet;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.persistence.Entity;
+import javax.tools.Diagnostic.Kind;
+
+/**
+ * Verifies that &#64;{@link Entity}-annotated classes have a no-argument constructor, which JPA needs in order to
+ * instantiate them.
+ */
+class NoArgumentConstructorRule extends AbstractValidationRule {
+  static final String NAME = "noArgumentConstructor";
+
+  private final AnnotationTable annotationTable;
+  private final Metrics metrics;
+  private Name entityName;
+
+  NoArgumentConstructorRule(AnnotationTable annotationTable, Metrics metrics) {
+    super(
+      NAME,
+      EnumSet.of(ElementKind.CLASS, ElementKind.INTERFACE, ElementKind.ENUM, ElementKind.ANNOTATION_TYPE),
+      "javax.persistence.Entity");
+    this.annotationTable = annotationTable;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    entityName = processingEnv.getElementUtils().getName("javax.persistence.Entity");
+  }
+
+  @Override
+  public void check(Element element) {
+    metrics.count(Metrics.Counter.ELEMENTS_VISITED);
+    TypeElement typeElement = (TypeElement) element;
+    for (ExecutableElement constructor : ElementFilter.constructorsIn(typeElement.getEnclosedElements())) {
+      if (constructor.getParameters().isEmpty()) {
+        return;
+      }
+    }
+    AnnotationMirror entityAnnotation = annotationTable.get(typeElement, entityName);
+    processingEnv.getMessager().printMessage(
+      Kind.ERROR,
+      "missing no argument constructor",
+      typeElement,
+      entityAnnotation);
+  }
+}
@@ -0,0 +1,174 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.Transient;
+
+/**
+ * Finds the persistent members of a managed class by its access type, as a JPA provider would, for
+ * {@link AccessorGenerator} and {@link MetamodelGenerator}; {@link BagCollectionRule} uses it to find superclasses.
+ * A class uses property access if it is annotated {@code @Access(PROPERTY)}, or, without {@code @Access}, if the
+ * &#64;{@link Id} or {@code @EmbeddedId} of its hierarchy is on a getter; otherwise it uses field access. Where the
+ * hierarchy has no id (as for an embeddable), the first member of the class carrying a {@code javax.persistence}
+ * annotation decides instead.
+ *
+ * Under field access, the persistent members are the fields which are not static, {@code transient} or
+ * &#64;{@link Transient}; under property access, they are the getters which are not static or &#64;{@link Transient},
+ * and which have a setter or carry a {@code javax.persistence} annotation. Either way, a member annotated with
+ * {@code @Access} of the other type is persistent as well.
+ *
+ * Annotations are looked up through the {@link AnnotationTable}, so this should only be used for a single round.
+ */
+class PersistentMembers {
+  private final AnnotationTable annotationTable;
+  private final Name accessName, entityName, mappedSuperclassName, transientName, idName, embeddedIdName;
+
+  PersistentMembers(Elements elementUtils, AnnotationTable annotationTable) {
+    this.annotationTable = annotationTable;
+    accessName = elementUtils.getName("javax.persistence.Access");
+    entityName = elementUtils.getName("javax.persistence.Entity");
+    mappedSuperclassName = elementUtils.getName("javax.persistence.MappedSuperclass");
+    transientName = elementUtils.getName("javax.persistence.Transient");
+    idName = elementUtils.getName("javax.persistence.Id");
+    embeddedIdName = elementUtils.getName("javax.persistence.EmbeddedId");
+  }
+
+  /**
+   * @param type a managed class
+   * @return the persistent fields and getters declared directly on {@code type}, in declaration order
+   */
+  List<Element> declaredMembers(TypeElement type) {
+    boolean propertyAccess = isPropertyAccess(type);
+    List<ExecutableElement> methods = ElementFilter.methodsIn(type.getEnclosedElements());
+    List<Element> members = new ArrayList<Element>();
+    for (Element member : type.getEnclosedElements()) {
+      if (member.getModifiers().contains(Modifier.STATIC) || annotationTable.isAnnotated(member, transientName)) {
+        continue;
+      }
+      if (member.getKind() == ElementKind.FIELD) {
+        if (!member.getModifiers().contains(Modifier.TRANSIENT)
+            && (!propertyAccess || "FIELD".equals(explicitAccess(member)))) {
+          members.add(member);
+        }
+      }
+      else if (member.getKind() == ElementKind.METHOD && isGetter((ExecutableElement) member)) {
+        if (propertyAccess ? hasSetter((ExecutableElement) member, methods) || isMapped(member)
+            : "PROPERTY".equals(explicitAccess(member))) {
+          members.add(member);
+        }
+      }
+    }
+    return members;
+  }
+
+  /**
+   * @param type a managed class
+   * @return whether the persistent members of {@code type} are its getters, rather than its fields
+   */
+  boolean isPropertyAccess(TypeElement type) {
+    String access = explicitAccess(type);
+    if (access != null) {
+      return access.equals("PROPERTY");
+    }
+    for (TypeElement declaring = type; declaring != null; declaring = mappedSuperclassOf(declaring)) {
+      for (Element member : declaring.getEnclosedElements()) {
+        if (annotationTable.isAnnotated(member, idName) || annotationTable.isAnnotated(member, embeddedIdName)) {
+          return member.getKind() == ElementKind.METHOD;
+        }
+      }
+    }
+    for (Element member : type.getEnclosedElements()) {
+      if ((member.getKind() == ElementKind.FIELD || member.getKind() == ElementKind.METHOD) && isMapped(member)) {
+        return member.getKind() == ElementKind.METHOD;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the &#64;{@link Entity} or &#64;{@link MappedSuperclass} superclass of {@code type}, or {@code null}
+   */
+  TypeElement mappedSuperclassOf(TypeElement type) {
+    TypeMirror superclass = type.getSuperclass();
+    if (superclass.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    TypeElement superElement = (TypeElement) ((DeclaredType) superclass).asElement();
+    if (annotationTable.isAnnotated(superElement, entityName)
+        || annotationTable.isAnnotated(superElement, mappedSuperclassName)) {
+      return superElement;
+    }
+    return null;
+  }
+
+  /**
+   * @return the access type {@code element} is annotated with ({@code "FIELD"} or {@code "PROPERTY"}), or
+   *   {@code null} if it has no {@code @Access}
+   */
+  private String explicitAccess(Element element) {
+    AnnotationMirror access = annotationTable.get(element, accessName);
+    if (access == null) {
+      return null;
+    }
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value
+        : access.getElementValues().entrySet()) {
+      if (value.getKey().getSimpleName().contentEquals("value")) {
+        return ((VariableElement) value.getValue().getValue()).getSimpleName().toString();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return whether {@code member} carries a {@code javax.persistence} annotation, other than &#64;{@link Transient}
+   *   or {@code @Access}
+   */
+  private static boolean isMapped(Element member) {
+    for (AnnotationMirror annotation : member.getAnnotationMirrors()) {
+      String name = ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().toString();
+      if (name.startsWith("javax.persistence.") && !name.equals("javax.persistence.Transient")
+          && !name.equals("javax.persistence.Access")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isGetter(ExecutableElement method) {
+    String name = method.getSimpleName().toString();
+    return method.getParameters().isEmpty() && method.getReturnType().getKind() != TypeKind.VOID
+      && (name.startsWith("get") && name.length() > 3
+        || name.startsWith("is") && name.length() > 2 && method.getReturnType().getKind() == TypeKind.BOOLEAN);
+  }
+
+  private static boolean hasSetter(ExecutableElement getter, List<ExecutableElement> methods) {
+    String setterName = "set" + getter.getSimpleName().toString().substring(
+      getter.getSimpleName().toString().startsWith("is") ? 2 : 3);
+    for (ExecutableElement method : methods) {
+      if (method.getSimpleName().contentEquals(setterName) && method.getParameters().size() == 1
+          && !method.getModifiers().contains(Modifier.STATIC)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
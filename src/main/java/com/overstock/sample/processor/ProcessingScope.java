@@ -0,0 +1,104 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.lang.model.element.TypeElement;
+
+/**
+ * Which types the validation rules look at, chosen by globs over their qualified names, so that packages which cannot
+ * be changed, such as generated or legacy code, cost nothing to compile. A type is in scope if it matches one of the
+ * include globs, or there are none, and matches none of the exclude globs.
+ *
+ * In a glob, {@code *} matches any part of a single name, {@code **} any number of names and the dots between them,
+ * and {@code ?} one character of a name. So {@code com.acme.legacy.**} matches every type in that package and those
+ * below it, {@code com.acme.*.Order} an {@code Order} in any package directly below {@code com.acme}, and
+ * {@code **.*Audit} any type whose name ends in {@code Audit}. Nested types are matched by their qualified names too,
+ * such as {@code com.acme.Order.Line}.
+ *
+ * Types out of scope are still seen as the parents and children of those in scope; only their own annotations go
+ * unchecked.
+ */
+class ProcessingScope {
+  static final String INCLUDE_OPTION = "jpa.include";
+  static final String EXCLUDE_OPTION = "jpa.exclude";
+
+  /** includes every type */
+  static final ProcessingScope EVERYTHING = new ProcessingScope(new ArrayList<Pattern>(), new ArrayList<Pattern>());
+
+  private final List<Pattern> includes;
+  private final List<Pattern> excludes;
+
+  private ProcessingScope(List<Pattern> includes, List<Pattern> excludes) {
+    this.includes = includes;
+    this.excludes = excludes;
+  }
+
+  /**
+   * @param includes comma separated globs of the types to include, or {@code null} to include all
+   * @param excludes comma separated globs of the types to exclude, or {@code null} to exclude none
+   */
+  static ProcessingScope parse(String includes, String excludes) {
+    if (includes == null && excludes == null) {
+      return EVERYTHING;
+    }
+    return new ProcessingScope(compile(includes), compile(excludes));
+  }
+
+  /**
+   * @return whether {@code type} should be validated
+   */
+  boolean includes(TypeElement type) {
+    if (this == EVERYTHING) {
+      return true;
+    }
+    String name = type.getQualifiedName().toString();
+    return (includes.isEmpty() || matchesAny(includes, name)) && !matchesAny(excludes, name);
+  }
+
+  private static boolean matchesAny(List<Pattern> patterns, String name) {
+    for (Pattern pattern : patterns) {
+      if (pattern.matcher(name).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<Pattern> compile(String globs) {
+    List<Pattern> patterns = new ArrayList<Pattern>();
+    if (globs != null) {
+      for (String glob : globs.split(",")) {
+        if (glob.trim().length() > 0) {
+          patterns.add(toPattern(glob.trim()));
+        }
+      }
+    }
+    return patterns;
+  }
+
+  /**
+   * @return a regular expression matching the qualified names which {@code glob} does
+   */
+  private static Pattern toPattern(String glob) {
+    StringBuilder regex = new StringBuilder();
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+        regex.append(".*");
+        i++;
+      }
+      else if (c == '*') {
+        regex.append("[^.]*");
+      }
+      else if (c == '?') {
+        regex.append("[^.]");
+      }
+      else {
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return Pattern.compile(regex.toString());
+  }
+}
@@ -0,0 +1,362 @@
+package com.overstock.sample.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.persistence.Entity;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates the implementation of each &#64;{@link ProjectionOf} interface: a final class with a field for each
+ * getter, set by a constructor taking them in the order the getters are declared, and a {@code QUERY} constant
+ * selecting the class with a JPQL constructor expression, such as
+ * {@code SELECT NEW com.example.OrderSummary_Dto(o.id, o.customer.name) FROM Order o}. The implementation of
+ * {@code com.example.OrderSummary} is {@code com.example.OrderSummary_Dto}.
+ *
+ * Each getter is checked against the entity first: its path must lead to a property which is not a collection,
+ * through to-one associations and embedded properties only (see {@link QueryValidator}), and the property's type must
+ * be assignable to the getter's. Paths through to-one associations are inner joins, so entities whose association
+ * is null are not selected. Nothing is generated for an interface with errors.
+ *
+ * An interface whose entity, or some type along one of its paths, does not exist yet is put off until a later round.
+ */
+class ProjectionGenerator {
+  static final String SUFFIX = "_Dto";
+
+  private final Elements elementUtils;
+  private final Types typeUtils;
+  private final Filer filer;
+  private final Messager messager;
+  private final AnnotationTable annotationTable;
+  private final QueryValidator validator;
+  private final Name projectionOfName, pathName, entityName;
+  private final Set<String> generated = new HashSet<String>();
+  private final Set<String> deferred = new LinkedHashSet<String>();
+
+  ProjectionGenerator(
+    Elements elementUtils, Types typeUtils, Filer filer, Messager messager, AnnotationTable annotationTable,
+    CollectionTypes collectionTypes, RelationshipIndex relationshipIndex) {
+    this.elementUtils = elementUtils;
+    this.typeUtils = typeUtils;
+    this.filer = filer;
+    this.messager = messager;
+    this.annotationTable = annotationTable;
+    validator = new QueryValidator(elementUtils, annotationTable, collectionTypes, relationshipIndex);
+    projectionOfName = elementUtils.getName(ProjectionOf.class.getCanonicalName());
+    pathName = elementUtils.getName(ProjectionOf.Path.class.getCanonicalName());
+    entityName = elementUtils.getName("javax.persistence.Entity");
+  }
+
+  /**
+   * Check and generate the projections of a round, and those put off from earlier rounds.
+   * @param projections the &#64;{@link ProjectionOf} types found this round
+   * @param lastRound whether this is the last round, in which projections are checked, whether or not their types
+   *   exist, but not generated, since sources generated in the last round are not compiled
+   * @throws IOException if a projection cannot be written
+   */
+  void generate(Set<TypeElement> projections, boolean lastRound) throws IOException {
+    List<TypeElement> pending = new ArrayList<TypeElement>();
+    for (String name : deferred) {
+      TypeElement projection = elementUtils.getTypeElement(name);
+      if (projection != null) {
+        pending.add(projection);
+      }
+    }
+    deferred.clear();
+    pending.addAll(projections);
+
+    for (TypeElement projection : pending) {
+      String name = projection.getQualifiedName().toString();
+      if (!generated.add(name)) {
+        continue;
+      }
+      Projection checked = check(projection);
+      if (checked.unresolved && !lastRound) {
+        generated.remove(name);
+        deferred.add(name);
+      }
+      else {
+        checked.report(messager);
+        if (checked.problems.isEmpty() && !checked.unresolved && !lastRound) {
+          write(checked);
+        }
+      }
+    }
+    validator.clear();
+  }
+
+  private Projection check(TypeElement projection) {
+    AnnotationMirror annotation = annotationTable.get(projection, projectionOfName);
+    Projection checked = new Projection(projection, annotation);
+    if (projection.getKind() != ElementKind.INTERFACE) {
+      checked.problem(projection, "@ProjectionOf can only be used on an interface");
+      return checked;
+    }
+    if (projection.getModifiers().contains(Modifier.PRIVATE) || !projection.getTypeParameters().isEmpty()) {
+      checked.problem(projection, "a projection cannot be private, or have type parameters");
+      return checked;
+    }
+    TypeMirror entityType = null;
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value :
+        annotation.getElementValues().entrySet()) {
+      if (value.getKey().getSimpleName().contentEquals("value")) {
+        entityType = (TypeMirror) value.getValue().getValue();
+      }
+    }
+    if (entityType == null || entityType.getKind() == TypeKind.ERROR) {
+      checked.unresolved = true;
+      return checked;
+    }
+    Element entity = typeUtils.asElement(entityType);
+    if (entity == null || !annotationTable.isAnnotated(entity, entityName)) {
+      checked.problem(projection, entityType + " is not an entity");
+      return checked;
+    }
+    checked.entity = (TypeElement) entity;
+    checked.alias = checked.entityName().substring(0, 1).toLowerCase(Locale.ENGLISH);
+
+    for (ExecutableElement getter : ElementFilter.methodsIn(elementUtils.getAllMembers(projection))) {
+      if (getter.getModifiers().contains(Modifier.ABSTRACT)) {
+        checkGetter(getter, checked);
+      }
+    }
+    return checked;
+  }
+
+  private void checkGetter(ExecutableElement getter, Projection checked) {
+    String name = getter.getSimpleName().toString();
+    AnnotationMirror pathAnnotation = annotationTable.get(getter, pathName);
+    boolean getterName = name.length() > 3 && name.startsWith("get") || name.length() > 2 && name.startsWith("is");
+    if (!getter.getParameters().isEmpty() || !getter.getTypeParameters().isEmpty()
+        || getter.getReturnType().getKind() == TypeKind.VOID || !getterName && pathAnnotation == null) {
+      checked.problem(getter, name + " is not a getter, so cannot be projected");
+      return;
+    }
+    TypeMirror returnType = getter.getReturnType();
+    if (returnType.getKind() == TypeKind.ERROR) {
+      checked.unresolved = true;
+      return;
+    }
+
+    JpqlParser.Path path = new JpqlParser.Path(checked.alias, 0);
+    String pathValue = null;
+    if (pathAnnotation != null) {
+      for (AnnotationValue value : pathAnnotation.getElementValues().values()) {
+        pathValue = value.getValue().toString();
+      }
+    }
+    for (String property : (pathValue == null ? JpaProcessor.getPropertyName(getter) : pathValue).split("\\.", -1)) {
+      path.properties.add(property.trim());
+    }
+    QueryValidator.Result result = new QueryValidator.Result();
+    Element property = validator.resolveProperty(checked.entity, path, result);
+    checked.unresolved |= result.unresolved;
+    for (String problem : result.problems) {
+      checked.problem(getter, problem);
+    }
+    if (property == null) {
+      return;
+    }
+    TypeMirror propertyType = JpaProcessor.getPropertyType(property);
+    if (propertyType.getKind() != TypeKind.TYPEVAR && !typeUtils.isAssignable(propertyType, returnType)) {
+      checked.problem(
+        getter,
+        property.getEnclosingElement().getSimpleName() + "." + JpaProcessor.getPropertyName(property) + " is a "
+          + propertyType + ", so cannot be returned as " + returnType);
+      return;
+    }
+    checked.getters.add(getter);
+    checked.paths.add(path.toString());
+  }
+
+  private void write(Projection projection) throws IOException {
+    String interfaceName = projection.type.getQualifiedName().toString();
+    String binaryName = elementUtils.getBinaryName(projection.type).toString();
+    int packageEnd = binaryName.lastIndexOf('.') + 1;
+    String dtoName = binaryName.substring(0, packageEnd) + binaryName.substring(packageEnd).replace('$', '_') + SUFFIX;
+    String simpleName = dtoName.substring(packageEnd);
+    String packageName = elementUtils.getPackageOf(projection.type).getQualifiedName().toString();
+
+    List<String> fields = new ArrayList<String>();
+    List<String> types = new ArrayList<String>();
+    for (ExecutableElement getter : projection.getters) {
+      fields.add(JpaProcessor.getPropertyName(getter));
+      types.add(getter.getReturnType().toString());
+    }
+    StringBuilder query = new StringBuilder("SELECT NEW ").append(dtoName).append('(');
+    for (int i = 0; i < projection.paths.size(); i++) {
+      query.append(i == 0 ? "" : ", ").append(projection.paths.get(i));
+    }
+    query.append(") FROM ").append(projection.entityName()).append(' ').append(projection.alias);
+
+    JavaFileObject source = filer.createSourceFile(dtoName, projection.type, projection.entity);
+    PrintWriter out = new PrintWriter(source.openWriter());
+    try {
+      if (packageName.length() > 0) {
+        out.println("package " + packageName + ";");
+        out.println();
+      }
+      out.println("/**");
+      out.println(" * The {@link " + interfaceName + "} projection of {@link "
+        + projection.entity.getQualifiedName() + "}; generated by " + JpaProcessor.class.getName() + ".");
+      out.println(" */");
+      out.println("public final class " + simpleName + " implements " + interfaceName + " {");
+      out.println("  /** the identification variable of {@link #QUERY}, to add {@code WHERE} or {@code ORDER BY} to */");
+      out.println("  public static final String ALIAS = \"" + projection.alias + "\";");
+      out.println("  /** selects this projection of every entity */");
+      out.println("  public static final String QUERY = \"" + query + "\";");
+      out.println();
+      for (int i = 0; i < fields.size(); i++) {
+        out.println("  private final " + types.get(i) + " " + fields.get(i) + ";");
+      }
+      out.println();
+      out.print("  public " + simpleName + "(");
+      for (int i = 0; i < fields.size(); i++) {
+        out.print((i == 0 ? "" : ", ") + types.get(i) + " " + fields.get(i));
+      }
+      out.println(") {");
+      for (String field : fields) {
+        out.println("    this." + field + " = " + field + ";");
+      }
+      out.println("  }");
+      for (int i = 0; i < fields.size(); i++) {
+        out.println();
+        out.println("  public " + types.get(i) + " " + projection.getters.get(i).getSimpleName() + "() {");
+        out.println("    return " + fields.get(i) + ";");
+        out.println("  }");
+      }
+      writeObjectMethods(out, simpleName, fields, projection.getters);
+      out.println("}");
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private static void writeObjectMethods(
+    PrintWriter out, String simpleName, List<String> fields, List<ExecutableElement> getters) {
+    out.println();
+    out.println("  @Override");
+    out.println("  public boolean equals(Object object) {");
+    out.println("    if (!(object instanceof " + simpleName + ")) {");
+    out.println("      return false;");
+    out.println("    }");
+    out.println("    " + simpleName + " other = (" + simpleName + ") object;");
+    out.print("    return true");
+    for (int i = 0; i < fields.size(); i++) {
+      String field = fields.get(i);
+      TypeKind kind = getters.get(i).getReturnType().getKind();
+      if (kind == TypeKind.FLOAT) {
+        out.print("\n      && Float.compare(this." + field + ", other." + field + ") == 0");
+      }
+      else if (kind == TypeKind.DOUBLE) {
+        out.print("\n      && Double.compare(this." + field + ", other." + field + ") == 0");
+      }
+      else if (kind.isPrimitive()) {
+        out.print("\n      && this." + field + " == other." + field);
+      }
+      else {
+        out.print("\n      && (this." + field + " == null ? other." + field + " == null : this." + field
+          + ".equals(other." + field + "))");
+      }
+    }
+    out.println(";");
+    out.println("  }");
+    out.println();
+    out.println("  @Override");
+    out.println("  public int hashCode() {");
+    out.print("    return java.util.Arrays.hashCode(new Object[] {");
+    for (int i = 0; i < fields.size(); i++) {
+      out.print((i == 0 ? " " : ", ") + fields.get(i));
+    }
+    out.println(fields.isEmpty() ? "});" : " });");
+    out.println("  }");
+    out.println();
+    out.println("  @Override");
+    out.println("  public String toString() {");
+    out.print("    return \"" + simpleName + "[");
+    for (int i = 0; i < fields.size(); i++) {
+      out.print((i == 0 ? "" : ", \"\n      + \"") + fields.get(i) + "=\" + " + fields.get(i) + " + \"");
+    }
+    out.println("]\";");
+    out.println("  }");
+  }
+
+  /**
+   * One &#64;{@link ProjectionOf} interface, as checked.
+   */
+  private class Projection {
+    Projection(TypeElement type, AnnotationMirror annotation) {
+      this.type = type;
+      this.annotation = annotation;
+    }
+
+    final TypeElement type;
+    final AnnotationMirror annotation;
+    TypeElement entity;
+    String alias;
+    /** the getters to implement, and the path of each */
+    final List<ExecutableElement> getters = new ArrayList<ExecutableElement>();
+    final List<String> paths = new ArrayList<String>();
+    final List<Element> problemElements = new ArrayList<Element>();
+    final List<String> problems = new ArrayList<String>();
+    boolean unresolved;
+
+    void problem(Element element, String problem) {
+      problemElements.add(element);
+      problems.add(problem);
+    }
+
+    void report(Messager messager) {
+      for (int i = 0; i < problems.size(); i++) {
+        Element element = problemElements.get(i);
+        if (element == type) {
+          messager.printMessage(Kind.ERROR, problems.get(i), element, annotation);
+        }
+        else if (element.getEnclosingElement() == type) {
+          messager.printMessage(Kind.ERROR, problems.get(i), element);
+        }
+        else { // inherited from a superinterface, which may not be part of this compilation
+          messager.printMessage(Kind.ERROR, element.getSimpleName() + ": " + problems.get(i), type, annotation);
+        }
+      }
+    }
+
+    /**
+     * @return the name queries refer to the entity by: that given to &#64;{@link Entity}, or else its simple name
+     */
+    String entityName() {
+      AnnotationMirror entityAnnotation = annotationTable.get(entity, ProjectionGenerator.this.entityName);
+      for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value :
+          entityAnnotation.getElementValues().entrySet()) {
+        if (value.getKey().getSimpleName().contentEquals("name") && value.getValue().getValue().toString().length() > 0) {
+          return value.getValue().getValue().toString();
+        }
+      }
+      return entity.getSimpleName().toString();
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package com.overstock.sample.processor;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface as a projection of an entity: each of its getters returns one property of the entity, named by
+ * the getter, or by &#64;{@link Path}. {@link JpaProcessor} checks the getters against the entity, and generates an
+ * immutable implementation of the interface, along with the JPQL constructor expression which selects it, so that
+ * reading a few columns does not load, and track, whole entities; see {@link ProjectionGenerator}.
+ *
+ * <pre>
+ * &#64;ProjectionOf(Order.class)
+ * public interface OrderSummary {
+ *   Long getId();
+ *   &#64;ProjectionOf.Path("customer.name") String getCustomerName();
+ * }
+ *
+ * List&lt;OrderSummary&gt; summaries = entityManager
+ *   .createQuery(OrderSummary_Dto.QUERY + " WHERE o.placed &gt; :since", OrderSummary.class)
+ *   ...
+ * </pre>
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface ProjectionOf {
+  /**
+   * @return the entity projected
+   */
+  Class<?> value();
+
+  /**
+   * Gives the path of the property a getter returns, such as {@code customer.name}, which may navigate through
+   * to-one associations and embedded properties.
+   */
+  @Documented
+  @Retention(RetentionPolicy.CLASS)
+  @Target(ElementType.METHOD)
+  public @interface Path {
+    /**
+     * @return the path, from the entity projected
+     */
+    String value();
+  }
+}
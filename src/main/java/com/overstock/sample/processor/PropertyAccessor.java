@@ -0,0 +1,53 @@
+package com.overstock.sample.processor;
+
+/**
+ * Reads and writes the properties of one entity class without reflection. Implementations are generated at compile
+ * time by {@link JpaProcessor}, given the {@code jpa.accessors} option, and are found with {@link PropertyAccessors}.
+ *
+ * Properties are numbered from 0, in the order they are declared, superclass properties first. Looking a property up
+ * by name once, with {@link #indexOf(String)}, and then using its index is the fastest way to access it repeatedly.
+ *
+ * @param <T> the entity class
+ */
+public interface PropertyAccessor<T> {
+  /**
+   * @return the entity class whose properties this accesses
+   */
+  Class<T> getEntityClass();
+
+  /**
+   * @return the number of properties
+   */
+  int getPropertyCount();
+
+  /**
+   * @param index a property index
+   * @return the name of the property
+   * @throws IndexOutOfBoundsException if there is no such property
+   */
+  String getPropertyName(int index);
+
+  /**
+   * @param propertyName a property name
+   * @return the index of the property, or -1 if there is none of that name
+   */
+  int indexOf(String propertyName);
+
+  /**
+   * @param entity an entity
+   * @param index a property index
+   * @return the value of the property, boxed if it is a primitive
+   * @throws IndexOutOfBoundsException if there is no such property
+   */
+  Object get(T entity, int index);
+
+  /**
+   * @param entity an entity
+   * @param index a property index
+   * @param value the new value of the property; for a primitive property, the boxed value, which must not be null
+   * @throws IndexOutOfBoundsException if there is no such property
+   * @throws UnsupportedOperationException if the property is read only
+   * @throws ClassCastException if {@code value} is not of the property's type
+   */
+  void set(T entity, int index, Object value);
+}
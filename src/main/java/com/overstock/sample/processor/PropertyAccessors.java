@@ -0,0 +1,68 @@
+package com.overstock.sample.processor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the {@link PropertyAccessor} generated for an entity class. The accessor for {@code com.example.Order} is
+ * {@code com.example.Order_Accessor}; for a nested class such as {@code com.example.Order.Line}, it is
+ * {@code com.example.Order_Line_Accessor}. Each is instantiated once, and shared; accessors hold no state, so they
+ * are safe for use by any number of threads.
+ *
+ * A mapper, or a persistence provider's property access strategy, can use this to get and set entity properties
+ * without {@code java.lang.reflect}, falling back to reflection for classes which have no accessor.
+ */
+public final class PropertyAccessors {
+  static final String SUFFIX = "_Accessor";
+
+  /** the accessor for each class looked up so far, or {@link #NONE} if it has none */
+  private static final ConcurrentMap<Class<?>, Object> ACCESSORS = new ConcurrentHashMap<Class<?>, Object>();
+  private static final Object NONE = new Object();
+
+  private PropertyAccessors() {}
+
+  /**
+   * @param entityClass an entity class
+   * @return the generated accessor for {@code entityClass}, or {@code null} if none was generated
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> PropertyAccessor<T> forClass(Class<T> entityClass) {
+    Object accessor = ACCESSORS.get(entityClass);
+    if (accessor == null) {
+      accessor = load(entityClass);
+      ACCESSORS.putIfAbsent(entityClass, accessor);
+    }
+    return accessor == NONE ? null : (PropertyAccessor<T>) accessor;
+  }
+
+  /**
+   * @param entityClassName the binary name of an entity class
+   * @return the binary name of the accessor generated for it
+   */
+  static String accessorClassName(String entityClassName) {
+    int packageEnd = entityClassName.lastIndexOf('.') + 1;
+    return entityClassName.substring(0, packageEnd) + entityClassName.substring(packageEnd).replace('$', '_') + SUFFIX;
+  }
+
+  private static Object load(Class<?> entityClass) {
+    Class<?> accessorClass;
+    try {
+      accessorClass = Class.forName(accessorClassName(entityClass.getName()), true, entityClass.getClassLoader());
+    }
+    catch (ClassNotFoundException e) {
+      return NONE;
+    }
+    if (!PropertyAccessor.class.isAssignableFrom(accessorClass)) {
+      return NONE; // some unrelated class which happens to have the name
+    }
+    try {
+      return accessorClass.newInstance();
+    }
+    catch (InstantiationException e) {
+      throw new IllegalStateException("Unable to create " + accessorClass.getName(), e);
+    }
+    catch (IllegalAccessException e) {
+      throw new IllegalStateException("Unable to create " + accessorClass.getName(), e);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package com.overstock.sample.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.persistence.NamedQuery;
+
+/**
+ * The &#64;{@link NamedQuery} queries which {@link JpaProcessor} validated at compile time, listed in
+ * {@value #RESOURCE_NAME} resources. Every query of the classes compiled with the processor is listed, unless it
+ * failed validation, in which case the build failed too, or names an entity the processor could not find, in which
+ * case it warned. A persistence provider need not parse and check these
+ * queries again as it starts up; for Hibernate, set {@value #HIBERNATE_STARTUP_CHECK} to {@code false}, as long as
+ * every class with named queries was compiled with the processor.
+ *
+ * The manifest is a text file, with one query per line, as three tab separated fields: the query name, the binary
+ * name of the class declaring it, and the query itself, in which backslashes, tabs and line breaks are escaped as
+ * {@code \\}, {@code \t}, {@code \n} and {@code \r}. Blank lines and lines starting with {@code #} are ignored.
+ */
+public final class QueryManifest {
+  public static final String RESOURCE_NAME = "META-INF/jpa-queries.idx";
+  /** the Hibernate property which turns off parsing and checking named queries at startup */
+  public static final String HIBERNATE_STARTUP_CHECK = "hibernate.query.startup_check";
+
+  private final Map<String, String[]> queries = new TreeMap<String, String[]>(); // to class name and query
+
+  /**
+   * Read and merge every manifest visible to a class loader; each jar or directory on the class path may have one.
+   * @param classLoader the class loader to find {@value #RESOURCE_NAME} resources with
+   * @return the merged manifest, which is empty if there are none
+   * @throws IOException if a manifest cannot be read
+   */
+  public static QueryManifest load(ClassLoader classLoader) throws IOException {
+    QueryManifest manifest = new QueryManifest();
+    Enumeration<URL> resources = classLoader.getResources(RESOURCE_NAME);
+    while (resources.hasMoreElements()) {
+      URL resource = resources.nextElement();
+      InputStream in = resource.openStream();
+      try {
+        manifest.read(new InputStreamReader(in, "UTF-8"), resource.toString());
+      }
+      finally {
+        in.close();
+      }
+    }
+    return manifest;
+  }
+
+  /**
+   * @return the names of the validated queries, in alphabetical order
+   */
+  public Set<String> getQueryNames() {
+    return Collections.unmodifiableSet(queries.keySet());
+  }
+
+  /**
+   * @param name a query name
+   * @return the query, or {@code null} if there is no validated query of that name
+   */
+  public String getQuery(String name) {
+    String[] query = queries.get(name);
+    return query == null ? null : query[1];
+  }
+
+  /**
+   * @param name a query name
+   * @return the binary name of the class declaring the query, or {@code null} if there is no validated query of that
+   *   name
+   */
+  public String getDeclaringClassName(String name) {
+    String[] query = queries.get(name);
+    return query == null ? null : query[0];
+  }
+
+  void add(String name, String className, String query) {
+    queries.put(name, new String[] { className, query });
+  }
+
+  /**
+   * Add the queries listed in a manifest.
+   * @param reader the manifest
+   * @param location where the manifest came from, for error messages
+   * @throws IOException if the manifest cannot be read, or is not in the expected format
+   */
+  void read(Reader reader, String location) throws IOException {
+    BufferedReader lines = new BufferedReader(reader);
+    int lineNumber = 0;
+    for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+      lineNumber++;
+      if (line.trim().length() == 0 || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\t");
+      if (fields.length != 3) {
+        throw new IOException("Malformed line " + lineNumber + " in " + location + ": " + line);
+      }
+      add(fields[0], fields[1], unescape(fields[2]));
+    }
+  }
+
+  /**
+   * Write the manifest, sorted, so that the same queries always produce the same file.
+   * @param writer where to write the manifest
+   * @throws IOException if it cannot be written
+   */
+  void write(Writer writer) throws IOException {
+    writer.write("# Generated by " + JpaProcessor.class.getName() + "\n");
+    for (Map.Entry<String, String[]> query : queries.entrySet()) {
+      writer.write(query.getKey() + "\t" + query.getValue()[0] + "\t" + escape(query.getValue()[1]) + "\n");
+    }
+  }
+
+  private static String escape(String query) {
+    StringBuilder escaped = new StringBuilder(query.length());
+    for (int i = 0; i < query.length(); i++) {
+      char c = query.charAt(i);
+      switch (c) {
+        case '\\': escaped.append("\\\\"); break;
+        case '\t': escaped.append("\\t"); break;
+        case '\n': escaped.append("\\n"); break;
+        case '\r': escaped.append("\\r"); break;
+        default: escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+
+  private static String unescape(String escaped) {
+    StringBuilder query = new StringBuilder(escaped.length());
+    for (int i = 0; i < escaped.length(); i++) {
+      char c = escaped.charAt(i);
+      if (c == '\\' && i + 1 < escaped.length()) {
+        char next = escaped.charAt(++i);
+        switch (next) {
+          case 't': query.append('\t'); break;
+          case 'n': query.append('\n'); break;
+          case 'r': query.append('\r'); break;
+          default: query.append(next);
+        }
+      }
+      else {
+        query.append(c);
+      }
+    }
+    return query.toString();
+  }
+}
@@ -0,0 +1,366 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+
+/**
+ * Checks a parsed JPQL query against the entity model: that each entity name names an entity, and that each path
+ * expression only navigates through properties which exist, and which lead somewhere. A path may pass through
+ * single valued associations (&#64;ManyToOne and &#64;OneToOne) and embedded properties, but may only end at a
+ * collection, or at a basic property; to go on from a collection, the query has to join it.
+ *
+ * Entities are found by the names they were declared with, as passed to {@link #addEntity(TypeElement)}, by their
+ * qualified class names, or by class name in the package of the class declaring the query. Failing those, the
+ * packages of the known entities, and that of the declaring class, are searched for an entity declared with the name,
+ * which finds entities compiled by an earlier build; each package is only searched once. An entity name which is not
+ * found even so may still name an entity elsewhere on the class path, so it is only a warning. The properties of each
+ * type are found once per round, including those inherited from mapped superclasses, so the validator should only be
+ * used for a single round of processing.
+ */
+class QueryValidator {
+  private final Elements elementUtils;
+  private final AnnotationTable annotations;
+  private final CollectionTypes collectionTypes;
+  private final RelationshipIndex relationshipIndex;
+  private final Name entityName, embeddableName, embeddedName, embeddedIdName, transientName;
+  private final Map<Name, Boolean> associations = new HashMap<Name, Boolean>(); // to whether it is a collection
+  /** entity names, to qualified class names; kept from one round to the next */
+  private final Map<String, String> entities = new HashMap<String, String>();
+  /** the packages of the entities added, and those already searched for entities; kept from one round to the next */
+  private final Set<String> entityPackages = new LinkedHashSet<String>(), searchedPackages = new HashSet<String>();
+  private final Map<TypeElement, Map<String, Element>> properties = new HashMap<TypeElement, Map<String, Element>>();
+
+  QueryValidator(
+    Elements elementUtils, AnnotationTable annotations, CollectionTypes collectionTypes,
+    RelationshipIndex relationshipIndex) {
+    this.elementUtils = elementUtils;
+    this.annotations = annotations;
+    this.collectionTypes = collectionTypes;
+    this.relationshipIndex = relationshipIndex;
+    entityName = elementUtils.getName("javax.persistence.Entity");
+    embeddableName = elementUtils.getName("javax.persistence.Embeddable");
+    embeddedName = elementUtils.getName("javax.persistence.Embedded");
+    embeddedIdName = elementUtils.getName("javax.persistence.EmbeddedId");
+    transientName = elementUtils.getName("javax.persistence.Transient");
+    associations.put(elementUtils.getName("javax.persistence.ManyToOne"), false);
+    associations.put(elementUtils.getName("javax.persistence.OneToOne"), false);
+    associations.put(elementUtils.getName("javax.persistence.OneToMany"), true);
+    associations.put(elementUtils.getName("javax.persistence.ManyToMany"), true);
+    associations.put(elementUtils.getName("javax.persistence.ElementCollection"), true);
+  }
+
+  /**
+   * @param entity an entity, to be found by its entity name from now on
+   */
+  void addEntity(TypeElement entity) {
+    putEntityName(entity);
+    entityPackages.add(elementUtils.getPackageOf(entity).getQualifiedName().toString());
+  }
+
+  private void putEntityName(TypeElement entity) {
+    String name = entity.getSimpleName().toString();
+    AnnotationMirror annotation = annotations.get(entity, entityName);
+    if (annotation != null) {
+      for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value :
+          annotation.getElementValues().entrySet()) {
+        if (value.getKey().getSimpleName().contentEquals("name") && value.getValue().getValue().toString().length() > 0) {
+          name = value.getValue().getValue().toString();
+        }
+      }
+    }
+    entities.put(name, entity.getQualifiedName().toString());
+  }
+
+  /**
+   * Forget the properties of all types; called at the end of each round. Entity names are kept.
+   */
+  void clear() {
+    properties.clear();
+  }
+
+  /**
+   * @param query a parsed query
+   * @param declaringType the class declaring the query
+   * @return what is wrong with the query
+   */
+  Result validate(JpqlParser.Query query, TypeElement declaringType) {
+    Result result = new Result();
+    Map<String, TypeElement> variables = new HashMap<String, TypeElement>();
+    for (JpqlParser.Variable variable : query.variables) {
+      TypeElement type;
+      if (variable.entityName != null) {
+        type = findEntity(variable.entityName, declaringType);
+        if (type == null) {
+          result.warnings.add("there is no entity named " + variable.entityName + " in the packages searched");
+          result.unresolved = true;
+        }
+      }
+      else {
+        type = resolve(variable.path, variables, result);
+      }
+      if (variable.name != null) {
+        variables.put(variable.name.toLowerCase(Locale.ENGLISH), type);
+      }
+    }
+    for (JpqlParser.Path path : query.paths) {
+      if (!path.joined) {
+        resolve(path, variables, result);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Resolve a path from an entity to the property it selects, as in a {@code SELECT} clause: it may not end at a
+   * collection.
+   * @param entity the entity which the variable of {@code path} ranges over
+   * @param path a path expression
+   * @param result what is wrong with the path, to add to
+   * @return the field or getter of the property the path ends at, or {@code null} if it is not valid, or passes
+   *   through a type which does not exist yet
+   */
+  Element resolveProperty(TypeElement entity, JpqlParser.Path path, Result result) {
+    Property last = navigate(entity, path, result);
+    if (last != null && last.kind == PropertyKind.COLLECTION) {
+      result.problems.add(
+        last.element.getEnclosingElement().getSimpleName() + "." + JpaProcessor.getPropertyName(last.element)
+          + " is a collection, so cannot be selected, in " + path);
+      return null;
+    }
+    return last == null ? null : last.element;
+  }
+
+  /**
+   * @return the type of what {@code path} leads to, or {@code null} if it is a basic property, or is not valid
+   */
+  private TypeElement resolve(JpqlParser.Path path, Map<String, TypeElement> variables, Result result) {
+    String variable = path.variable.toLowerCase(Locale.ENGLISH);
+    if (!variables.containsKey(variable)) {
+      if (!isConstant(path)) {
+        result.problems.add(path.variable + " is not an identification variable, in " + path);
+      }
+      return null;
+    }
+    Property last = navigate(variables.get(variable), path, result);
+    return last == null ? null : last.target;
+  }
+
+  /**
+   * @return the last property of {@code path}, starting from {@code type}, or {@code null} if it is not valid
+   */
+  private Property navigate(TypeElement type, JpqlParser.Path path, Result result) {
+    Property resolved = null;
+    for (int i = 0; i < path.properties.size(); i++) {
+      if (type == null) {
+        return null;
+      }
+      String propertyName = path.properties.get(i);
+      Element property = propertiesOf(type).get(propertyName);
+      if (property == null) {
+        result.problems.add(type.getSimpleName() + " has no property " + propertyName + ", in " + path);
+        return null;
+      }
+      resolved = classify(property, result);
+      boolean last = i == path.properties.size() - 1;
+      if (last) {
+        if (path.joined && resolved.kind == PropertyKind.BASIC) {
+          result.problems.add(
+            type.getSimpleName() + "." + propertyName + " is not an association, so cannot be joined, in " + path);
+        }
+      }
+      else if (resolved.kind == PropertyKind.COLLECTION) {
+        result.problems.add(
+          type.getSimpleName() + "." + propertyName + " is a collection, so cannot be navigated; join it instead, in "
+            + path);
+        return null;
+      }
+      else if (resolved.kind == PropertyKind.BASIC) {
+        result.problems.add(
+          type.getSimpleName() + "." + propertyName + " is not an association or embedded, so cannot be navigated, in "
+            + path);
+        return null;
+      }
+      type = resolved.target;
+    }
+    return resolved;
+  }
+
+  /**
+   * @return whether {@code path} is really a qualified constant, such as an enum literal
+   */
+  private boolean isConstant(JpqlParser.Path path) {
+    StringBuilder name = new StringBuilder(path.variable);
+    for (String property : path.properties) {
+      name.append('.').append(property);
+      if (elementUtils.getTypeElement(name) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private TypeElement findEntity(String name, TypeElement declaringType) {
+    String className = entities.get(name);
+    if (className == null) {
+      className = name.indexOf('.') >= 0
+        ? name : elementUtils.getPackageOf(declaringType).getQualifiedName() + "." + name;
+    }
+    TypeElement type = elementUtils.getTypeElement(className);
+    if (type != null && annotations.isAnnotated(type, entityName)) {
+      return type;
+    }
+    if (searchPackages(elementUtils.getPackageOf(declaringType).getQualifiedName().toString())) {
+      className = entities.get(name);
+      type = className == null ? null : elementUtils.getTypeElement(className);
+    }
+    return type != null && annotations.isAnnotated(type, entityName) ? type : null;
+  }
+
+  /**
+   * Add the entities of each package not yet searched, of the known entities and {@code declaringPackage}.
+   * @return whether any package was searched
+   */
+  private boolean searchPackages(String declaringPackage) {
+    List<String> packageNames = new ArrayList<String>(entityPackages);
+    packageNames.add(declaringPackage);
+    boolean searched = false;
+    for (String packageName : packageNames) {
+      PackageElement packageElement = elementUtils.getPackageElement(packageName);
+      if (packageElement == null || !searchedPackages.add(packageName)) {
+        continue;
+      }
+      searched = true;
+      for (TypeElement type : ElementFilter.typesIn(packageElement.getEnclosedElements())) {
+        if (annotations.isAnnotated(type, entityName)) {
+          putEntityName(type);
+        }
+      }
+    }
+    return searched;
+  }
+
+  /**
+   * @return the persistent properties of {@code type}, including those it inherits, by name
+   */
+  private Map<String, Element> propertiesOf(TypeElement type) {
+    Map<String, Element> found = properties.get(type);
+    if (found == null) {
+      found = new LinkedHashMap<String, Element>();
+      for (TypeElement declaring : relationshipIndex.hierarchyOf(type)) {
+        for (Element member : declaring.getEnclosedElements()) {
+          if (isProperty(member)) {
+            String name = JpaProcessor.getPropertyName(member);
+            if (!found.containsKey(name)) { // else overridden by a subclass
+              found.put(name, member);
+            }
+          }
+        }
+      }
+      properties.put(type, found);
+    }
+    return found;
+  }
+
+  private boolean isProperty(Element member) {
+    if (member.getModifiers().contains(Modifier.STATIC) || annotations.isAnnotated(member, transientName)) {
+      return false;
+    }
+    if (member.getKind() == ElementKind.FIELD) {
+      return !member.getModifiers().contains(Modifier.TRANSIENT);
+    }
+    if (member.getKind() == ElementKind.METHOD && ((ExecutableElement) member).getParameters().isEmpty()) {
+      String name = member.getSimpleName().toString();
+      return name.length() > 3 && name.startsWith("get") || name.length() > 2 && name.startsWith("is");
+    }
+    return false;
+  }
+
+  private Property classify(Element property, Result result) {
+    TypeMirror type = JpaProcessor.getPropertyType(property);
+    for (Map.Entry<Name, Boolean> association : associations.entrySet()) {
+      AnnotationMirror annotation = annotations.get(property, association.getKey());
+      if (annotation != null) {
+        TypeMirror target = null;
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value :
+            annotation.getElementValues().entrySet()) {
+          String attribute = value.getKey().getSimpleName().toString();
+          if (attribute.equals("targetEntity") || attribute.equals("targetClass")) {
+            target = (TypeMirror) value.getValue().getValue();
+          }
+        }
+        boolean collection = association.getValue();
+        if (target == null) {
+          target = collection ? collectionTypes.elementType(type) : type;
+        }
+        return new Property(
+          property, collection ? PropertyKind.COLLECTION : PropertyKind.SINGLE, typeElement(target, result));
+      }
+    }
+    TypeElement element = typeElement(type, result);
+    if (annotations.isAnnotated(property, embeddedName) || annotations.isAnnotated(property, embeddedIdName)
+        || element != null && annotations.isAnnotated(element, embeddableName)) {
+      return new Property(property, PropertyKind.EMBEDDED, element);
+    }
+    return new Property(property, PropertyKind.BASIC, null);
+  }
+
+  private static TypeElement typeElement(TypeMirror type, Result result) {
+    if (type == null) {
+      return null;
+    }
+    if (type.getKind() == TypeKind.ERROR) {
+      result.unresolved = true;
+      return null;
+    }
+    return type.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) type).asElement() : null;
+  }
+
+  /**
+   * What is wrong with a query.
+   */
+  static class Result {
+    /** the problems found, as messages */
+    final List<String> problems = new ArrayList<String>();
+    /** the entity names which were not found, as messages; they may name entities outside the packages searched */
+    final List<String> warnings = new ArrayList<String>();
+    /** whether a type the query refers to could not be found, but might be generated in a later round */
+    boolean unresolved;
+  }
+
+  private enum PropertyKind { BASIC, SINGLE, COLLECTION, EMBEDDED }
+
+  private static class Property {
+    Property(Element element, PropertyKind kind, TypeElement target) {
+      this.element = element;
+      this.kind = kind;
+      this.target = target;
+    }
+
+    final Element element;
+    final PropertyKind kind;
+    /** the entity or embeddable the property leads to, or {@code null} if it is basic or unknown */
+    final TypeElement target;
+  }
+}
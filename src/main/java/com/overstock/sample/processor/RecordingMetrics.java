@@ -0,0 +1,173 @@
+package com.overstock.sample.processor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link Metrics} which are actually recorded, and written as a JSON report to a file once processing is over. Rounds
+ * and rules are also emitted as JDK Flight Recorder events when running on a JVM which supports them; see
+ * {@link FlightRecorderEvents}.
+ *
+ * The report looks like:
+ * <pre>
+ * {
+ *   "totalNanos": 1234,
+ *   "counters": { "ELEMENTS_VISITED": 10, ... },
+ *   "rules": { "noArgumentConstructor": 600, ... },
+ *   "ruleElements": { "noArgumentConstructor": 10, ... },
+ *   "rounds": [ { "round": 1, "nanos": 1200, "rules": { "noArgumentConstructor": 600, ... } }, ... ]
+ * }
+ * </pre>
+ * with all times in nanoseconds. {@code ruleElements} counts the elements each rule was asked to check.
+ */
+class RecordingMetrics extends Metrics {
+  private final File reportFile;
+  private final FlightRecorderEvents events = FlightRecorderEvents.create();
+  private final long[] counters = new long[Counter.values().length];
+  private final List<Round> rounds = new ArrayList<Round>();
+
+  RecordingMetrics(File reportFile) {
+    this.reportFile = reportFile;
+  }
+
+  @Override
+  boolean isEnabled() {
+    return true;
+  }
+
+  @Override
+  void count(Counter counter) {
+    counters[counter.ordinal()]++;
+  }
+
+  @Override
+  void count(Counter counter, int amount) {
+    counters[counter.ordinal()] += amount;
+  }
+
+  @Override
+  Timer startRound() {
+    final Round round = new Round(rounds.size() + 1);
+    rounds.add(round);
+    final Object event = events.begin(FlightRecorderEvents.ROUND, null, round.number);
+    final long start = System.nanoTime();
+    return new Timer() {
+      @Override
+      void stop() {
+        round.nanos = System.nanoTime() - start;
+        events.commit(event);
+      }
+    };
+  }
+
+  @Override
+  Timer startRule(final String rule) {
+    final Round round = rounds.get(rounds.size() - 1);
+    final Object event = events.begin(FlightRecorderEvents.RULE, rule, round.number);
+    final long start = System.nanoTime();
+    return new Timer() {
+      @Override
+      void stop() {
+        long nanos = System.nanoTime() - start;
+        add(round.rules, rule, nanos);
+        events.commit(event);
+      }
+    };
+  }
+
+  @Override
+  void addRuleTime(String rule, long nanos, int elements) {
+    Round round = rounds.get(rounds.size() - 1);
+    add(round.rules, rule, nanos);
+    add(round.ruleElements, rule, elements);
+  }
+
+  @Override
+  void report() throws IOException {
+    long totalNanos = 0;
+    Map<String, Long> ruleTotals = new LinkedHashMap<String, Long>();
+    Map<String, Long> ruleElements = new LinkedHashMap<String, Long>();
+    for (Round round : rounds) {
+      totalNanos += round.nanos;
+      for (Map.Entry<String, Long> rule : round.rules.entrySet()) {
+        add(ruleTotals, rule.getKey(), rule.getValue());
+      }
+      for (Map.Entry<String, Long> rule : round.ruleElements.entrySet()) {
+        add(ruleElements, rule.getKey(), rule.getValue());
+      }
+    }
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"totalNanos\": ").append(totalNanos).append(",\n");
+    json.append("  \"counters\": {");
+    Counter[] counterNames = Counter.values();
+    for (int i = 0; i < counterNames.length; i++) {
+      json.append(i == 0 ? " " : ", ").append('"').append(counterNames[i].name()).append("\": ").append(counters[i]);
+    }
+    json.append(" },\n");
+    json.append("  \"rules\": ");
+    appendObject(json, ruleTotals);
+    json.append(",\n");
+    json.append("  \"ruleElements\": ");
+    appendObject(json, ruleElements);
+    json.append(",\n");
+    json.append("  \"rounds\": [");
+    for (int i = 0; i < rounds.size(); i++) {
+      Round round = rounds.get(i);
+      json.append(i == 0 ? "\n" : ",\n");
+      json.append("    { \"round\": ").append(round.number).append(", \"nanos\": ").append(round.nanos)
+        .append(", \"rules\": ");
+      appendObject(json, round.rules);
+      json.append(" }");
+    }
+    json.append("\n  ]\n");
+    json.append("}\n");
+
+    File directory = reportFile.getAbsoluteFile().getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory " + directory);
+    }
+    Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8");
+    try {
+      writer.write(json.toString());
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  private static void add(Map<String, Long> totals, String name, long amount) {
+    Long previous = totals.get(name);
+    totals.put(name, previous == null ? amount : previous + amount);
+  }
+
+  private static void appendObject(StringBuilder json, Map<String, Long> values) {
+    json.append('{');
+    boolean first = true;
+    for (Map.Entry<String, Long> entry : values.entrySet()) {
+      // rule names are identifiers, so need no escaping
+      json.append(first ? " " : ", ").append('"').append(entry.getKey()).append("\": ").append(entry.getValue());
+      first = false;
+    }
+    json.append(first ? "}" : " }");
+  }
+
+  private static class Round {
+    Round(int number) {
+      this.number = number;
+    }
+
+    final int number;
+    long nanos;
+    final Map<String, Long> rules = new LinkedHashMap<String, Long>();
+    final Map<String, Long> ruleElements = new LinkedHashMap<String, Long>();
+  }
+}
@@ -0,0 +1,130 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.persistence.Entity;
+import javax.persistence.ManyToOne;
+import javax.persistence.MappedSuperclass;
+
+/**
+ * An index of the &#64;{@link ManyToOne}-annotated properties of child types. A child type which is referenced from
+ * many parents only has its members scanned once; subsequent lookups are a map access.
+ *
+ * Properties inherited from &#64;{@link Entity} or &#64;{@link MappedSuperclass} superclasses are included. Each type
+ * gets its own {@link MemberTable}, which links to the table of its superclass rather than copying it, so that
+ * sibling subtypes share the scan of their common parents.
+ *
+ * The index holds on to elements, so it should only be used for a single round of processing.
+ */
+class RelationshipIndex {
+  private final AnnotationTable annotations;
+  private final Name entityName, manyToOneName, mappedSuperclassName;
+  private final Metrics metrics;
+  private final Map<TypeElement, MemberTable> tables = new HashMap<TypeElement, MemberTable>();
+
+  RelationshipIndex(Elements elementUtils, AnnotationTable annotations, Metrics metrics) {
+    this.annotations = annotations;
+    this.metrics = metrics;
+    entityName = elementUtils.getName("javax.persistence.Entity");
+    manyToOneName = elementUtils.getName("javax.persistence.ManyToOne");
+    mappedSuperclassName = elementUtils.getName("javax.persistence.MappedSuperclass");
+  }
+
+  /**
+   * @param childType a child type
+   * @return {@code childType}, followed by each of its &#64;{@link Entity} and &#64;{@link MappedSuperclass}
+   *   superclasses, whose properties it inherits
+   */
+  List<TypeElement> hierarchyOf(TypeElement childType) {
+    List<TypeElement> hierarchy = new ArrayList<TypeElement>();
+    for (MemberTable table = tableFor(childType); table != null; table = table.inherited) {
+      hierarchy.add(table.type);
+    }
+    return hierarchy;
+  }
+
+  /**
+   * @param type a type in a child hierarchy
+   * @return the &#64;{@link ManyToOne} properties of a class or interface type declared directly on {@code type}, in
+   *   declaration order
+   */
+  List<Element> declaredManyToOnes(TypeElement type) {
+    return tableFor(type).properties;
+  }
+
+  /**
+   * Forget all indexed types; called at the start of each round.
+   */
+  void clear() {
+    tables.clear();
+  }
+
+  private MemberTable tableFor(TypeElement type) {
+    MemberTable table = tables.get(type);
+    if (table != null) {
+      metrics.count(Metrics.Counter.RELATIONSHIP_INDEX_HITS);
+    }
+    else {
+      table = new MemberTable(type, tableFor(mappedSuperclassOf(type)));
+      for (Element element : type.getEnclosedElements()) {
+        metrics.count(Metrics.Counter.ELEMENTS_VISITED);
+        if ((element.getKind() == ElementKind.FIELD || element.getKind() == ElementKind.METHOD)
+            && annotations.scan(element, manyToOneName) != null) {
+          TypeMirror propertyType = JpaProcessor.getPropertyType(element);
+          if (propertyType != null && propertyType.getKind() == TypeKind.DECLARED) {
+            table.properties.add(element);
+          }
+        }
+      }
+      tables.put(type, table);
+    }
+    return table;
+  }
+
+  private MemberTable tableFor(DeclaredType type) {
+    return type == null ? null : tableFor((TypeElement) type.asElement());
+  }
+
+  /**
+   * Get the superclass of a type, if it is one whose mappings are inherited by JPA.
+   * @param type a (possibly) entity type
+   * @return the &#64;{@link Entity} or &#64;{@link MappedSuperclass} superclass of {@code type}, or {@code null}
+   */
+  private DeclaredType mappedSuperclassOf(TypeElement type) {
+    TypeMirror superclass = type.getSuperclass();
+    if (superclass.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    Element superElement = ((DeclaredType) superclass).asElement();
+    if (annotations.isAnnotated(superElement, mappedSuperclassName)
+        || annotations.isAnnotated(superElement, entityName)) {
+      return (DeclaredType) superclass;
+    }
+    return null;
+  }
+
+  /**
+   * The &#64;{@link ManyToOne} properties declared directly on one type, plus a link to those of its superclass.
+   */
+  private static class MemberTable {
+    MemberTable(TypeElement type, MemberTable inherited) {
+      this.type = type;
+      this.inherited = inherited;
+    }
+
+    final TypeElement type;
+    final MemberTable inherited;
+    final List<Element> properties = new ArrayList<Element>();
+  }
+}
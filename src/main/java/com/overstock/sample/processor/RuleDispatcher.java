@@ -0,0 +1,181 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementScanner6;
+
+/**
+ * Runs {@link ValidationRule}s over the elements of each round in a single pass. Rules are indexed by the annotation
+ * types they support, so each element costs one look at its own annotation mirrors, however many rules there are;
+ * most elements have none, and cost nothing more.
+ *
+ * Types out of the {@link ProcessingScope} are skipped before anything else is done with them, along with the
+ * elements they enclose. Root types already scanned in an earlier round are skipped, so each element is passed to
+ * each rule once. The time spent in each rule, and the number of elements passed to it, are recorded in the
+ * {@link Metrics}; the clock is only read around each check if the metrics are enabled.
+ *
+ * The same pass collects the types carrying any annotation asked for with {@link #collect(String)}, such as the
+ * managed classes which the generators work from, so that those need no lookups of their own. These are collected
+ * even when they are out of scope, since the scope only limits validation.
+ */
+class RuleDispatcher {
+  private final List<ValidationRule> rules;
+  private final ProcessingScope scope;
+  private final Map<String, List<Integer>> rulesByAnnotation = new HashMap<String, List<Integer>>();
+  /** the types of the round carrying each annotation type asked for, in the order they were scanned */
+  private final Map<String, Set<TypeElement>> collected = new HashMap<String, Set<TypeElement>>();
+  private final WorkQueue workQueue;
+  private final Metrics metrics;
+  private final boolean timed;
+  private final long[] nanos;
+  private final int[] elements;
+
+  /**
+   * @param rules the rules to run, which have been initialized
+   * @param scope the types to pass to the rules
+   * @param workQueue tracks the types scanned in earlier rounds
+   * @param metrics where to record the cost of each rule
+   */
+  RuleDispatcher(List<ValidationRule> rules, ProcessingScope scope, WorkQueue workQueue, Metrics metrics) {
+    this.rules = rules;
+    this.scope = scope;
+    this.workQueue = workQueue;
+    this.metrics = metrics;
+    timed = metrics.isEnabled();
+    nanos = new long[rules.size()];
+    elements = new int[rules.size()];
+    for (int i = 0; i < rules.size(); i++) {
+      for (String annotationType : rules.get(i).getSupportedAnnotationTypes()) {
+        List<Integer> interested = rulesByAnnotation.get(annotationType);
+        if (interested == null) {
+          interested = new ArrayList<Integer>(1);
+          rulesByAnnotation.put(annotationType, interested);
+        }
+        interested.add(i);
+      }
+    }
+  }
+
+  /**
+   * Collect the types annotated with an annotation type from each round from now on.
+   * @param annotationType the qualified name of the annotation type
+   */
+  void collect(String annotationType) {
+    if (!collected.containsKey(annotationType)) {
+      collected.put(annotationType, new LinkedHashSet<TypeElement>());
+    }
+  }
+
+  /**
+   * @param annotationType the qualified name of an annotation type passed to {@link #collect(String)}
+   * @return the types of the last round run which are annotated with it
+   */
+  Set<TypeElement> collected(String annotationType) {
+    return collected.get(annotationType);
+  }
+
+  /**
+   * Check the elements of a round with every interested rule, then let each rule finish the round.
+   * @param roundEnv the round
+   */
+  void run(RoundEnvironment roundEnv) {
+    for (Set<TypeElement> types : collected.values()) {
+      types.clear();
+    }
+    Scanner scanner = new Scanner();
+    for (Element root : roundEnv.getRootElements()) {
+      if (!(root instanceof TypeElement) || workQueue.startType((TypeElement) root)) {
+        scanner.scan(root);
+      }
+    }
+    for (int i = 0; i < rules.size(); i++) {
+      if (elements[i] > 0) {
+        metrics.addRuleTime(rules.get(i).getName(), nanos[i], elements[i]);
+        nanos[i] = 0;
+        elements[i] = 0;
+      }
+    }
+    for (ValidationRule rule : rules) {
+      Metrics.Timer ruleTimer = metrics.startRule(rule.getName());
+      rule.endRound(roundEnv);
+      ruleTimer.stop();
+    }
+  }
+
+  private void dispatch(Element element) {
+    List<? extends AnnotationMirror> annotations = element.getAnnotationMirrors();
+    if (annotations.isEmpty()) {
+      return;
+    }
+    metrics.count(Metrics.Counter.ANNOTATION_MIRRORS_INSPECTED, annotations.size());
+    List<Integer> dispatched = null;
+    for (AnnotationMirror annotation : annotations) {
+      String annotationType = ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().toString();
+      collect(element, annotationType);
+      List<Integer> interested = rulesByAnnotation.get(annotationType);
+      if (interested == null) {
+        continue;
+      }
+      for (Integer i : interested) {
+        ValidationRule rule = rules.get(i);
+        if (rule.getSupportedElementKinds().contains(element.getKind())
+            && (dispatched == null || !dispatched.contains(i))) {
+          if (dispatched == null) {
+            dispatched = new ArrayList<Integer>(2);
+          }
+          dispatched.add(i);
+          if (timed) {
+            long start = System.nanoTime();
+            rule.check(element);
+            nanos[i] += System.nanoTime() - start;
+            elements[i]++;
+          }
+          else {
+            rule.check(element);
+          }
+        }
+      }
+    }
+  }
+
+  private void collect(Element element, String annotationType) {
+    if (element instanceof TypeElement) {
+      Set<TypeElement> types = collected.get(annotationType);
+      if (types != null) {
+        types.add((TypeElement) element);
+      }
+    }
+  }
+
+  private class Scanner extends ElementScanner6<Void, Void> {
+    @Override
+    public Void scan(Element element, Void p) {
+      if (element instanceof TypeElement && !scope.includes((TypeElement) element)) {
+        metrics.count(Metrics.Counter.TYPES_OUT_OF_SCOPE);
+        if (!collected.isEmpty()) {
+          for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            collect(element, ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().toString());
+          }
+        }
+        return null;
+      }
+      dispatch(element);
+      return super.scan(element, p);
+    }
+
+    @Override
+    public Void visitPackage(PackageElement element, Void p) {
+      return null; // the types of a package are only scanned if they are themselves in the round
+    }
+  }
+}
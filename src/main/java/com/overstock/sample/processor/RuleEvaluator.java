@@ -0,0 +1,182 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+
+/**
+ * Works out {@link Verdict}s for a snapshot of &#64;{@link OneToMany} mappings. Large snapshots are split into batches,
+ * which are evaluated in parallel on a fixed size pool of daemon threads, created the first time it is needed; the
+ * compiler thread evaluates one batch itself, then waits for the rest. Each verdict is stored at the index of its
+ * relationship, so the result, and the order in which it is reported, does not depend on how the work was scheduled.
+ *
+ * Only {@link MappingModel} snapshots are handed to other threads; see {@link MappingModel} for why.
+ */
+class RuleEvaluator {
+  static final String THREADS_OPTION = "jpa.threads";
+
+  /** the fewest relationships worth handing to another thread */
+  static final int MIN_BATCH_SIZE = 128;
+
+  private final int threads;
+  private ExecutorService executor;
+
+  /**
+   * @param threads the most threads to evaluate rules on, including the compiler thread; 1 to never use others
+   */
+  RuleEvaluator(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * @param relationships the relationships to check
+   * @param metrics where to count the type comparisons made; only called on this (the compiler) thread
+   * @return the verdict for each relationship, in the same order
+   */
+  Verdict[] evaluate(List<MappingModel.Relationship> relationships, Metrics metrics) {
+    Verdict[] verdicts = new Verdict[relationships.size()];
+    int batches = threads == 1 ? 1 : Math.min(threads * 4, relationships.size() / MIN_BATCH_SIZE);
+    if (batches < 2) {
+      metrics.count(Metrics.Counter.SAME_TYPE_CHECKS, evaluate(relationships, verdicts, 0, verdicts.length));
+      return verdicts;
+    }
+
+    int batchSize = (relationships.size() + batches - 1) / batches;
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>(batches - 1);
+    for (int start = batchSize; start < verdicts.length; start += batchSize) {
+      int end = Math.min(start + batchSize, verdicts.length);
+      futures.add(executor().submit(new Batch(relationships, verdicts, start, end)));
+    }
+    int sameTypeChecks = evaluate(relationships, verdicts, 0, batchSize);
+    try {
+      for (Future<Integer> future : futures) {
+        sameTypeChecks += future.get();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while checking mappings", e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+    finally {
+      for (Future<Integer> future : futures) {
+        future.cancel(true);
+      }
+    }
+    metrics.count(Metrics.Counter.SAME_TYPE_CHECKS, sameTypeChecks);
+    return verdicts;
+  }
+
+  /**
+   * Stop the threads; called once processing is over.
+   */
+  void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Work out whether a &#64;{@link OneToMany} property is correctly mapped by its child type. The child is searched
+   * for a &#64;{@link ManyToOne} property referring to the parent type; properties declared on the child itself are
+   * preferred over inherited ones.
+   * @param relationship the property
+   * @param sameTypeChecks incremented for each &#64;{@link ManyToOne} property compared with the parent type
+   * @return the verdict
+   */
+  static Verdict getVerdict(MappingModel.Relationship relationship, int[] sameTypeChecks) {
+    MappingModel.ManyToOne parentPropertyInChild = findManyToOne(relationship, sameTypeChecks);
+    if (parentPropertyInChild == null) {
+      return Verdict.NO_MANY_TO_ONE;
+    }
+    if (relationship.mappedBy == null) {
+      return Verdict.MISSING_MAPPED_BY;
+    }
+    String expected = parentPropertyInChild.propertyName;
+    if (! relationship.mappedBy.equals(expected)) {
+      return Verdict.wrongMappedBy(expected);
+    }
+    return Verdict.VALID;
+  }
+
+  /**
+   * @param relationship a &#64;{@link OneToMany} property
+   * @param sameTypeChecks incremented for each &#64;{@link ManyToOne} property compared with the parent type
+   * @return the &#64;{@link ManyToOne} property of the child which maps the relationship, or {@code null} if none does
+   */
+  static MappingModel.ManyToOne findManyToOne(MappingModel.Relationship relationship, int[] sameTypeChecks) {
+    for (MappingModel.ChildType type = relationship.childType; type != null; type = type.inherited) {
+      List<MappingModel.ManyToOne> candidates = type.manyToOnesByTarget.get(relationship.parentType);
+      if (candidates != null) {
+        for (MappingModel.ManyToOne candidate : candidates) {
+          sameTypeChecks[0]++;
+          if (!candidate.parameterized) {
+            return candidate;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  private static int evaluate(List<MappingModel.Relationship> relationships, Verdict[] verdicts, int start, int end) {
+    int[] sameTypeChecks = new int[1];
+    for (int i = start; i < end; i++) {
+      verdicts[i] = getVerdict(relationships.get(i), sameTypeChecks);
+    }
+    return sameTypeChecks[0];
+  }
+
+  private ExecutorService executor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(threads - 1, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "jpa-processor-" + count.incrementAndGet());
+          thread.setDaemon(true); // never keep javac alive
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+
+  private static class Batch implements Callable<Integer> {
+    private final List<MappingModel.Relationship> relationships;
+    private final Verdict[] verdicts;
+    private final int start, end;
+
+    Batch(List<MappingModel.Relationship> relationships, Verdict[] verdicts, int start, int end) {
+      this.relationships = relationships;
+      this.verdicts = verdicts;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public Integer call() {
+      return evaluate(relationships, verdicts, start, end);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.overstock.sample.processor;
+
+import java.util.ServiceLoader;
+import java.util.Set;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+
+/**
+ * A check which {@link JpaProcessor} runs on annotated elements. Rather than each rule searching the round for the
+ * elements it cares about, the processor walks the elements of each round once, and hands each element to every rule
+ * which supports both one of its annotations and its kind.
+ *
+ * Besides its built-in rules, the processor runs any rules found by {@link ServiceLoader} on the processor path; to
+ * add one, list its class in {@code META-INF/services/com.overstock.sample.processor.ValidationRule}. Any rule can
+ * be turned off with {@code -Ajpa.rule.<name>=false}, and the time spent in each is included in the
+ * {@code jpa.metrics} report. Most rules should extend {@link AbstractValidationRule}.
+ *
+ * Rules are called on the compiler's thread, so they need not be thread safe. Elements are only valid for the round
+ * they come from, so should not be kept beyond {@link #endRound(RoundEnvironment)}.
+ */
+public interface ValidationRule {
+  /**
+   * @return the name of the rule, which should be a Java identifier
+   */
+  String getName();
+
+  /**
+   * @return the qualified names of the annotation types whose elements this rule checks
+   */
+  Set<String> getSupportedAnnotationTypes();
+
+  /**
+   * @return the kinds of element this rule checks
+   */
+  Set<ElementKind> getSupportedElementKinds();
+
+  /**
+   * Prepare to check elements; called once, before any elements are checked.
+   * @param processingEnv the processing environment, whose {@code Messager} errors and warnings should be reported to
+   */
+  void init(ProcessingEnvironment processingEnv);
+
+  /**
+   * Check one element. Each element of a round which is of a supported kind, and carries at least one supported
+   * annotation, is passed to this exactly once, in the order the elements are declared in.
+   * @param element the element to check
+   */
+  void check(Element element);
+
+  /**
+   * Finish checking a round; called once each round, after all of its elements have been passed to
+   * {@link #check(Element)}, for rules which check elements together.
+   * @param roundEnv the round
+   */
+  void endRound(RoundEnvironment roundEnv);
+}
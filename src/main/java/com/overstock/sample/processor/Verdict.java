@@ -0,0 +1,39 @@
+package com.overstock.sample.processor;
+
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+
+/**
+ * The outcome of checking one &#64;{@link OneToMany} property against its child type. A verdict holds no elements,
+ * so it can outlive the round (and the build) that produced it; the diagnostic is reported against whichever elements
+ * are current when it is replayed.
+ */
+final class Verdict {
+  enum Status {
+    /** the child maps back to the parent, and {@code mappedBy} names that property */
+    VALID,
+    /** the child has no &#64;{@link ManyToOne} property of the parent's type */
+    NO_MANY_TO_ONE,
+    /** the child maps back to the parent, but {@code mappedBy} is not set */
+    MISSING_MAPPED_BY,
+    /** the child maps back to the parent, but {@code mappedBy} names some other property */
+    WRONG_MAPPED_BY
+  }
+
+  static final Verdict VALID = new Verdict(Status.VALID, null);
+  static final Verdict NO_MANY_TO_ONE = new Verdict(Status.NO_MANY_TO_ONE, null);
+  static final Verdict MISSING_MAPPED_BY = new Verdict(Status.MISSING_MAPPED_BY, null);
+
+  static Verdict wrongMappedBy(String expected) {
+    return new Verdict(Status.WRONG_MAPPED_BY, expected);
+  }
+
+  private Verdict(Status status, String expectedMappedBy) {
+    this.status = status;
+    this.expectedMappedBy = expectedMappedBy;
+  }
+
+  final Status status;
+  /** the property name {@code mappedBy} should have; only set for {@link Status#WRONG_MAPPED_BY} */
+  final String expectedMappedBy;
+}
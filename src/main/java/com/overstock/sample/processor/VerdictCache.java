@@ -0,0 +1,269 @@
+package com.overstock.sample.processor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+
+/**
+ * A cache of {@link Verdict}s which persists between builds, for use when the same entities are compiled over and
+ * over again. Each verdict is keyed by a signature hash of everything it was derived from: the &#64;{@link OneToMany}
+ * property (its parent type, name, declared type and {@code mappedBy} value), and the &#64;{@link ManyToOne}
+ * properties of each type in the child's mapped hierarchy. If any of those change, so does the key, so a stale
+ * verdict is never replayed; it simply ages out.
+ *
+ * The cache holds at most {@code maxEntries} verdicts, evicting the least recently used. It is stored in a single
+ * binary file, which is read once when processing starts and written once when it finishes.
+ */
+class VerdictCache {
+  static final String CACHE_DIR_OPTION = "jpa.cache";
+  static final String MAX_ENTRIES_OPTION = "jpa.cache.maxEntries";
+  static final int DEFAULT_MAX_ENTRIES = 100000;
+
+  private static final String FILE_NAME = "jpa-verdicts.bin";
+  private static final int MAGIC = 0x4A504143; // "JPAC"
+  private static final int VERSION = 1;
+  private static final Verdict.Status[] STATUSES = Verdict.Status.values();
+
+  private final File file;
+  private final Map<Signature, Verdict> verdicts;
+  private final Map<TypeElement, byte[]> childSignatures = new HashMap<TypeElement, byte[]>();
+  private boolean modified;
+
+  /**
+   * Open the cache stored in {@code directory}, creating an empty one if there is none yet. A cache file written by
+   * a different version of this processor, or which cannot be read, is discarded.
+   * @param directory the directory holding the cache file
+   * @param maxEntries the maximum number of verdicts to keep
+   */
+  VerdictCache(File directory, final int maxEntries) {
+    this.file = new File(directory, FILE_NAME);
+    this.verdicts = new LinkedHashMap<Signature, Verdict>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Signature, Verdict> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    try {
+      read();
+    }
+    catch (IOException e) {
+      verdicts.clear();
+      modified = true;
+    }
+  }
+
+  /**
+   * @param key the signature of a parent property and its child hierarchy
+   * @return the verdict previously stored for {@code key}, or {@code null}
+   */
+  Verdict get(Signature key) {
+    return verdicts.get(key);
+  }
+
+  void put(Signature key, Verdict verdict) {
+    verdicts.put(key, verdict);
+    modified = true;
+  }
+
+  /**
+   * Compute the key for checking a &#64;{@link OneToMany} property.
+   * @param childProperty the &#64;{@link OneToMany} property in the parent type
+   * @param mappedBy the property's {@code mappedBy} value, or {@code null} if it has none
+   * @param childHierarchy the child type, followed by the mapped superclasses searched for a &#64;{@link ManyToOne}
+   * @param relationshipIndex the index holding the &#64;{@link ManyToOne} properties of the child hierarchy
+   * @return the signature of everything the verdict for {@code childProperty} depends on
+   */
+  Signature signature(
+    Element childProperty, String mappedBy, List<TypeElement> childHierarchy, RelationshipIndex relationshipIndex) {
+    MessageDigest digest = newDigest();
+    update(digest, ((TypeElement) childProperty.getEnclosingElement()).getQualifiedName());
+    updateProperty(digest, childProperty);
+    update(digest, mappedBy == null ? "\u0000" : mappedBy);
+    digest.update(childSignature(childHierarchy, relationshipIndex));
+    return new Signature(digest.digest());
+  }
+
+  /**
+   * Forget the signatures of child types computed this round; called at the start of each round.
+   */
+  void clear() {
+    childSignatures.clear();
+  }
+
+  /**
+   * Write the cache back to disk, if anything has changed since it was read.
+   * @throws IOException if the cache file cannot be written
+   */
+  void save() throws IOException {
+    if (!modified) {
+      return;
+    }
+    File directory = file.getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create cache directory " + directory.getAbsolutePath());
+    }
+    // write to a temporary file first, so that a concurrent build never reads a partially written cache
+    File temp = File.createTempFile(FILE_NAME, null, directory);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(verdicts.size());
+      // least recently used first, so that reading the file back restores the same eviction order
+      for (Map.Entry<Signature, Verdict> entry : verdicts.entrySet()) {
+        out.writeLong(entry.getKey().high);
+        out.writeLong(entry.getKey().low);
+        Verdict verdict = entry.getValue();
+        out.writeByte(verdict.status.ordinal());
+        if (verdict.status == Verdict.Status.WRONG_MAPPED_BY) {
+          out.writeUTF(verdict.expectedMappedBy);
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+    if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+      temp.delete();
+      throw new IOException("Unable to replace cache file " + file.getAbsolutePath());
+    }
+    modified = false;
+  }
+
+  private void read() throws IOException {
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+    catch (FileNotFoundException e) {
+      return; // nothing cached yet
+    }
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Unrecognized cache file " + file.getAbsolutePath());
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        Signature key = new Signature(in.readLong(), in.readLong());
+        int status = in.readUnsignedByte();
+        if (status >= STATUSES.length) {
+          throw new IOException("Corrupt cache file " + file.getAbsolutePath());
+        }
+        switch (STATUSES[status]) {
+          case VALID: verdicts.put(key, Verdict.VALID); break;
+          case NO_MANY_TO_ONE: verdicts.put(key, Verdict.NO_MANY_TO_ONE); break;
+          case MISSING_MAPPED_BY: verdicts.put(key, Verdict.MISSING_MAPPED_BY); break;
+          case WRONG_MAPPED_BY: verdicts.put(key, Verdict.wrongMappedBy(in.readUTF())); break;
+        }
+      }
+    }
+    catch (EOFException e) {
+      throw new IOException("Truncated cache file " + file.getAbsolutePath());
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private byte[] childSignature(List<TypeElement> childHierarchy, RelationshipIndex relationshipIndex) {
+    TypeElement childType = childHierarchy.get(0);
+    byte[] signature = childSignatures.get(childType);
+    if (signature == null) {
+      MessageDigest digest = newDigest();
+      for (TypeElement type : childHierarchy) {
+        update(digest, type.getQualifiedName());
+        for (Element property : relationshipIndex.declaredManyToOnes(type)) {
+          updateProperty(digest, property);
+        }
+      }
+      signature = digest.digest();
+      childSignatures.put(childType, signature);
+    }
+    return signature;
+  }
+
+  private static void updateProperty(MessageDigest digest, Element property) {
+    update(digest, property.getKind().name());
+    update(digest, property.getSimpleName());
+    update(digest, JpaProcessor.getPropertyType(property).toString());
+  }
+
+  private static void update(MessageDigest digest, CharSequence value) {
+    try {
+      digest.update(value.toString().getBytes("UTF-8"));
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e); // every JVM supports UTF-8
+    }
+    digest.update((byte) 0); // separator, so that ("ab", "c") and ("a", "bc") differ
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e); // every JVM supports MD5
+    }
+  }
+
+  /**
+   * A 128 bit hash of the inputs to a verdict.
+   */
+  static final class Signature {
+    Signature(byte[] digest) {
+      this(toLong(digest, 0), toLong(digest, 8));
+    }
+
+    Signature(long high, long low) {
+      this.high = high;
+      this.low = low;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Signature)) {
+        return false;
+      }
+      Signature other = (Signature) obj;
+      return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (low ^ (low >>> 32));
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+      long value = 0;
+      for (int i = offset; i < offset + 8; i++) {
+        value = (value << 8) | (bytes[i] & 0xff);
+      }
+      return value;
+    }
+
+    final long high;
+    final long low;
+  }
+}
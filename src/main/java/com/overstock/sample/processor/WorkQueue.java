@@ -0,0 +1,123 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.persistence.OneToMany;
+
+/**
+ * Tracks, across rounds, which types and &#64;{@link OneToMany} properties have been checked, and which have been
+ * put off until a later round because a type they depend on does not exist yet (typically because another processor
+ * has yet to generate it). Each is checked once, however many rounds it turns up in.
+ *
+ * Elements are only valid for the round they come from, and holding on to them would keep each round's compiler
+ * state alive, so between rounds only names are kept: qualified names for types, plus the member name for
+ * properties. Deferred properties are looked up again by name in the round they are checked in.
+ */
+class WorkQueue {
+  private final Set<String> checkedTypes = new HashSet<String>();
+  private final Set<PropertyKey> checkedProperties = new HashSet<PropertyKey>();
+  private final Set<PropertyKey> deferredProperties = new LinkedHashSet<PropertyKey>();
+
+  /**
+   * @param type a root type of a round
+   * @return {@code true} if {@code type} has not been checked before; it is counted as checked from now on
+   */
+  boolean startType(TypeElement type) {
+    return checkedTypes.add(type.getQualifiedName().toString());
+  }
+
+  /**
+   * Get the properties to check this round: those deferred from earlier rounds, followed by those found this round
+   * which have not been checked (or deferred) before. Each must be passed to either {@link #done(Element)} or
+   * {@link #defer(Element)}.
+   * @param roundProperties the &#64;{@link OneToMany} properties found this round
+   * @param elementUtils used to look up deferred properties
+   * @return the properties to check
+   */
+  List<Element> properties(Collection<? extends Element> roundProperties, Elements elementUtils) {
+    List<Element> properties = new ArrayList<Element>();
+    Set<PropertyKey> queued = new HashSet<PropertyKey>();
+    for (PropertyKey key : deferredProperties) {
+      Element property = key.find(elementUtils);
+      if (property != null) { // else the type has gone, so there is nothing to check
+        properties.add(property);
+        queued.add(key);
+      }
+    }
+    deferredProperties.clear();
+    for (Element property : roundProperties) {
+      PropertyKey key = new PropertyKey(property);
+      if (!checkedProperties.contains(key) && queued.add(key)) {
+        properties.add(property);
+      }
+    }
+    return properties;
+  }
+
+  /**
+   * @param property a property which has been checked
+   */
+  void done(Element property) {
+    checkedProperties.add(new PropertyKey(property));
+  }
+
+  /**
+   * @param property a property to check in the next round instead
+   */
+  void defer(Element property) {
+    deferredProperties.add(new PropertyKey(property));
+  }
+
+  /**
+   * Identifies a field or method by the qualified name of its type and its own name.
+   */
+  private static final class PropertyKey {
+    private final String typeName;
+    private final String memberName;
+    private final ElementKind kind;
+
+    PropertyKey(Element property) {
+      this.typeName = ((TypeElement) property.getEnclosingElement()).getQualifiedName().toString();
+      this.memberName = property.getSimpleName().toString();
+      this.kind = property.getKind();
+    }
+
+    /**
+     * @return the property this identifies in the current round, or {@code null} if there is none
+     */
+    Element find(Elements elementUtils) {
+      TypeElement type = elementUtils.getTypeElement(typeName);
+      if (type != null) {
+        for (Element member : type.getEnclosedElements()) {
+          if (member.getKind() == kind && member.getSimpleName().contentEquals(memberName)) {
+            return member;
+          }
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof PropertyKey)) {
+        return false;
+      }
+      PropertyKey other = (PropertyKey) obj;
+      return typeName.equals(other.typeName) && memberName.equals(other.memberName) && kind == other.kind;
+    }
+
+    @Override
+    public int hashCode() {
+      return (typeName.hashCode() * 31 + memberName.hashCode()) * 31 + kind.hashCode();
+    }
+  }
+}
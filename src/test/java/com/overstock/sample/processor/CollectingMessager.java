@@ -0,0 +1,88 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.processing.Messager;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.tools.Diagnostic.Kind;
+
+/**
+ * A {@code Messager} which keeps the messages printed to it, rather than passing them on to the compiler, so that
+ * tests can check what a processor reported, and against which elements. Errors printed to it do not fail the
+ * compile. Messages may be printed from any thread.
+ */
+public class CollectingMessager implements Messager {
+  private final List<Message> messages = new ArrayList<Message>();
+
+  @Override
+  public void printMessage(Kind kind, CharSequence msg) {
+    add(new Message(kind, msg, null, null, null));
+  }
+
+  @Override
+  public void printMessage(Kind kind, CharSequence msg, Element e) {
+    add(new Message(kind, msg, e, null, null));
+  }
+
+  @Override
+  public void printMessage(Kind kind, CharSequence msg, Element e, AnnotationMirror a) {
+    add(new Message(kind, msg, e, a, null));
+  }
+
+  @Override
+  public void printMessage(Kind kind, CharSequence msg, Element e, AnnotationMirror a, AnnotationValue v) {
+    add(new Message(kind, msg, e, a, v));
+  }
+
+  /**
+   * @return the messages printed so far, in the order they were printed
+   */
+  public synchronized List<Message> getMessages() {
+    return new ArrayList<Message>(messages);
+  }
+
+  private synchronized void add(Message message) {
+    messages.add(message);
+  }
+
+  /**
+   * One printed message. Its string form is the kind, the element, annotation and value it was printed against, if
+   * any, and then the message, such as {@code ERROR SimpleAnnotated @javax.persistence.Entity: missing no argument
+   * constructor}.
+   */
+  public static class Message {
+    private final Kind kind;
+    private final String message;
+    private final Element element;
+    private final AnnotationMirror annotation;
+    private final AnnotationValue value;
+
+    Message(Kind kind, CharSequence message, Element element, AnnotationMirror annotation, AnnotationValue value) {
+      this.kind = kind;
+      this.message = message.toString();
+      this.element = element;
+      this.annotation = annotation;
+      this.value = value;
+    }
+
+    public Kind getKind() { return kind; }
+    public String getMessage() { return message; }
+    public Element getElement() { return element; }
+    public AnnotationMirror getAnnotation() { return annotation; }
+    public AnnotationValue getValue() { return value; }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder(kind.toString());
+      for (Object target : new Object[] { element, annotation, value }) {
+        if (target != null) {
+          builder.append(' ').append(target);
+        }
+      }
+      return builder.append(": ").append(message).toString();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The outcome of compiling with an {@link InMemoryCompiler}: whether javac succeeded, what it and the processors
+ * reported, and what was generated.
+ */
+public class Compilation {
+  private final boolean success;
+  private final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+  private final List<CollectingMessager.Message> messages;
+  private final InMemoryFileManager fileManager;
+
+  Compilation(
+    boolean success, List<Diagnostic<? extends JavaFileObject>> diagnostics, List<CollectingMessager.Message> messages,
+    InMemoryFileManager fileManager) {
+    this.success = success;
+    this.diagnostics = ImmutableList.copyOf(diagnostics);
+    this.messages = ImmutableList.copyOf(messages);
+    this.fileManager = fileManager;
+  }
+
+  /**
+   * @return whether javac succeeded; errors printed by the processors do not count against it
+   */
+  public boolean succeeded() {
+    return success;
+  }
+
+  /**
+   * @return javac's own diagnostics, such as syntax errors
+   */
+  public List<Diagnostic<? extends JavaFileObject>> getDiagnostics() {
+    return diagnostics;
+  }
+
+  /**
+   * @return the kind and text of javac's diagnostics about the sources, in order, for comparing against; those about
+   *   the compile as a whole, such as the source version a processor supports, are left out
+   */
+  public List<String> getDiagnosticStrings() {
+    List<String> strings = new ArrayList<String>();
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
+      if (diagnostic.getSource() != null) {
+        strings.add(diagnostic.getKind() + ": " + diagnostic.getMessage(Locale.ROOT));
+      }
+    }
+    return strings;
+  }
+
+  /**
+   * @return the messages the processors printed, in order
+   */
+  public List<CollectingMessager.Message> getMessages() {
+    return messages;
+  }
+
+  /**
+   * @return the string forms of the messages the processors printed, for comparing against; see
+   *   {@link CollectingMessager.Message#toString()}
+   */
+  public List<String> getMessageStrings() {
+    List<String> strings = new ArrayList<String>();
+    for (CollectingMessager.Message message : messages) {
+      strings.add(message.toString());
+    }
+    return strings;
+  }
+
+  /**
+   * @param className the qualified name of a generated class, such as {@code model.Item_}
+   * @return the source generated for it, or {@code null} if there is none
+   */
+  public String getGeneratedSource(String className) {
+    byte[] content = fileManager.getOutput(
+      StandardLocation.SOURCE_OUTPUT, className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+    return content == null ? null : new String(content, Charsets.UTF_8);
+  }
+
+  /**
+   * @param path the path of a file written to the class output, such as {@code META-INF/orm.xml}
+   * @return the file's content, or {@code null} if it was not written
+   */
+  public byte[] getOutput(String path) {
+    return fileManager.getOutput(StandardLocation.CLASS_OUTPUT, path);
+  }
+
+  /**
+   * @param parent the class loader to load any other classes with
+   * @return a class loader for the classes compiled
+   */
+  public ClassLoader getClassLoader(ClassLoader parent) {
+    return new ClassLoader(parent) {
+      @Override
+      protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] classFile = fileManager.getOutput(
+          StandardLocation.CLASS_OUTPUT, name.replace('.', '/') + JavaFileObject.Kind.CLASS.extension);
+        if (classFile == null) {
+          throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, classFile, 0, classFile.length);
+      }
+    };
+  }
+}
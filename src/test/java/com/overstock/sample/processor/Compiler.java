@@ -3,17 +3,14 @@ package com.overstock.sample.processor;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import javax.annotation.processing.Processor;
-import javax.persistence.Entity;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaCompiler.CompilationTask;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
-import javax.tools.ToolProvider;
 
 import org.apache.commons.io.FileUtils;
 
@@ -22,25 +19,23 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
 import com.google.common.collect.Lists;
 
+/**
+ * Compiles sources written to a temporary directory, into another, for tests which need the output on disk, such as
+ * incremental builds over previously compiled classes. Tests which do not should use {@link InMemoryCompiler}.
+ */
 public class Compiler {
 
-  private static List<String> classPathEntries = Lists.newArrayList();
-  static {
-    classPathEntries.add(classPathFor(Compiler.class));
-    classPathEntries.add(classPathFor(JpaProcessor.class));
-    classPathEntries.add(classPathFor(Entity.class));
-  }
-
   private final File sourceDir, outputDir;
   private final List<String> options;
 
-  public Compiler() throws IOException {
+  public Compiler(String... extraOptions) throws IOException {
     sourceDir = createTempDir("sourceDir");
     outputDir = createTempDir("outputDir");
 
     Builder<String> builder = ImmutableList.builder();
     builder.add("-classpath").add(buildClassPath(outputDir));
     builder.add("-d").add(outputDir.getAbsolutePath());
+    builder.add(extraOptions);
     this.options = builder.build();
   }
 
@@ -55,25 +50,40 @@ public class Compiler {
 
   public boolean compileWithProcessor(Processor processor, SourceFile... sourceFiles)
   throws Exception {
-    return compile(processor, sourceFiles);
+    return compile(Arrays.asList(processor), null, sourceFiles);
+  }
+
+  public boolean compileWithProcessors(List<? extends Processor> processors, SourceFile... sourceFiles)
+  throws Exception {
+    return compile(processors, null, sourceFiles);
+  }
+
+  /**
+   * Compile {@code sourceFiles}, and also run {@code processor} over the previously compiled classes named by
+   * {@code classNames}, without recompiling them. This is what an incremental build does with unchanged types.
+   */
+  public boolean compileWithProcessor(Processor processor, List<String> classNames, SourceFile... sourceFiles)
+  throws Exception {
+    return compile(Arrays.asList(processor), classNames, sourceFiles);
   }
 
   public boolean compile(SourceFile... sourceFiles) throws Exception {
-    return compile(null, sourceFiles);
+    return compile(null, null, sourceFiles);
   }
 
-  private boolean compile(Processor processor, SourceFile... sourceFiles)  throws Exception {
+  private boolean compile(List<? extends Processor> processors, List<String> classNames, SourceFile... sourceFiles)
+  throws Exception {
     File[] files = new File[sourceFiles.length];
     for (int i = 0; i < sourceFiles.length; i++) {
       files[i] = writeSourceFile(sourceFiles[i]);
     }
-    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    JavaCompiler compiler = InMemoryCompiler.SYSTEM_COMPILER;
     StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
     Iterable<? extends JavaFileObject> javaFileObjects = fileManager.getJavaFileObjects(files);
     CompilationTask compilationTask =
-      compiler.getTask(null, null, null, options, null, javaFileObjects);
-    if (processor != null) {
-      compilationTask.setProcessors(Arrays.asList(processor));
+      compiler.getTask(null, null, null, options, classNames, javaFileObjects);
+    if (processors != null) {
+      compilationTask.setProcessors(processors);
     }
     Boolean success = compilationTask.call();
     fileManager.close();
@@ -81,15 +91,11 @@ public class Compiler {
   }
 
   private static String buildClassPath(File outputDir) {
-    ArrayList<String> classPathElements = Lists.newArrayList(classPathEntries);
-    classPathElements.add(outputDir.getAbsolutePath());
+    List<File> classPathElements = Lists.newArrayList(InMemoryCompiler.CLASS_PATH);
+    classPathElements.add(outputDir);
     return Joiner.on(System.getProperty("path.separator")).join(classPathElements);
   }
 
-  private static String classPathFor(Class<?> clazz) {
-    return clazz.getProtectionDomain().getCodeSource().getLocation().getFile();
-  }
-
   protected File writeSourceFile(SourceFile sourceFile) throws IOException {
    File file = new File(sourceDir, sourceFile.getFileName());
    FileUtils.writeLines(file, sourceFile.getContent());
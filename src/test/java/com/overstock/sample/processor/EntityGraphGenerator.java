@@ -0,0 +1,169 @@
+package com.overstock.sample.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates a valid entity model of a given size, shaped like a real domain model rather than a list of unrelated
+ * classes:
+ * <ul>
+ *   <li>
+ *     Entities are spread over packages of {@value #GROUP_SIZE}. Each package has a chain of entities, each the
+ *     parent of the next, and a shared child (think audit event) which every entity in the package has a collection
+ *     of, and which so has a &#64;ManyToOne back to each of them.
+ *   </li>
+ *   <li>
+ *     Every entity extends one level of a {@value #HIERARCHY_DEPTH}-deep chain of &#64;MappedSuperclasses, the root of
+ *     which maps a &#64;ManyToOne to a {@code Tenant} entity. Some entities also extend the entity before them.
+ *   </li>
+ *   <li>Properties alternate between field and getter mappings.</li>
+ *   <li>
+ *     Collections are declared as {@code Set}, {@code List}, {@code Collection}, {@code SortedSet} or the generic
+ *     subtype {@code EntitySet<T> extends Set<T>}.
+ *   </li>
+ * </ul>
+ * Every generated entity is counted, including the shared children and the tenant.
+ */
+class EntityGraphGenerator {
+  static final int GROUP_SIZE = 50;
+  static final int HIERARCHY_DEPTH = 4;
+  private static final int BASIC_PROPERTIES = 6;
+  /** how many entities the tenant has a collection of; the rest only map the tenant from their side */
+  private static final int TENANT_COLLECTIONS = 100;
+  private static final String[] COLLECTION_TYPES =
+    { "java.util.Set", "java.util.List", "java.util.Collection", "java.util.SortedSet", "model.EntitySet" };
+
+  private final int entityCount;
+  private final List<SourceFile> sourceFiles = new ArrayList<SourceFile>();
+
+  /**
+   * @param entityCount the number of entities to generate; at least 2
+   */
+  EntityGraphGenerator(int entityCount) {
+    this.entityCount = entityCount;
+  }
+
+  SourceFile[] generate() {
+    sourceFiles.clear();
+    sourceFiles.add(new SourceFile(
+      "model/EntitySet.java",
+      "package model;",
+      "public interface EntitySet<T> extends java.util.Set<T> {}"));
+    generateHierarchy();
+
+    int remaining = entityCount - 1; // the tenant
+    List<String> tenantCollections = new ArrayList<String>();
+    for (int group = 0; remaining > 0; group++) {
+      int size = Math.min(GROUP_SIZE, remaining - 1); // one more for the shared child
+      if (size <= 0) {
+        break;
+      }
+      generateGroup(group, size, tenantCollections);
+      remaining -= size + 1;
+    }
+    generateTenant(tenantCollections);
+    return sourceFiles.toArray(new SourceFile[sourceFiles.size()]);
+  }
+
+  private void generateHierarchy() {
+    for (int level = 0; level < HIERARCHY_DEPTH; level++) {
+      List<String> lines = new ArrayList<String>();
+      lines.add("package model;");
+      lines.add("@javax.persistence.MappedSuperclass");
+      lines.add("public abstract class Base" + level + (level == 0 ? "" : " extends Base" + (level - 1)) + " {");
+      if (level == 0) {
+        lines.add("  @javax.persistence.ManyToOne");
+        lines.add("  private Tenant tenant;");
+      }
+      lines.add("  @javax.persistence.Column");
+      lines.add("  public long getVersion" + level + "() { return 0; }");
+      lines.add("}");
+      add("model/Base" + level + ".java", lines);
+    }
+  }
+
+  private void generateTenant(List<String> tenantCollections) {
+    List<String> lines = new ArrayList<String>();
+    lines.add("package model;");
+    lines.add("@javax.persistence.Entity");
+    lines.add("public class Tenant {");
+    for (int i = 0; i < tenantCollections.size(); i++) {
+      lines.add("  @javax.persistence.OneToMany(mappedBy=\"tenant\")");
+      lines.add("  private java.util.Set<" + tenantCollections.get(i) + "> entities" + i + ";");
+    }
+    lines.add("}");
+    add("model/Tenant.java", lines);
+  }
+
+  private void generateGroup(int group, int size, List<String> tenantCollections) {
+    String packageName = "model.g" + group;
+    String shared = "Event" + group;
+    List<String> sharedLines = new ArrayList<String>();
+    sharedLines.add("package " + packageName + ";");
+    sharedLines.add("@javax.persistence.Entity");
+    sharedLines.add("public class " + shared + " {");
+
+    for (int i = 0; i < size; i++) {
+      String name = entityName(group, i);
+      boolean extendsPrevious = i > 0 && i % 7 == 0;
+      String superclass = extendsPrevious ? entityName(group, i - 1) : "model.Base" + (i % HIERARCHY_DEPTH);
+      boolean fieldAccess = i % 2 == 0;
+
+      List<String> lines = new ArrayList<String>();
+      lines.add("package " + packageName + ";");
+      lines.add("@javax.persistence.Entity");
+      lines.add("public class " + name + " extends " + superclass + " {");
+      lines.add("  public " + name + "() {}");
+      lines.add("  public " + name + "(String name) {}");
+      for (int p = 0; p < BASIC_PROPERTIES; p++) {
+        lines.add("  @javax.persistence.Column(name=\"c" + p + "\") @javax.persistence.Basic");
+        lines.add(property(fieldAccess, "String", "value" + p));
+      }
+      // the next entity in the chain is a child of this one
+      if (i + 1 < size) {
+        String collection = COLLECTION_TYPES[i % COLLECTION_TYPES.length];
+        lines.add("  @javax.persistence.OneToMany(mappedBy=\"" + parentProperty(i) + "\")");
+        lines.add(property(fieldAccess, collection + "<" + entityName(group, i + 1) + ">", "children" + i));
+      }
+      if (i > 0) {
+        lines.add("  @javax.persistence.ManyToOne");
+        lines.add(property(fieldAccess, entityName(group, i - 1), parentProperty(i - 1)));
+      }
+      // every entity has a collection of the shared child
+      String eventsProperty = "owner" + i;
+      lines.add("  @javax.persistence.OneToMany(mappedBy=\"" + eventsProperty + "\")");
+      lines.add(property(fieldAccess, "java.util.List<" + shared + ">", "events"));
+      lines.add("}");
+      add(packageName.replace('.', '/') + "/" + name + ".java", lines);
+
+      sharedLines.add("  @javax.persistence.ManyToOne");
+      sharedLines.add(property(i % 3 == 0, name, eventsProperty));
+
+      if (tenantCollections.size() < TENANT_COLLECTIONS && !extendsPrevious) {
+        tenantCollections.add(packageName + "." + name);
+      }
+    }
+    sharedLines.add("}");
+    add(packageName.replace('.', '/') + "/" + shared + ".java", sharedLines);
+  }
+
+  private static String entityName(int group, int i) {
+    return "E" + group + "x" + i;
+  }
+
+  private static String parentProperty(int i) {
+    return "parent" + i;
+  }
+
+  private static String property(boolean field, String type, String name) {
+    if (field) {
+      return "  private " + type + " " + name + ";";
+    }
+    String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    return "  public " + type + " get" + capitalized + "() { return null; }";
+  }
+
+  private void add(String fileName, List<String> lines) {
+    sourceFiles.add(new SourceFile(fileName, lines.toArray(new String[lines.size()])));
+  }
+}
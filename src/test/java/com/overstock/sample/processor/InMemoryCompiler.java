@@ -0,0 +1,136 @@
+package com.overstock.sample.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.Processor;
+import javax.persistence.Entity;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Compiles sources with processors, entirely in memory: sources are not written out, and the classes, sources and
+ * resources generated are kept in an {@link InMemoryFileManager}. Whatever the processors print is collected by a
+ * {@link CollectingMessager} in place of the compiler's own {@code Messager}, and the compiler's diagnostics are
+ * collected as well, so that a test can check both; see {@link Compilation}.
+ *
+ * The system compiler and class path are looked up once, and each thread keeps a standard file manager over that
+ * class path from one compile to the next, so that the archives on it are only opened and indexed once, until
+ * {@link #closeFileManagers()} closes them. Nothing else is shared between compiles, so tests may compile on as many
+ * threads at once as they like.
+ */
+public class InMemoryCompiler {
+  static final JavaCompiler SYSTEM_COMPILER = ToolProvider.getSystemJavaCompiler();
+
+  /** this module's classes and tests, and the JPA API */
+  static final List<File> CLASS_PATH = ImmutableList.of(
+    classPathFor(InMemoryCompiler.class), classPathFor(JpaProcessor.class), classPathFor(Entity.class));
+
+  private static final ThreadLocal<StandardJavaFileManager> FILE_MANAGERS = new ThreadLocal<StandardJavaFileManager>();
+  /** the file managers of every thread, until they are closed */
+  private static final Set<StandardJavaFileManager> OPEN_FILE_MANAGERS = new HashSet<StandardJavaFileManager>();
+
+  private final List<String> options;
+
+  /**
+   * @param options options to pass to javac, such as {@code -Ajpa.index=orders}; these should not be options which
+   *   set paths, such as {@code -classpath} or {@code -d}, since the file manager those would change is shared
+   */
+  public InMemoryCompiler(String... options) {
+    this.options = ImmutableList.copyOf(options);
+  }
+
+  public Compilation compile(Processor processor, SourceFile... sourceFiles) {
+    return compile(Arrays.asList(processor), sourceFiles);
+  }
+
+  public Compilation compile(List<? extends Processor> processors, SourceFile... sourceFiles) {
+    CollectingMessager messager = new CollectingMessager();
+    List<Processor> wrappedProcessors = new ArrayList<Processor>();
+    for (Processor processor : processors) {
+      wrappedProcessors.add(new ProcessorWrapper(processor, messager));
+    }
+    return compile(wrappedProcessors, messager, sourceFiles);
+  }
+
+  /**
+   * Compile with a processor which is given the compiler's own processing environment, as APIs such as the compiler's
+   * Trees require, rather than one replacing its messager. What the processor prints is then among the compiler's
+   * diagnostics; see {@link Compilation#getDiagnosticStrings()}.
+   */
+  public Compilation compileWithCompilerMessager(Processor processor, SourceFile... sourceFiles) {
+    return compile(Arrays.asList(processor), new CollectingMessager(), sourceFiles);
+  }
+
+  private Compilation compile(
+    List<? extends Processor> processors, CollectingMessager messager, SourceFile... sourceFiles) {
+    List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+    for (SourceFile sourceFile : sourceFiles) {
+      sources.add(InMemoryFileManager.source(sourceFile));
+    }
+
+    InMemoryFileManager fileManager = new InMemoryFileManager(fileManager());
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+    CompilationTask compilationTask =
+      SYSTEM_COMPILER.getTask(null, fileManager, diagnostics, options, null, sources);
+    compilationTask.setProcessors(processors);
+    boolean success = compilationTask.call();
+    return new Compilation(success, diagnostics.getDiagnostics(), messager.getMessages(), fileManager);
+  }
+
+  /**
+   * Close the file managers kept by every thread, and with them the archives on the class path; a test class should
+   * call this once it is done compiling. A thread which compiles again afterwards opens a new one.
+   */
+  public static void closeFileManagers() throws IOException {
+    synchronized (OPEN_FILE_MANAGERS) {
+      try {
+        for (StandardJavaFileManager fileManager : OPEN_FILE_MANAGERS) {
+          fileManager.close();
+        }
+      }
+      finally {
+        OPEN_FILE_MANAGERS.clear();
+        FILE_MANAGERS.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the file manager this thread keeps, opening one if it has none, or its own has been closed
+   */
+  private static StandardJavaFileManager fileManager() {
+    synchronized (OPEN_FILE_MANAGERS) {
+      StandardJavaFileManager fileManager = FILE_MANAGERS.get();
+      if (fileManager == null || !OPEN_FILE_MANAGERS.contains(fileManager)) {
+        fileManager = SYSTEM_COMPILER.getStandardFileManager(null, null, Charsets.UTF_8);
+        try {
+          fileManager.setLocation(StandardLocation.CLASS_PATH, CLASS_PATH);
+        }
+        catch (IOException e) {
+          throw new IllegalStateException("Unable to set the class path to " + CLASS_PATH, e);
+        }
+        FILE_MANAGERS.set(fileManager);
+        OPEN_FILE_MANAGERS.add(fileManager);
+      }
+      return fileManager;
+    }
+  }
+
+  private static File classPathFor(Class<?> clazz) {
+    return new File(clazz.getProtectionDomain().getCodeSource().getLocation().getFile());
+  }
+}
@@ -0,0 +1,243 @@
+package com.overstock.sample.processor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+
+/**
+ * A {@code JavaFileManager} which keeps everything the compiler and processors write in memory, rather than in an
+ * output directory. Class files, generated sources and resources are written to {@link StandardLocation#CLASS_OUTPUT}
+ * and {@link StandardLocation#SOURCE_OUTPUT}, and can be read back, or listed, from there. Everything else, such as
+ * the class path, is read through the standard file manager it wraps.
+ *
+ * The wrapped file manager is not closed with this one, so that it can go on to be used for further compiles, and
+ * keep the archives on the class path open between them; see {@link InMemoryCompiler}.
+ */
+public class InMemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+  private final Map<String, MemoryFile> outputs =
+    Collections.synchronizedMap(new LinkedHashMap<String, MemoryFile>());
+
+  public InMemoryFileManager(StandardJavaFileManager fileManager) {
+    super(fileManager);
+  }
+
+  /**
+   * @return {@code sourceFile} as a compilation unit, without writing it out
+   */
+  public static JavaFileObject source(SourceFile sourceFile) {
+    return new MemoryFile(
+      URI.create("mem:///" + sourceFile.getFileName()),
+      Kind.SOURCE,
+      Joiner.on('\n').join(sourceFile.getContent()).getBytes(Charsets.UTF_8));
+  }
+
+  /**
+   * @param location {@link StandardLocation#CLASS_OUTPUT} or {@link StandardLocation#SOURCE_OUTPUT}
+   * @param path the path of the file, such as {@code model/Item.class}
+   * @return what was written to {@code path}, or {@code null} if nothing was
+   */
+  public byte[] getOutput(Location location, String path) {
+    MemoryFile file = outputs.get(key(location, path));
+    return file == null ? null : file.content;
+  }
+
+  /**
+   * @return the paths of the files written to {@code location}, in the order they were first written
+   */
+  public List<String> getOutputPaths(Location location) {
+    String prefix = location.getName() + "/";
+    List<String> paths = new ArrayList<String>();
+    synchronized (outputs) {
+      for (String key : outputs.keySet()) {
+        if (key.startsWith(prefix)) {
+          paths.add(key.substring(prefix.length()));
+        }
+      }
+    }
+    return paths;
+  }
+
+  @Override
+  public boolean hasLocation(Location location) {
+    return isOutput(location) || super.hasLocation(location);
+  }
+
+  @Override
+  public JavaFileObject getJavaFileForOutput(Location location, String className, Kind kind, FileObject sibling)
+  throws IOException {
+    if (!isOutput(location)) {
+      return super.getJavaFileForOutput(location, className, kind, sibling);
+    }
+    return create(location, className.replace('.', '/') + kind.extension, kind);
+  }
+
+  @Override
+  public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling)
+  throws IOException {
+    if (!isOutput(location)) {
+      return super.getFileForOutput(location, packageName, relativeName, sibling);
+    }
+    return create(location, path(packageName, relativeName), Kind.OTHER);
+  }
+
+  @Override
+  public JavaFileObject getJavaFileForInput(Location location, String className, Kind kind) throws IOException {
+    if (!isOutput(location)) {
+      return super.getJavaFileForInput(location, className, kind);
+    }
+    return outputs.get(key(location, className.replace('.', '/') + kind.extension));
+  }
+
+  @Override
+  public FileObject getFileForInput(Location location, String packageName, String relativeName) throws IOException {
+    if (!isOutput(location)) {
+      return super.getFileForInput(location, packageName, relativeName);
+    }
+    return outputs.get(key(location, path(packageName, relativeName)));
+  }
+
+  @Override
+  public Iterable<JavaFileObject> list(Location location, String packageName, Set<Kind> kinds, boolean recurse)
+  throws IOException {
+    if (!isOutput(location)) {
+      return super.list(location, packageName, kinds, recurse);
+    }
+    String prefix = key(location, packageName.length() == 0 ? "" : packageName.replace('.', '/') + "/");
+    List<JavaFileObject> files = new ArrayList<JavaFileObject>();
+    synchronized (outputs) {
+      for (Map.Entry<String, MemoryFile> output : outputs.entrySet()) {
+        String key = output.getKey();
+        if (key.startsWith(prefix) && kinds.contains(output.getValue().getKind())
+          && (recurse || key.indexOf('/', prefix.length()) < 0)) {
+          files.add(output.getValue());
+        }
+      }
+    }
+    return files;
+  }
+
+  @Override
+  public String inferBinaryName(Location location, JavaFileObject file) {
+    if (file instanceof MemoryFile) {
+      String path = ((MemoryFile) file).path;
+      if (path == null) {
+        return null; // a source, which is not on any path
+      }
+      return path.substring(path.indexOf('/') + 1, path.length() - file.getKind().extension.length())
+        .replace('/', '.');
+    }
+    return super.inferBinaryName(location, file);
+  }
+
+  @Override
+  public boolean isSameFile(FileObject a, FileObject b) {
+    if (a instanceof MemoryFile || b instanceof MemoryFile) {
+      return a.toUri().equals(b.toUri());
+    }
+    return super.isSameFile(a, b);
+  }
+
+  /**
+   * Leave the standard file manager open, for the next compile.
+   */
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+
+  private MemoryFile create(Location location, String path, Kind kind) {
+    String key = key(location, path);
+    return new MemoryFile(URI.create("mem:///" + key), kind, key, outputs);
+  }
+
+  private static boolean isOutput(Location location) {
+    return location == StandardLocation.CLASS_OUTPUT || location == StandardLocation.SOURCE_OUTPUT;
+  }
+
+  private static String key(Location location, String path) {
+    return location.getName() + "/" + path;
+  }
+
+  private static String path(String packageName, String relativeName) {
+    return packageName.length() == 0 ? relativeName : packageName.replace('.', '/') + "/" + relativeName;
+  }
+
+  /**
+   * A source, or a file written by the compiler. What is written only becomes visible once the stream it is written
+   * to is closed, as it would be on disk, and replaces any earlier content.
+   */
+  private static class MemoryFile extends SimpleJavaFileObject {
+    /** the location and path of an output, or {@code null} for a source */
+    private final String path;
+    private final Map<String, MemoryFile> outputs;
+    private volatile byte[] content;
+    private volatile long lastModified;
+
+    MemoryFile(URI uri, Kind kind, byte[] content) {
+      super(uri, kind);
+      this.path = null;
+      this.outputs = null;
+      this.content = content;
+      this.lastModified = System.currentTimeMillis();
+    }
+
+    MemoryFile(URI uri, Kind kind, String path, Map<String, MemoryFile> outputs) {
+      super(uri, kind);
+      this.path = path;
+      this.outputs = outputs;
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+      if (content == null) {
+        throw new IOException(toUri() + " has not been written");
+      }
+      return new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public OutputStream openOutputStream() {
+      return new ByteArrayOutputStream() {
+        @Override
+        public void close() {
+          content = toByteArray();
+          lastModified = System.currentTimeMillis();
+          outputs.put(path, MemoryFile.this);
+        }
+      };
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+      if (content == null) {
+        throw new IOException(toUri() + " has not been written");
+      }
+      return new String(content, Charsets.UTF_8);
+    }
+
+    @Override
+    public long getLastModified() {
+      return lastModified;
+    }
+  }
+}
@@ -2,17 +2,56 @@ package com.overstock.sample.processor;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Completion;
 import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
 import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.AnnotationValue;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.persistence.Table;
 import javax.tools.Diagnostic.Kind;
 
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
 public class JpaProcessorTest {
 
   private Messager mockMessager;
@@ -21,9 +60,18 @@ public class JpaProcessorTest {
 
   @Before
   public void setup() throws Exception{
+    resetProcessor();
+    compiler = new Compiler();
+  }
+
+  @AfterClass
+  public static void closeFileManagers() throws Exception {
+    InMemoryCompiler.closeFileManagers();
+  }
+
+  private void resetProcessor() {
     mockMessager = Mockito.mock(Messager.class);
     processor = new ProcessorWrapper(new JpaProcessor(), mockMessager);
-    compiler = new Compiler();
   }
 
   @Test
@@ -145,6 +193,1681 @@ public class JpaProcessorTest {
     Mockito.verifyNoMoreInteractions(mockMessager);
   }
 
+  @Test
+  public void testOneToManyOfCollectionSubtypeAndMap() throws Exception {
+    SourceFile[] sourceFiles = {
+        new SourceFile(
+          "Parent.java",
+          "public class Parent {",
+          "  @javax.persistence.OneToMany(mappedBy=\"mismatch\")",
+          "  public ChildList getChildren() { return null; }",
+          "  @javax.persistence.OneToMany",
+          "  public java.util.Map<String, ? extends Child> getChildrenByName() { return null; }",
+          "}"),
+        new SourceFile(
+          "ChildList.java",
+          "public class ChildList extends Children<String> {}"),
+        new SourceFile(
+          "Children.java",
+          "public class Children<T> extends java.util.ArrayList<Child> {}"),
+        new SourceFile(
+          "Child.java",
+          "public class Child {",
+          "  @javax.persistence.ManyToOne",
+          "  public Parent getParent() { return null; }",
+          "}")};
+
+    compiler.compileWithProcessor(processor, sourceFiles);
+    verifyPrintMessage(
+      Kind.ERROR,
+      "mappedBy attribute should be parent",
+      "getChildren()",
+      "@javax.persistence.OneToMany(mappedBy=\"mismatch\")",
+      "\"mismatch\"");
+    verifyPrintMessage(
+      Kind.ERROR,
+      "Missing mappedBy attribute",
+      "getChildrenByName()",
+      "@javax.persistence.OneToMany");
+    Mockito.verifyNoMoreInteractions(mockMessager);
+  }
+
+  @Test
+  public void testOneToManyRawCollection() throws Exception {
+    SourceFile[] sourceFiles = {
+        new SourceFile(
+          "Parent.java",
+          "public class Parent {",
+          "  @SuppressWarnings(\"rawtypes\")",
+          "  @javax.persistence.OneToMany(mappedBy=\"parent\")",
+          "  public java.util.Set getChildren() { return null; }",
+          "}")};
+
+    assertTrue(compiler.compileWithProcessor(processor, sourceFiles));
+    Mockito.verifyNoMoreInteractions(mockMessager);
+  }
+
+  @Test
+  public void testOneToManyInheritedFromMappedSuperclass() throws Exception {
+    SourceFile[] sourceFiles = {
+        new SourceFile(
+          "Parent.java",
+          "public class Parent {",
+          "  @javax.persistence.OneToMany(mappedBy=\"parent\")",
+          "  public java.util.Set<Child> getChildren() { return null; }",
+            "}"),
+        new SourceFile(
+          "BaseChild.java",
+          "@javax.persistence.MappedSuperclass",
+          "public abstract class BaseChild {",
+          "  @javax.persistence.ManyToOne",
+          "  public Parent getParent() { return null; }",
+            "}"),
+        new SourceFile(
+          "Child.java",
+          "public class Child extends BaseChild {}")};
+
+    compiler.compileWithProcessor(processor, sourceFiles);
+    Mockito.verifyNoMoreInteractions(mockMessager);
+  }
+
+  @Test
+  public void testOneToManyNotInheritedFromUnmappedSuperclass() throws Exception {
+    SourceFile[] sourceFiles = {
+        new SourceFile(
+          "Parent.java",
+          "public class Parent {",
+          "  @javax.persistence.OneToMany(mappedBy=\"parent\")",
+          "  public java.util.Set<Child> getChildren() { return null; }",
+            "}"),
+        new SourceFile(
+          "BaseChild.java",
+          "public abstract class BaseChild {",
+          "  @javax.persistence.ManyToOne",
+          "  public Parent getParent() { return null; }",
+            "}"),
+        new SourceFile(
+          "Child.java",
+          "public class Child extends BaseChild {}")};
+
+    compiler.compileWithProcessor(processor, sourceFiles);
+    verifyPrintMessage(
+      Kind.ERROR, "No matching @ManyToOne annotation on Child", "getChildren()", "@javax.persistence.OneToMany(mappedBy=\"parent\")");
+    Mockito.verifyNoMoreInteractions(mockMessager);
+  }
+
+  @Test
+  public void testOneToManySharedChild() throws Exception {
+    SourceFile[] sourceFiles = {
+        new SourceFile(
+          "Parent.java",
+          "public class Parent {",
+          "  @javax.persistence.OneToMany(mappedBy=\"parent\")",
+          "  public java.util.Set<Child> getChildren() { return null; }",
+            "}"),
+        new SourceFile(
+          "OtherParent.java",
+          "public class OtherParent {",
+          "  @javax.persistence.OneToMany(mappedBy=\"parent\")",
+          "  public java.util.Set<Child> getChildren() { return null; }",
+            "}"),
+        new SourceFile(
+          "Child.java",
+          "public class Child {",
+          "  @javax.persistence.ManyToOne",
+          "  public Parent getParent() { return null; }",
+          "  @javax.persistence.ManyToOne",
+          "  public OtherParent getOtherParent() { return null; }",
+            "}")};
+
+    compiler.compileWithProcessor(processor, sourceFiles);
+    verifyPrintMessage(
+      Kind.ERROR,
+      "mappedBy attribute should be otherParent",
+      "getChildren()",
+      "@javax.persistence.OneToMany(mappedBy=\"parent\")",
+      "\"parent\"");
+    Mockito.verifyNoMoreInteractions(mockMessager);
+  }
+
+  @Test
+  public void testIncrementalRecompileOfChangedChild() throws Exception {
+    SourceFile parent = new SourceFile(
+      "Parent.java",
+      "public class Parent {",
+      "  @javax.persistence.OneToMany(mappedBy=\"parent\")",
+      "  public java.util.Set<Child> getChildren() { return null; }",
+      "}");
+    compiler.compileWithProcessor(processor, parent, new SourceFile(
+      "Child.java",
+      "public class Child {",
+      "  @javax.persistence.ManyToOne",
+      "  public Parent getParent() { return null; }",
+      "}"));
+    Mockito.verifyNoMoreInteractions(mockMessager);
+
+    resetProcessor();
+    compiler.compileWithProcessor(processor, Arrays.asList("Parent"), new SourceFile(
+      "Child.java",
+      "public class Child {",
+      "  @javax.persistence.ManyToOne",
+      "  public Parent getOwner() { return null; }",
+      "}"));
+    verifyPrintMessage(
+      Kind.ERROR,
+      "mappedBy attribute should be owner",
+      "getChildren()",
+      "@javax.persistence.OneToMany(mappedBy=\"parent\")",
+      "\"parent\"");
+    Mockito.verifyNoMoreInteractions(mockMessager);
+  }
+
+  @Test
+  public void testIncrementalRecompileOfChangedParent() throws Exception {
+    SourceFile child = new SourceFile(
+      "Child.java",
+      "public class Child {",
+      "  @javax.persistence.ManyToOne",
+      "  public Parent getParent() { return null; }",
+      "}");
+    compiler.compileWithProcessor(processor, child, new SourceFile(
+      "Parent.java",
+      "public class Parent {",
+      "  @javax.persistence.OneToMany(mappedBy=\"parent\")",
+      "  public java.util.Set<Child> getChildren() { return null; }",
+      "}"));
+    Mockito.verifyNoMoreInteractions(mockMessager);
+
+    resetProcessor();
+    compiler.compileWithProcessor(processor, Arrays.asList("Child"), new SourceFile(
+      "Parent.java",
+      "public class Parent {",
+      "  @javax.persistence.OneToMany",
+      "  public java.util.Set<Child> getChildren() { return null; }",
+      "}"));
+    verifyPrintMessage(
+      Kind.ERROR,
+      "Missing mappedBy attribute",
+      "getChildren()",
+      "@javax.persistence.OneToMany");
+    Mockito.verifyNoMoreInteractions(mockMessager);
+  }
+
+  @Test
+  public void testIncrementalReprocessingOfUnchangedParent() throws Exception {
+    SourceFile[] sourceFiles = {
+        new SourceFile(
+          "Parent.java",
+          "public class Parent {",
+          "  @javax.persistence.OneToMany(mappedBy=\"mismatch\")",
+          "  public java.util.Set<Child> getChildren() { return null; }",
+          "}"),
+        new SourceFile(
+          "Child.java",
+          "public class Child {",
+          "  @javax.persistence.ManyToOne",
+          "  public Parent getParent() { return null; }",
+          "}")};
+    compiler.compileWithProcessor(processor, sourceFiles);
+
+    resetProcessor();
+    compiler.compileWithProcessor(processor, Arrays.asList("Parent"), sourceFiles[1]);
+    verifyPrintMessage(
+      Kind.ERROR,
+      "mappedBy attribute should be parent",
+      "getChildren()",
+      "@javax.persistence.OneToMany(mappedBy=\"mismatch\")",
+      "\"mismatch\"");
+    Mockito.verifyNoMoreInteractions(mockMessager);
+  }
+
+  @Test
+  public void testVerdictCacheReplaysAndInvalidates() throws Exception {
+    File cacheDir = Files.createTempDir();
+    try {
+      SourceFile parent = new SourceFile(
+        "Parent.java",
+        "public class Parent {",
+        "  @javax.persistence.OneToMany(mappedBy=\"parent\")",
+        "  public java.util.Set<Child> getChildren() { return null; }",
+        "}");
+      SourceFile child = new SourceFile(
+        "Child.java",
+        "public class Child {",
+        "  @javax.persistence.ManyToOne",
+        "  public Parent getOwner() { return null; }",
+        "}");
+      for (int build = 0; build < 2; build++) {
+        resetProcessor();
+        compileWithCache(cacheDir, parent, child);
+        verifyPrintMessage(
+          Kind.ERROR,
+          "mappedBy attribute should be owner",
+          "getChildren()",
+          "@javax.persistence.OneToMany(mappedBy=\"parent\")",
+          "\"parent\"");
+        Mockito.verifyNoMoreInteractions(mockMessager);
+        assertTrue(new File(cacheDir, "jpa-verdicts.bin").isFile());
+      }
+
+      resetProcessor();
+      compileWithCache(cacheDir, parent, new SourceFile(
+        "Child.java",
+        "public class Child {",
+        "  @javax.persistence.ManyToOne",
+        "  public Parent getParent() { return null; }",
+        "}"));
+      Mockito.verifyNoMoreInteractions(mockMessager);
+    }
+    finally {
+      FileUtils.deleteQuietly(cacheDir);
+    }
+  }
+
+  @Test
+  public void testVerdictCacheIgnoresCorruptFile() throws Exception {
+    File cacheDir = Files.createTempDir();
+    try {
+      Files.write(new byte[] { 1, 2, 3 }, new File(cacheDir, "jpa-verdicts.bin"));
+      compileWithCache(cacheDir,
+        new SourceFile(
+          "Parent.java",
+          "public class Parent {",
+          "  @javax.persistence.OneToMany",
+          "  public java.util.Set<Child> getChildren() { return null; }",
+          "}"),
+        new SourceFile(
+          "Child.java",
+          "public class Child {",
+          "  @javax.persistence.ManyToOne",
+          "  public Parent getParent() { return null; }",
+          "}"));
+      verifyPrintMessage(Kind.ERROR, "Missing mappedBy attribute", "getChildren()", "@javax.persistence.OneToMany");
+      Mockito.verifyNoMoreInteractions(mockMessager);
+    }
+    finally {
+      FileUtils.deleteQuietly(cacheDir);
+    }
+  }
+
+  @Test
+  public void testMetricsReport() throws Exception {
+    File metricsFile = File.createTempFile("jpa-metrics", ".json");
+    Compiler measuringCompiler = new Compiler("-Ajpa.metrics=" + metricsFile.getAbsolutePath());
+    try {
+      measuringCompiler.compileWithProcessor(processor,
+        new SourceFile(
+          "Parent.java",
+          "@javax.persistence.Entity",
+          "public class Parent {",
+          "  @javax.persistence.OneToMany(mappedBy=\"parent\")",
+          "  public java.util.Set<Child> getChildren() { return null; }",
+          "}"),
+        new SourceFile(
+          "Child.java",
+          "public class Child {",
+          "  @javax.persistence.ManyToOne",
+          "  public Parent getParent() { return null; }",
+          "}"));
+      Mockito.verifyNoMoreInteractions(mockMessager);
+
+      String report = Files.toString(metricsFile, Charsets.UTF_8);
+      assertTrue(report, report.contains("\"SAME_TYPE_CHECKS\": 1,"));
+      assertTrue(report, report.contains("\"rules\": { \"noArgumentConstructor\": "));
+      assertTrue(report, report.contains("{ \"round\": 2, "));
+    }
+    finally {
+      measuringCompiler.cleanUp();
+      FileUtils.deleteQuietly(metricsFile);
+    }
+  }
+
+  @Test
+  public void testEagerCollectionsMultiply() throws Exception {
+    Compiler strictCompiler = new Compiler("-Ajpa.fetch.diagnostic=error");
+    try {
+      strictCompiler.compileWithProcessor(processor, eagerOrderSources());
+      verifyPrintMessage(
+        Kind.ERROR,
+        "loading Order eagerly fetches 3 collections (limit 1), whose rows multiply: "
+          + "Order.lines, Order.lines -> Line.taxes, Order.payments",
+        "Order",
+        "@javax.persistence.Entity");
+      verifyPrintMessage(
+        Kind.ERROR,
+        "eager fetch of Order.lines -> Line.taxes nests 2 collections (limit 1)",
+        "Order",
+        "@javax.persistence.Entity");
+      // loading a line loads its order, but not the order's lines again
+      verifyPrintMessage(
+        Kind.ERROR,
+        "loading Line eagerly fetches 3 collections (limit 1), whose rows multiply: "
+          + "Line.order -> Order.lines, Line.order -> Order.payments, Line.taxes",
+        "Line",
+        "@javax.persistence.Entity");
+      Mockito.verifyNoMoreInteractions(mockMessager);
+    }
+    finally {
+      strictCompiler.cleanUp();
+    }
+  }
+
+  @Test
+  public void testEagerCollectionsWithinLimits() throws Exception {
+    Compiler lenientCompiler = new Compiler(
+      "-Ajpa.fetch.diagnostic=warning", "-Ajpa.fetch.maxCollections=3", "-Ajpa.fetch.maxDepth=2");
+    try {
+      lenientCompiler.compileWithProcessor(processor, eagerOrderSources());
+      Mockito.verifyNoMoreInteractions(mockMessager);
+    }
+    finally {
+      lenientCompiler.cleanUp();
+    }
+  }
+
+  @Test
+  public void testEagerCollectionsNotCheckedByDefault() throws Exception {
+    Compilation compilation = new InMemoryCompiler().compile(new JpaProcessor(), eagerOrderSources());
+    assertEquals(Collections.emptyList(), compilation.getMessageStrings());
+  }
+
+  @Test
+  public void testDiagnosticOptionOnlyTakesWarningOrError() throws Exception {
+    Compilation compilation =
+      new InMemoryCompiler("-Ajpa.fetch.diagnostic=note").compile(new JpaProcessor(), eagerOrderSources());
+    assertEquals(
+      Arrays.asList("WARNING: Ignoring option jpa.fetch.diagnostic, which should be warning, error or none: note"),
+      compilation.getMessageStrings());
+  }
+
+  @Test
+  public void testEagerFetchWalkGivesUp() throws Exception {
+    // nine entities, each eagerly fetching all the others, have far more paths between them than the walk follows
+    SourceFile[] sourceFiles = new SourceFile[9];
+    for (int i = 0; i < sourceFiles.length; i++) {
+      List<String> lines = new ArrayList<String>();
+      lines.add("@javax.persistence.Entity");
+      lines.add("public class E" + i + " {");
+      for (int j = 0; j < sourceFiles.length; j++) {
+        if (j != i) {
+          lines.add("  @javax.persistence.ManyToOne E" + j + " e" + j + ";");
+        }
+      }
+      lines.add("}");
+      sourceFiles[i] = new SourceFile("E" + i + ".java", lines.toArray(new String[lines.size()]));
+    }
+    Compilation compilation =
+      new InMemoryCompiler("-Ajpa.fetch.diagnostic=warning").compile(new JpaProcessor(), sourceFiles);
+    assertTrue(compilation.getMessageStrings().toString(), compilation.getMessageStrings().contains(
+      "NOTE E0 @javax.persistence.Entity: stopped following the eager associations of E0 after 10000 steps, so "
+        + "collections beyond them are not counted"));
+  }
+
+  /**
+   * An order whose lines and payments are fetched with it, and whose lines' taxes are fetched with them. Each line
+   * also fetches its order, which is a cycle when loading an order.
+   */
+  private static SourceFile[] eagerOrderSources() {
+    return new SourceFile[] {
+      new SourceFile(
+        "Order.java",
+        "import javax.persistence.*;",
+        "@Entity",
+        "public class Order {",
+        "  @OneToMany(mappedBy=\"order\", fetch=FetchType.EAGER)",
+        "  public java.util.List<Line> getLines() { return null; }",
+        "  @OneToMany(mappedBy=\"order\", fetch=FetchType.EAGER)",
+        "  public java.util.Set<Payment> getPayments() { return null; }",
+        "  @OneToMany(mappedBy=\"order\")",
+        "  public java.util.Set<Payment> getRefunds() { return null; }",
+        "}"),
+      new SourceFile(
+        "Line.java",
+        "import javax.persistence.*;",
+        "@Entity",
+        "public class Line {",
+        "  @ManyToOne",
+        "  public Order getOrder() { return null; }",
+        "  @ElementCollection(fetch=FetchType.EAGER)",
+        "  public java.util.Set<String> getTaxes() { return null; }",
+        "}"),
+      new SourceFile(
+        "Payment.java",
+        "import javax.persistence.*;",
+        "@Entity",
+        "public class Payment {",
+        "  @ManyToOne(fetch=FetchType.LAZY)",
+        "  public Order getOrder() { return null; }",
+        "}")};
+  }
+
+  @Test
+  public void testRuleTurnedOff() throws Exception {
+    Compiler lenientCompiler = new Compiler("-Ajpa.rule.noArgumentConstructor=false");
+    try {
+      assertTrue(lenientCompiler.compileWithProcessor(processor,
+        new SourceFile(
+          "SimpleAnnotated.java",
+          "@javax.persistence.Entity",
+          "public class SimpleAnnotated {",
+          "  public SimpleAnnotated(int x) {}",
+          "}")));
+      Mockito.verifyNoMoreInteractions(mockMessager);
+    }
+    finally {
+      lenientCompiler.cleanUp();
+    }
+  }
+
+  @Test
+  public void testRuleFromProcessorPath() throws Exception {
+    File rulePath = Files.createTempDir();
+    try {
+      File services = new File(rulePath, "META-INF/services/" + ValidationRule.class.getName());
+      Files.createParentDirs(services);
+      Files.write(UnnamedTableRule.class.getName() + "\n", services, Charsets.UTF_8);
+      ClassLoader ruleLoader = new URLClassLoader(new URL[] { rulePath.toURI().toURL() }, getClass().getClassLoader());
+      SourceFile[] sourceFiles = {
+        new SourceFile(
+          "Item.java",
+          "@javax.persistence.Table",
+          "public class Item {}") };
+
+      processor = new ProcessorWrapper(new JpaProcessor(ruleLoader), mockMessager);
+      compiler.compileWithProcessor(processor, sourceFiles);
+      verifyPrintMessage(Kind.WARNING, "@Table should name the table", "Item", "@javax.persistence.Table");
+      Mockito.verifyNoMoreInteractions(mockMessager);
+
+      resetProcessor();
+      processor = new ProcessorWrapper(new JpaProcessor(ruleLoader), mockMessager);
+      Compiler lenientCompiler = new Compiler("-Ajpa.rule.unnamedTable=false");
+      try {
+        lenientCompiler.compileWithProcessor(processor, sourceFiles);
+        Mockito.verifyNoMoreInteractions(mockMessager);
+      }
+      finally {
+        lenientCompiler.cleanUp();
+      }
+    }
+    finally {
+      FileUtils.deleteQuietly(rulePath);
+    }
+  }
+
+  @Test
+  public void testParallelCheckingReportsInOrder() throws Exception {
+    // enough parents for the mappings to be checked on several threads
+    int parentCount = RuleEvaluator.MIN_BATCH_SIZE * 5;
+    List<SourceFile> sourceFiles = new ArrayList<SourceFile>();
+    List<String> childLines = new ArrayList<String>();
+    childLines.add("public class Child {");
+    for (int i = 0; i < parentCount; i++) {
+      sourceFiles.add(new SourceFile(
+        "Parent" + i + ".java",
+        "public class Parent" + i + " {",
+        "  @javax.persistence.OneToMany(mappedBy=\"parent\")",
+        "  public java.util.Set<Child> getChildren() { return null; }",
+        "}"));
+      childLines.add("  @javax.persistence.ManyToOne");
+      childLines.add("  public Parent" + i + " getParent" + i + "() { return null; }");
+    }
+    childLines.add("}");
+    sourceFiles.add(new SourceFile("Child.java", childLines.toArray(new String[childLines.size()])));
+
+    Compiler parallelCompiler = new Compiler("-Ajpa.threads=4");
+    try {
+      parallelCompiler.compileWithProcessor(processor, sourceFiles.toArray(new SourceFile[sourceFiles.size()]));
+    }
+    finally {
+      parallelCompiler.cleanUp();
+    }
+    InOrder inOrder = Mockito.inOrder(mockMessager);
+    for (int i = 0; i < parentCount; i++) {
+      inOrder.verify(mockMessager).printMessage(
+        Matchers.eq(Kind.ERROR),
+        Matchers.eq("mappedBy attribute should be parent" + i),
+        Matchers.any(Element.class),
+        Matchers.any(AnnotationMirror.class),
+        Matchers.any(AnnotationValue.class));
+    }
+    Mockito.verifyNoMoreInteractions(mockMessager);
+  }
+
+  @Test
+  public void testChildGeneratedInLaterRound() throws Exception {
+    assertTrue(compiler.compileWithProcessors(
+      Arrays.asList(processor, new ChildGenerator()),
+      new SourceFile(
+        "Parent.java",
+        "public class Parent {",
+        "  @javax.persistence.OneToMany(mappedBy=\"parent\")",
+        "  public java.util.Set<Child> getChildren() { return null; }",
+        "}")));
+    Mockito.verifyNoMoreInteractions(mockMessager);
+  }
+
+  @Test
+  public void testDeferredPropertyReportedOnce() throws Exception {
+    assertTrue(compiler.compileWithProcessors(
+      Arrays.asList(processor, new ChildGenerator()),
+      new SourceFile(
+        "Parent.java",
+        "public class Parent {",
+        "  @javax.persistence.OneToMany(mappedBy=\"wrong\")",
+        "  public java.util.Set<Child> getChildren() { return null; }",
+        "}")));
+    verifyPrintMessage(
+      Kind.ERROR,
+      "mappedBy attribute should be parent",
+      "getChildren()",
+      "@javax.persistence.OneToMany(mappedBy=\"wrong\")",
+      "\"wrong\"");
+    Mockito.verifyNoMoreInteractions(mockMessager);
+  }
+
+  @Test
+  public void testEntityIndex() throws Exception {
+    Compiler indexingCompiler = new Compiler("-Ajpa.index=orders");
+    try {
+      assertTrue(indexingCompiler.compileWithProcessor(processor,
+        new SourceFile(
+          "model/Order.java",
+          "package model;",
+          "@javax.persistence.Entity",
+          "public class Order extends Base {",
+          "  @javax.persistence.Entity",
+          "  public static class Line {}",
+          "}"),
+        new SourceFile(
+          "model/Base.java",
+          "package model;",
+          "@javax.persistence.MappedSuperclass",
+          "public class Base {}"),
+        new SourceFile(
+          "model/Address.java",
+          "package model;",
+          "@javax.persistence.Embeddable",
+          "public class Address {}")));
+      File index = new File(indexingCompiler.getOutputDir(), EntityIndex.RESOURCE_NAME);
+      assertEquals(
+        Arrays.asList(
+          "# Generated by com.overstock.sample.processor.JpaProcessor",
+          "orders\tENTITY\tmodel.Order",
+          "orders\tENTITY\tmodel.Order$Line",
+          "orders\tMAPPED_SUPERCLASS\tmodel.Base",
+          "orders\tEMBEDDABLE\tmodel.Address"),
+        Files.readLines(index, Charsets.UTF_8));
+      Mockito.verifyNoMoreInteractions(mockMessager);
+
+      // an incremental build: Order is recompiled without its annotation, and Customer is added
+      resetProcessor();
+      assertTrue(indexingCompiler.compileWithProcessor(processor,
+        new SourceFile(
+          "model/Order.java",
+          "package model;",
+          "public class Order extends Base {",
+          "  @javax.persistence.Entity",
+          "  public static class Line {}",
+          "}"),
+        new SourceFile(
+          "model/Customer.java",
+          "package model;",
+          "@javax.persistence.Entity",
+          "public class Customer {}")));
+      IndexedPersistenceUnitInfo info = IndexedPersistenceUnitInfo.load("orders",
+        new URLClassLoader(new URL[] { indexingCompiler.getOutputDir().toURI().toURL() }, null));
+      assertEquals(
+        Arrays.asList("model.Customer", "model.Order$Line", "model.Base", "model.Address"),
+        info.getManagedClassNames());
+      assertTrue(info.excludeUnlistedClasses());
+    }
+    finally {
+      indexingCompiler.cleanUp();
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testPropertyAccessor() throws Exception {
+    Compiler generatingCompiler = new Compiler("-Ajpa.accessors=true");
+    try {
+      assertTrue(generatingCompiler.compileWithProcessor(processor,
+        new SourceFile(
+          "model/Item.java",
+          "package model;",
+          "@javax.persistence.Entity",
+          "public class Item extends Base {",
+          "  private String name;",
+          "  int quantity;",
+          "  @javax.persistence.Transient String note;",
+          "  private String code = \"x\";",
+          "  public String getName() { return name; }",
+          "  public void setName(String name) { this.name = name; }",
+          "  public String getCode() { return code; }",
+          "  @javax.persistence.Access(javax.persistence.AccessType.PROPERTY)",
+          "  @javax.persistence.Column public boolean isActive() { return true; }",
+          "}"),
+        new SourceFile(
+          "model/Base.java",
+          "package model;",
+          "@javax.persistence.MappedSuperclass",
+          "public class Base {",
+          "  @javax.persistence.Id protected Long id;",
+          "}")));
+      Mockito.verifyNoMoreInteractions(mockMessager);
+
+      ClassLoader classLoader =
+        new URLClassLoader(new URL[] { generatingCompiler.getOutputDir().toURI().toURL() }, getClass().getClassLoader());
+      Class<Object> itemClass = (Class<Object>) classLoader.loadClass("model.Item");
+      PropertyAccessor<Object> accessor = PropertyAccessors.forClass(itemClass);
+      assertSame(itemClass, accessor.getEntityClass());
+      assertEquals(5, accessor.getPropertyCount());
+      assertEquals("id", accessor.getPropertyName(0));
+      assertEquals(2, accessor.indexOf("quantity"));
+      assertEquals(-1, accessor.indexOf("note"));
+
+      Object item = itemClass.newInstance();
+      accessor.set(item, accessor.indexOf("id"), 7L);
+      accessor.set(item, accessor.indexOf("name"), "widget");
+      accessor.set(item, accessor.indexOf("quantity"), 3);
+      assertEquals(7L, accessor.get(item, 0));
+      assertEquals("widget", accessor.get(item, 1));
+      assertEquals(3, accessor.get(item, 2));
+      assertEquals("x", accessor.get(item, 3));
+      assertEquals(Boolean.TRUE, accessor.get(item, accessor.indexOf("active")));
+      try {
+        accessor.set(item, 3, "y");
+        fail();
+      }
+      catch (UnsupportedOperationException expected) {}
+      assertSame(accessor, PropertyAccessors.forClass(itemClass));
+    }
+    finally {
+      generatingCompiler.cleanUp();
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testPropertyAccessorWithPropertyAccess() throws Exception {
+    Compilation compilation = new InMemoryCompiler("-Ajpa.accessors=true").compile(new JpaProcessor(),
+      new SourceFile(
+        "model/Item.java",
+        "package model;",
+        "@javax.persistence.Entity",
+        "public class Item {",
+        "  Long id;",
+        "  String name;",
+        "  int cachedHash;",
+        "  @javax.persistence.Id public Long getId() { return id; }",
+        "  public void setId(Long id) { this.id = id; }",
+        "  public String getName() { return name; }",
+        "  public void setName(String name) { this.name = name.trim(); }",
+        "  public String getLabel() { return \"#\" + id; }",
+        "}"));
+    assertTrue(compilation.succeeded());
+    assertEquals(Collections.emptyList(), compilation.getMessageStrings());
+
+    Class<Object> itemClass =
+      (Class<Object>) compilation.getClassLoader(getClass().getClassLoader()).loadClass("model.Item");
+    PropertyAccessor<Object> accessor = PropertyAccessors.forClass(itemClass);
+    assertEquals(2, accessor.getPropertyCount());
+    assertEquals(-1, accessor.indexOf("cachedHash"));
+    assertEquals(-1, accessor.indexOf("label"));
+    Object item = itemClass.newInstance();
+    accessor.set(item, accessor.indexOf("name"), " widget ");
+    assertEquals("widget", accessor.get(item, accessor.indexOf("name")));
+  }
+
+  @Test
+  public void testPropertyAccessorPutOffForever() throws Exception {
+    Compilation compilation = new InMemoryCompiler("-Ajpa.accessors=true").compile(new JpaProcessor(),
+      new SourceFile(
+        "model/Item.java",
+        "package model;",
+        "@javax.persistence.Entity",
+        "public class Item extends generated.Base {",
+        "  @javax.persistence.Id Long id;",
+        "}"));
+    assertFalse(compilation.succeeded());
+    assertEquals(
+      Arrays.asList(
+        "WARNING model.Item: No property accessor generated for model.Item, since types it uses do not exist"),
+      compilation.getMessageStrings());
+    assertNull(compilation.getGeneratedSource(PropertyAccessors.accessorClassName("model.Item")));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testInMemoryCompile() throws Exception {
+    Compilation compilation = new InMemoryCompiler("-Ajpa.accessors=true").compile(new JpaProcessor(),
+      new SourceFile(
+        "model/Item.java",
+        "package model;",
+        "@javax.persistence.Entity",
+        "public class Item {",
+        "  private String name;",
+        "  public Item(String name) { this.name = name; }",
+        "  public String getName() { return name; }",
+        "}"));
+    assertTrue(compilation.succeeded());
+    assertEquals(
+      Arrays.asList("ERROR model.Item @javax.persistence.Entity: missing no argument constructor"),
+      compilation.getMessageStrings());
+    assertNotNull(compilation.getGeneratedSource(PropertyAccessors.accessorClassName("model.Item")));
+
+    Class<Object> itemClass =
+      (Class<Object>) compilation.getClassLoader(getClass().getClassLoader()).loadClass("model.Item");
+    PropertyAccessor<Object> accessor = PropertyAccessors.forClass(itemClass);
+    assertEquals("widget", accessor.get(itemClass.getConstructor(String.class).newInstance("widget"), 0));
+  }
+
+  @Test
+  public void testConcurrentInMemoryCompiles() throws Exception {
+    final InMemoryCompiler inMemoryCompiler = new InMemoryCompiler();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Compilation>> compilations = new ArrayList<Future<Compilation>>();
+      for (int i = 0; i < 16; i++) {
+        final SourceFile sourceFile = new SourceFile(
+          "Entity" + i + ".java",
+          "@javax.persistence.Entity",
+          "public class Entity" + i + " {",
+          "  public Entity" + i + "(int x) {}",
+          "}");
+        compilations.add(executor.submit(new Callable<Compilation>() {
+          @Override
+          public Compilation call() {
+            return inMemoryCompiler.compile(new JpaProcessor(), sourceFile);
+          }
+        }));
+      }
+      for (int i = 0; i < compilations.size(); i++) {
+        Compilation compilation = compilations.get(i).get();
+        assertTrue(compilation.succeeded());
+        assertEquals(
+          Arrays.asList("ERROR Entity" + i + " @javax.persistence.Entity: missing no argument constructor"),
+          compilation.getMessageStrings());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testExcludedPackagesNotValidated() throws Exception {
+    Compilation compilation = new InMemoryCompiler("-Ajpa.include=model.**,legacy.Kept", "-Ajpa.exclude=**.generated.*")
+      .compile(new JpaProcessor(),
+        entityWithoutNoArgConstructor("model", "Order"),
+        entityWithoutNoArgConstructor("model.generated", "OrderView"),
+        entityWithoutNoArgConstructor("legacy", "Kept"),
+        entityWithoutNoArgConstructor("legacy", "Invoice"));
+    assertEquals(
+      Arrays.asList(
+        "ERROR model.Order @javax.persistence.Entity: missing no argument constructor",
+        "ERROR legacy.Kept @javax.persistence.Entity: missing no argument constructor"),
+      compilation.getMessageStrings());
+  }
+
+  @Test
+  public void testRepeatedErrorsAggregated() throws Exception {
+    List<SourceFile> sourceFiles = new ArrayList<SourceFile>();
+    for (int i = 0; i < 4; i++) {
+      sourceFiles.add(new SourceFile(
+        "Parent" + i + ".java",
+        "public class Parent" + i + " {",
+        "  @javax.persistence.OneToMany(mappedBy=\"parent\")",
+        "  public java.util.Set<Child> getChildren() { return null; }",
+        "}"));
+    }
+    sourceFiles.add(new SourceFile(
+      "Child.java",
+      "public class Child {}"));
+
+    Compilation compilation = new InMemoryCompiler("-Ajpa.maxRepeats=1")
+      .compile(new JpaProcessor(), sourceFiles.toArray(new SourceFile[0]));
+    assertEquals(
+      Arrays.asList(
+        "ERROR getChildren() @javax.persistence.OneToMany(mappedBy=\"parent\"): No matching @ManyToOne annotation on "
+          + "Child",
+        "ERROR: No matching @ManyToOne annotation on Child (and for 3 more elements, not shown; see jpa.maxRepeats)"),
+      compilation.getMessageStrings());
+    assertEquals("Parent0", compilation.getMessages().get(0).getElement().getEnclosingElement().toString());
+  }
+
+  @Test
+  public void testDiagnosticsCapped() throws Exception {
+    Compilation compilation = new InMemoryCompiler("-Ajpa.rule.noArgumentConstructor.maxDiagnostics=1")
+      .compile(new JpaProcessor(),
+        entityWithoutNoArgConstructor("model", "Order"),
+        entityWithoutNoArgConstructor("model", "Line"),
+        entityWithoutNoArgConstructor("model", "Tax"));
+    assertEquals(
+      Arrays.asList(
+        "ERROR model.Order @javax.persistence.Entity: missing no argument constructor",
+        "ERROR: 2 more diagnostics from rule noArgumentConstructor not shown; see jpa.maxDiagnostics and "
+          + "jpa.rule.noArgumentConstructor.maxDiagnostics"),
+      compilation.getMessageStrings());
+  }
+
+  @Test
+  public void testNamedQueries() throws Exception {
+    Compilation compilation = new InMemoryCompiler("-Ajpa.queryManifest=true").compile(new JpaProcessor(),
+      new SourceFile(
+        "model/Order.java",
+        "package model;",
+        "import javax.persistence.*;",
+        "@Entity(name=\"PurchaseOrder\")",
+        "@NamedQueries({",
+        "  @NamedQuery(name=\"Order.byCustomer\", query=",
+        "    \"SELECT o FROM PurchaseOrder o JOIN o.lines l WHERE o.customer.name = :name AND l.product <> 'x'\"",
+        "      + \" AND o.shipTo.city IN (SELECT TRIM(LEADING ' ' FROM c.name) FROM Customer c, IN(c.orders) co)\"",
+        "      + \" AND o.status = model.Order.Status.OPEN\"),",
+        "  @NamedQuery(name=\"Order.misspelt\", query=\"SELECT o FROM Ordr o\"),",
+        "  @NamedQuery(name=\"Order.withLines\",",
+        "    query=\"SELECT DISTINCT o FROM PurchaseOrder o JOIN FETCH o.lines l WHERE l.product = 'x'\"),",
+        "  @NamedQuery(name=\"Order.noSuchProperty\", query=\"SELECT o FROM PurchaseOrder o WHERE o.customer.nmae = :n\"),",
+        "  @NamedQuery(name=\"Order.throughCollection\",",
+        "    query=\"SELECT o FROM PurchaseOrder o WHERE o.lines.product = 'x'\"),",
+        "  @NamedQuery(name=\"Order.unknownVariable\", query=\"DELETE FROM PurchaseOrder o WHERE p.status = 1\"),",
+        "  @NamedQuery(name=\"Order.unterminated\", query=\"SELECT o FROM PurchaseOrder o WHERE o.customer = 'x\")})",
+        "public class Order {",
+        "  public enum Status { OPEN }",
+        "  @ManyToOne Customer customer;",
+        "  @OneToMany(mappedBy=\"order\") java.util.List<Line> lines;",
+        "  @Embedded Address shipTo;",
+        "  Status status;",
+        "}"),
+      new SourceFile(
+        "model/Customer.java",
+        "package model;",
+        "@javax.persistence.Entity",
+        "@javax.persistence.NamedQuery(name=\"Order.byCustomer\", query=\"SELECT c FROM Customer c\")",
+        "public class Customer {",
+        "  String name;",
+        "  @javax.persistence.OneToMany(mappedBy=\"customer\") java.util.Set<Order> orders;",
+        "}"),
+      new SourceFile(
+        "model/Line.java",
+        "package model;",
+        "@javax.persistence.Entity",
+        "public class Line {",
+        "  @javax.persistence.ManyToOne Order order;",
+        "  String product;",
+        "}"),
+      new SourceFile(
+        "model/Address.java",
+        "package model;",
+        "@javax.persistence.Embeddable",
+        "public class Address {",
+        "  String city;",
+        "}"));
+    List<String> messages = new ArrayList<String>();
+    for (CollectingMessager.Message message : compilation.getMessages()) {
+      messages.add(message.getKind() + " " + message.getMessage());
+    }
+    assertEquals(
+      Arrays.asList(
+        "ERROR named query \"Order.byCustomer\": is also declared by model.Customer",
+        "WARNING named query \"Order.misspelt\": there is no entity named Ordr in the packages searched",
+        "ERROR named query \"Order.noSuchProperty\": Customer has no property nmae, in o.customer.nmae",
+        "ERROR named query \"Order.throughCollection\": Order.lines is a collection, so cannot be navigated; join it "
+          + "instead, in o.lines.product",
+        "ERROR named query \"Order.unknownVariable\": p is not an identification variable, in p.status",
+        "ERROR named query \"Order.unterminated\": syntax error at offset 49: unterminated string literal"),
+      messages);
+
+    QueryManifest manifest = new QueryManifest();
+    manifest.read(
+      new InputStreamReader(new ByteArrayInputStream(compilation.getOutput(QueryManifest.RESOURCE_NAME)), "UTF-8"),
+      QueryManifest.RESOURCE_NAME);
+    assertEquals(
+      new HashSet<String>(Arrays.asList("Order.byCustomer", "Order.withLines")), manifest.getQueryNames());
+    assertEquals("model.Customer", manifest.getDeclaringClassName("Order.byCustomer"));
+    assertEquals("SELECT c FROM Customer c", manifest.getQuery("Order.byCustomer"));
+  }
+
+  @Test
+  public void testNamedQueriesNamingCompiledEntities() throws Exception {
+    Compiler incrementalCompiler = new Compiler();
+    try {
+      assertTrue(incrementalCompiler.compile(
+        new SourceFile(
+          "billing/Invoice.java",
+          "package billing;",
+          "@javax.persistence.Entity(name=\"Bill\")",
+          "public class Invoice {",
+          "  java.math.BigDecimal total;",
+          "}"),
+        new SourceFile(
+          "shipping/Shipment.java",
+          "package shipping;",
+          "@javax.persistence.Entity",
+          "public class Shipment {}")));
+      incrementalCompiler.compileWithProcessor(processor,
+        new SourceFile(
+          "billing/Payment.java",
+          "package billing;",
+          "@javax.persistence.Entity",
+          "@javax.persistence.NamedQueries({",
+          "  @javax.persistence.NamedQuery(name=\"Payment.unbilled\",",
+          "    query=\"SELECT b FROM Bill b WHERE b.total > 0\"),",
+          "  @javax.persistence.NamedQuery(name=\"Payment.shipped\", query=\"SELECT s FROM Shipment s\")})",
+          "public class Payment {}"));
+      verifyPrintMessage(
+        Kind.WARNING,
+        "named query \"Payment.shipped\": there is no entity named Shipment in the packages searched",
+        "billing.Payment",
+        "@javax.persistence.NamedQuery(name=\"Payment.shipped\", query=\"SELECT s FROM Shipment s\")",
+        "\"SELECT s FROM Shipment s\"");
+      Mockito.verifyNoMoreInteractions(mockMessager);
+    }
+    finally {
+      incrementalCompiler.cleanUp();
+    }
+  }
+
+  @Test
+  public void testForeignKeysWithoutIndexes() throws Exception {
+    File indexes = File.createTempFile("indexes", ".txt");
+    File ddl = File.createTempFile("missing-indexes", ".sql");
+    try {
+      Files.write("# created by a migration\nCREATE INDEX ix_ship ON orders (SHIPPER, placed);\n", indexes, Charsets.UTF_8);
+      Compilation compilation = new InMemoryCompiler(
+        "-Ajpa.foreignKeys.diagnostic=warning",
+        "-Ajpa.foreignKeys.indexes=" + indexes.getAbsolutePath(),
+        "-Ajpa.foreignKeys.ddl=" + ddl.getAbsolutePath()).compile(new JpaProcessor(),
+        new SourceFile(
+          "model/Audited.java",
+          "package model;",
+          "@javax.persistence.MappedSuperclass",
+          "public class Audited {",
+          "  @javax.persistence.ManyToOne Customer createdBy;",
+          "}"),
+        new SourceFile(
+          "model/Order.java",
+          "package model;",
+          "import javax.persistence.*;",
+          "@Entity",
+          "@Table(name=\"orders\", uniqueConstraints=@UniqueConstraint(columnNames=\"invoice_INVOICE_NO\"))",
+          "public class Order extends Audited {",
+          "  @Id Long id;",
+          "  @ManyToOne Customer customer;",
+          "  @ManyToOne Invoice invoice;",
+          "  @ManyToOne @JoinColumn(name=\"shipper\") Shipper shipper;",
+          "  @ManyToOne @JoinTable(name=\"order_returns\") Shipper returnShipper;",
+          "  @ManyToOne PremiumCustomer referrer;",
+          "}"),
+        new SourceFile(
+          "model/PremiumCustomer.java",
+          "package model;",
+          "@javax.persistence.Entity",
+          "public class PremiumCustomer extends Customer {}"),
+        new SourceFile(
+          "model/RushOrder.java",
+          "package model;",
+          "@javax.persistence.Entity",
+          "public class RushOrder extends Order {",
+          "  @javax.persistence.ManyToOne Shipper courier;",
+          "}"),
+        new SourceFile(
+          "model/Customer.java",
+          "package model;",
+          "@javax.persistence.Entity",
+          "public class Customer {",
+          "  @javax.persistence.Id Long id;",
+          "}"),
+        new SourceFile(
+          "model/Invoice.java",
+          "package model;",
+          "@javax.persistence.Entity",
+          "public class Invoice {",
+          "  @javax.persistence.Id @javax.persistence.Column(name=\"INVOICE_NO\") String number;",
+          "}"),
+        new SourceFile(
+          "model/Shipper.java",
+          "package model;",
+          "@javax.persistence.Entity",
+          "public class Shipper {",
+          "  @javax.persistence.Id Long id;",
+          "}"));
+      assertTrue(compilation.getDiagnostics().toString(), compilation.succeeded());
+      assertEquals(
+        Arrays.asList(
+          "WARNING customer @javax.persistence.ManyToOne: no index covers join column customer_id of table orders, "
+            + "for Order.customer",
+          "WARNING referrer @javax.persistence.ManyToOne: no index covers join column referrer_id of table orders, "
+            + "for Order.referrer",
+          "WARNING model.Order @javax.persistence.Entity: no index covers join column createdBy_id of table orders, "
+            + "for Audited.createdBy",
+          "WARNING courier @javax.persistence.ManyToOne: no index covers join column courier_id of table orders, "
+            + "for RushOrder.courier"),
+        compilation.getMessageStrings());
+      List<String> suggestions = Arrays.asList(
+        "-- Generated by com.overstock.sample.processor.JpaProcessor: indexes for join columns which have none",
+        "CREATE INDEX idx_orders_courier_id ON orders (courier_id); -- model.RushOrder",
+        "CREATE INDEX idx_orders_createdBy_id ON orders (createdBy_id); -- model.Order",
+        "CREATE INDEX idx_orders_customer_id ON orders (customer_id); -- model.Order",
+        "CREATE INDEX idx_orders_referrer_id ON orders (referrer_id); -- model.Order");
+      assertEquals(
+        suggestions,
+        Arrays.asList(
+          new String(compilation.getOutput(ForeignKeyIndexRule.RESOURCE_NAME), Charsets.UTF_8).split("\n")));
+      assertEquals(suggestions, Files.readLines(ddl, Charsets.UTF_8));
+    }
+    finally {
+      FileUtils.deleteQuietly(indexes);
+      FileUtils.deleteQuietly(ddl);
+    }
+  }
+
+  @Test
+  public void testForeignKeyIndexSuggestionsWithoutCopy() throws Exception {
+    Compilation compilation = new InMemoryCompiler("-Ajpa.foreignKeys.diagnostic=warning").compile(new JpaProcessor(),
+      new SourceFile(
+        "model/Customer.java",
+        "package model;",
+        "@javax.persistence.Entity",
+        "public class Customer {",
+        "  @javax.persistence.Id Long id;",
+        "}"),
+      new SourceFile(
+        "model/Review.java",
+        "package model;",
+        "@javax.persistence.Entity",
+        "@javax.persistence.Table(uniqueConstraints=@javax.persistence.UniqueConstraint(columnNames=\"author_id\"))",
+        "public class Review {",
+        "  @javax.persistence.Id Long id;",
+        "  @javax.persistence.ManyToOne Customer author;",
+        "}"));
+    assertTrue(compilation.getDiagnostics().toString(), compilation.succeeded());
+    assertEquals(Collections.emptyList(), compilation.getMessageStrings());
+    assertEquals(
+      "-- Generated by com.overstock.sample.processor.JpaProcessor: indexes for join columns which have none\n",
+      new String(compilation.getOutput(ForeignKeyIndexRule.RESOURCE_NAME), Charsets.UTF_8));
+  }
+
+  @Test
+  public void testFetchPolicy() throws Exception {
+    Compilation compilation = new InMemoryCompiler("-Ajpa.fetchPolicy.diagnostic=error").compile(new JpaProcessor(),
+      new SourceFile(
+        "model/Order.java",
+        "package model;",
+        "import javax.persistence.*;",
+        "@Entity",
+        "public class Order {",
+        "  @ManyToOne Customer customer;",
+        "  @ManyToOne(fetch=FetchType.LAZY) Customer approvedBy;",
+        "  @OneToOne(fetch=FetchType.EAGER) Invoice invoice;",
+        "  @com.overstock.sample.processor.AllowEagerFetch(\"always shown with the order\")",
+        "  @ManyToOne Warehouse warehouse;",
+        "  @OneToMany(mappedBy=\"order\", fetch=FetchType.EAGER) java.util.List<Line> lines;",
+        "  @OneToMany(mappedBy=\"order\") java.util.List<Line> returns;",
+        "}"),
+      new SourceFile(
+        "model/Line.java",
+        "package model;",
+        "@javax.persistence.Entity",
+        "@com.overstock.sample.processor.AllowEagerFetch",
+        "public class Line {",
+        "  @javax.persistence.ManyToOne Order order;",
+        "}"),
+      new SourceFile("model/Customer.java", "package model;", "@javax.persistence.Entity public class Customer {}"),
+      new SourceFile("model/Invoice.java", "package model;", "@javax.persistence.Entity public class Invoice {}"),
+      new SourceFile("model/Warehouse.java", "package model;", "@javax.persistence.Entity public class Warehouse {}"));
+    assertEquals(
+      Arrays.asList(
+        "ERROR customer @javax.persistence.ManyToOne: @ManyToOne is fetched eagerly unless it says "
+          + "fetch=FetchType.LAZY; to allow it, annotate it, or its class, with @AllowEagerFetch",
+        "ERROR invoice @javax.persistence.OneToOne(fetch=EAGER) EAGER: @OneToOne should be fetched lazily; to allow it, "
+          + "annotate it, or its class, with @AllowEagerFetch",
+        "ERROR lines @javax.persistence.OneToMany(mappedBy=\"order\", fetch=EAGER) EAGER: @OneToMany should not be "
+          + "fetched eagerly; to allow it, annotate it, or its class, with @AllowEagerFetch"),
+      compilation.getMessageStrings());
+  }
+
+  @Test
+  public void testBagCollections() throws Exception {
+    Compilation compilation = new InMemoryCompiler(
+      "-Ajpa.bags.diagnostic=warning", "-Ajpa.rule.bidirectionalMapping=false", "-Ajpa.fetch.diagnostic=none")
+      .compile(new JpaProcessor(),
+        new SourceFile(
+          "model/Order.java",
+          "package model;",
+          "import java.util.*;",
+          "import javax.persistence.*;",
+          "@Entity",
+          "public class Order {",
+          "  @OneToMany Collection<Line> bag;",
+          "  @OneToMany Set<Line> set;",
+          "  @OneToMany @OrderColumn List<Line> indexed;",
+          "  @OneToMany(cascade=CascadeType.ALL) @JoinColumn(name=\"order_id\") Set<Line> joined;",
+          "  @OneToMany(mappedBy=\"order\", fetch=FetchType.EAGER) List<Line> lines;",
+          "  @OneToMany(mappedBy=\"order\", fetch=FetchType.EAGER) Map<String, Line> keyed;",
+          "  @OneToMany(mappedBy=\"order\", fetch=FetchType.EAGER) Collection<Line> returns;",
+          "}"),
+        new SourceFile(
+          "model/Line.java",
+          "package model;",
+          "@javax.persistence.Entity",
+          "public class Line {",
+          "  @javax.persistence.ManyToOne Order order;",
+          "}"));
+    assertEquals(
+      Arrays.asList(
+        "WARNING bag @javax.persistence.OneToMany: bag is a bag on the owning side, so changing one element deletes "
+          + "every row of the collection, and inserts them all again; map it with mappedBy, as a Set, or with "
+          + "@OrderColumn",
+        "WARNING joined @javax.persistence.OneToMany(cascade={ALL}) {ALL}: joined is owned through a join column, "
+          + "so each element it cascades to is inserted, then updated to set the join column; map it with "
+          + "mappedBy, from a @ManyToOne on the element",
+        "WARNING returns @javax.persistence.OneToMany(mappedBy=\"order\", fetch=EAGER) EAGER: returns and lines are "
+          + "both bags fetched eagerly, which Hibernate cannot fetch together; make one of them lazy, a Set, or "
+          + "indexed with @OrderColumn"),
+      compilation.getMessageStrings());
+  }
+
+  @Test
+  public void testEagerBagsAcrossMappedSuperclasses() throws Exception {
+    Compilation compilation = new InMemoryCompiler(
+      "-Ajpa.bags.diagnostic=warning", "-Ajpa.rule.bidirectionalMapping=false", "-Ajpa.fetch.diagnostic=none")
+      .compile(new JpaProcessor(),
+        new SourceFile(
+          "model/Tagged.java",
+          "package model;",
+          "import java.util.*;",
+          "import javax.persistence.*;",
+          "@MappedSuperclass",
+          "public class Tagged {",
+          "  @ElementCollection(fetch=FetchType.EAGER) List<String> tags;",
+          "}"),
+        new SourceFile(
+          "model/Order.java",
+          "package model;",
+          "import java.util.*;",
+          "import javax.persistence.*;",
+          "@Entity",
+          "public class Order extends Tagged {",
+          "  @ManyToMany(fetch=FetchType.EAGER) List<Label> labels;",
+          "}"),
+        new SourceFile(
+          "model/SpecialOrder.java",
+          "package model;",
+          "import java.util.*;",
+          "import javax.persistence.*;",
+          "@Entity",
+          "public class SpecialOrder extends Order {",
+          "  @ElementCollection Collection<String> notes;",
+          "}"),
+        new SourceFile(
+          "model/Audited.java",
+          "package model;",
+          "import java.util.*;",
+          "import javax.persistence.*;",
+          "@MappedSuperclass",
+          "public class Audited extends Tagged {",
+          "  @ElementCollection(fetch=FetchType.EAGER) Collection<String> changes;",
+          "}"),
+        new SourceFile(
+          "model/Label.java",
+          "package model;",
+          "import java.util.*;",
+          "import javax.persistence.*;",
+          "@Entity",
+          "public class Label extends Audited {",
+          "  @ElementCollection(fetch=FetchType.EAGER) Set<String> aliases;",
+          "}"));
+    assertEquals(
+      Arrays.asList(
+        "WARNING labels @javax.persistence.ManyToMany(fetch=EAGER) EAGER: labels and Tagged.tags are both bags "
+          + "fetched eagerly, which Hibernate cannot fetch together; make one of them lazy, a Set, or indexed with "
+          + "@OrderColumn",
+        "WARNING model.Label @javax.persistence.Entity: Audited.changes and Tagged.tags are both bags fetched eagerly, "
+          + "which Hibernate cannot fetch together; make one of them lazy, a Set, or indexed with @OrderColumn"),
+      compilation.getMessageStrings());
+  }
+
+  @Test
+  public void testLazyAccessInObjectMethods() throws Exception {
+    Compilation compilation = new InMemoryCompiler("-Ajpa.lazyAccess.diagnostic=warning")
+      .compileWithCompilerMessager(new JpaProcessor(),
+        new SourceFile(
+          "model/Order.java",
+          "package model;",
+          "import javax.persistence.*;",
+          "@Entity",
+          "public class Order extends Audited implements Comparable<Order> {",
+          "  @OneToMany(mappedBy=\"order\") java.util.Set<Line> lines;",
+          "  @OneToMany(mappedBy=\"order\", fetch=FetchType.EAGER) java.util.Set<Line> returns;",
+          "  @Basic(fetch=FetchType.LAZY) String notes;",
+          "  String number;",
+          "  public java.util.Set<Line> getLines() { return lines; }",
+          "  public boolean equals(Object o) {",
+          "    return o instanceof Order && number.equals(((Order) o).number) && returns.equals(((Order) o).returns);",
+          "  }",
+          "  public int hashCode() { return number.hashCode() + getLines().size(); }",
+          "  public String toString() { return describe(); }",
+          "  private String describe() { String notes = \"\"; return number + notes + this.notes + getCreatedBy(); }",
+          "  public int compareTo(Order other) { return number.compareTo(other.number); }",
+          "}"),
+        new SourceFile(
+          "model/Audited.java",
+          "package model;",
+          "import javax.persistence.*;",
+          "@MappedSuperclass",
+          "public class Audited {",
+          "  @ManyToOne(fetch=FetchType.LAZY) User createdBy;",
+          "  public User getCreatedBy() { return createdBy; }",
+          "}"),
+        new SourceFile(
+          "model/Line.java",
+          "package model;",
+          "@javax.persistence.Entity",
+          "public class Line {",
+          "  @javax.persistence.ManyToOne Order order;",
+          "}"),
+        new SourceFile("model/User.java", "package model;", "@javax.persistence.Entity public class User {}"));
+    assertEquals(
+      Arrays.asList(
+        "WARNING: hashCode() reads lines, which is fetched lazily (@OneToMany), so calling it may query "
+          + "the database; use the id, or eagerly fetched attributes, instead",
+        "WARNING: toString() reads notes through describe(), which is fetched lazily (@Basic), so calling "
+          + "it may query the database; use the id, or eagerly fetched attributes, instead",
+        "WARNING: toString() reads createdBy through describe(), which is fetched lazily (@ManyToOne), so "
+          + "calling it may query the database; use the id, or eagerly fetched attributes, instead"),
+      compilation.getDiagnosticStrings());
+  }
+
+  @Test
+  public void testLazyAccessNotCheckedWithoutTrees() throws Exception {
+    // the harness replaces the messager by wrapping the compiler's environment, which the Trees API does not accept
+    Compilation compilation = new InMemoryCompiler(
+      "-Ajpa.lazyAccess.diagnostic=warning", "-Ajpa.rule.bidirectionalMapping=false").compile(new JpaProcessor(),
+      new SourceFile(
+        "model/Order.java",
+        "package model;",
+        "@javax.persistence.Entity",
+        "public class Order {",
+        "  @javax.persistence.OneToMany java.util.Set<Order> children;",
+        "  public int hashCode() { return children.size(); }",
+        "}"));
+    assertEquals(
+      Arrays.asList(
+        "NOTE: Not checking for lazy properties read by equals, hashCode, toString or compareTo, since the compiler's "
+          + "Trees API is not available: it does not accept the processing environment the processor was given"),
+      compilation.getMessageStrings());
+  }
+
+  @Test
+  public void testMappedByCompletions() throws Exception {
+    CompletionRequester requester = new CompletionRequester(new JpaProcessor(), "", "\"", "\"o", "or", "\"x");
+    new InMemoryCompiler().compile(requester,
+      new SourceFile(
+        "model/Order.java",
+        "package model;",
+        "import javax.persistence.*;",
+        "@Entity",
+        "public class Order {",
+        "  @OneToMany(mappedBy=\"\") java.util.Set<Line> lines;",
+        "  @OneToMany(mappedBy=\"\") java.util.Set<Order> orders;",
+        "}"),
+      new SourceFile(
+        "model/Item.java",
+        "package model;",
+        "@javax.persistence.MappedSuperclass",
+        "public class Item {",
+        "  @javax.persistence.ManyToOne public Order getOrder() { return null; }",
+        "}"),
+      new SourceFile(
+        "model/Line.java",
+        "package model;",
+        "@javax.persistence.Entity",
+        "public class Line extends Item {",
+        "  @javax.persistence.ManyToOne Line replaces;",
+        "}"));
+    assertEquals(
+      Arrays.asList(
+        "lines : \"order\" (@ManyToOne Line.order)",
+        "lines \": \"order\" (@ManyToOne Line.order)",
+        "lines \"o: \"order\" (@ManyToOne Line.order)",
+        "lines or: \"order\" (@ManyToOne Line.order)",
+        "lines \"x:",
+        "orders :",
+        "orders \":",
+        "orders \"o:",
+        "orders or:",
+        "orders \"x:"),
+      requester.completions);
+  }
+
+  @Test
+  public void testProjection() throws Exception {
+    SourceFile order = new SourceFile(
+      "model/Order.java",
+      "package model;",
+      "import javax.persistence.*;",
+      "@Entity(name=\"PurchaseOrder\")",
+      "public class Order {",
+      "  @Id Long id;",
+      "  int quantity;",
+      "  @ManyToOne(fetch=FetchType.LAZY) Customer customer;",
+      "  @OneToMany(mappedBy=\"order\") java.util.List<Order> lines;",
+      "  @ManyToOne Order order;",
+      "}");
+    SourceFile customer = new SourceFile(
+      "model/Customer.java",
+      "package model;",
+      "@javax.persistence.Entity",
+      "public class Customer {",
+      "  @javax.persistence.Id Long id;",
+      "  String name;",
+      "}");
+    Compilation compilation = new InMemoryCompiler().compile(new JpaProcessor(),
+      order,
+      customer,
+      new SourceFile(
+        "model/OrderSummary.java",
+        "package model;",
+        "import com.overstock.sample.processor.ProjectionOf;",
+        "@ProjectionOf(Order.class)",
+        "public interface OrderSummary {",
+        "  Long getId();",
+        "  long getQuantity();",
+        "  @ProjectionOf.Path(\"customer.name\") String getCustomerName();",
+        "}"));
+    assertTrue(compilation.getDiagnostics().toString(), compilation.succeeded());
+    assertEquals(Collections.emptyList(), compilation.getMessageStrings());
+    Class<?> dto = compilation.getClassLoader(getClass().getClassLoader()).loadClass("model.OrderSummary_Dto");
+    assertEquals(
+      "SELECT NEW model.OrderSummary_Dto(p.id, p.quantity, p.customer.name) FROM PurchaseOrder p",
+      dto.getField("QUERY").get(null));
+    Object summary = dto.getConstructor(Long.class, long.class, String.class).newInstance(7L, 2L, "Ann");
+    assertEquals("OrderSummary_Dto[id=7, quantity=2, customerName=Ann]", summary.toString());
+    assertEquals(summary, dto.getConstructor(Long.class, long.class, String.class).newInstance(7L, 2L, "Ann"));
+    assertEquals("Ann", dto.getMethod("getCustomerName").invoke(summary));
+
+    compilation = new InMemoryCompiler().compile(new JpaProcessor(),
+      order,
+      customer,
+      new SourceFile(
+        "model/BrokenSummary.java",
+        "package model;",
+        "import com.overstock.sample.processor.ProjectionOf;",
+        "@ProjectionOf(Order.class)",
+        "public interface BrokenSummary {",
+        "  String getId();",
+        "  @ProjectionOf.Path(\"customer.nmae\") String getCustomerName();",
+        "  @ProjectionOf.Path(\"lines\") Object getLines();",
+        "  @ProjectionOf.Path(\"quantity.value\") Object getQuantityValue();",
+        "  void clear();",
+        "}"));
+    assertEquals(
+      Arrays.asList(
+        "ERROR getId(): Order.id is a java.lang.Long, so cannot be returned as java.lang.String",
+        "ERROR getCustomerName(): Customer has no property nmae, in p.customer.nmae",
+        "ERROR getLines(): Order.lines is a collection, so cannot be selected, in p.lines",
+        "ERROR getQuantityValue(): Order.quantity is not an association or embedded, so cannot be navigated, in "
+          + "p.quantity.value",
+        "ERROR clear(): clear is not a getter, so cannot be projected"),
+      compilation.getMessageStrings());
+    assertNull(compilation.getGeneratedSource("model.BrokenSummary_Dto"));
+  }
+
+  @Test
+  public void testMetamodel() throws Exception {
+    SourceFile[] sourceFiles = {
+      new SourceFile(
+        "model/Order.java",
+        "package model;",
+        "import javax.persistence.*;",
+        "@Entity",
+        "public class Order extends Base<Long> {",
+        "  String number;",
+        "  @Transient String note;",
+        "  @OneToMany(mappedBy=\"order\") java.util.Set<Line> lines;",
+        "  @ElementCollection java.util.Map<String, Integer> counts;",
+        "  @Access(AccessType.PROPERTY) @Column public boolean isActive() { return true; }",
+        "  public String getLabel() { return number; }",
+        "}"),
+      new SourceFile(
+        "model/Base.java",
+        "package model;",
+        "@javax.persistence.MappedSuperclass",
+        "public abstract class Base<ID> {",
+        "  @javax.persistence.Id ID id;",
+        "}"),
+      new SourceFile(
+        "model/Line.java",
+        "package model;",
+        "@javax.persistence.Entity",
+        "public class Line {",
+        "  private Long id;",
+        "  private Order order;",
+        "  int cachedHash;",
+        "  @javax.persistence.Id public Long getId() { return id; }",
+        "  public void setId(Long id) { this.id = id; }",
+        "  @javax.persistence.ManyToOne public Order getOrder() { return order; }",
+        "  public void setOrder(Order order) { this.order = order; }",
+        "}") };
+    Compilation compilation = new InMemoryCompiler("-Ajpa.metamodel=true").compile(new JpaProcessor(), sourceFiles);
+    assertTrue(compilation.getDiagnostics().toString(), compilation.succeeded());
+    String orderMetamodel = compilation.getGeneratedSource("model.Order_");
+    assertTrue(orderMetamodel, orderMetamodel.contains("public abstract class Order_ extends model.Base_ {"));
+    assertTrue(orderMetamodel, orderMetamodel.contains(
+      "SingularAttribute<model.Order, java.lang.String> number;"));
+    assertTrue(orderMetamodel, orderMetamodel.contains("SetAttribute<model.Order, model.Line> lines;"));
+    assertTrue(orderMetamodel, orderMetamodel.contains(
+      "MapAttribute<model.Order, java.lang.String, java.lang.Integer> counts;"));
+    assertTrue(orderMetamodel, orderMetamodel.contains(
+      "SingularAttribute<model.Order, java.lang.Boolean> active;"));
+    assertFalse(orderMetamodel, orderMetamodel.contains("note"));
+    assertFalse(orderMetamodel, orderMetamodel.contains("label"));
+    String lineMetamodel = compilation.getGeneratedSource("model.Line_");
+    assertTrue(lineMetamodel, lineMetamodel.contains("SingularAttribute<model.Line, java.lang.Long> id;"));
+    assertTrue(lineMetamodel, lineMetamodel.contains("SingularAttribute<model.Line, model.Order> order;"));
+    assertFalse(lineMetamodel, lineMetamodel.contains("cachedHash"));
+    assertTrue(compilation.getGeneratedSource("model.Base_").contains(
+      "SingularAttribute<model.Base, java.lang.Object> id;"));
+
+    // an unchanged metamodel is not written again, so is not recompiled
+    Compiler generatingCompiler = new Compiler("-Ajpa.metamodel=true");
+    try {
+      assertTrue(generatingCompiler.compileWithProcessor(processor, sourceFiles));
+      File lineMetamodelFile = new File(generatingCompiler.getOutputDir(), "model/Line_.java");
+      assertTrue(lineMetamodelFile.setLastModified(0L));
+      resetProcessor();
+      assertTrue(generatingCompiler.compileWithProcessor(processor, sourceFiles));
+      assertEquals(0L, lineMetamodelFile.lastModified());
+    }
+    finally {
+      generatingCompiler.cleanUp();
+    }
+  }
+
+  @Test
+  public void testBytecodeValidator() throws Exception {
+    Compiler plainCompiler = new Compiler("-proc:none");
+    File jar = File.createTempFile("entities", ".jar");
+    try {
+      assertTrue(plainCompiler.compile(
+        new SourceFile(
+          "model/Parent.java",
+          "package model;",
+          "import javax.persistence.*;",
+          "@Entity",
+          "public class Parent {",
+          "  public Parent(int x) {}",
+          "  @OneToMany java.util.Set<Child> missing;",
+          "  @OneToMany(mappedBy=\"wrong\") java.util.List<Child> wrong;",
+          "  @OneToMany(mappedBy=\"parent\") java.util.Map<String, ? extends Child> valid;",
+          "  @OneToMany java.util.List raw;",
+          "  @OneToMany(mappedBy=\"parent\") public java.util.Set<Orphan> getOrphans() { return null; }",
+          "}"),
+        new SourceFile(
+          "model/Base.java",
+          "package model;",
+          "@javax.persistence.MappedSuperclass",
+          "public class Base {",
+          "  @javax.persistence.ManyToOne public Parent getParent() { return null; }",
+          "}"),
+        new SourceFile(
+          "model/Child.java", "package model;", "@javax.persistence.Entity public class Child extends Base {}"),
+        new SourceFile("model/Orphan.java", "package model;", "@javax.persistence.Entity public class Orphan {}")));
+      List<String> expected = Arrays.asList(
+        "ERROR model.Parent @javax.persistence.Entity: missing no argument constructor",
+        "ERROR model.Parent.missing @javax.persistence.OneToMany: Missing mappedBy attribute",
+        "ERROR model.Parent.wrong @javax.persistence.OneToMany \"wrong\": mappedBy attribute should be parent",
+        "ERROR model.Parent.getOrphans() @javax.persistence.OneToMany: No matching @ManyToOne annotation on Orphan");
+      assertEquals(expected, new BytecodeValidator(2).validate(Arrays.asList(plainCompiler.getOutputDir())));
+
+      JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+      try {
+        for (String name : new String[] { "Parent", "Base", "Child", "Orphan" }) {
+          out.putNextEntry(new JarEntry("model/" + name + ".class"));
+          out.write(FileUtils.readFileToByteArray(new File(plainCompiler.getOutputDir(), "model/" + name + ".class")));
+        }
+      }
+      finally {
+        out.close();
+      }
+      BytecodeValidator validator = new BytecodeValidator(2);
+      assertEquals(expected, validator.validate(Arrays.asList(jar)));
+      assertEquals(Collections.emptyList(), validator.getProblems());
+    }
+    finally {
+      plainCompiler.cleanUp();
+      FileUtils.deleteQuietly(jar);
+    }
+  }
+
+  private static SourceFile entityWithoutNoArgConstructor(String packageName, String className) {
+    return new SourceFile(
+      packageName.replace('.', '/') + "/" + className + ".java",
+      "package " + packageName + ";",
+      "@javax.persistence.Entity",
+      "public class " + className + " {",
+      "  public " + className + "(int x) {}",
+      "}");
+  }
+
+  private void compileWithCache(File cacheDir, SourceFile... sourceFiles) throws Exception {
+    Compiler cachingCompiler = new Compiler("-Ajpa.cache=" + cacheDir.getAbsolutePath());
+    try {
+      cachingCompiler.compileWithProcessor(processor, sourceFiles);
+    }
+    finally {
+      cachingCompiler.cleanUp();
+    }
+  }
+
+  /**
+   * A rule added to the processor path, which warns about tables left to be named by default.
+   */
+  public static class UnnamedTableRule extends AbstractValidationRule {
+    public UnnamedTableRule() {
+      super("unnamedTable", EnumSet.of(ElementKind.CLASS), "javax.persistence.Table");
+    }
+
+    @Override
+    public void check(Element element) {
+      if (element.getAnnotation(Table.class).name().length() == 0) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+          if (annotation.getAnnotationType().toString().equals(Table.class.getName())) {
+            processingEnv.getMessager().printMessage(
+              Kind.WARNING, "@Table should name the table", element, annotation);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Generates, in the first round, a child of {@code Parent} which maps back to it, as another processor might.
+   */
+  @SupportedAnnotationTypes("*")
+  private static class ChildGenerator extends AbstractProcessor {
+    private boolean generated;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+      return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+      if (!generated) {
+        generated = true;
+        try {
+          Writer writer = processingEnv.getFiler().createSourceFile("Child").openWriter();
+          try {
+            writer.write("public class Child {\n");
+            writer.write("  @javax.persistence.ManyToOne\n");
+            writer.write("  public Parent getParent() { return null; }\n");
+            writer.write("}\n");
+          }
+          finally {
+            writer.close();
+          }
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Asks a processor to complete the {@code mappedBy} attribute of each &#64;OneToMany, as an IDE might, given each of
+   * a number of texts typed so far, and records the completions.
+   */
+  @SupportedAnnotationTypes("javax.persistence.OneToMany")
+  private static class CompletionRequester extends AbstractProcessor {
+    private final AbstractProcessor completer;
+    private final String[] userTexts;
+    final List<String> completions = new ArrayList<String>();
+
+    CompletionRequester(AbstractProcessor completer, String... userTexts) {
+      this.completer = completer;
+      this.userTexts = userTexts;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+      return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+      super.init(processingEnv);
+      completer.init(processingEnv);
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+      for (TypeElement annotationType : annotations) {
+        for (ExecutableElement member : ElementFilter.methodsIn(annotationType.getEnclosedElements())) {
+          if (!member.getSimpleName().contentEquals("mappedBy")) {
+            continue;
+          }
+          for (Element element : roundEnv.getElementsAnnotatedWith(annotationType)) {
+            for (String userText : userTexts) {
+              StringBuilder recorded = new StringBuilder().append(element).append(' ').append(userText).append(':');
+              for (Completion completion
+                  : completer.getCompletions(element, element.getAnnotationMirrors().get(0), member, userText)) {
+                recorded.append(' ').append(completion.getValue()).append(" (").append(completion.getMessage())
+                  .append(')');
+              }
+              completions.add(recorded.toString());
+            }
+          }
+        }
+      }
+      return false;
+    }
+  }
+
   private void verifyPrintMessage(Kind kind, String message, String elementName, String annotationName) {
     Mockito.verify(mockMessager).printMessage(
       Matchers.eq(kind),
@@ -1,8 +1,11 @@
 package com.overstock.sample.processor;
 
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.processing.Completion;
+import javax.annotation.processing.Filer;
 import javax.annotation.processing.Messager;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.Processor;
@@ -12,13 +15,13 @@ import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
-
-import org.mockito.Mockito;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
 
 /**
  * A wrapper around a {@code Processor} which will replace the standard {@code Messager}
  * returned from {@link ProcessingEnvironment#getMessager()} with a provided
- * mock Messager.
+ * Messager, such as a mock or a {@link CollectingMessager}.
  */
 public class ProcessorWrapper implements Processor {
   private final Processor wrapped;
@@ -26,9 +29,7 @@ public class ProcessorWrapper implements Processor {
 
   @Override
   public void init(ProcessingEnvironment processingEnv) {
-    ProcessingEnvironment spy = Mockito.spy(processingEnv);
-    Mockito.when(spy.getMessager()).thenReturn(mockMessager);
-    wrapped.init(spy);
+    wrapped.init(new MessagerReplacingEnvironment(processingEnv, mockMessager));
   }
 
   public ProcessorWrapper(Processor wrapped, Messager mockMessager) {
@@ -62,5 +63,52 @@ public class ProcessorWrapper implements Processor {
     return wrapped.process(annotations, roundEnv);
   }
 
+  /**
+   * The compiler's processing environment, with another messager. Forwarding by hand is much cheaper than spying on
+   * the environment, and leaves nothing shared between compiles.
+   */
+  private static class MessagerReplacingEnvironment implements ProcessingEnvironment {
+    private final ProcessingEnvironment delegate;
+    private final Messager messager;
+
+    MessagerReplacingEnvironment(ProcessingEnvironment delegate, Messager messager) {
+      this.delegate = delegate;
+      this.messager = messager;
+    }
+
+    @Override
+    public Messager getMessager() {
+      return messager;
+    }
+
+    @Override
+    public Map<String, String> getOptions() {
+      return delegate.getOptions();
+    }
+
+    @Override
+    public Filer getFiler() {
+      return delegate.getFiler();
+    }
 
+    @Override
+    public Elements getElementUtils() {
+      return delegate.getElementUtils();
+    }
+
+    @Override
+    public Types getTypeUtils() {
+      return delegate.getTypeUtils();
+    }
+
+    @Override
+    public SourceVersion getSourceVersion() {
+      return delegate.getSourceVersion();
+    }
+
+    @Override
+    public Locale getLocale() {
+      return delegate.getLocale();
+    }
+  }
 }
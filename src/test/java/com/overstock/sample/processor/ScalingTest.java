@@ -0,0 +1,228 @@
+package com.overstock.sample.processor;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Compiles generated entity models of increasing size, with and without {@link JpaProcessor}, and checks that the
+ * time and heap the processor adds grow no faster than near-linearly, and stay within a budget. Budgets apply to the
+ * time spent inside the processor; the difference in total compile time is reported too, but is too noisy to check.
+ *
+ * This is too slow to run with the unit tests; run it with {@code mvn test -Pscaling}. It is configured through system
+ * properties:
+ * <dl>
+ *   <dt>{@code scaling.sizes}</dt>
+ *   <dd>comma separated entity counts to compile (default 100,1000,5000,10000,50000)</dd>
+ *   <dt>{@code scaling.maxExponent}</dt>
+ *   <dd>
+ *     the largest acceptable exponent {@code k} of {@code time ~ size^k}, fitted over sizes of at least 1000 entities
+ *     (default 1.25)
+ *   </dd>
+ *   <dt>{@code scaling.maxMicrosPerEntity}</dt>
+ *   <dd>the most processor time allowed per entity, for sizes of at least 1000 entities (default 500)</dd>
+ *   <dt>{@code scaling.maxBytesPerEntity}</dt>
+ *   <dd>
+ *     the most heap the processor may retain per entity, for sizes of at least 1000 entities (default 40000); this
+ *     includes compiler state, such as class members, which javac only builds because the processor asks for it
+ *   </dd>
+ * </dl>
+ */
+public class ScalingTest {
+  private static final int MIN_FITTED_SIZE = 1000;
+
+  private final List<Compiler> compilers = new ArrayList<Compiler>();
+
+  @After
+  public void cleanUp() {
+    for (Compiler compiler : compilers) {
+      compiler.cleanUp();
+    }
+  }
+
+  @Test
+  public void testProcessorScalesLinearly() throws Exception {
+    double maxExponent = Double.parseDouble(System.getProperty("scaling.maxExponent", "1.25"));
+    double maxMicrosPerEntity = Double.parseDouble(System.getProperty("scaling.maxMicrosPerEntity", "500"));
+    double maxBytesPerEntity = Double.parseDouble(System.getProperty("scaling.maxBytesPerEntity", "40000"));
+
+    List<Integer> sizes = new ArrayList<Integer>();
+    for (String size : System.getProperty("scaling.sizes", "100,1000,5000,10000,50000").split(",")) {
+      sizes.add(Integer.valueOf(size.trim()));
+    }
+
+    // warm up javac and the processor, so that the smallest size isn't charged for class loading and JIT
+    measure(new EntityGraphGenerator(sizes.get(0)).generate());
+
+    List<double[]> fitted = new ArrayList<double[]>();
+    System.out.println(String.format("%10s %10s %10s %14s %10s %14s", "entities", "javac ms", "added ms",
+      "processor ms", "us/entity", "bytes/entity"));
+    for (int size : sizes) {
+      Measurement measurement = measure(new EntityGraphGenerator(size).generate());
+      double microsPerEntity = measurement.processorNanos / 1000.0 / size;
+      double bytesPerEntity = (double) measurement.processorBytes / size;
+      System.out.println(String.format("%10d %10d %10d %14d %10.1f %14.0f", size, measurement.compilerNanos / 1000000,
+        measurement.addedNanos / 1000000, measurement.processorNanos / 1000000, microsPerEntity, bytesPerEntity));
+
+      // below this, fixed costs (and the noise in measuring them) swamp anything per entity
+      if (size >= MIN_FITTED_SIZE) {
+        assertTrue("processor took " + microsPerEntity + "us per entity for " + size + " entities",
+          microsPerEntity <= maxMicrosPerEntity);
+        assertTrue("processor retained " + bytesPerEntity + " bytes per entity for " + size + " entities",
+          bytesPerEntity <= maxBytesPerEntity);
+        fitted.add(new double[] { Math.log(size), Math.log(measurement.processorNanos) });
+      }
+    }
+
+    if (fitted.size() >= 2) {
+      double exponent = slope(fitted);
+      System.out.println(String.format("processor time ~ size^%.2f", exponent));
+      assertTrue("processor time grows as size^" + exponent, exponent <= maxExponent);
+    }
+  }
+
+  /**
+   * Compile {@code sourceFiles} twice, once with a processor which does nothing and once with {@link JpaProcessor},
+   * and work out what the latter added.
+   */
+  private Measurement measure(SourceFile[] sourceFiles) throws Exception {
+    MeasuringProcessor baseline = new MeasuringProcessor(new NoOpProcessor());
+    long start = System.nanoTime();
+    assertTrue(newCompiler().compileWithProcessor(baseline, sourceFiles));
+    long baselineNanos = System.nanoTime() - start;
+
+    Messager messager = Mockito.mock(Messager.class);
+    MeasuringProcessor measured = new MeasuringProcessor(new ProcessorWrapper(new JpaProcessor(), messager));
+    start = System.nanoTime();
+    assertTrue(newCompiler().compileWithProcessor(measured, sourceFiles));
+    long measuredNanos = System.nanoTime() - start;
+    Mockito.verifyNoMoreInteractions(messager); // the generated model is valid
+
+    Measurement measurement = new Measurement();
+    measurement.compilerNanos = baselineNanos;
+    measurement.addedNanos = measuredNanos - baselineNanos;
+    measurement.processorNanos = measured.processingNanos;
+    measurement.processorBytes = Math.max(0, measured.retainedBytes - baseline.retainedBytes);
+    return measurement;
+  }
+
+  private Compiler newCompiler() throws Exception {
+    Compiler compiler = new Compiler("-proc:only");
+    compilers.add(compiler);
+    return compiler;
+  }
+
+  /**
+   * @param points (x, y) pairs
+   * @return the slope of the least squares line through {@code points}
+   */
+  private static double slope(List<double[]> points) {
+    double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0;
+    for (double[] point : points) {
+      sumX += point[0];
+      sumY += point[1];
+      sumXY += point[0] * point[1];
+      sumXX += point[0] * point[0];
+    }
+    int n = points.size();
+    return (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+  }
+
+  private static class Measurement {
+    /** the time to compile without the processor */
+    long compilerNanos;
+    /** how much longer it took to compile with the processor; this includes noise from javac and the GC */
+    long addedNanos;
+    /** the time spent in the processor itself, which is what the budgets apply to */
+    long processorNanos;
+    /** the extra heap in use at the end of a round */
+    long processorBytes;
+  }
+
+  /**
+   * Times calls to a processor, and records the most heap in use (after a collection) at the end of any round, while
+   * the compiler and the processor's per-round state are still reachable.
+   */
+  private static class MeasuringProcessor implements Processor {
+    private final Processor wrapped;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long processingNanos;
+    long retainedBytes;
+
+    MeasuringProcessor(Processor wrapped) {
+      this.wrapped = wrapped;
+    }
+
+    @Override
+    public void init(ProcessingEnvironment processingEnv) {
+      long start = System.nanoTime();
+      wrapped.init(processingEnv);
+      processingNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+      long start = System.nanoTime();
+      boolean claimed = wrapped.process(annotations, roundEnv);
+      processingNanos += System.nanoTime() - start;
+      System.gc();
+      retainedBytes = Math.max(retainedBytes, memory.getHeapMemoryUsage().getUsed());
+      return claimed;
+    }
+
+    @Override
+    public Iterable<? extends Completion> getCompletions(
+      Element element, AnnotationMirror annotation, ExecutableElement member, String userText) {
+      return wrapped.getCompletions(element, annotation, member, userText);
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+      return wrapped.getSupportedAnnotationTypes();
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+      return wrapped.getSupportedOptions();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+      return wrapped.getSupportedSourceVersion();
+    }
+  }
+
+  @SupportedAnnotationTypes({"javax.persistence.Entity", "javax.persistence.OneToMany"})
+  private static class NoOpProcessor extends AbstractProcessor {
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+      return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+      return false;
+    }
+  }
+}